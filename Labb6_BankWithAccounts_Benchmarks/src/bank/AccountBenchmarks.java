@@ -0,0 +1,132 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the JMH benchmarks of the account hot paths for every account count and every thread count,
+ * with the gc profiler, and prints a table of the results. A benchmark that throws fails the run.
+ * The benchmarks can also be run with the JMH command line of benchmarks.jar.
+ *
+ * Arguments (all optional):
+ * --benchmarks LookupByNameBenchmark,DepositWithdrawBenchmark,TransactionHistoryBenchmark,LoadAccountsBenchmark,
+ *              SaveAccountBenchmark,TotalsReportBenchmark,ShardedDepositWithdrawBenchmark,DurableDepositWithdrawBenchmark
+ * --accounts 1000,100000,1000000   account counts, a folder with this many account files is generated for each
+ * --threads 1,4                    thread counts, default is 1 and the number of processors
+ * --warmup 3                       warmup iterations
+ * --iterations 5                   measured iterations
+ * --time 1000                      milliseconds per iteration
+ * --forks 1                        JVMs each benchmark is run in, one after the other
+ *
+ * @author Erik
+ */
+public class AccountBenchmarks {
+
+	private static final List<String> ALL_BENCHMARKS = Arrays.asList("LookupByNameBenchmark", "DepositWithdrawBenchmark",
+			"TransactionHistoryBenchmark", "LoadAccountsBenchmark", "SaveAccountBenchmark", "TotalsReportBenchmark",
+			"ShardedDepositWithdrawBenchmark", "DurableDepositWithdrawBenchmark");
+	// the account manager is created from one thread, the thread count is the loader threads instead
+	private static final List<String> ONE_THREAD_BENCHMARKS = Arrays.asList("LoadAccountsBenchmark");
+
+	public static void main(String[] args) throws RunnerException {
+		Map<String, String> options = parseOptions(args);
+		List<String> benchmarks = new ArrayList<String>();
+		for(String name : option(options, "benchmarks", String.join(",", ALL_BENCHMARKS)).split(",")){
+			if(!ALL_BENCHMARKS.contains(name.trim())){
+				System.out.println("Unknown benchmark: " + name + ". Known benchmarks are " + ALL_BENCHMARKS);
+				return;
+			}
+			benchmarks.add(name.trim());
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		String[] accountCounts = option(options, "accounts", "1000,100000,1000000").split(",");
+		int[] threadCounts = parseNumbers(option(options, "threads", processors > 1 ? "1," + processors : "1"));
+		long iterationMillis = Long.parseLong(option(options, "time", "1000"));
+
+		List<RunResult> results = new ArrayList<RunResult>();
+		for(String benchmark : benchmarks){
+			for(int threads : threadCounts){
+				ChainedOptionsBuilder builder = new OptionsBuilder()
+						// only this class, not the ones whose names end with it
+						.include("\\." + benchmark + "\\.")
+						.param("accounts", accountCounts)
+						.warmupIterations(Integer.parseInt(option(options, "warmup", "3")))
+						.measurementIterations(Integer.parseInt(option(options, "iterations", "5")))
+						.warmupTime(TimeValue.milliseconds(iterationMillis))
+						.measurementTime(TimeValue.milliseconds(iterationMillis))
+						.forks(Integer.parseInt(option(options, "forks", "1")))
+						.addProfiler(GCProfiler.class)
+						.shouldFailOnError(true);
+				if(ONE_THREAD_BENCHMARKS.contains(benchmark)){
+					builder.param("loaderThreads", String.valueOf(threads));
+				} else {
+					builder.threads(threads);
+				}
+				results.addAll(new Runner(builder.build()).run());
+			}
+		}
+
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-50s %9s %7s %16s %10s %12s", "benchmark", "accounts", "threads", "score", "unit", "bytes/op"));
+		for(RunResult result : results){
+			System.out.println(format(result));
+		}
+	}
+
+	private static String format(RunResult result){
+		String benchmark = result.getParams().getBenchmark().replace("bank.", "");
+		Collection<String> paramKeys = result.getParams().getParamsKeys();
+		for(String key : paramKeys){
+			if(!key.equals("accounts")){
+				benchmark += " " + key + "=" + result.getParams().getParam(key);
+			}
+		}
+		String accounts = paramKeys.contains("accounts") ? result.getParams().getParam("accounts") : "-";
+		Result<?> score = result.getPrimaryResult();
+		Result<?> bytesPerOperation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+		return String.format(Locale.US, "%-50s %9s %7d %16.1f %10s %12s", benchmark, accounts, result.getParams().getThreads(),
+				score.getScore(), score.getScoreUnit(), bytesPerOperation == null ? "n/a" : String.format(Locale.US, "%.1f", bytesPerOperation.getScore()));
+	}
+
+	private static Map<String, String> parseOptions(String[] args){
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(int i = 0; i + 1 < args.length; i += 2){
+			if(!args[i].startsWith("--")){
+				throw new IllegalArgumentException("Expected an option like --accounts, got " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		if(args.length % 2 != 0){
+			throw new IllegalArgumentException("Missing a value for " + args[args.length - 1]);
+		}
+		return options;
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue){
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private static int[] parseNumbers(String commaSeparated){
+		String[] values = commaSeparated.split(",");
+		int[] numbers = new int[values.length];
+		for(int i = 0; i < values.length; i++){
+			numbers[i] = Integer.parseInt(values[i].trim());
+		}
+		return numbers;
+	}
+}
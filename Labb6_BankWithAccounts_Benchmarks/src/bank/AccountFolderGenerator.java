@@ -0,0 +1,76 @@
+package bank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Writes folders with account files for the benchmarks, in the same format as AccountFileStorage.
+ * Account i is named "account" + i and is owned by "owner" + i / 10, so ten accounts share an owner.
+ * A folder that already has the right number of files is used as it is.
+ *
+ * @author Erik
+ */
+public class AccountFolderGenerator {
+
+	private final File dataFolder;
+
+	/**
+	 * @param dataFolder the folders are created inside this folder
+	 */
+	AccountFolderGenerator(File dataFolder){
+		this.dataFolder = dataFolder;
+	}
+
+	static String accountName(int i){
+		return "account" + i;
+	}
+
+	static String ownerName(int i){
+		return "owner" + i / 10;
+	}
+
+	/**
+	 * @param accountCount
+	 * @return a folder with accountCount account files
+	 */
+	File folderWithAccounts(int accountCount){
+		File folder = new File(dataFolder, "accounts-" + accountCount);
+		// only the account files are counted, an account manager keeps its own folders (ledger, ids, ...) in it
+		File[] existingFiles = folder.listFiles(File::isFile);
+		if(existingFiles != null && existingFiles.length == accountCount){
+			return folder;
+		}
+		if(existingFiles != null){
+			for(File existingFile : existingFiles){
+				existingFile.delete();
+			}
+		}
+		if(!folder.exists() && !folder.mkdirs()){
+			throw new IllegalStateException("Could not create the folder " + folder.getPath());
+		}
+		System.out.println("Generating " + accountCount + " account files in " + folder.getPath());
+		for(int i = 0; i < accountCount; i++){
+			writeAccountFile(new File(folder, "a" + (i + 1)), i);
+		}
+		return folder;
+	}
+
+	private static void writeAccountFile(File accountFile, int i){
+		try(BufferedWriter writeBuffer = new BufferedWriter(new FileWriter(accountFile))){
+			writeBuffer.write("1000.00,");
+			writeBuffer.write(ownerName(i));
+			writeBuffer.write(",");
+			writeBuffer.write(accountName(i));
+			writeBuffer.newLine();
+			// a full transaction history, newest first
+			for(int transaction = 0; transaction < Account.HISTORY_SIZE; transaction++){
+				writeBuffer.write(transaction % 2 == 0 ? "100.00" : "-100.00");
+				writeBuffer.newLine();
+			}
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+}
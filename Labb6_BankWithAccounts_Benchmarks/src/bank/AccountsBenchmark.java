@@ -0,0 +1,84 @@
+package bank;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the JMH benchmarks of the bank share: a folder with `accounts` generated account files, made
+ * before the benchmark starts and kept in DATA_FOLDER between runs. The benchmark sets up what it
+ * measures in setup() and cleans up in teardown(), both once per fork.
+ *
+ * The program prints a lot (for example on every save), so everything written to System.out is thrown
+ * away while a benchmark runs. JMH reports through its own connection to the forked JVM.
+ *
+ * The thread count is JMH's (-t, or --threads of AccountBenchmarks).
+ *
+ * @author Erik
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g") // a million accounts needs a bigger heap than the default
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class AccountsBenchmark {
+
+	public static final String DATA_FOLDER = "benchmarkData";
+
+	@Param({"1000", "100000", "1000000"})
+	public int accounts;
+
+	File accountFolder;
+	private PrintStream console;
+
+	@Setup(Level.Trial)
+	public void setupTrial(){
+		accountFolder = new AccountFolderGenerator(new File(DATA_FOLDER)).folderWithAccounts(accounts);
+		console = System.out;
+		System.setOut(new PrintStream(new OutputStream(){
+			@Override
+			public void write(int b){
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len){
+			}
+		}));
+		setup();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardownTrial(){
+		try {
+			teardown();
+		} finally {
+			System.setOut(console);
+		}
+	}
+
+	/**
+	 * Prepares the benchmark, outside of the measured time. accountFolder is ready
+	 */
+	abstract void setup();
+
+	/**
+	 * Cleans up after the benchmark, outside of the measured time
+	 */
+	void teardown(){
+	}
+}
@@ -0,0 +1,148 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+
+/**
+ * Checks that changing the balance of an account allocates nothing. Each check is run many times and
+ * the bytes the thread allocated are counted. Prints the bytes per operation of each and exits with
+ * status 1 if any of them allocated a single byte, so a build script can run it.
+ *
+ * The first checks change a detached Account: setBalance, insertMoney and takeOutMoney. The last one
+ * goes the whole way through an AccountManager: the id lookup, the account cache, the ledger, the bank
+ * totals with the top balances and the balance versions, and the list of changed accounts. It runs a
+ * deposit and a withdraw by id on one account after the other, so every account is changed the same
+ * number of times.
+ *
+ * The ledger keeps where every CHECKPOINT_INTERVAL-th entry of an account is in an array that grows
+ * with the history, and maps a new segment every ENTRIES_PER_SEGMENT entries. That's memory the ledger
+ * keeps on purpose, not garbage, so the accounts and rounds are picked to stay below both.
+ *
+ * Each check is run a while first, so it's compiled like it would be in a running bank.
+ *
+ * @author Erik
+ */
+public class AllocationCheck {
+
+	private static final int WARMUP_OPERATIONS = 500_000;
+	private static final int MEASURED_OPERATIONS = 1_000_000;
+	private static final int MANAGED_ACCOUNTS = 16_384;
+	private static final int MANAGED_WARMUP_ROUNDS = 12; // a round is a deposit and a withdraw on every account
+	private static final int MANAGED_MEASURED_ROUNDS = 16;
+
+	public static void main(String[] args) throws IOException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)){
+			System.out.println("This JVM can't count allocated bytes, nothing was checked");
+			System.exit(1);
+		}
+		Account account = new Account(1, new File("a1.txt"), "Owner", "Account", 1_000_000, new long[0]);
+		boolean allocated = false;
+		allocated |= check("setBalance", WARMUP_OPERATIONS, MEASURED_OPERATIONS, count -> {
+			for(int i = 0; i < count; i++){
+				account.setBalance(account.getBalance() + (i & 1) * 2 - 1);
+			}
+		});
+		allocated |= check("insertMoney", WARMUP_OPERATIONS, MEASURED_OPERATIONS, count -> {
+			for(int i = 0; i < count; i++){
+				account.insertMoney(100);
+			}
+		});
+		allocated |= check("takeOutMoney", WARMUP_OPERATIONS, MEASURED_OPERATIONS, count -> {
+			for(int i = 0; i < count; i++){
+				if(!account.takeOutMoney(100)){
+					throw new IllegalStateException("The balance ran out");
+				}
+			}
+		});
+		allocated |= checkAccountManager();
+		if(allocated){
+			System.out.println("FAILED: the balance changes allocate");
+			System.exit(1);
+		}
+		System.out.println("OK: the balance changes don't allocate");
+	}
+
+	/**
+	 * Deposit and withdraw by id through an AccountManager, with every account in the account cache
+	 * @return true if it allocated
+	 */
+	private static boolean checkAccountManager() throws IOException {
+		// every account gets a ledger entry for each deposit and withdraw, and maybe one when it's created
+		int entriesPerAccount = 2 * (MANAGED_WARMUP_ROUNDS + MANAGED_MEASURED_ROUNDS) + 1;
+		if(entriesPerAccount >= AccountLedger.CHECKPOINT_INTERVAL || (long) entriesPerAccount * MANAGED_ACCOUNTS >= AccountLedger.ENTRIES_PER_SEGMENT){
+			throw new IllegalStateException("The rounds would grow the ledger while it's measured");
+		}
+		File accountFolder = Files.createTempDirectory("allocation-check").toFile();
+		AccountManager accountManager = new AccountManager(accountFolder, new AccountFileStorage(accountFolder, 1, MANAGED_ACCOUNTS));
+		try {
+			long[] startBalances = new long[MANAGED_ACCOUNTS];
+			String[] owners = new String[MANAGED_ACCOUNTS];
+			String[] names = new String[MANAGED_ACCOUNTS];
+			for(int i = 0; i < MANAGED_ACCOUNTS; i++){
+				startBalances[i] = 1_000_00L + i; // different balances, so the top balances move around
+				owners[i] = "Owner " + i % 1000;
+				names[i] = "Account " + i;
+			}
+			Account[] accounts = accountManager.createNewAccounts(startBalances, owners, names);
+			int[] accountIds = new int[accounts.length];
+			for(int i = 0; i < accounts.length; i++){
+				accountIds[i] = accounts[i].getAccountID();
+			}
+			return check("AccountManager deposit+withdraw by id", MANAGED_WARMUP_ROUNDS * MANAGED_ACCOUNTS,
+					MANAGED_MEASURED_ROUNDS * MANAGED_ACCOUNTS, count -> {
+				for(int i = 0; i < count; i++){
+					int accountId = accountIds[i % accountIds.length];
+					accountManager.deposit(accountId, 100);
+					if(!accountManager.withdraw(accountId, 100)){
+						throw new IllegalStateException("Could not withdraw from account " + accountId);
+					}
+				}
+			});
+		} finally {
+			accountManager.closeAccountManager();
+			deleteFolder(accountFolder);
+		}
+	}
+
+	/**
+	 * @return true if the operation allocated
+	 */
+	private static boolean check(String name, int warmupOperations, int measuredOperations, Operations operations){
+		operations.run(warmupOperations);
+		long before = allocatedBytes();
+		operations.run(measuredOperations);
+		long allocated = allocatedBytes() - before;
+		// reading the counter allocates a little itself, measured with an empty run
+		long emptyBefore = allocatedBytes();
+		long overhead = allocatedBytes() - emptyBefore;
+		long allocatedByOperations = Math.max(0, allocated - overhead);
+		System.out.printf("%s: %d bytes in %d operations, %.3f bytes/op%n", name, allocatedByOperations, measuredOperations,
+				(double) allocatedByOperations / measuredOperations);
+		return allocatedByOperations > 0;
+	}
+
+	private static long allocatedBytes(){
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void deleteFolder(File folder){
+		File[] files = folder.listFiles();
+		if(files != null){
+			for(File file : files){
+				deleteFolder(file);
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * Runs an operation count times
+	 */
+	private interface Operations {
+		void run(int count);
+	}
+}
@@ -0,0 +1,44 @@
+package bank;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * AccountManager.deposit followed by AccountManager.withdraw of the same amount on a random account.
+ * One operation is both calls, so the balances stay the same however long it runs.
+ * With more accounts than fit in the account cache this also measures loading and saving
+ * the accounts that go in and out of the cache.
+ *
+ * @author Erik
+ */
+public class DepositWithdrawBenchmark extends AccountsBenchmark {
+
+	private AccountManager accountManager;
+	private int[] accountIds;
+
+	@Override
+	void setup(){
+		accountManager = new AccountManager(accountFolder);
+		List<Account> accounts = accountManager.getAllAccounts();
+		accountIds = new int[accounts.size()];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = accounts.get(i).getAccountID();
+		}
+	}
+
+	@Benchmark
+	public void depositWithdraw(){
+		int accountId = accountIds[ThreadLocalRandom.current().nextInt(accountIds.length)];
+		accountManager.deposit(accountId, 100);
+		if(!accountManager.withdraw(accountId, 100)){
+			throw new IllegalStateException("Could not withdraw from account " + accountId);
+		}
+	}
+
+	@Override
+	void teardown(){
+		accountManager.closeAccountManager();
+	}
+}
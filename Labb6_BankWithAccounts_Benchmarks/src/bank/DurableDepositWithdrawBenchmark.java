@@ -0,0 +1,95 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A deposit followed by a withdraw of the same amount on a random account, both waiting until they
+ * are on disk (group committed). Either every call waits for its sync, or (pipelined) the calls go
+ * through an AsyncAccountManager and each thread only waits for its operations every PIPELINE_DEPTH
+ * pairs, so many changes share a sync.
+ *
+ * @author Erik
+ */
+public class DurableDepositWithdrawBenchmark extends AccountsBenchmark {
+
+	private static final int PIPELINE_DEPTH = 256; // deposit/withdraw pairs a thread has going before it waits
+
+	@Param({"false", "true"})
+	public boolean pipelined;
+
+	private AccountManager accountManager;
+	private AsyncAccountManager asyncAccountManager;
+	private int[] accountIds;
+
+	/**
+	 * The operations a thread has going. Waited for at the end of every iteration, before the
+	 * account manager is closed
+	 */
+	@State(Scope.Thread)
+	public static class Pipeline {
+
+		private final List<CompletableFuture<Boolean>> unfinished = new ArrayList<CompletableFuture<Boolean>>(2 * PIPELINE_DEPTH);
+
+		@TearDown(Level.Iteration)
+		public void waitForAll(){
+			for(CompletableFuture<Boolean> future : unfinished){
+				if(!future.join()){
+					throw new IllegalStateException("A deposit or withdraw was refused");
+				}
+			}
+			unfinished.clear();
+		}
+	}
+
+	@Override
+	void setup(){
+		accountManager = new AccountManager(accountFolder, new AccountFileStorage(accountFolder, Runtime.getRuntime().availableProcessors()),
+				GroupCommitter.DEFAULT_MAX_BATCH_SIZE, GroupCommitter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+		if(pipelined){
+			asyncAccountManager = new AsyncAccountManager(accountManager);
+		}
+		List<Account> accounts = accountManager.getAllAccounts();
+		accountIds = new int[accounts.size()];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = accounts.get(i).getAccountID();
+		}
+	}
+
+	@Benchmark
+	public void depositWithdraw(Pipeline pipeline){
+		int accountId = accountIds[ThreadLocalRandom.current().nextInt(accountIds.length)];
+		if(!pipelined){
+			accountManager.deposit(accountId, 100, true);
+			if(!accountManager.withdraw(accountId, 100, true)){
+				throw new IllegalStateException("Could not withdraw from account " + accountId);
+			}
+			return;
+		}
+		// the deposit is done first, the lane keeps the order of an account
+		pipeline.unfinished.add(asyncAccountManager.deposit(accountId, 100, true));
+		pipeline.unfinished.add(asyncAccountManager.withdraw(accountId, 100, true));
+		if(pipeline.unfinished.size() >= 2 * PIPELINE_DEPTH){
+			pipeline.waitForAll();
+		}
+	}
+
+	@Override
+	void teardown(){
+		if(asyncAccountManager != null){
+			asyncAccountManager.close();
+		}
+		if(accountManager != null){
+			accountManager.closeAccountManager();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package bank;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Measures what the accounts cost the heap and the garbage collector, with the accounts as Account
+ * objects in an AccountManager, with all the indexes and totals it keeps.
+ *
+ * The accounts are made, then:
+ * - the heap used after a full collection, minus what was used before the accounts were made
+ * - how long a full collection takes while the accounts are alive (it has to trace all of them)
+ * - deposits and withdraws for --time milliseconds while garbage is made like a server parsing
+ *   requests would, and the collections that happen meanwhile: how many, their total time and the
+ *   longest pause
+ *
+ * The deposits of the AccountManager are also written to its ledger, so its operations per second
+ * aren't only the cost of the Account objects.
+ *
+ * Arguments (all optional):
+ * --accounts 1000000     accounts
+ * --time 5000            milliseconds of deposits and withdraws
+ * --data benchmarkData   the AccountManager keeps its ledger here
+ *
+ * The heap needs room for the accounts, for example -Xmx4g for ten million.
+ *
+ * @author Erik
+ */
+public class HeapFootprintTest {
+
+	private static final int FULL_COLLECTIONS = 3; // timed full collections, the average is reported
+	private static final long OPERATION_AMOUNT = 100; // cents deposited and then withdrawn again
+
+	private int accountCount;
+	private long timeMillis;
+	private File dataFolder;
+	private volatile long longestPauseMillis; // of the collections since it was last reset
+	private long requestParts; // keeps the parsed requests from being optimized away
+	private AccountManager accountManager;
+
+	HeapFootprintTest(int accountCount, long timeMillis, File dataFolder){
+		this.accountCount = accountCount;
+		this.timeMillis = timeMillis;
+		this.dataFolder = dataFolder;
+		listenToCollections();
+	}
+
+	public static void main(String[] args) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(int i = 0; i + 1 < args.length; i += 2){
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		int accountCount = Integer.parseInt(options.getOrDefault("accounts", "1000000"));
+		long timeMillis = Long.parseLong(options.getOrDefault("time", "5000"));
+		File dataFolder = new File(options.getOrDefault("data", "benchmarkData"));
+		HeapFootprintTest test = new HeapFootprintTest(accountCount, timeMillis, dataFolder);
+
+		String result = test.run(new File(dataFolder, "heapFootprint-" + accountCount));
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%10s %10s %12s %12s %6s %8s %14s",
+				"accounts", "heap MB", "full gc ms", "ops/s", "gc", "gc ms", "longest gc ms"));
+		System.out.println(result);
+	}
+
+	/**
+	 * @return a line for the result table
+	 */
+	String run(File folder){
+		System.out.println("Making " + accountCount + " accounts");
+		fullCollection();
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		build(folder);
+		System.out.println(String.format(Locale.US, "  made in %.1f s", (System.nanoTime() - start) / 1e9));
+		fullCollection();
+		long heapBytes = usedHeap() - heapBefore;
+
+		long fullCollectionNanos = 0;
+		for(int i = 0; i < FULL_COLLECTIONS; i++){
+			long collectionStart = System.nanoTime();
+			System.gc();
+			fullCollectionNanos += System.nanoTime() - collectionStart;
+		}
+
+		long collections = gcCount();
+		long collectionMillis = gcMillis();
+		longestPauseMillis = 0;
+		long operations = 0;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long end = System.nanoTime() + timeMillis * 1_000_000;
+		while(System.nanoTime() < end){
+			int account = random.nextInt(accountCount);
+			// what a request to the server turns into before it reaches the account manager
+			String request = "deposit " + account + " " + OPERATION_AMOUNT;
+			requestParts += request.split(" ").length;
+			// the accounts were made with their index as id
+			if(!accountManager.deposit(account, OPERATION_AMOUNT) || !accountManager.withdraw(account, OPERATION_AMOUNT)){
+				throw new IllegalStateException("Deposit or withdraw failed on account " + account);
+			}
+			operations += 2;
+		}
+		double seconds = timeMillis / 1000.0;
+		collections = gcCount() - collections;
+		collectionMillis = gcMillis() - collectionMillis;
+		accountManager.closeAccountManager();
+		accountManager = null;
+
+		String result = String.format(Locale.US, "%10d %10.1f %12.1f %12.0f %6d %8d %14d",
+				accountCount, heapBytes / 1e6, fullCollectionNanos / 1e6 / FULL_COLLECTIONS,
+				operations / seconds, collections, collectionMillis, longestPauseMillis);
+		System.out.println(result);
+		return result;
+	}
+
+	/**
+	 * Keeps the longest pause of the collections that weren't asked for, if the JVM tells about every collection
+	 */
+	private void listenToCollections(){
+		NotificationListener listener = (Notification notification, Object handback) -> {
+			if(notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)){
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+				if("System.gc()".equals(info.getGcCause())){
+					// the timed full collections, the notification can come after the deposits have started
+					return;
+				}
+				longestPauseMillis = Math.max(longestPauseMillis, info.getGcInfo().getDuration());
+			}
+		};
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			if(collector instanceof NotificationEmitter){
+				((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	private static void fullCollection(){
+		System.gc();
+		System.gc();
+	}
+
+	private static long usedHeap(){
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long gcCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis(){
+		long millis = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * Makes the accounts with index 0 to accountCount - 1 as their ids, in an AccountManager
+	 */
+	private void build(File folder){
+		List<Account> accounts = new ArrayList<Account>(accountCount);
+		for(int i = 0; i < accountCount; i++){
+			accounts.add(new Account(i, new File(folder, "a" + i + ".txt"), AccountFolderGenerator.ownerName(i),
+					AccountFolderGenerator.accountName(i), 100_000, new long[0]));
+		}
+		accountManager = new AccountManager(folder, new GeneratedAccounts(accounts));
+	}
+
+	/**
+	 * Storage that hands out accounts made in memory and doesn't save anything, so only the accounts are measured
+	 */
+	private static class GeneratedAccounts implements AccountStorage {
+
+		private List<Account> accounts;
+
+		GeneratedAccounts(List<Account> accounts){
+			this.accounts = accounts;
+		}
+
+		@Override
+		public List<Account> loadAccounts(AccountIdAllocator ids){
+			List<Account> loaded = accounts;
+			accounts = Collections.emptyList();
+			return loaded;
+		}
+
+		@Override
+		public void accountCreated(Account account){
+		}
+
+		@Override
+		public void balanceChanged(Account account, long amount){
+		}
+
+		@Override
+		public void accountDeleted(Account account){
+		}
+
+		@Override
+		public void saveAccount(Account account){
+		}
+
+		@Override
+		public void close(List<Account> accounts){
+		}
+	}
+}
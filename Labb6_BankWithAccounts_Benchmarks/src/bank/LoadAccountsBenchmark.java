@@ -0,0 +1,52 @@
+package bank;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Loading all accounts of a folder when an AccountManager is created (loadExistingAccounts), in
+ * milliseconds per load. The manager is always created from one thread, loaderThreads read the files.
+ * The gc profiler only counts what the calling thread allocates, not what the loader threads allocate.
+ *
+ * Run with and without a snapshot of the folder: without one every account file is read, with one
+ * (written by closing an account manager in the setup) only the snapshot is read and the folder listed.
+ * The managers aren't closed, closing one would write the snapshot.
+ *
+ * @author Erik
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(1)
+public class LoadAccountsBenchmark extends AccountsBenchmark {
+
+	@Param({"1", "4"})
+	public int loaderThreads;
+
+	@Param({"false", "true"})
+	public boolean fromSnapshot;
+
+	@Override
+	void setup(){
+		if(fromSnapshot){
+			// closing an account manager writes a snapshot of its accounts
+			new AccountManager(accountFolder, loaderThreads).closeAccountManager();
+		} else {
+			AccountSnapshot.delete(accountFolder);
+		}
+	}
+
+	@Benchmark
+	public AccountManager loadExistingAccounts(){
+		AccountManager accountManager = new AccountManager(accountFolder, loaderThreads);
+		if(accountManager.getAllAccounts().isEmpty()){
+			throw new IllegalStateException("No accounts were loaded from " + accountFolder.getPath());
+		}
+		return accountManager;
+	}
+}
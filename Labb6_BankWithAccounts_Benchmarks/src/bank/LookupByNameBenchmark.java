@@ -0,0 +1,41 @@
+package bank;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * AccountManager.getAccountByAccountName with random names of existing accounts
+ *
+ * @author Erik
+ */
+public class LookupByNameBenchmark extends AccountsBenchmark {
+
+	private AccountManager accountManager;
+	private String[] accountNames;
+
+	@Override
+	void setup(){
+		accountManager = new AccountManager(accountFolder);
+		// made up front so the benchmark doesn't measure building the strings
+		accountNames = new String[accounts];
+		for(int i = 0; i < accounts; i++){
+			accountNames[i] = AccountFolderGenerator.accountName(i);
+		}
+	}
+
+	@Benchmark
+	public Account getAccountByAccountName(){
+		String accountName = accountNames[ThreadLocalRandom.current().nextInt(accountNames.length)];
+		Account account = accountManager.getAccountByAccountName(accountName);
+		if(account == null){
+			throw new IllegalStateException("No account named " + accountName);
+		}
+		return account;
+	}
+
+	@Override
+	void teardown(){
+		accountManager.closeAccountManager();
+	}
+}
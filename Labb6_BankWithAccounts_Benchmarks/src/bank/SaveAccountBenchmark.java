@@ -0,0 +1,30 @@
+package bank;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * AccountManager.saveChangesToCurrentAccount, the save that is done every time the current account changes.
+ * With more than one thread they all save the same account, so they take turns.
+ *
+ * @author Erik
+ */
+public class SaveAccountBenchmark extends AccountsBenchmark {
+
+	private AccountManager accountManager;
+
+	@Override
+	void setup(){
+		accountManager = new AccountManager(accountFolder);
+		accountManager.setCurrentAccount(accountManager.getAllAccounts().get(0));
+	}
+
+	@Benchmark
+	public void saveChangesToCurrentAccount(){
+		accountManager.saveChangesToCurrentAccount();
+	}
+
+	@Override
+	void teardown(){
+		accountManager.closeAccountManager();
+	}
+}
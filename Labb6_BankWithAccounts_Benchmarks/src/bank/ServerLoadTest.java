@@ -0,0 +1,266 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Load test of the BankServer. Opens many connections that are all open at the same time, selects an
+ * account on each, then lets every connection deposit and withdraw 1.00 in turn. The balances are the
+ * same afterwards, so the test can be run again and again on the same accounts.
+ *
+ * The clients are driven by one thread with a selector, so the number of connections is limited by
+ * the server and the number of open files, not by the test.
+ *
+ * Arguments (all optional):
+ * --connections 10000   connections open at the same time
+ * --operations 10       deposits and withdraws per connection
+ * --accounts 1000       accounts the connections are spread over
+ * --port 4711           test a running server (started over a folder from AccountFolderGenerator)
+ *                       instead of one in this program
+ * --data benchmarkData  where the generated account folder is kept
+ *
+ * With the server in this program every connection uses two open files, so the limit on open files
+ * (ulimit -n) has to be more than twice the number of connections.
+ *
+ * @author Erik
+ */
+public class ServerLoadTest {
+
+	private static final int CONNECTS_IN_FLIGHT = 512; // connections being set up at the same time
+
+	private int connectionCount;
+	private int operationsPerConnection;
+	private int accountCount;
+	private InetSocketAddress serverAddress;
+	private Selector selector;
+	private long[] latencies;
+	private int latencyCount;
+	private int errors; // answers that weren't OK
+	private int failedConnections; // connections that couldn't be opened or broke
+	private int selected; // connections that have selected their account
+	private int finished; // connections that are done with all operations
+
+	ServerLoadTest(InetSocketAddress serverAddress, int connectionCount, int operationsPerConnection, int accountCount){
+		this.serverAddress = serverAddress;
+		this.connectionCount = connectionCount;
+		this.operationsPerConnection = operationsPerConnection;
+		this.accountCount = accountCount;
+		this.latencies = new long[connectionCount * operationsPerConnection];
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for(int i = 0; i + 1 < args.length; i += 2){
+			options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+		}
+		int connections = Integer.parseInt(options.getOrDefault("connections", "10000"));
+		int operations = Integer.parseInt(options.getOrDefault("operations", "10"));
+		int accounts = Integer.parseInt(options.getOrDefault("accounts", "1000"));
+		warnAboutOpenFiles(connections, !options.containsKey("port"));
+
+		AccountManager accountManager = null;
+		BankServer server = null;
+		int port;
+		if(options.containsKey("port")){
+			port = Integer.parseInt(options.get("port"));
+		} else {
+			File accountFolder = new AccountFolderGenerator(new File(options.getOrDefault("data", "benchmarkData"))).folderWithAccounts(accounts);
+			accountManager = new AccountManager(accountFolder, new AccountFileStorage(accountFolder, Runtime.getRuntime().availableProcessors()),
+					GroupCommitter.DEFAULT_MAX_BATCH_SIZE, GroupCommitter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+			server = new BankServer(accountManager, 0);
+			server.start();
+			port = server.getPort();
+		}
+
+		new ServerLoadTest(new InetSocketAddress("127.0.0.1", port), connections, operations, accounts).run(server);
+
+		if(server != null){
+			server.stop();
+			accountManager.closeAccountManager();
+		}
+	}
+
+	private static void warnAboutOpenFiles(int connections, boolean serverInThisProgram){
+		OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+		if(system instanceof com.sun.management.UnixOperatingSystemMXBean){
+			long maxOpenFiles = ((com.sun.management.UnixOperatingSystemMXBean) system).getMaxFileDescriptorCount();
+			long needed = (serverInThisProgram ? 2L : 1L) * connections + 100;
+			if(needed > maxOpenFiles){
+				System.out.println("Warning: " + connections + " connections need about " + needed + " open files, the limit is " + maxOpenFiles);
+			}
+		}
+	}
+
+	/**
+	 * Runs the test and prints the result
+	 * @param server the server if it's in this program, for counting its sessions, else null
+	 */
+	void run(BankServer server) throws IOException {
+		selector = Selector.open();
+		long startTime = System.nanoTime();
+		int opened = 0;
+		// phase 1: open all connections and select an account on each
+		while(selected + failedConnections < connectionCount){
+			while(opened < connectionCount && opened - selected - failedConnections < CONNECTS_IN_FLIGHT){
+				open(opened);
+				opened++;
+			}
+			handleEvents();
+		}
+		long connectedTime = System.nanoTime();
+		System.out.println(String.format(Locale.US, "%d connections open and selected in %.1f ms%s",
+				selected,
+				(connectedTime - startTime) / 1e6,
+				server == null ? "" : ", the server has " + server.getOpenSessions() + " open sessions"));
+
+		// phase 2: every connection deposits and withdraws, all at the same time
+		for(SelectionKey key : selector.keys()){
+			sendNextOperation(key);
+		}
+		while(finished < selected){
+			handleEvents();
+		}
+		long operationsTime = System.nanoTime() - connectedTime;
+
+		for(SelectionKey key : selector.keys()){
+			key.channel().close();
+		}
+		selector.close();
+		printResult(operationsTime);
+	}
+
+	private void open(int connectionNumber) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		Client client = new Client("SELECT account" + (connectionNumber % accountCount));
+		if(channel.connect(serverAddress)){
+			channel.register(selector, SelectionKey.OP_READ, client);
+			send(channel, client, client.selectCommand);
+		} else {
+			channel.register(selector, SelectionKey.OP_CONNECT, client);
+		}
+	}
+
+	private void handleEvents() throws IOException {
+		selector.select(1000);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while(keys.hasNext()){
+			SelectionKey key = keys.next();
+			keys.remove();
+			SocketChannel channel = (SocketChannel) key.channel();
+			Client client = (Client) key.attachment();
+			try {
+				if(key.isConnectable()){
+					channel.finishConnect();
+					key.interestOps(SelectionKey.OP_READ);
+					send(channel, client, client.selectCommand);
+				} else if(key.isReadable()){
+					read(key, channel, client);
+				}
+			} catch (IOException e) {
+				failedConnections++;
+				key.cancel();
+				channel.close();
+				if(client.selected && client.operationsDone < operationsPerConnection){
+					finished++;
+				}
+			}
+		}
+	}
+
+	private void read(SelectionKey key, SocketChannel channel, Client client) throws IOException {
+		client.in.clear();
+		int read = channel.read(client.in);
+		if(read < 0){
+			throw new IOException("Connection closed by the server");
+		}
+		client.in.flip();
+		while(client.in.hasRemaining()){
+			byte next = client.in.get();
+			if(next != '\n'){
+				client.line.append((char) next);
+				continue;
+			}
+			boolean ok = client.line.length() >= 2 && client.line.charAt(0) == 'O' && client.line.charAt(1) == 'K';
+			client.line.setLength(0);
+			if(!ok){
+				errors++;
+			}
+			if(!client.selected){
+				client.selected = true;
+				selected++;
+			} else {
+				latencies[latencyCount++] = System.nanoTime() - client.sentAt;
+				client.operationsDone++;
+				sendNextOperation(key);
+			}
+		}
+	}
+
+	private void sendNextOperation(SelectionKey key) throws IOException {
+		Client client = (Client) key.attachment();
+		if(client.operationsDone == operationsPerConnection){
+			finished++;
+			return;
+		}
+		send((SocketChannel) key.channel(), client, client.operationsDone % 2 == 0 ? "DEPOSIT 1.00" : "WITHDRAW 1.00");
+	}
+
+	private static void send(SocketChannel channel, Client client, String command) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+		client.sentAt = System.nanoTime();
+		while(out.hasRemaining()){
+			// the commands are tiny, the socket buffer always has room for them
+			channel.write(out);
+		}
+	}
+
+	private void printResult(long operationsNanos){
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		System.out.println(String.format(Locale.US,
+				"%d operations on %d connections in %.1f ms: %.0f operations/second, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d errors, %d failed connections",
+				latencyCount,
+				selected,
+				operationsNanos / 1e6,
+				operationsNanos > 0 ? latencyCount * 1e9 / operationsNanos : 0,
+				percentile(sorted, 0.50) / 1e6,
+				percentile(sorted, 0.99) / 1e6,
+				sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6,
+				errors,
+				failedConnections));
+	}
+
+	private static long percentile(long[] sorted, double fraction){
+		if(sorted.length == 0){
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+	}
+
+	private static class Client {
+		final String selectCommand;
+		final ByteBuffer in = ByteBuffer.allocate(256);
+		final StringBuilder line = new StringBuilder();
+		boolean selected;
+		int operationsDone;
+		long sentAt;
+
+		Client(String selectCommand){
+			this.selectCommand = selectCommand;
+		}
+	}
+}
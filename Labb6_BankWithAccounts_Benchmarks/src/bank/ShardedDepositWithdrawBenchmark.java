@@ -0,0 +1,55 @@
+package bank;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The deposit/withdraw benchmark on a ShardedAccountManager. The generated accounts are imported into
+ * a folder of their own for each number of shards the first time, and it's reused after that.
+ * Run with 1, 2 and 4 shards and more threads than shards to see how the throughput grows with the
+ * number of shards, every shard has one writer thread.
+ *
+ * @author Erik
+ */
+public class ShardedDepositWithdrawBenchmark extends AccountsBenchmark {
+
+	@Param({"1", "2", "4"})
+	public int shards;
+
+	private ShardedAccountManager accountManager;
+	private int[] accountIds;
+
+	@Override
+	void setup(){
+		File shardedFolder = new File(accountFolder.getParentFile(), accountFolder.getName() + "-shards-" + shards);
+		boolean imported = shardedFolder.exists();
+		accountManager = new ShardedAccountManager(shardedFolder, shards,
+				folder -> new AccountFileStorage(folder, Runtime.getRuntime().availableProcessors()));
+		if(!imported){
+			accountManager.importAccounts(accountFolder);
+		}
+		List<Account> accounts = accountManager.getAllAccounts();
+		accountIds = new int[accounts.size()];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = accounts.get(i).getAccountID();
+		}
+	}
+
+	@Benchmark
+	public void depositWithdraw(){
+		int accountId = accountIds[ThreadLocalRandom.current().nextInt(accountIds.length)];
+		accountManager.deposit(accountId, 100);
+		if(!accountManager.withdraw(accountId, 100)){
+			throw new IllegalStateException("Could not withdraw from account " + accountId);
+		}
+	}
+
+	@Override
+	void teardown(){
+		accountManager.closeAccountManager();
+	}
+}
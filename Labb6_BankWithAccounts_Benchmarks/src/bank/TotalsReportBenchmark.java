@@ -0,0 +1,75 @@
+package bank;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A report of the total balance, the number of accounts with a low balance and the biggest balances.
+ * Either read from the totals the account manager keeps up to date (keptTotals), counted by going
+ * through all accounts like it had to be done before there were any (scan), or counted from a snapshot
+ * of the balances so the report is consistent while the balances change (snapshot)
+ *
+ * @author Erik
+ */
+public class TotalsReportBenchmark extends AccountsBenchmark {
+
+	private static final int TOP_PLACES = 100;
+
+	private AccountManager accountManager;
+
+	@Override
+	void setup(){
+		accountManager = new AccountManager(accountFolder);
+	}
+
+	@Benchmark
+	public void keptTotals(Blackhole blackhole){
+		BankTotals totals = accountManager.getTotals();
+		report(blackhole, totals.getTotalBalance(), totals.getLowBalanceCount(), totals.getTopBalances(TOP_PLACES));
+	}
+
+	@Benchmark
+	public void scan(Blackhole blackhole){
+		List<Account> accounts = accountManager.getAllAccounts();
+		long total = 0;
+		long lowBalanceCount = 0;
+		for(Account account : accounts){
+			long balance = account.getBalance();
+			total += balance;
+			if(balance < BankTotals.DEFAULT_LOW_BALANCE){
+				lowBalanceCount++;
+			}
+		}
+		report(blackhole, total, lowBalanceCount, TopBalances.biggest(accounts, TOP_PLACES));
+	}
+
+	@Benchmark
+	public void snapshot(Blackhole blackhole){
+		long[] sums = new long[2];
+		try(BalanceSnapshot snapshot = accountManager.openBalanceSnapshot()){
+			snapshot.forEach((account, balance) -> {
+				sums[0] += balance;
+				if(balance < BankTotals.DEFAULT_LOW_BALANCE){
+					sums[1]++;
+				}
+			});
+		}
+		report(blackhole, sums[0], sums[1], accountManager.getTotals().getTopBalances(TOP_PLACES));
+	}
+
+	private static void report(Blackhole blackhole, long total, long lowBalanceCount, List<Account> top){
+		if(total < 0 || lowBalanceCount < 0 || top.isEmpty()){
+			throw new IllegalStateException("Empty report");
+		}
+		blackhole.consume(total);
+		blackhole.consume(lowBalanceCount);
+		blackhole.consume(top);
+	}
+
+	@Override
+	void teardown(){
+		accountManager.closeAccountManager();
+	}
+}
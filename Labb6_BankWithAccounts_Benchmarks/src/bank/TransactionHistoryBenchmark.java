@@ -0,0 +1,46 @@
+package bank;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Account.updateTransactionHistory. Every thread has an account of its own, so this measures
+ * the history itself and not threads waiting for each other. The accounts are never saved, and
+ * no account folder is needed, so it isn't run for every account count like the others.
+ *
+ * @author Erik
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransactionHistoryBenchmark {
+
+	private Account account;
+
+	@Setup(Level.Trial)
+	public void setup(ThreadParams thread){
+		int index = thread.getThreadIndex();
+		account = new Account(index + 1, new File(AccountsBenchmark.DATA_FOLDER, "history-benchmark-" + index), "benchmark", "history" + index, 0, new long[0]);
+	}
+
+	@Benchmark
+	public void updateTransactionHistory(){
+		account.updateTransactionHistory(100);
+	}
+}
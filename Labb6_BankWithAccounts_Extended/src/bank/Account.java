@@ -1,252 +1,445 @@
-package bank;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.Locale;
-
-public class Account {
-	
-	public static int ID_COUNTER;
-	
-	private int accountID;
-	private String owner;
-	private String accountName;
-	private double balance;
-	private double[] latest10transactions = new double[10];
-	private File accountFile;
-	private boolean startingBalanceProvided = false;
-	
-	// Reader
-	private FileReader reader;
-	private BufferedReader readBuffer;
-	// Writer
-	public static FileWriter writer;
-	public static BufferedWriter writeBuffer;
-	
-	Account(File accountFile, String owner, String accountName){
-		this.owner = owner;
-		this.accountName = accountName;
-		this.accountFile = accountFile;
-		this.accountID = ++ID_COUNTER;
-		// make ready for use
-		setupReader();
-	
-		// setupWriter();
-		
-	}
-	
-	
-	
-	Account(File accountFile, String owner, String accountName, double startBalance){
-		this.owner = owner;
-		this.accountName = accountName;
-		this.accountFile = accountFile;
-		this.balance = startBalance;
-		this.accountID = ++ID_COUNTER;
-		startingBalanceProvided = true;
-		System.out.println("Accountfile of account nr " + accountID + " is :"  + accountFile.getPath());
-		// make ready for use
-		setupReader();
-		//TODO: see if this setup is better in another place? maybe wait until it's needed
-		// setupWriter();
-		
-	}
-	
-	public File getAccountFile(){
-		return accountFile;
-	}
-	
-	public int getAccountID(){
-		return accountID;
-	}
-	
-	public String getAccountName(){
-		return accountName;
-	}
-	
-	public void setBalance(double newBalance){
-		// figure out what kind of transaction was made.
-		// if newBlance - balance is a positive number, a deposit was made
-		// if it's a negative, a withdraw was made for amount of 
-		double latestTransaction = newBalance - balance;
-		updateTransactionHistory(latestTransaction);
-		balance = newBalance;
-	}
-	public double getBalance(){
-		return balance;
-	}
-	
-	private void setupReader(){
-		
-		try {
-			boolean fileCreated = false;
-			// check if file exists, else create it
-			if(!accountFile.exists()){
-				System.out.println("File '" + accountFile.getPath() + "' doesn't exists yet. Will try to create it:");
-				fileCreated = accountFile.createNewFile();
-				System.out.println("File created = " + fileCreated);
-			}
-			
-			reader = new FileReader(accountFile);
-			readBuffer = new BufferedReader(reader);
-			
-			
-			// if file was not created earlier, it means it's an old file
-			// so we should try to read values.
-			// but only if we also didn't get a start value in the constructor
-			if(!fileCreated && !startingBalanceProvided){
-				// read the first line and get balance (first value): 
-				String firstLine = readBuffer.readLine();
-				// get comma separated values
-				String[] valuesInFirstLine = firstLine.split(",");
-				balance = Double.parseDouble(valuesInFirstLine[0]);
-			} else {
-				// must still read a line, so that file pointer is at line 2 for the next step
-				readBuffer.readLine();
-			}
-
-//			// interest rate 7.93%
-//			balance *= 1.0793;
-
-
-			// read in saved transactions
-			int index = 0;
-			while(readBuffer.ready()){
-				if(index < latest10transactions.length){
-					double transValue = Double.parseDouble(readBuffer.readLine());
-					latest10transactions[index] = transValue;
-					index++;
-				}
-			}
-			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	
-	public String getFormattedBalance(){
-		return String.format(Locale.US, "%.2f", balance);
-	}
-
-	
-	
-	
-	// new value is first value in the new array, the last old value is ignored/removed and every other value
-	// gets index + 1
-	public void updateTransactionHistory(double latestValue){
-		double[] newTransactionsHistory = new double[10];
-		// first index get the new value
-		newTransactionsHistory[0] = latestValue;
-		// The new value in index 1 - 9 is same as the old values in index 0 - 8 
-		int oldIndex = 0;
-		for(int index = 1; index < newTransactionsHistory.length; index++){
-			newTransactionsHistory[index] = latest10transactions[oldIndex];
-			oldIndex++;
-		}
-		// old transaction array to new one
-		latest10transactions = newTransactionsHistory;
-	}
-	
-	public void setupWriter(){
-		try{
-			
-			writer = new FileWriter(accountFile);
-			writeBuffer = new BufferedWriter(writer);
-		} catch (Exception e){
-			e.printStackTrace();
-		}
-	}
-	
-	public void insertMoney(double value){
-		updateTransactionHistory(value);
-		balance += value;
-		System.out.println("OK! Balance is now: " + getFormattedBalance());
-	}
-	
-	public void takeOutMoney(double value){
-		
-		if(value > balance){
-			System.out.println(	"You don't have that kind of money! "
-								+ "Choose a smaller amount or insert money first");
-		} else {
-			updateTransactionHistory(-value);
-			balance -= value;
-			System.out.println("Ok! Your new balance is: " + getFormattedBalance());
-		}
-	}
-	
-	public void printLatestTransactions(){
-		System.out.println("Your latest transactions were: ");
-		for(int i = 0; i < latest10transactions.length; i++){
-			double transValue = latest10transactions[i];
-			if(transValue != 0){
-				if(transValue > 0){
-					System.out.println("+" + transValue);
-				} else {
-					System.out.println(transValue);
-				}
-			}
-		}
-	}
-	
-	public void saveBalanceOwnerAndAccName(){
-		try{
-			System.out.println("Saving to file " + accountFile.getPath());
-			// first line in file will be balance, then new line. (transaction history will follow)
-			writeBuffer.write(String.valueOf(balance));
-			writeBuffer.write(",");
-			writeBuffer.write(owner);
-			writeBuffer.write(",");
-			writeBuffer.write(accountName);
-			writeBuffer.newLine();
-		} catch (IOException e){
-			e.printStackTrace();
-		}
-	}
-	
-	public void saveTransactionsHistory(){
-		try{
-			// continues where the saveSaldo() write left off. from line 2 and on
-			for(int i = 0; i < latest10transactions.length; i++){
-				double transValue = latest10transactions[i];
-				if(transValue != 0.0){
-					writeBuffer.write(String.valueOf(transValue));
-					writeBuffer.newLine();
-				}
-			}
-		} catch (Exception e){
-			e.printStackTrace();
-		}
-	}
-	
-	public void closeResources(){
-		try {
-			if(readBuffer != null){
-				readBuffer.close();				
-			}
-			if(writeBuffer != null){
-				writeBuffer.close();				
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	
-	@Override
-	public String toString(){
-		return String.format(	Locale.US, 
-								"Account [id: %d, owner: %s, account name: %s, balance: %.2f]", 
-								accountID,
-								owner,
-								accountName,
-								balance);
-	}
-}
+package bank;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * A bank account. Everything that reads or changes the balance and the transaction history
+ * is synchronized on the account itself, so every account is its own lock and different accounts
+ * can be used from different threads at the same time.
+ * 
+ * Money is kept in cents (see Money). The latest transactions are kept in a ring of fixed size,
+ * so a deposit or withdraw doesn't allocate any memory. The full history is in the AccountLedger.
+ */
+public class Account {
+	
+	public static final int HISTORY_SIZE = 10; // number of latest transactions that are kept
+	
+	private final int accountID; // handed out by an AccountIdAllocator, never reused
+	private String owner;
+	private String accountName;
+	private volatile long balance; // in cents, only changed while holding the lock of this account
+	// ring with the latest transactions (in cents). null until the history has been read from the account file
+	private long[] transactionRing;
+	private int newestTransaction; // index in the ring of the newest transaction
+	private int transactionCount; // number of transactions in the ring, at most HISTORY_SIZE
+	private File accountFile;
+	private boolean dirty = false; // true if changed since it was last saved
+	private int storeSlot = -1; // index in the AccountStore holding this account, -1 if not stored
+	private BankTotals.OwnerTotal ownerTotal; // sums of the owner, null if not counted in the totals of a bank
+	private volatile TopBalances.Entry topEntry; // its place in the top balances, null if it isn't in them. Only set by TopBalances
+	private int interestPeriod; // the last month interest was paid for (see InterestJob.periodOf), 0 if never
+	private long shardTransfer; // number of the last transfer with another shard that changed it (see ShardTransferLog), 0 if none
+	private long localTransfer; // number of the last transfer with an account of the same storage that changed it, 0 if none
+	private volatile BalanceVersions.Version newestVersion; // old balances that snapshots may need, newest first. null if none
+	private volatile long balanceVersion; // the version of the balance (see BalanceVersions), 0 if not counted
+	private volatile long createdVersion; // when the account was added to the bank, 0 if it wasn't
+	private volatile long deletedVersion = Long.MAX_VALUE; // when the account was removed from the bank
+	private AccountLedger.Entries ledgerEntries; // where its entries are in the ledger, used while holding the lock of the account
+	
+	Account(int accountID, File accountFile, String owner, String accountName){
+		this.accountID = accountID;
+		this.owner = owner;
+		this.accountName = accountName;
+		this.accountFile = accountFile;
+		// make ready for use
+		readAccountFile(true);
+	}
+	
+	
+	/**
+	 * Creates a light account (a stub) with a known balance. The transaction history is read
+	 * from the account file the first time it's needed
+	 * @param accountID
+	 * @param accountFile
+	 * @param owner
+	 * @param accountName
+	 * @param startBalance in cents
+	 */
+	Account(int accountID, File accountFile, String owner, String accountName, long startBalance){
+		this.accountID = accountID;
+		this.owner = owner;
+		this.accountName = accountName;
+		this.accountFile = accountFile;
+		this.balance = startBalance;
+	}
+	
+	/**
+	 * Creates an account from values that are already known (read from a file, or typed in for a new account).
+	 * No file is opened here
+	 * @param accountID
+	 * @param accountFile
+	 * @param owner
+	 * @param accountName
+	 * @param balance in cents
+	 * @param transactionHistory latest transactions in cents, newest first. At most HISTORY_SIZE are kept
+	 */
+	Account(int accountID, File accountFile, String owner, String accountName, long balance, long[] transactionHistory){
+		this.accountID = accountID;
+		this.owner = owner;
+		this.accountName = accountName;
+		this.accountFile = accountFile;
+		this.balance = balance;
+		this.transactionRing = new long[HISTORY_SIZE];
+		// add them oldest first, so the newest ends up as the newest in the ring
+		for(int i = Math.min(transactionHistory.length, HISTORY_SIZE) - 1; i >= 0; i--){
+			addToRing(transactionHistory[i]);
+		}
+	}
+	
+	public File getAccountFile(){
+		return accountFile;
+	}
+	
+	public int getAccountID(){
+		return accountID;
+	}
+	
+	public String getAccountName(){
+		return accountName;
+	}
+	
+	public String getOwner(){
+		return owner;
+	}
+	
+	AccountLedger.Entries getLedgerEntries(){
+		return ledgerEntries;
+	}
+	
+	void setLedgerEntries(AccountLedger.Entries ledgerEntries){
+		this.ledgerEntries = ledgerEntries;
+	}
+	
+	int getStoreSlot(){
+		return storeSlot;
+	}
+	
+	void setStoreSlot(int storeSlot){
+		this.storeSlot = storeSlot;
+	}
+	
+	BankTotals.OwnerTotal getOwnerTotal(){
+		return ownerTotal;
+	}
+	
+	void setOwnerTotal(BankTotals.OwnerTotal ownerTotal){
+		this.ownerTotal = ownerTotal;
+	}
+	
+	TopBalances.Entry getTopEntry(){
+		return topEntry;
+	}
+	
+	void setTopEntry(TopBalances.Entry topEntry){
+		this.topEntry = topEntry;
+	}
+	
+	BalanceVersions.Version getNewestVersion(){
+		return newestVersion;
+	}
+	
+	void setNewestVersion(BalanceVersions.Version newestVersion){
+		this.newestVersion = newestVersion;
+	}
+	
+	long getBalanceVersion(){
+		return balanceVersion;
+	}
+	
+	void setBalanceVersion(long balanceVersion){
+		this.balanceVersion = balanceVersion;
+	}
+	
+	long getCreatedVersion(){
+		return createdVersion;
+	}
+	
+	void setCreatedVersion(long createdVersion){
+		this.createdVersion = createdVersion;
+	}
+	
+	long getDeletedVersion(){
+		return deletedVersion;
+	}
+	
+	void setDeletedVersion(long deletedVersion){
+		this.deletedVersion = deletedVersion;
+	}
+	
+	/**
+	 * @return the last month interest was paid for, as an InterestJob period. 0 if it never was
+	 */
+	synchronized int getInterestPeriod(){
+		return interestPeriod;
+	}
+	
+	/**
+	 * Only set by the storage when the account is loaded, and by the account manager when interest is paid
+	 * @param interestPeriod
+	 */
+	synchronized void setInterestPeriod(int interestPeriod){
+		this.interestPeriod = interestPeriod;
+	}
+	
+	/**
+	 * @return the number of the last transfer with an account of another shard that changed this account, 0 if none
+	 */
+	synchronized long getShardTransfer(){
+		return shardTransfer;
+	}
+	
+	/**
+	 * Only set by the storage when the account is loaded, and by the account manager when it makes its
+	 * half of a transfer with another shard
+	 * @param shardTransfer
+	 */
+	synchronized void setShardTransfer(long shardTransfer){
+		this.shardTransfer = shardTransfer;
+	}
+	
+	/**
+	 * @return the number of the last transfer with an account of the same storage that changed this account,
+	 * 0 if none. Used by storages that log their transfers like ShardTransferLog
+	 */
+	synchronized long getLocalTransfer(){
+		return localTransfer;
+	}
+	
+	/**
+	 * Only set by the storage, when the account is loaded and when it logs a transfer
+	 * @param localTransfer
+	 */
+	synchronized void setLocalTransfer(long localTransfer){
+		this.localTransfer = localTransfer;
+	}
+	
+	/**
+	 * @param newBalance in cents
+	 */
+	public synchronized void setBalance(long newBalance){
+		// figure out what kind of transaction was made.
+		// if newBlance - balance is a positive number, a deposit was made
+		// if it's a negative, a withdraw was made for amount of 
+		long oldBalance = balance;
+		long latestTransaction = newBalance - oldBalance;
+		// may read the account file, so it's done before the change gets a version
+		updateTransactionHistory(latestTransaction);
+		if(ownerTotal == null){
+			balance = newBalance;
+			return;
+		}
+		ownerTotal.totals.balanceChanging(this, oldBalance);
+		balance = newBalance;
+		// keeps the sums of the bank up to date
+		ownerTotal.add(latestTransaction);
+		ownerTotal.totals.balanceChanged(this, oldBalance, newBalance);
+	}
+	
+	/**
+	 * @return the balance in cents
+	 */
+	public long getBalance(){
+		return balance;
+	}
+	
+	/**
+	 * Adds an amount to the balance, as one step that no other thread can come in between
+	 * @param amount in cents
+	 */
+	public synchronized void credit(long amount){
+		setBalance(balance + amount);
+	}
+	
+	/**
+	 * Takes an amount from the balance if the balance is big enough, as one step that no other
+	 * thread can come in between
+	 * @param amount in cents
+	 * @return false if the balance was too small, else true
+	 */
+	public synchronized boolean debit(long amount){
+		if(balance >= amount){
+			setBalance(balance - amount);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads the transaction history, and the balance if asked to, from the account file.
+	 * The file is closed again as soon as it has been read.
+	 * @param readBalance true if the balance should be taken from the file
+	 */
+	private void readAccountFile(boolean readBalance){
+		transactionRing = new long[HISTORY_SIZE];
+		newestTransaction = 0;
+		transactionCount = 0;
+		if(!accountFile.exists()){
+			// a new account that hasn't been saved yet, nothing to read
+			return;
+		}
+		long loadStart = Metrics.start();
+		BufferedReader readBuffer = null;
+		try {
+			long openStart = Metrics.start();
+			readBuffer = new BufferedReader(new FileReader(accountFile));
+			Metrics.fileOpened(openStart);
+			// the first line contains balance, owner and account name
+			String firstLine = readBuffer.readLine();
+			if(readBalance && firstLine != null){
+				// get comma separated values
+				String[] valuesInFirstLine = firstLine.split(",");
+				balance = Money.parseCents(valuesInFirstLine[0]);
+				if(valuesInFirstLine.length > 3 && !valuesInFirstLine[3].isEmpty()){
+					interestPeriod = InterestJob.parsePeriod(valuesInFirstLine[3]);
+				}
+				if(valuesInFirstLine.length > 4 && !valuesInFirstLine[4].trim().isEmpty()){
+					shardTransfer = Long.parseLong(valuesInFirstLine[4].trim());
+				}
+				if(valuesInFirstLine.length > 5){
+					localTransfer = Long.parseLong(valuesInFirstLine[5].trim());
+				}
+			}
+
+			// read in saved transactions, they are saved newest first
+			long[] savedTransactions = new long[HISTORY_SIZE];
+			int count = 0;
+			String line;
+			while(count < HISTORY_SIZE && (line = readBuffer.readLine()) != null){
+				if(!line.isEmpty()){
+					savedTransactions[count] = Money.parseCents(line);
+					count++;
+				}
+			}
+			for(int i = count - 1; i >= 0; i--){
+				addToRing(savedTransactions[i]);
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			Metrics.closeFile(readBuffer);
+			Metrics.recordEvent(Metrics.ACCOUNT_LOAD, accountID, loadStart);
+		}
+	}
+	
+	/**
+	 * @return true if the transaction history is in memory, false if this account is still a stub
+	 */
+	synchronized boolean isTransactionHistoryLoaded(){
+		return transactionRing != null;
+	}
+	
+	/**
+	 * Reads the transaction history from the account file, unless it's already loaded
+	 */
+	synchronized void loadTransactionHistory(){
+		if(transactionRing == null){
+			readAccountFile(false);
+		}
+	}
+	
+	/**
+	 * Turns this account back into a stub to save memory. Only possible if there are no unsaved changes
+	 * @return true if the history was released
+	 */
+	synchronized boolean releaseTransactionHistory(){
+		if(dirty){
+			return false;
+		}
+		transactionRing = null;
+		return true;
+	}
+	
+	/**
+	 * @return true if this account has changes that aren't saved yet
+	 */
+	synchronized boolean isDirty(){
+		return dirty;
+	}
+	
+	/**
+	 * Called by the storage after all changes to this account were saved
+	 */
+	synchronized void markSaved(){
+		dirty = false;
+	}
+	
+	public String getFormattedBalance(){
+		return Money.format(balance);
+	}
+
+	
+	
+	
+	/**
+	 * Adds a transaction to the history, the oldest one is dropped when the history is full
+	 * @param latestValue in cents
+	 */
+	public synchronized void updateTransactionHistory(long latestValue){
+		loadTransactionHistory();
+		dirty = true;
+		addToRing(latestValue);
+	}
+	
+	// the newest transaction takes the place after the previous newest, which is where the oldest
+	// one is once the ring is full
+	private void addToRing(long value){
+		newestTransaction = (newestTransaction + 1) % HISTORY_SIZE;
+		transactionRing[newestTransaction] = value;
+		if(transactionCount < HISTORY_SIZE){
+			transactionCount++;
+		}
+	}
+	
+	/**
+	 * @param value in cents
+	 */
+	public synchronized void insertMoney(long value){
+		setBalance(balance + value);
+	}
+	
+	/**
+	 * @param value in cents
+	 * @return false if the balance is too small, else true
+	 */
+	public synchronized boolean takeOutMoney(long value){
+		if(value > balance){
+			return false;
+		}
+		setBalance(balance - value);
+		return true;
+	}
+	
+	/**
+	 * @return copy of the latest transactions in cents, newest first
+	 */
+	public synchronized long[] getLatestTransactions(){
+		loadTransactionHistory();
+		long[] latestTransactions = new long[transactionCount];
+		for(int i = 0; i < transactionCount; i++){
+			latestTransactions[i] = transactionRing[(newestTransaction - i + HISTORY_SIZE) % HISTORY_SIZE];
+		}
+		return latestTransactions;
+	}
+	
+	/**
+	 * @return copy of the latest transactions in cents, newest first. null if this account is a stub,
+	 * the history isn't read from the account file for this
+	 */
+	synchronized long[] getLoadedTransactions(){
+		return transactionRing != null ? getLatestTransactions() : null;
+	}
+	
+	@Override
+	public String toString(){
+		return String.format(	Locale.US, 
+								"Account [id: %d, owner: %s, account name: %s, balance: %.2f]", 
+								accountID,
+								owner,
+								accountName,
+								Money.toUnits(balance));
+	}
+}
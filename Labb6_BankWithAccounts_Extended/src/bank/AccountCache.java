@@ -0,0 +1,191 @@
+package bank;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of the accounts that have their transaction history loaded, and makes sure there
+ * are never more than a fixed number of them.
+ * 
+ * When the cache is full, the least recently used account is evicted: if it has unsaved changes
+ * it's saved first, then its history is released so the account is a light stub again. An account
+ * that can't be saved keeps its history and goes back into the cache, it's tried again at the next eviction.
+ *
+ * The accounts to evict are picked while holding the lock of the cache, and saved after it's released,
+ * so a thread that needs the cache doesn't wait for the disk.
+ * @author Erik
+ *
+ */
+public class AccountCache {
+	
+	private AccountStorage storage; // where evicted accounts with unsaved changes are saved
+	private int maxSize;
+	private LinkedHashMap<Account, Boolean> loadedAccounts;
+	private List<Account> evicted = new ArrayList<Account>(); // taken out of loadedAccounts, still to be saved and released
+	private ReentrantLock lock = new ReentrantLock();
+	
+	/**
+	 * @param storage used to save evicted accounts that have unsaved changes
+	 * @param maxSize the largest number of accounts that may have their history loaded
+	 */
+	AccountCache(AccountStorage storage, int maxSize){
+		if(maxSize < 1){
+			throw new IllegalArgumentException("The cache must hold at least one account, got " + maxSize);
+		}
+		this.storage = storage;
+		this.maxSize = maxSize;
+		// access order, so the eldest entry is the least recently used account
+		this.loadedAccounts = new LinkedHashMap<Account, Boolean>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Account, Boolean> eldest){
+				if(size() > AccountCache.this.maxSize){
+					evicted.add(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Marks an account as the most recently used one, loading its history if needed
+	 * @param account
+	 */
+	public void use(Account account){
+		if(account.isTransactionHistoryLoaded()){
+			// mostly only a move to the front of the LRU order. Skipped if another thread is busy with the cache,
+			// so threads working on different accounts don't have to wait for each other here
+			if(lock.tryLock()){
+				try {
+					if(loadedAccounts.get(account) == null){
+						// made with its history, like a new account, and not counted yet
+						loadedAccounts.put(account, Boolean.TRUE);
+					}
+				} finally {
+					lock.unlock();
+				}
+				evict();
+			}
+			return;
+		}
+		lock.lock();
+		try {
+			if(loadedAccounts.get(account) == null){
+				account.loadTransactionHistory();
+				loadedAccounts.put(account, Boolean.TRUE);
+			}
+		} finally {
+			lock.unlock();
+		}
+		evict();
+	}
+	
+	/**
+	 * Adds an account that already has its history loaded, like an account read from a snapshot
+	 * @param account
+	 */
+	public void add(Account account){
+		lock.lock();
+		try {
+			loadedAccounts.put(account, Boolean.TRUE);
+		} finally {
+			lock.unlock();
+		}
+		evict();
+	}
+	
+	/**
+	 * Forgets an account without saving it, used when the account is deleted
+	 * @param account
+	 */
+	public void remove(Account account){
+		lock.lock();
+		try {
+			loadedAccounts.remove(account);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return number of accounts that have their history loaded
+	 */
+	public int size(){
+		lock.lock();
+		try {
+			return loadedAccounts.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Saves every cached account that has unsaved changes
+	 */
+	public void saveDirtyAccounts(){
+		List<Account> dirtyAccounts = new ArrayList<Account>();
+		lock.lock();
+		try {
+			for(Account account : loadedAccounts.keySet()){
+				if(account.isDirty()){
+					dirtyAccounts.add(account);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if(!dirtyAccounts.isEmpty()){
+			storage.flush(dirtyAccounts);
+		}
+	}
+	
+	/**
+	 * Saves the evicted accounts that have unsaved changes and releases their histories. Called without
+	 * holding the lock of the cache. Saved with flush, which doesn't print: evictions happen inside
+	 * deposits and withdraws by id
+	 */
+	private void evict(){
+		List<Account> accounts;
+		lock.lock();
+		try {
+			if(evicted.isEmpty()){
+				return;
+			}
+			accounts = evicted;
+			evicted = new ArrayList<Account>();
+		} finally {
+			lock.unlock();
+		}
+		List<Account> dirtyAccounts = new ArrayList<Account>();
+		for(Account account : accounts){
+			if(account.isDirty()){
+				dirtyAccounts.add(account);
+			}
+		}
+		if(!dirtyAccounts.isEmpty()){
+			try {
+				storage.flush(dirtyAccounts);
+			} catch (UncheckedIOException e) {
+				// the accounts that were saved are released below, the others keep their histories
+				e.printStackTrace();
+			}
+		}
+		lock.lock();
+		try {
+			for(Account account : accounts){
+				// an account used again since it was picked stays loaded, and so does one that isn't saved
+				if(!loadedAccounts.containsKey(account) && !account.releaseTransactionHistory()){
+					loadedAccounts.put(account, Boolean.TRUE);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package bank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The classic storage: one text file per account in the account folder.
+ * 
+ * The first line of a file is "balance,owner,accountName", followed by the latest transactions,
+ * one per line. The first line ends with the month interest was last paid for and the last transfer
+ * with another shard, if the account has them. The whole file is rewritten when an account is saved:
+ * first to a temporary file, which then replaces the account file, and the folder is synced so the
+ * new file survives a crash.
+ * A save that fails throws an UncheckedIOException and leaves the account changed, to be saved again.
+ * 
+ * Accounts are loaded as stubs (balance, owner and account name only). The history of an account is
+ * read when it's first used, and at most cacheSize accounts keep their history in memory.
+ * 
+ * A snapshot of all accounts (see AccountSnapshot) is written when the storage is closed, and now and
+ * then in the background. A start with a snapshot only reads the account files changed after it.
+ * 
+ * The two accounts of a transfer are two files, saved one at a time. So a transfer is first written to
+ * a transfer log of the storage (a ShardTransferLog in the folder "transfers"), and gets a number that
+ * both accounts save in their first line with the balance. A start makes the halves again that were
+ * logged but never saved. Once the log holds TRANSFERS_BEFORE_TRIM transfers, and when the storage is
+ * closed, the accounts of the logged transfers are saved and the log is emptied.
+ * @author Erik
+ *
+ */
+public class AccountFileStorage implements AccountStorage {
+	
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+	public static final String TEMP_FILE_SUFFIX = ".tmp"; // account files being written, left over only after a crash
+	public static final int TRANSFERS_BEFORE_TRIM = 1024; // transfers the log holds before their accounts are saved and it's emptied
+	private static final String TRANSFER_FOLDER_NAME = "transfers";
+	// a folder can't be opened to sync it on Windows, its renames are durable without it
+	private static final boolean SYNC_FOLDER = !System.getProperty("os.name").startsWith("Windows");
+	
+	private File accountFolder;
+	private int loaderThreads;
+	private int saveThreads; // same as the number of loader threads
+	private ThreadPoolExecutor saveExecutor; // threads that help saving many accounts, stopped when idle
+	private AccountCache cache; // accounts that have their transaction history loaded
+	private AccountSnapshot snapshot; // all accounts in one file, for a fast start
+	private ShardTransferLog transferLog; // transfers between accounts of this storage, opened when they're loaded
+	private List<Account> transferredAccounts = new ArrayList<Account>(); // accounts of the logged transfers, guarded by the lock of the storage
+	private final Object trimLock = new Object(); // one trim of the transfer log at a time
+	
+	/**
+	 * @param accountFolder folder with one file per account
+	 * @param loaderThreads number of threads that read and parse the account files at startup
+	 */
+	AccountFileStorage(File accountFolder, int loaderThreads){
+		this(accountFolder, loaderThreads, DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param accountFolder folder with one file per account
+	 * @param loaderThreads number of threads that read and parse the account files at startup
+	 * @param cacheSize the largest number of accounts that keep their transaction history in memory
+	 */
+	AccountFileStorage(File accountFolder, int loaderThreads, int cacheSize){
+		this.accountFolder = accountFolder;
+		this.loaderThreads = loaderThreads;
+		this.saveThreads = Math.max(1, loaderThreads);
+		this.saveExecutor = new ThreadPoolExecutor(saveThreads, saveThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread saveThread = new Thread(runnable, "account-saver");
+			saveThread.setDaemon(true);
+			return saveThread;
+		});
+		saveExecutor.allowCoreThreadTimeOut(true);
+		this.cache = new AccountCache(this, cacheSize);
+		this.snapshot = new AccountSnapshot(accountFolder);
+	}
+
+	@Override
+	public List<Account> loadAccounts(AccountIdAllocator ids){
+		List<Account> loadedAccounts = new AccountLoader(accountFolder, loaderThreads, ids).loadAccounts(snapshot.read());
+		File transferFolder = new File(accountFolder, TRANSFER_FOLDER_NAME);
+		if(!transferFolder.exists() && !transferFolder.mkdirs()){
+			throw new IllegalStateException("Could not create the transfer folder " + transferFolder.getPath());
+		}
+		transferLog = new ShardTransferLog(transferFolder, "transfers.log");
+		finishTransfers(loadedAccounts);
+		for(Account account : loadedAccounts){
+			// accounts that had their history in memory when the snapshot was taken
+			if(account.isTransactionHistoryLoaded()){
+				cache.add(account);
+			}
+		}
+		return loadedAccounts;
+	}
+
+	@Override
+	public int getLoadedAccountCount(int accountCount){
+		return cache.size();
+	}
+
+	@Override
+	public void accountCreated(Account account){
+		// write the file right away, so there are no empty account files if we crash
+		writeAccountFileAtomically(account, -1);
+		// always counted, use() may skip an account with its history loaded when the cache is busy
+		cache.add(account);
+	}
+	
+	@Override
+	public void accountUsed(Account account){
+		cache.use(account);
+	}
+
+	@Override
+	public void balanceChanged(Account account, long amount){
+		// nothing to do here, saveAccount() rewrites the whole file
+	}
+
+	/**
+	 * Called while holding the locks of both accounts. The transfer is synced to the transfer log before
+	 * the locks are let go, so before either account can be saved with its half
+	 * @throws UncheckedIOException if the transfer log couldn't be written, the balances are changed in memory already
+	 */
+	@Override
+	public void transferred(Account from, Account to, long amount){
+		long number = transferLog.add(from.getAccountID(), to.getAccountID(), amount);
+		from.setLocalTransfer(number);
+		to.setLocalTransfer(number);
+		synchronized(this){
+			transferredAccounts.add(from);
+			transferredAccounts.add(to);
+			transferLog.applied(number);
+		}
+	}
+	
+	/**
+	 * Makes the halves of the logged transfers that weren't saved before the program stopped, saves
+	 * them and empties the log
+	 * @param loadedAccounts
+	 */
+	private void finishTransfers(List<Account> loadedAccounts){
+		List<ShardTransferLog.Transfer> transfers = transferLog.getTransfers();
+		if(transfers.isEmpty()){
+			return;
+		}
+		Map<Integer, Account> accountsById = new HashMap<Integer, Account>();
+		for(Account account : loadedAccounts){
+			accountsById.put(account.getAccountID(), account);
+		}
+		List<Account> finishedAccounts = new ArrayList<Account>();
+		for(ShardTransferLog.Transfer transfer : transfers){
+			if(finishTransfer(accountsById.get(transfer.fromAccountId), -transfer.amount, transfer.number)){
+				finishedAccounts.add(accountsById.get(transfer.fromAccountId));
+			}
+			if(finishTransfer(accountsById.get(transfer.toAccountId), transfer.amount, transfer.number)){
+				finishedAccounts.add(accountsById.get(transfer.toAccountId));
+			}
+		}
+		saveAccounts(finishedAccounts);
+		transferLog.removeUpTo(transferLog.getAddedUpTo());
+		System.out.println("Checked " + transfers.size() + " transfers of the account folder, " + finishedAccounts.size() 
+							+ " halves of them weren't saved and were made again");
+	}
+	
+	/**
+	 * Makes the half of a logged transfer again, if the account was saved without it
+	 * @param account null if it was deleted
+	 * @param amount in cents, negative for the half that takes the money
+	 * @param number
+	 * @return true if the half was made
+	 */
+	static boolean finishTransfer(Account account, long amount, long number){
+		if(account == null){
+			return false;
+		}
+		synchronized(account){
+			if(account.getLocalTransfer() >= number){
+				return false;
+			}
+			// the balance may go below zero, the money already reached the other account
+			account.credit(amount);
+			account.setLocalTransfer(number);
+		}
+		return true;
+	}
+	
+	/**
+	 * Saves the accounts of the logged transfers that have unsaved changes, then empties the log.
+	 * Skipped while a transfer is being logged, the next trim gets it
+	 * @throws UncheckedIOException if an account couldn't be saved, the log is kept then
+	 */
+	private void trimTransferLog(){
+		synchronized(trimLock){
+			long upTo;
+			List<Account> accounts;
+			synchronized(this){
+				upTo = transferLog.getAppliedUpTo();
+				// the accounts of a transfer that isn't made yet may be missing from the list
+				if(transferredAccounts.isEmpty() || upTo != transferLog.getAddedUpTo()){
+					return;
+				}
+				accounts = transferredAccounts;
+				transferredAccounts = new ArrayList<Account>();
+			}
+			Set<Account> dirtyAccounts = Collections.newSetFromMap(new IdentityHashMap<Account, Boolean>());
+			for(Account account : accounts){
+				if(account.isDirty()){
+					dirtyAccounts.add(account);
+				}
+			}
+			try {
+				saveAccounts(dirtyAccounts);
+			} catch (UncheckedIOException e) {
+				synchronized(this){
+					transferredAccounts.addAll(accounts);
+				}
+				throw e;
+			}
+			transferLog.removeUpTo(upTo);
+		}
+	}
+
+	@Override
+	public void accountDeleted(Account account){
+		// delete the actual file. The lock keeps a save from writing it again at the same time
+		cache.remove(account);
+		synchronized(account){
+			if(!account.getAccountFile().delete()){
+				System.out.println("Could not delete the account file " + account.getAccountFile().getPath());
+			}
+		}
+	}
+
+	@Override
+	public void saveAccount(Account account){
+		System.out.println("Saving to file " + account.getAccountFile().getPath());
+		writeAccountFileAtomically(account, -1);
+	}
+
+	/**
+	 * Rewrites the file of every account and syncs it to the disk, see saveAccounts(). Trims the transfer
+	 * log when it's full
+	 * @throws UncheckedIOException if any account couldn't be saved, those accounts are still dirty
+	 */
+	@Override
+	public void flush(Collection<Account> accounts){
+		saveAccounts(accounts);
+		if(transferLog.getTransferCount() >= TRANSFERS_BEFORE_TRIM){
+			trimTransferLog();
+		}
+	}
+	
+	/**
+	 * Rewrites the file of every account and syncs it to the disk. The accounts are split between
+	 * the save threads, as the files don't depend on each other. Quiet, unlike saveAccount,
+	 * as it's called from the background. All of them are put in the change log with one sync first.
+	 * An account that can't be saved doesn't stop the others
+	 * @throws UncheckedIOException if any account couldn't be saved, those accounts are still dirty
+	 */
+	private void saveAccounts(Collection<Account> accounts){
+		if(accounts.isEmpty()){
+			return;
+		}
+		final List<Account> accountList = new ArrayList<Account>(accounts);
+		final long loggedGeneration = snapshot.logChanges(accountList);
+		int parts = Math.min(saveThreads, accountList.size());
+		if(parts <= 1){
+			throwIfFailed(flushPart(accountList, loggedGeneration));
+			return;
+		}
+		List<Future<UncheckedIOException>> otherParts = new ArrayList<Future<UncheckedIOException>>(parts - 1);
+		int partSize = (accountList.size() + parts - 1) / parts;
+		for(int start = partSize; start < accountList.size(); start += partSize){
+			final List<Account> part = accountList.subList(start, Math.min(start + partSize, accountList.size()));
+			otherParts.add(saveExecutor.submit(() -> flushPart(part, loggedGeneration)));
+		}
+		// the calling thread saves the first part itself
+		UncheckedIOException failure = flushPart(accountList.subList(0, partSize), loggedGeneration);
+		for(Future<UncheckedIOException> otherPart : otherParts){
+			UncheckedIOException partFailure;
+			try {
+				partFailure = otherPart.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				partFailure = new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for the accounts to be saved"));
+			} catch (ExecutionException e) {
+				partFailure = new UncheckedIOException(new IOException("Could not save accounts", e.getCause()));
+			}
+			failure = addFailure(failure, partFailure);
+		}
+		throwIfFailed(failure);
+	}
+	
+	/**
+	 * @return what went wrong, null if every account was saved
+	 */
+	private UncheckedIOException flushPart(List<Account> accounts, long loggedGeneration){
+		UncheckedIOException failure = null;
+		for(Account account : accounts){
+			synchronized(account){
+				if(!account.getAccountFile().exists()){
+					// deleted since the change was made, don't bring it back
+					continue;
+				}
+				try {
+					writeAccountFileAtomically(account, loggedGeneration);
+				} catch (UncheckedIOException e) {
+					failure = addFailure(failure, e);
+				}
+			}
+		}
+		return failure;
+	}
+	
+	private static UncheckedIOException addFailure(UncheckedIOException failure, UncheckedIOException another){
+		if(failure == null){
+			return another;
+		}
+		if(another != null){
+			failure.addSuppressed(another);
+		}
+		return failure;
+	}
+	
+	private static void throwIfFailed(UncheckedIOException failure){
+		if(failure != null){
+			throw failure;
+		}
+	}
+	
+	/**
+	 * Writes the account to a temporary file next to the account file, syncs it and then renames it to
+	 * the account file. A crash in the middle leaves either the old or the new file, never half of one.
+	 * The folder is synced after the rename, else a crash could bring back the old file.
+	 * The account is put in the change log of the snapshot first
+	 * @param account
+	 * @param loggedGeneration the generation of the change log the account was put in already, or -1
+	 * @throws UncheckedIOException if the file couldn't be written, the account is still dirty then
+	 */
+	private void writeAccountFileAtomically(Account account, long loggedGeneration){
+		// hold the lock of the account, so no other thread changes it while it's written
+		synchronized(account){
+			long saveStart = Metrics.start();
+			snapshot.logChange(account, loggedGeneration);
+			File accountFile = account.getAccountFile();
+			File tempFile = new File(accountFile.getPath() + TEMP_FILE_SUFFIX);
+			try {
+				long openStart = Metrics.start();
+				FileOutputStream fileOut = new FileOutputStream(tempFile);
+				Metrics.fileOpened(openStart);
+				try {
+					Writer out = new BufferedWriter(new OutputStreamWriter(fileOut));
+					writeAccount(account, out);
+					out.flush();
+					fileOut.getFD().sync();
+				} finally {
+					Metrics.closeFile(fileOut);
+				}
+				Files.move(tempFile.toPath(), accountFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				syncFolder(accountFile.getAbsoluteFile().getParentFile());
+				account.markSaved();
+			} catch (IOException e){
+				tempFile.delete();
+				throw new UncheckedIOException("Could not save account " + account.getAccountID(), e);
+			} finally {
+				Metrics.recordEvent(Metrics.SAVE, account.getAccountID(), saveStart);
+			}
+		}
+	}
+	
+	/**
+	 * Syncs the entries of a folder, so the files renamed into it are there after a crash
+	 * @param folder
+	 */
+	static void syncFolder(File folder) throws IOException {
+		if(!SYNC_FOLDER){
+			return;
+		}
+		try(FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)){
+			channel.force(true);
+		}
+	}
+
+	@Override
+	public void snapshot(List<Account> accounts){
+		snapshot.write(accounts);
+	}
+
+	@Override
+	public void close(List<Account> accounts){
+		// the account manager saves its changed accounts, this is for accounts changed outside of it
+		cache.saveDirtyAccounts();
+		try {
+			trimTransferLog();
+		} finally {
+			transferLog.close();
+		}
+		saveExecutor.shutdown();
+		long startTime = System.nanoTime();
+		if(snapshot.write(accounts)){
+			System.out.println(String.format(Locale.US, "Wrote a snapshot of %d accounts in %.1f ms",
+					accounts.size(), (System.nanoTime() - startTime) / 1_000_000.0));
+		}
+		snapshot.close();
+	}
+	
+	/**
+	 * Writes accounts as account files (aN.txt, where N is the account id) to a folder.
+	 * The folder can later be loaded with this storage, or imported into another storage.
+	 * @param accounts
+	 * @param exportFolder
+	 */
+	public static void exportAccounts(List<Account> accounts, File exportFolder){
+		if(!exportFolder.exists() && !exportFolder.mkdirs()){
+			System.out.println("Could not create export folder " + exportFolder.getPath());
+			return;
+		}
+		for(Account account : accounts){
+			writeAccountFile(account, new File(exportFolder, "a" + account.getAccountID() + ".txt"));
+		}
+		System.out.println("Exported " + accounts.size() + " accounts to " + exportFolder.getPath());
+	}
+	
+	/**
+	 * Writes one account in the account file format
+	 * @param account
+	 * @param file
+	 */
+	private static void writeAccountFile(Account account, File file){
+		try(BufferedWriter out = new BufferedWriter(new FileWriter(file))){
+			writeAccount(account, out);
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	private static void writeAccount(Account account, Writer out) throws IOException {
+		out.write(Money.format(account.getBalance()));
+		out.write(",");
+		out.write(account.getOwner());
+		out.write(",");
+		out.write(account.getAccountName());
+		int interestPeriod = account.getInterestPeriod();
+		long shardTransfer = account.getShardTransfer();
+		if(interestPeriod != 0 || shardTransfer != 0){
+			// written with the balance, so the balance on disk never has interest the file doesn't know about
+			out.write(",");
+			if(interestPeriod != 0){
+				out.write(InterestJob.formatPeriod(interestPeriod));
+			}
+		}
+		if(shardTransfer != 0){
+			// the same for the halves of transfers with other shards, see ShardTransferLog
+			out.write(",");
+			out.write(Long.toString(shardTransfer));
+		}
+		long localTransfer = account.getLocalTransfer();
+		if(localTransfer != 0){
+			// and for transfers inside the storage, after the fields before it even if they're empty
+			if(interestPeriod == 0 && shardTransfer == 0){
+				out.write(",");
+			}
+			if(shardTransfer == 0){
+				out.write(",");
+			}
+			out.write(",");
+			out.write(Long.toString(localTransfer));
+		}
+		out.write(System.lineSeparator());
+		for(long transValue : account.getLatestTransactions()){
+			out.write(Money.format(transValue));
+			out.write(System.lineSeparator());
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package bank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out account ids that are never used twice, not even after a restart or after the account
+ * that had an id was deleted.
+ *
+ * Every thread takes a block of BLOCK_SIZE ids at a time and hands them out by itself, so threads
+ * creating accounts at the same time only meet when they take a new block, with one atomic add.
+ * The ids that may have been handed out are kept as a high-water mark in the file "ids/next-id" in
+ * the account folder. It's moved RESERVE_SIZE ids ahead (and synced) before a block above it is
+ * handed out, so a start reads the next id from that file and never has to look at the accounts.
+ * Ids that were reserved but not used before the program stopped are skipped.
+ * @author Erik
+ *
+ */
+public class AccountIdAllocator {
+
+	public static final String FOLDER_NAME = "ids";
+	private static final String MARK_FILE_NAME = "next-id";
+	private static final int BLOCK_SIZE = 64; // ids a thread takes at a time
+	private static final int RESERVE_SIZE = 64 * BLOCK_SIZE; // ids the high-water mark is moved ahead at a time
+
+	private File markFile;
+	private AtomicInteger nextBlock; // first id of the next block that is handed out
+	private volatile int reservedUpTo; // the high-water mark on disk, ids below it may have been handed out
+	private ThreadLocal<Block> blocks = ThreadLocal.withInitial(Block::new);
+
+	/**
+	 * @param accountFolder folder where the high-water mark is kept
+	 */
+	AccountIdAllocator(File accountFolder){
+		this.markFile = new File(new File(accountFolder, FOLDER_NAME), MARK_FILE_NAME);
+		this.reservedUpTo = readMark();
+		// ids below the mark may belong to accounts already, start above them
+		this.nextBlock = new AtomicInteger(reservedUpTo);
+	}
+
+	/**
+	 * @return an id that no other account has had, or will have
+	 */
+	public int nextId(){
+		Block block = blocks.get();
+		if(block.next == block.end){
+			int start = nextBlock.getAndAdd(BLOCK_SIZE);
+			if(start + BLOCK_SIZE > reservedUpTo){
+				reserve(start + BLOCK_SIZE);
+			}
+			block.next = start;
+			block.end = start + BLOCK_SIZE;
+		}
+		return block.next++;
+	}
+
+	/**
+	 * Makes sure that ids up to and including highestId are never handed out. Used for accounts that
+	 * were loaded with an id, so a folder from before there was a high-water mark gets one
+	 * @param highestId
+	 */
+	public void idsUsedUpTo(int highestId){
+		nextBlock.accumulateAndGet(highestId + 1, Math::max);
+		if(highestId + 1 > reservedUpTo){
+			reserve(highestId + 1);
+		}
+	}
+
+	/**
+	 * Moves the high-water mark to at least upTo, and a bit more so it isn't written for every block
+	 * @param upTo
+	 */
+	private synchronized void reserve(int upTo){
+		if(upTo <= reservedUpTo){
+			// another thread reserved them while this one waited
+			return;
+		}
+		int newMark = upTo + RESERVE_SIZE;
+		writeMark(newMark);
+		reservedUpTo = newMark;
+	}
+
+	/**
+	 * The id an account file name stands for: N for "aN.txt" (or "aN")
+	 * @param fileName
+	 * @return the id, or -1 if the name isn't of that form
+	 */
+	public static int idFromFileName(String fileName){
+		int end = fileName.endsWith(".txt") ? fileName.length() - 4 : fileName.length();
+		if(end < 2 || fileName.charAt(0) != 'a' || end - 1 > 9){
+			return -1;
+		}
+		int id = 0;
+		for(int i = 1; i < end; i++){
+			char c = fileName.charAt(i);
+			if(c < '0' || c > '9'){
+				return -1;
+			}
+			id = id * 10 + (c - '0');
+		}
+		return id;
+	}
+
+	private int readMark(){
+		if(!markFile.exists()){
+			// the first start, or a folder from before there was a high-water mark. Ids start at 1
+			return 1;
+		}
+		try(BufferedReader in = new BufferedReader(new FileReader(markFile))){
+			return Integer.parseInt(in.readLine().trim());
+		} catch (IOException | RuntimeException e) {
+			// written with a rename, so this is not a half written file
+			throw new IllegalStateException("Could not read the next account id from " + markFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * Writes the mark to a temporary file, syncs it and renames it to the mark file
+	 * @param mark
+	 */
+	private void writeMark(int mark){
+		File folder = markFile.getParentFile();
+		if(!folder.exists() && !folder.mkdirs()){
+			throw new IllegalStateException("Could not create the folder " + folder.getPath());
+		}
+		File tempFile = new File(markFile.getPath() + AccountFileStorage.TEMP_FILE_SUFFIX);
+		try {
+			try(FileOutputStream fileOut = new FileOutputStream(tempFile)){
+				Writer out = new OutputStreamWriter(fileOut, StandardCharsets.UTF_8);
+				out.write(mark + System.lineSeparator());
+				out.flush();
+				fileOut.getFD().sync();
+			}
+			Files.move(tempFile.toPath(), markFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// handing out ids that aren't reserved could give two accounts the same id after a restart
+			throw new IllegalStateException("Could not save the next account id to " + markFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * The ids a thread hands out by itself, from next up to but not including end
+	 */
+	private static class Block {
+		int next;
+		int end;
+	}
+}
@@ -0,0 +1,153 @@
+package bank;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Finds accounts by their id, without turning the id into an Integer, so a deposit or withdrawal by
+ * id doesn't allocate anything.
+ *
+ * A hash table with open addressing: an account is put in the slot its id hashes to, or in the next
+ * free slot after it. A removed account leaves a marker in its slot, so a search that started before
+ * the removal still finds the accounts after it. When the table gets too full of accounts and markers
+ * a new one is filled and swapped in.
+ *
+ * Reading doesn't lock and can run at the same time as anything. Adding and removing must not run at
+ * the same time, the account manager only does them while holding its own lock.
+ * @author Erik
+ *
+ */
+public class AccountIdIndex {
+
+	private static final Object REMOVED = new Object(); // in the slot of a removed account
+	private static final int MIN_CAPACITY = 16;
+
+	private volatile AtomicReferenceArray<Object> slots; // the length is a power of two
+	private int size; // accounts in the table
+	private int used; // slots that aren't empty, accounts and markers
+
+	/**
+	 * @param expectedAccounts number of accounts that will be added, so the table doesn't have to grow
+	 */
+	AccountIdIndex(int expectedAccounts){
+		slots = new AtomicReferenceArray<Object>(capacityFor(expectedAccounts));
+	}
+
+	/**
+	 * @param accountId
+	 * @return the account with the id, null if there is none
+	 */
+	public Account get(int accountId){
+		AtomicReferenceArray<Object> table = slots;
+		int mask = table.length() - 1;
+		for(int slot = hash(accountId) & mask; ; slot = (slot + 1) & mask){
+			Object found = table.get(slot);
+			if(found == null){
+				return null;
+			}
+			if(found != REMOVED && ((Account) found).getAccountID() == accountId){
+				return (Account) found;
+			}
+		}
+	}
+
+	/**
+	 * Adds an account, or puts it in place of the account with the same id
+	 * @param account
+	 */
+	public void put(Account account){
+		if((used + 1) * 4L > slots.length() * 3L){
+			// a quarter of the slots is kept empty, so searches stay short
+			rehash(size + 1);
+		}
+		AtomicReferenceArray<Object> table = slots;
+		int mask = table.length() - 1;
+		int freeSlot = -1;
+		for(int slot = hash(account.getAccountID()) & mask; ; slot = (slot + 1) & mask){
+			Object found = table.get(slot);
+			if(found == null){
+				if(freeSlot < 0){
+					freeSlot = slot;
+					used++;
+				}
+				size++;
+				table.set(freeSlot, account);
+				return;
+			}
+			if(found == REMOVED){
+				if(freeSlot < 0){
+					freeSlot = slot;
+				}
+			} else if(((Account) found).getAccountID() == account.getAccountID()){
+				table.set(slot, account);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param accountId
+	 * @return the removed account, null if there was none with the id
+	 */
+	public Account remove(int accountId){
+		AtomicReferenceArray<Object> table = slots;
+		int mask = table.length() - 1;
+		for(int slot = hash(accountId) & mask; ; slot = (slot + 1) & mask){
+			Object found = table.get(slot);
+			if(found == null){
+				return null;
+			}
+			if(found != REMOVED && ((Account) found).getAccountID() == accountId){
+				table.set(slot, REMOVED);
+				size--;
+				return (Account) found;
+			}
+		}
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Fills a new table with the accounts, without the markers, and swaps it in. Searches running
+	 * in the old table finish there, it's never changed again
+	 * @param accounts number of accounts the new table must have room for
+	 */
+	private void rehash(int accounts){
+		AtomicReferenceArray<Object> oldTable = slots;
+		AtomicReferenceArray<Object> table = new AtomicReferenceArray<Object>(capacityFor(accounts));
+		int mask = table.length() - 1;
+		for(int oldSlot = 0; oldSlot < oldTable.length(); oldSlot++){
+			Object found = oldTable.get(oldSlot);
+			if(found != null && found != REMOVED){
+				int slot = hash(((Account) found).getAccountID()) & mask;
+				while(table.get(slot) != null){
+					slot = (slot + 1) & mask;
+				}
+				table.set(slot, found);
+			}
+		}
+		used = size;
+		slots = table;
+	}
+
+	/**
+	 * @return a power of two with room for twice the accounts, so the table can half fill up with
+	 * markers before it's rehashed again
+	 */
+	private static int capacityFor(int accounts){
+		int capacity = MIN_CAPACITY;
+		while(capacity < accounts * 2 + 1 && capacity < 1 << 30){
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Ids are handed out in order, so they are spread over the table with a multiply
+	 */
+	private static int hash(int accountId){
+		int hash = accountId * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
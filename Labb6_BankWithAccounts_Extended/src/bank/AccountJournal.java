@@ -0,0 +1,688 @@
+package bank;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Storage that appends every change as a small binary record to a journal, instead of
+ * rewriting one text file per account.
+ * 
+ * The journal is split into segment files (journal-1.log, journal-2.log, ...) in the folder "journal"
+ * inside the account folder. A new segment is started when the current one is full. Every record is
+ * written as [length][record][crc32 of record], so a record that was only half written when
+ * the program crashed is detected and cut off when the journal is replayed at startup.
+ * Balances and amounts are written in cents.
+ * 
+ * A write or sync that fails throws an UncheckedIOException, and the journal refuses every change
+ * after it: the change was already made in memory, so nothing made after it can be called durable.
+ * A record that was half written is cut off again if possible, else replay cuts it off. Opening the
+ * account folder again replays the journal up to the last record that was written.
+ * 
+ * Replay starts at the newest checkpoint: a segment that begins with a CHECKPOINT record followed by
+ * one CREATE record per account. When the replay has applied more than twice as many records as there
+ * are accounts, a new checkpoint is written to a temp file, synced and renamed into place as the next
+ * segment, and the segments before it are deleted, so a start only replays what changed since the
+ * start before it. Replay stops at the first damaged record. Segments after a damaged one are renamed
+ * to journal-N.log.damaged-<time> and not applied, since applying them would skip the lost records,
+ * and a checkpoint is written at once.
+ * 
+ * The sync to the disk is done outside the lock of the journal: changes go on being appended while
+ * a sync is running, and a sync returns right away when another one has already made everything
+ * written before it durable.
+ * 
+ * Use AccountManager.exportAccounts() and importAccounts() to move accounts between the journal
+ * and the one-file-per-account format.
+ * @author Erik
+ *
+ */
+public class AccountJournal implements AccountStorage {
+	
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	// largest record we accept when replaying, anything bigger must be garbage
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+	
+	// record types
+	private static final byte CREATE = 1;
+	private static final byte DEPOSIT = 2;
+	private static final byte WITHDRAW = 3;
+	private static final byte DELETE = 4;
+	private static final byte TRANSFER = 5;
+	private static final byte INTEREST = 6;
+	private static final byte SHARD_TRANSFER = 7;
+	private static final byte CHECKPOINT = 8;
+	
+	private File accountFolder;
+	private File journalFolder;
+	private long segmentSize;
+	
+	private FileChannel segment; // the segment we append to
+	private int segmentNumber;
+	private long nextLsn = 1; // log sequence number of the next record
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(256);
+	private CRC32 crc = new CRC32();
+	private long replayedRecords; // records applied while loading
+	private long written; // bytes appended since the journal was opened, in all segments
+	private IOException failure; // a write or sync that failed, nothing more is appended after it
+	private final Object syncLock = new Object(); // one sync at a time, never held while appending
+	private volatile long synced; // bytes of written that are on the disk
+	
+	AccountJournal(File accountFolder){
+		this(accountFolder, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * @param accountFolder the journal is kept in the folder "journal" inside this folder
+	 * @param segmentSize size in bytes after which a new segment file is started
+	 */
+	AccountJournal(File accountFolder, long segmentSize){
+		this.accountFolder = accountFolder;
+		this.journalFolder = new File(accountFolder, "journal");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Replays the whole journal to rebuild the accounts, then opens the last segment for appending
+	 */
+	@Override
+	public synchronized List<Account> loadAccounts(AccountIdAllocator ids){
+		if(!journalFolder.exists() && !journalFolder.mkdirs()){
+			throw new IllegalStateException("Could not create journal folder " + journalFolder.getPath());
+		}
+		long startTime = System.nanoTime();
+		Map<Integer, Account> replayedAccounts = new LinkedHashMap<Integer, Account>();
+		replayedRecords = 0;
+		
+		int[] segmentNumbers = listSegmentNumbers();
+		int firstSegment = newestCheckpoint(segmentNumbers);
+		int replayedSegments = 0;
+		boolean damagedBeforeEnd = false;
+		for(int i = firstSegment; i < segmentNumbers.length; i++){
+			replayedSegments++;
+			boolean lastSegment = i == segmentNumbers.length - 1;
+			if(!replaySegment(segmentFile(segmentNumbers[i]), replayedAccounts) && !lastSegment){
+				// the segments after it would be applied without the records that were lost
+				setAside(Arrays.copyOfRange(segmentNumbers, i + 1, segmentNumbers.length));
+				damagedBeforeEnd = true;
+				segmentNumbers = Arrays.copyOf(segmentNumbers, i + 1);
+				break;
+			}
+		}
+		
+		System.out.println("Replayed " + replayedRecords + " journal records from " + replayedSegments 
+							+ " segments in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+		
+		segmentNumber = segmentNumbers.length > 0 ? segmentNumbers[segmentNumbers.length - 1] : 1;
+		if(damagedBeforeEnd || replayedRecords > 2L * replayedAccounts.size()){
+			int checkpointNumber = nextFreeSegmentNumber();
+			if(writeCheckpoint(checkpointNumber, replayedAccounts.values())){
+				segmentNumber = checkpointNumber;
+				for(int number : segmentNumbers){
+					deleteSegment(number);
+				}
+			}
+		}
+		openSegment(segmentNumber);
+		
+		return new ArrayList<Account>(replayedAccounts.values());
+	}
+	
+	/**
+	 * Writes all accounts as a new segment that replay starts from. Nothing is appended meanwhile,
+	 * the journal is only being opened
+	 * @param number segment number the checkpoint gets, higher than all segments before it
+	 * @param accounts
+	 * @return true if the checkpoint is on the disk, false if it couldn't be written and the old segments are still needed
+	 */
+	private boolean writeCheckpoint(int number, Collection<Account> accounts){
+		long startTime = System.nanoTime();
+		File tempFile = new File(journalFolder, "checkpoint.tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, 
+													StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+				startRecord(CHECKPOINT, 0, 0);
+				writeRecord(channel);
+				for(Account account : accounts){
+					putCreate(account.getAccountID(), account.getBalance(), account.getLatestTransactions(), 
+								account.getOwner().getBytes(StandardCharsets.UTF_8), 
+								account.getAccountName().getBytes(StandardCharsets.UTF_8), account.getInterestPeriod());
+					writeRecord(channel);
+					if(account.getShardTransfer() != 0){
+						// the number of the last shard transfer is needed to recover the next one
+						startRecord(SHARD_TRANSFER, account.getAccountID(), 8 + 8);
+						recordBuffer.putLong(0);
+						recordBuffer.putLong(account.getShardTransfer());
+						writeRecord(channel);
+					}
+				}
+				channel.force(false);
+			}
+			Files.move(tempFile.toPath(), segmentFile(number).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			AccountFileStorage.syncFolder(journalFolder);
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return false;
+		}
+		System.out.println("Wrote a journal checkpoint of " + accounts.size() + " accounts in " 
+							+ (System.nanoTime() - startTime) / 1_000_000 + " ms");
+		return true;
+	}
+	
+	/**
+	 * @param segmentNumbers
+	 * @return index of the newest segment that begins with a checkpoint, or 0 if there is none
+	 */
+	private int newestCheckpoint(int[] segmentNumbers){
+		for(int i = segmentNumbers.length - 1; i > 0; i--){
+			try(DataInputStream in = new DataInputStream(new FileInputStream(segmentFile(segmentNumbers[i])))){
+				in.readInt();
+				if(in.readByte() == CHECKPOINT){
+					return i;
+				}
+			} catch (EOFException e) {
+				// empty, so not a checkpoint: those are renamed into place whole
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Renames segments so they are kept, but not replayed
+	 * @param numbers
+	 */
+	private void setAside(int[] numbers){
+		String suffix = ".damaged-" + System.currentTimeMillis();
+		for(int number : numbers){
+			File file = segmentFile(number);
+			try {
+				Files.move(file.toPath(), new File(journalFolder, file.getName() + suffix).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				System.out.println("Journal segment '" + file.getPath() + "' comes after a damaged one, renamed it to " 
+									+ file.getName() + suffix);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not set aside journal segment " + number, e);
+			}
+		}
+		try {
+			AccountFileStorage.syncFolder(journalFolder);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not sync the journal folder", e);
+		}
+	}
+	
+	private void deleteSegment(int number){
+		File file = segmentFile(number);
+		if(file.exists() && !file.delete()){
+			System.out.println("Could not delete journal segment '" + file.getPath() + "', it is replayed before the checkpoint next time");
+		}
+	}
+
+	@Override
+	public void accountCreated(Account account){
+		// read the account before locking the journal, threads holding the lock of an account may be waiting for the journal
+		long balance;
+		long[] history;
+		int interestPeriod;
+		synchronized(account){
+			balance = account.getBalance();
+			history = account.getLatestTransactions();
+			interestPeriod = account.getInterestPeriod();
+		}
+		byte[] ownerBytes = account.getOwner().getBytes(StandardCharsets.UTF_8);
+		byte[] nameBytes = account.getAccountName().getBytes(StandardCharsets.UTF_8);
+		appendCreate(account.getAccountID(), balance, history, ownerBytes, nameBytes, interestPeriod);
+	}
+	
+	private synchronized void appendCreate(int accountId, long balance, long[] history, byte[] ownerBytes, byte[] nameBytes, int interestPeriod){
+		putCreate(accountId, balance, history, ownerBytes, nameBytes, interestPeriod);
+		appendRecord();
+	}
+	
+	private void putCreate(int accountId, long balance, long[] history, byte[] ownerBytes, byte[] nameBytes, int interestPeriod){
+		startRecord(CREATE, accountId, 8 + 1 + history.length * 8 + 4 + ownerBytes.length + nameBytes.length + 4);
+		recordBuffer.putLong(balance);
+		recordBuffer.put((byte) history.length);
+		for(long transValue : history){
+			recordBuffer.putLong(transValue);
+		}
+		recordBuffer.putShort((short) ownerBytes.length);
+		recordBuffer.put(ownerBytes);
+		recordBuffer.putShort((short) nameBytes.length);
+		recordBuffer.put(nameBytes);
+		recordBuffer.putInt(interestPeriod);
+	}
+
+	@Override
+	public synchronized void balanceChanged(Account account, long amount){
+		startRecord(amount >= 0 ? DEPOSIT : WITHDRAW, account.getAccountID(), 8);
+		recordBuffer.putLong(Math.abs(amount));
+		appendRecord();
+	}
+
+	/**
+	 * A transfer is one record, so replay never sees half of it
+	 */
+	@Override
+	public synchronized void transferred(Account from, Account to, long amount){
+		startRecord(TRANSFER, from.getAccountID(), 4 + 8);
+		recordBuffer.putInt(to.getAccountID());
+		recordBuffer.putLong(amount);
+		appendRecord();
+	}
+
+	/**
+	 * The interest and the month it was paid for are one record
+	 */
+	@Override
+	public synchronized void interestPaid(Account account, long amount){
+		startRecord(INTEREST, account.getAccountID(), 8 + 4);
+		recordBuffer.putLong(amount);
+		recordBuffer.putInt(account.getInterestPeriod());
+		appendRecord();
+	}
+
+	/**
+	 * The half of the transfer and its number are one record
+	 */
+	@Override
+	public synchronized void shardTransferred(Account account, long amount){
+		startRecord(SHARD_TRANSFER, account.getAccountID(), 8 + 8);
+		recordBuffer.putLong(amount);
+		recordBuffer.putLong(account.getShardTransfer());
+		appendRecord();
+	}
+
+	@Override
+	public synchronized void accountDeleted(Account account){
+		startRecord(DELETE, account.getAccountID(), 0);
+		appendRecord();
+	}
+
+	/**
+	 * The changes are already in the journal, so saving means forcing them to the disk
+	 */
+	@Override
+	public void saveAccount(Account account){
+		sync();
+	}
+
+	/**
+	 * All changes are in the journal already, one sync makes all of them durable
+	 */
+	@Override
+	public void flush(Collection<Account> accounts){
+		sync();
+	}
+
+	@Override
+	public void close(List<Account> accounts){
+		synchronized(this){
+			if(segment == null){
+				return;
+			}
+		}
+		try {
+			sync();
+		} finally {
+			synchronized(this){
+				Metrics.closeFile(segment);
+				segment = null;
+			}
+		}
+	}
+	
+	/**
+	 * Forces everything written to the journal so far to the disk. Appending goes on meanwhile
+	 * @throws UncheckedIOException if it couldn't be forced, or the journal is broken
+	 */
+	public void sync(){
+		FileChannel channel;
+		long target;
+		synchronized(this){
+			checkNotBroken();
+			channel = segment;
+			target = written;
+		}
+		synchronized(syncLock){
+			if(synced >= target){
+				// a sync that started after our changes were written is done already
+				return;
+			}
+			long start = Metrics.start();
+			try {
+				channel.force(false);
+			} catch (AsynchronousCloseException e) {
+				// closed by an interrupt while forcing, it may not have reached the disk
+				throw broken("Could not sync the journal", e);
+			} catch (ClosedChannelException e) {
+				// the segment was full or the journal closed: both force the segment before closing it
+				synchronized(this){
+					checkNotBroken();
+				}
+			} catch (IOException e) {
+				throw broken("Could not sync the journal", e);
+			}
+			synced = target;
+			Metrics.recordEvent(Metrics.SAVE, -1, start);
+		}
+	}
+	
+	private void checkNotBroken(){
+		if(failure != null){
+			throw new UncheckedIOException("The journal can't be written after an earlier failure", failure);
+		}
+		if(segment == null){
+			throw new IllegalStateException("The journal is closed");
+		}
+	}
+	
+	/**
+	 * Starts a record in the record buffer: type, log sequence number and account id
+	 * @param type
+	 * @param accountId
+	 * @param bodyLength bytes that will be put after the account id
+	 */
+	private void startRecord(byte type, int accountId, int bodyLength){
+		int recordLength = 1 + 8 + 4 + bodyLength;
+		// room for the length in front and the checksum after the record
+		int neededCapacity = 4 + recordLength + 4;
+		if(recordBuffer.capacity() < neededCapacity){
+			recordBuffer = ByteBuffer.allocate(Math.max(neededCapacity, recordBuffer.capacity() * 2));
+		}
+		recordBuffer.clear();
+		recordBuffer.putInt(recordLength);
+		recordBuffer.put(type);
+		recordBuffer.putLong(nextLsn++);
+		recordBuffer.putInt(accountId);
+	}
+	
+	/**
+	 * Adds the checksum to the record in the record buffer and appends it to the journal
+	 * @throws UncheckedIOException if it couldn't be written, or the journal is broken
+	 */
+	private void appendRecord(){
+		checkNotBroken();
+		finishRecord();
+		int recordSize = recordBuffer.remaining();
+		long recordStart = -1;
+		try {
+			if(segment.position() > 0 && segment.position() + recordSize > segmentSize){
+				startNextSegment();
+			}
+			recordStart = segment.position();
+			writeFully(segment);
+			written += recordSize;
+		} catch (IOException e) {
+			if(recordStart >= 0){
+				try {
+					// the record is half written at most, leave the journal ending with a whole record
+					segment.truncate(recordStart);
+				} catch (IOException truncateFailed) {
+					e.addSuppressed(truncateFailed);
+				}
+			}
+			throw broken("Could not write to the journal", e);
+		}
+	}
+	
+	/**
+	 * Adds the checksum to the record in the record buffer and writes it to a file that isn't appended to yet
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void writeRecord(FileChannel channel) throws IOException {
+		finishRecord();
+		writeFully(channel);
+	}
+	
+	private void finishRecord(){
+		crc.reset();
+		crc.update(recordBuffer.array(), 4, recordBuffer.position() - 4);
+		recordBuffer.putInt((int) crc.getValue());
+		recordBuffer.flip();
+	}
+	
+	private void writeFully(FileChannel channel) throws IOException {
+		while(recordBuffer.hasRemaining()){
+			channel.write(recordBuffer);
+		}
+	}
+	
+	/**
+	 * Refuses all changes from now on
+	 * @return the exception to throw
+	 */
+	private synchronized UncheckedIOException broken(String message, IOException cause){
+		if(failure == null){
+			failure = cause;
+		}
+		return new UncheckedIOException(message, cause);
+	}
+	
+	private void startNextSegment() throws IOException {
+		// the full segment won't be written to again, so make sure it's all on disk before moving on
+		segment.force(false);
+		Metrics.closeFile(segment);
+		segmentNumber++;
+		openSegment(segmentNumber);
+	}
+	
+	private void openSegment(int number){
+		try {
+			long openStart = Metrics.start();
+			segment = FileChannel.open(segmentFile(number).toPath(), 
+										StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			Metrics.fileOpened(openStart);
+			segment.position(segment.size());
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open journal segment " + number, e);
+		}
+	}
+	
+	/**
+	 * Applies the records in a segment file to the accounts, up to the first damaged one. A damaged
+	 * end of the file is cut off, so nothing is ever appended or replayed after it
+	 * @param segmentFile
+	 * @param replayedAccounts accounts by account id, updated by the records
+	 * @return false if the segment was damaged
+	 */
+	private boolean replaySegment(File segmentFile, Map<Integer, Account> replayedAccounts){
+		long goodLength = 0;
+		boolean damaged = false;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024))){
+			while(true){
+				int firstByte = in.read();
+				if(firstByte < 0){
+					// clean end of the segment
+					break;
+				}
+				int recordLength;
+				try {
+					recordLength = (firstByte << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+				} catch (EOFException tornLength) {
+					damaged = true;
+					break;
+				}
+				if(recordLength <= 0 || recordLength > MAX_RECORD_LENGTH){
+					damaged = true;
+					break;
+				}
+				byte[] record = new byte[recordLength];
+				int checksum;
+				try {
+					in.readFully(record);
+					checksum = in.readInt();
+				} catch (EOFException tornRecord) {
+					damaged = true;
+					break;
+				}
+				crc.reset();
+				crc.update(record, 0, recordLength);
+				if((int) crc.getValue() != checksum){
+					damaged = true;
+					break;
+				}
+				applyRecord(ByteBuffer.wrap(record), replayedAccounts);
+				replayedRecords++;
+				goodLength += 4 + recordLength + 4;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if(damaged){
+			System.out.println("Journal segment '" + segmentFile.getPath() + "' is damaged after " + goodLength 
+								+ " bytes, the rest of it is ignored");
+			truncate(segmentFile, goodLength);
+		}
+		return !damaged;
+	}
+	
+	private void applyRecord(ByteBuffer record, Map<Integer, Account> replayedAccounts){
+		byte type = record.get();
+		long lsn = record.getLong();
+		int accountId = record.getInt();
+		nextLsn = Math.max(nextLsn, lsn + 1);
+		
+		if(type == CHECKPOINT){
+			// everything before it is in the records that follow
+			replayedAccounts.clear();
+		} else if(type == CREATE){
+			long balance = record.getLong();
+			long[] history = new long[record.get()];
+			for(int i = 0; i < history.length; i++){
+				history[i] = record.getLong();
+			}
+			String owner = readString(record);
+			String accountName = readString(record);
+			File accountFile = new File(accountFolder, "a" + accountId + ".txt");
+			Account account = new Account(accountId, accountFile, owner, accountName, balance, history);
+			if(record.hasRemaining()){
+				// journals from before interest was paid end here
+				account.setInterestPeriod(record.getInt());
+			}
+			replayedAccounts.put(accountId, account);
+		} else if(type == DELETE){
+			replayedAccounts.remove(accountId);
+		} else if(type == TRANSFER){
+			Account from = replayedAccounts.get(accountId);
+			int toAccountId = record.getInt();
+			Account to = replayedAccounts.get(toAccountId);
+			if(from == null || to == null){
+				System.out.println("Journal record " + lsn + " is a transfer between unknown accounts " + accountId 
+									+ " and " + toAccountId + ", skipping it");
+				return;
+			}
+			long amount = record.getLong();
+			from.setBalance(from.getBalance() - amount);
+			to.setBalance(to.getBalance() + amount);
+		} else {
+			Account account = replayedAccounts.get(accountId);
+			if(account == null){
+				System.out.println("Journal record " + lsn + " is for unknown account " + accountId + ", skipping it");
+				return;
+			}
+			long amount = record.getLong();
+			if(type == DEPOSIT){
+				account.setBalance(account.getBalance() + amount);
+			} else if(type == INTEREST){
+				account.setBalance(account.getBalance() + amount);
+				account.setInterestPeriod(record.getInt());
+			} else if(type == SHARD_TRANSFER){
+				// the amount is negative for the half that takes the money
+				account.setBalance(account.getBalance() + amount);
+				account.setShardTransfer(record.getLong());
+			} else {
+				account.setBalance(account.getBalance() - amount);
+			}
+		}
+	}
+	
+	private static String readString(ByteBuffer record){
+		byte[] bytes = new byte[record.getShort() & 0xFFFF];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void truncate(File file, long length){
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)){
+			channel.truncate(length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return numbers of the existing segment files, in the order they were written
+	 */
+	private int[] listSegmentNumbers(){
+		String[] fileNames = journalFolder.list();
+		if(fileNames == null){
+			return new int[0];
+		}
+		int[] numbers = new int[fileNames.length];
+		int count = 0;
+		for(String fileName : fileNames){
+			if(fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)){
+				try {
+					numbers[count] = Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), 
+																			fileName.length() - SEGMENT_SUFFIX.length()));
+					count++;
+				} catch (NumberFormatException e) {
+					System.out.println("Ignoring unknown file in journal folder: " + fileName);
+				}
+			}
+		}
+		numbers = Arrays.copyOf(numbers, count);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+	
+	/**
+	 * @return a segment number above all segments, including those set aside
+	 */
+	private int nextFreeSegmentNumber(){
+		int highest = 0;
+		String[] fileNames = journalFolder.list();
+		for(String fileName : fileNames == null ? new String[0] : fileNames){
+			if(fileName.startsWith(SEGMENT_PREFIX)){
+				int end = fileName.indexOf(SEGMENT_SUFFIX);
+				try {
+					highest = Math.max(highest, Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), 
+																						end < 0 ? fileName.length() : end)));
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		return highest + 1;
+	}
+	
+	private File segmentFile(int number){
+		return new File(journalFolder, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+	}
+}
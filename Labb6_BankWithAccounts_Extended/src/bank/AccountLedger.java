@@ -0,0 +1,856 @@
+package bank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The full history of every account: every change of the balance is kept as a LedgerEntry, nothing
+ * is ever dropped (the account itself only keeps its latest HISTORY_SIZE transactions).
+ *
+ * The entries of all accounts are appended to one log in the ledger folder, split into segment files
+ * of ENTRIES_PER_SEGMENT entries (000000.log, 000001.log, ...). An entry has a fixed width and holds
+ * the id of its account and where the previous entry of that account is in the log, so the entries
+ * of an account are a chain back through the log. The ledger keeps where the newest entry and every
+ * CHECKPOINT_INTERVAL-th entry of every account are: entry n of an account is at most
+ * CHECKPOINT_INTERVAL - 1 steps back from one of them. That's what makes paged reads, reading the
+ * newest entries (tail) and a binary search by time cheap, whatever the length of the history, and it
+ * costs a few bytes per account plus 8 bytes per CHECKPOINT_INTERVAL entries in memory.
+ *
+ * The segment files are mapped into memory. A new entry gets its position from an atomic counter and
+ * is put straight into the mapped segment, so accounts append at the same time without a lock of the
+ * ledger. While an entry is put, its position is kept in one of a few slots, like the versions in
+ * BalanceVersions. flush() waits until no slot holds a position below the entries it syncs, then forces
+ * the segments, one sync for all accounts. The group committer flushes the ledger before it reports any
+ * change as durable, the account manager at every checkpoint. Reads see the entries that aren't synced
+ * yet. A segment that can't be mapped or synced throws an UncheckedIOException, and the ledger refuses
+ * every entry after it, like the AccountJournal.
+ *
+ * Every entry ends with a CRC32 of the rest of it. When the ledger is closed, where the entries of every
+ * account are is written to an index file, so the next start only reads the part of the log written
+ * after it. After a crash the whole log is read, and the log ends at the first entry that isn't whole:
+ * one that was torn, or never put because the program stopped first. Only entries that weren't synced
+ * can come after it.
+ * @author Erik
+ *
+ */
+public class AccountLedger {
+
+	public static final String FOLDER_NAME = "ledger";
+	public static final int ENTRIES_PER_SEGMENT = 1 << 20;
+	// account id (4 bytes), type (1 byte, 0 means no entry), 3 free bytes, then time, amount,
+	// balance after and where the previous entry of the account is (8 bytes each), and the CRC32
+	// of all that (4 bytes)
+	static final int ENTRY_SIZE = 44;
+	static final int CHECKPOINT_INTERVAL = 64; // where every this many entries of an account are is kept in memory
+	private static final int TIME_OFFSET = 8;
+	private static final int PREVIOUS_OFFSET = 32;
+	private static final int CRC_OFFSET = 40;
+	private static final int SEGMENT_SIZE = ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+	private static final int PAGE_SIZE = 256; // entries read at a time when reading a time range
+	private static final int SCAN_BUFFER_SIZE = 25_000 * ENTRY_SIZE;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_FILE_NAME = "index";
+	private static final int INDEX_VERSION = 2; // 1 was for entries without a CRC32
+	private static final byte DELETED = -1; // type of the entry that tells an account was deleted
+	private static final LedgerEntry.Type[] TYPES = LedgerEntry.Type.values();
+	private static final long RESERVING = -1; // in a slot while its entry takes a position from the counter
+	private static final int SLOT_STRIDE = 8; // longs between two slots, so they're on different cache lines
+	private static final int SLOTS = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+
+	private final File ledgerFolder;
+	private final Map<Integer, Entries> entriesById = new ConcurrentHashMap<Integer, Entries>(); // every account that has entries
+	private final AtomicLong nextEntry = new AtomicLong(); // position of the next entry in the log, positions below it are handed out
+	private final AtomicLongArray appending = new AtomicLongArray(SLOTS * SLOT_STRIDE); // position + 1 of entries being put, 0 in a free slot
+	private final ThreadLocal<Appender> appenders = ThreadLocal.withInitial(Appender::new);
+	private volatile Segments mapped = new Segments(0, new MappedByteBuffer[0]); // from the segment of the oldest entry that isn't synced
+	private FileChannel[] readers = new FileChannel[0]; // segment files opened for reading, kept open
+	private long openedTimeMillis; // time of the newest entry when the ledger was opened
+	private volatile IOException failure; // a write or sync that failed, nothing more is appended after it
+	private volatile boolean closed;
+	private final Object syncLock = new Object(); // one sync at a time, never held while appending
+	private volatile long syncedEntries; // entries that are on the disk
+
+	/**
+	 * Finds where the entries of every account are, from the index file and the log written after it
+	 * @param ledgerFolder folder with the segment files
+	 */
+	AccountLedger(File ledgerFolder){
+		this.ledgerFolder = ledgerFolder;
+		if(!ledgerFolder.exists() && !ledgerFolder.mkdirs()){
+			throw new IllegalStateException("Could not create ledger folder " + ledgerFolder.getPath());
+		}
+		long startTime = System.nanoTime();
+		long indexedEntries = readIndex();
+		long scannedEntries;
+		try {
+			scannedEntries = scan(indexedEntries);
+			long segmentNumber = nextEntry.get() / ENTRIES_PER_SEGMENT;
+			mapped = new Segments(segmentNumber, new MappedByteBuffer[] { mapSegment(segmentNumber) });
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the ledger in " + ledgerFolder.getPath(), e);
+		}
+		syncedEntries = nextEntry.get();
+		System.out.println("Found " + nextEntry.get() + " ledger entries of " + entriesById.size() + " accounts in "
+				+ (System.nanoTime() - startTime) / 1_000_000 + " ms, read " + scannedEntries + " of them from the log");
+	}
+
+	/**
+	 * Adds an entry to the ledger of an account. Must be called while holding the lock of the account,
+	 * after its balance was changed, so the entries are in the same order as the changes. Doesn't wait
+	 * for other accounts that append at the same time
+	 * @param account
+	 * @param type
+	 * @param amount in cents, negative if money left the account
+	 * @throws UncheckedIOException if a segment couldn't be mapped, or the ledger is broken
+	 */
+	public void append(Account account, LedgerEntry.Type type, long amount){
+		Appender appender = appenders.get();
+		begin(appender);
+		try {
+			checkWritable();
+			Entries entries = entriesOf(account, true);
+			put(appender, account.getAccountID(), (byte) (type.ordinal() + 1), amount, account.getBalance(), entries);
+		} finally {
+			end(appender);
+		}
+	}
+
+	/**
+	 * @param account
+	 * @return number of entries in the ledger of the account
+	 */
+	public long getEntryCount(Account account){
+		synchronized(account){
+			Entries entries = entriesOf(account, false);
+			return entries != null ? entries.count : 0;
+		}
+	}
+
+	/**
+	 * Reads a page of entries, oldest first
+	 * @param account
+	 * @param firstEntry number of the first entry to read, 0 for the oldest
+	 * @param maxEntries the largest number of entries to read
+	 * @return the entries, fewer than maxEntries (or none) at the end of the ledger
+	 */
+	public List<LedgerEntry> readPage(Account account, long firstEntry, int maxEntries){
+		long count;
+		long newest;
+		long[] checkpoints;
+		// the entries of the account are put while holding its lock, so they're seen after taking it
+		synchronized(account){
+			Entries entries = entriesOf(account, false);
+			if(entries == null){
+				return Collections.emptyList();
+			}
+			count = entries.count;
+			newest = entries.newest;
+			checkpoints = entries.checkpoints;
+		}
+		long end = Math.min(count, firstEntry + maxEntries);
+		if(firstEntry < 0 || firstEntry >= end){
+			return Collections.emptyList();
+		}
+		// start at the nearest entry at or after the last one to read that we know where it is, and walk back
+		long number = ((end - 1) / CHECKPOINT_INTERVAL + 1) * CHECKPOINT_INTERVAL;
+		long position;
+		if(number < count){
+			position = checkpoints[(int) (number / CHECKPOINT_INTERVAL) - 1];
+		} else {
+			number = count - 1;
+			position = newest;
+		}
+		LedgerEntry[] page = new LedgerEntry[(int) (end - firstEntry)];
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		for(; number >= firstEntry; number--){
+			readEntry(position, entry);
+			if(number < end){
+				page[(int) (number - firstEntry)] = decode(number, entry);
+			}
+			position = entry.getLong(PREVIOUS_OFFSET);
+		}
+		return Arrays.asList(page);
+	}
+
+	/**
+	 * @param account
+	 * @param count
+	 * @return the newest entries, at most count of them, newest first
+	 */
+	public List<LedgerEntry> tail(Account account, int count){
+		long entryCount = getEntryCount(account);
+		List<LedgerEntry> newest = readPage(account, Math.max(0, entryCount - count), count);
+		// entries added since the count was taken are left out, it was the tail when we looked
+		List<LedgerEntry> newestFirst = new ArrayList<LedgerEntry>(newest);
+		Collections.reverse(newestFirst);
+		return newestFirst;
+	}
+
+	/**
+	 * Finds the first entry made at or after a time. A binary search over the entries the ledger knows
+	 * where they are finds the CHECKPOINT_INTERVAL entries it's among, only those are read
+	 * @param account
+	 * @param timeMillis
+	 * @return the number of the entry, or the number of entries if they're all older
+	 */
+	public long findFirstEntryAtOrAfter(Account account, long timeMillis){
+		long count;
+		long[] checkpoints;
+		synchronized(account){
+			Entries entries = entriesOf(account, false);
+			if(entries == null){
+				return 0;
+			}
+			count = entries.count;
+			checkpoints = entries.checkpoints;
+		}
+		// checkpoint i is entry (i + 1) * CHECKPOINT_INTERVAL
+		int checkpointCount = count > 0 ? (int) ((count - 1) / CHECKPOINT_INTERVAL) : 0;
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		int low = 0;
+		int high = checkpointCount;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			readEntry(checkpoints[middle], entry);
+			if(entry.getLong(TIME_OFFSET) < timeMillis){
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		// after the last older checkpoint, up to and with the first checkpoint that isn't older
+		long blockStart = low == 0 ? 0 : (long) low * CHECKPOINT_INTERVAL + 1;
+		long blockEnd = low < checkpointCount ? (long) (low + 1) * CHECKPOINT_INTERVAL : count;
+		for(LedgerEntry candidate : readPage(account, blockStart, (int) (blockEnd - blockStart))){
+			if(candidate.getTimeMillis() >= timeMillis){
+				return candidate.getNumber();
+			}
+		}
+		return blockEnd;
+	}
+
+	/**
+	 * Streams the entries made in a time range to a consumer, oldest first. Only one page of entries
+	 * is in memory at a time, and the consumer is called without holding any lock
+	 * @param account
+	 * @param fromMillis the first time to include
+	 * @param toMillis the last time to include
+	 * @param consumer
+	 * @return number of entries passed to the consumer
+	 */
+	public long readBetween(Account account, long fromMillis, long toMillis, Consumer<LedgerEntry> consumer){
+		long next = findFirstEntryAtOrAfter(account, fromMillis);
+		long passed = 0;
+		while(true){
+			List<LedgerEntry> page = readPage(account, next, PAGE_SIZE);
+			if(page.isEmpty()){
+				return passed;
+			}
+			for(LedgerEntry entry : page){
+				if(entry.getTimeMillis() > toMillis){
+					return passed;
+				}
+				consumer.accept(entry);
+				passed++;
+			}
+			next += page.size();
+		}
+	}
+
+	/**
+	 * Syncs the log, so every entry appended before the call is on the disk when it returns. Appending
+	 * goes on during the sync
+	 * @throws UncheckedIOException if the entries couldn't be synced, or the ledger is broken
+	 */
+	public void flush(){
+		checkWritable();
+		long target = nextEntry.get();
+		waitForEntriesBefore(target);
+		synchronized(syncLock){
+			if(syncedEntries >= target){
+				// a sync that started after our entries were put is done already
+				return;
+			}
+			checkWritable();
+			force(syncedEntries, target);
+			syncedEntries = target;
+			unmapSyncedSegments(target / ENTRIES_PER_SEGMENT);
+		}
+	}
+
+	/**
+	 * Forgets the entries of a deleted account. They stay in the log, an entry is added that tells the
+	 * next start to forget them too
+	 * @param account
+	 */
+	void accountDeleted(Account account){
+		synchronized(account){
+			Entries entries = entriesOf(account, false);
+			if(entries == null){
+				return;
+			}
+			entriesById.remove(account.getAccountID());
+			account.setLedgerEntries(null);
+			Appender appender = appenders.get();
+			begin(appender);
+			try {
+				if(failure == null && !closed){
+					put(appender, account.getAccountID(), DELETED, 0, 0, entries);
+				}
+			} finally {
+				end(appender);
+			}
+		}
+	}
+
+	/**
+	 * Syncs the rest of the entries, writes the index file for a fast start and closes the segment files.
+	 * Nothing can be appended after this
+	 */
+	public void close(){
+		synchronized(syncLock){
+			if(closed){
+				return;
+			}
+			// an append that took a slot before this sees it, the others are waited for
+			closed = true;
+			waitForEntriesBefore(Long.MAX_VALUE);
+			long end = nextEntry.get();
+			try {
+				if(failure == null){
+					force(syncedEntries, end);
+					syncedEntries = end;
+					writeIndex(end);
+				}
+			} catch (IOException | UncheckedIOException e) {
+				// the next start reads the whole log instead of the index
+				e.printStackTrace();
+			} finally {
+				synchronized(this){
+					mapped = new Segments(0, new MappedByteBuffer[0]);
+					for(FileChannel reader : readers){
+						if(reader != null){
+							Metrics.closeFile(reader);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param create true to start keeping the entries of an account that has none yet
+	 * @return where the entries of the account are, null if it has none and create is false. Called while holding the lock of the account
+	 */
+	private Entries entriesOf(Account account, boolean create){
+		Entries entries = account.getLedgerEntries();
+		if(entries != null && entries.ledger == this){
+			return entries;
+		}
+		entries = entriesById.get(account.getAccountID());
+		if(entries == null){
+			if(!create){
+				return null;
+			}
+			Entries newEntries = new Entries(this);
+			entries = entriesById.putIfAbsent(account.getAccountID(), newEntries);
+			if(entries == null){
+				entries = newEntries;
+			}
+		}
+		// found without a map lookup from now on
+		account.setLedgerEntries(entries);
+		return entries;
+	}
+
+	/**
+	 * Takes a free slot for an entry that is about to be put, so flush() waits for it
+	 * @param appender of the thread
+	 */
+	private void begin(Appender appender){
+		int slot = appender.slot;
+		while(appending.get(slot * SLOT_STRIDE) != 0 || !appending.compareAndSet(slot * SLOT_STRIDE, 0, RESERVING)){
+			// taken by another thread, more threads are appending than there are slots
+			slot = (slot + 1) & (SLOTS - 1);
+			if(slot == appender.slot){
+				Thread.yield();
+			}
+		}
+		appender.slot = slot;
+	}
+
+	/**
+	 * The entry is put, or wasn't put after all
+	 * @param appender
+	 */
+	private void end(Appender appender){
+		appending.set(appender.slot * SLOT_STRIDE, 0);
+	}
+
+	/**
+	 * Waits until every entry below a position is put. An append that is still taking its position may
+	 * get one below it, so it's waited for too
+	 * @param position
+	 */
+	private void waitForEntriesBefore(long position){
+		for(int slot = 0; slot < SLOTS; slot++){
+			long appended;
+			while((appended = appending.get(slot * SLOT_STRIDE)) != 0 && (appended == RESERVING || appended - 1 < position)){
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Takes the next position in the log and puts an entry there, in the mapped segment. Called while
+	 * holding the lock of the account and a slot
+	 */
+	private void put(Appender appender, int accountId, byte type, long amount, long balanceAfter, Entries entries){
+		long position = nextEntry.getAndIncrement();
+		appending.set(appender.slot * SLOT_STRIDE, position + 1);
+		MappedByteBuffer segment = segmentOf(position / ENTRIES_PER_SEGMENT);
+		// never back in time, even if the clock is, so the entries of every account stay sorted by time
+		long timeMillis = Math.max(entries.newestTimeMillis, System.currentTimeMillis());
+		ByteBuffer entry = appender.entry;
+		entry.putInt(0, accountId);
+		entry.put(4, type);
+		entry.put(5, (byte) 0);
+		entry.putShort(6, (short) 0);
+		entry.putLong(TIME_OFFSET, timeMillis);
+		entry.putLong(16, amount);
+		entry.putLong(24, balanceAfter);
+		entry.putLong(PREVIOUS_OFFSET, entries.newest);
+		appender.crc.reset();
+		appender.crc.update(entry.array(), 0, CRC_OFFSET);
+		entry.putInt(CRC_OFFSET, (int) appender.crc.getValue());
+		int offset = (int) (position % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+		for(int i = 0; i < ENTRY_SIZE; i += 4){
+			segment.putInt(offset + i, entry.getInt(i));
+		}
+		if(type != DELETED){
+			entries.added(position, timeMillis);
+		}
+	}
+
+	/**
+	 * @return the mapped segment file, mapped now if no entry was put in it yet
+	 * @throws UncheckedIOException if it couldn't be mapped, the ledger is broken then
+	 */
+	private MappedByteBuffer segmentOf(long number){
+		Segments segments = mapped;
+		long index = number - segments.first;
+		if(index >= 0 && index < segments.buffers.length){
+			return segments.buffers[(int) index];
+		}
+		synchronized(this){
+			// mapped by another thread meanwhile, or by this one
+			segments = mapped;
+			index = number - segments.first;
+			if(index < segments.buffers.length){
+				return segments.buffers[(int) index];
+			}
+			MappedByteBuffer[] buffers = Arrays.copyOf(segments.buffers, (int) index + 1);
+			try {
+				for(int i = segments.buffers.length; i < buffers.length; i++){
+					buffers[i] = mapSegment(segments.first + i);
+				}
+			} catch (IOException e) {
+				throw broken("Could not map ledger segment " + number, e);
+			}
+			mapped = new Segments(segments.first, buffers);
+			return buffers[(int) index];
+		}
+	}
+
+	/**
+	 * Maps a segment file, made as big as a whole segment. The file doesn't have to stay open
+	 */
+	private MappedByteBuffer mapSegment(long number) throws IOException {
+		FileChannel channel = openSegment(number, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		} finally {
+			Metrics.closeFile(channel);
+		}
+	}
+
+	/**
+	 * Forces the segments with the entries from one position up to another. Called while holding syncLock
+	 */
+	private void force(long from, long to){
+		if(from >= to){
+			return;
+		}
+		Segments segments = mapped;
+		try {
+			for(long number = from / ENTRIES_PER_SEGMENT; number <= (to - 1) / ENTRIES_PER_SEGMENT; number++){
+				segments.buffers[(int) (number - segments.first)].force();
+			}
+		} catch (UncheckedIOException e) {
+			throw broken("Could not sync the ledger", e.getCause());
+		}
+	}
+
+	/**
+	 * Stops mapping the segments before one, all their entries are synced. They're read through the
+	 * segment files from now on. Called while holding syncLock
+	 */
+	private synchronized void unmapSyncedSegments(long firstUnsynced){
+		Segments segments = mapped;
+		int synced = (int) Math.min(firstUnsynced - segments.first, segments.buffers.length);
+		if(synced > 0){
+			mapped = new Segments(segments.first + synced, Arrays.copyOfRange(segments.buffers, synced, segments.buffers.length));
+		}
+	}
+
+	/**
+	 * Reads the entry at a position in the log, from a mapped segment or a segment file
+	 * @param position
+	 * @param entry filled with the entry
+	 * @throws UncheckedIOException if it couldn't be read
+	 */
+	private void readEntry(long position, ByteBuffer entry){
+		entry.clear();
+		long number = position / ENTRIES_PER_SEGMENT;
+		Segments segments = mapped;
+		long index = number - segments.first;
+		if(index >= 0 && index < segments.buffers.length){
+			MappedByteBuffer segment = segments.buffers[(int) index];
+			int offset = (int) (position % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+			for(int i = 0; i < ENTRY_SIZE; i += 4){
+				entry.putInt(i, segment.getInt(offset + i));
+			}
+			return;
+		}
+		FileChannel reader;
+		synchronized(this){
+			reader = readerOf((int) number);
+		}
+		long offset = position % ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+		try {
+			while(entry.hasRemaining()){
+				if(reader.read(entry, offset + entry.position()) < 0){
+					throw new IOException("The ledger ends before entry " + position);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read the ledger", e);
+		}
+		entry.flip();
+	}
+
+	/**
+	 * @return a segment file open for reading. Opened again if an interrupted read closed it. Called while holding the lock of the ledger
+	 */
+	private FileChannel readerOf(int number){
+		if(number >= readers.length){
+			readers = Arrays.copyOf(readers, number + 1);
+		}
+		if(readers[number] == null || !readers[number].isOpen()){
+			try {
+				readers[number] = openSegment(number, StandardOpenOption.READ);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not open ledger segment " + number, e);
+			}
+		}
+		return readers[number];
+	}
+
+	private static LedgerEntry decode(long number, ByteBuffer entry){
+		return new LedgerEntry(number, entry.getLong(TIME_OFFSET), TYPES[entry.get(4) - 1], entry.getLong(16), entry.getLong(24));
+	}
+
+	private void checkWritable(){
+		if(failure != null){
+			throw new UncheckedIOException("The ledger can't be written after an earlier failure", failure);
+		}
+		if(closed){
+			throw new IllegalStateException("The ledger is closed");
+		}
+	}
+
+	/**
+	 * Refuses all entries from now on
+	 * @return the exception to throw
+	 */
+	private synchronized UncheckedIOException broken(String message, IOException cause){
+		if(failure == null){
+			failure = cause;
+		}
+		return new UncheckedIOException(message, cause);
+	}
+
+	/**
+	 * Reads the log from an entry on and adds its entries to the accounts. The log ends at the first
+	 * entry that isn't whole, the rest of the segment is cut off and later segments are deleted
+	 * @param firstEntry the first entry that isn't in the index
+	 * @return number of entries read
+	 */
+	private long scan(long firstEntry) throws IOException {
+		long scanned = firstEntry;
+		ByteBuffer entries = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		CRC32 crc = new CRC32();
+		long number = firstEntry / ENTRIES_PER_SEGMENT;
+		boolean ended = false;
+		boolean damaged = false;
+		for(; !ended && segmentFile(number).exists(); number++){
+			try(FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+				long position = scanned % ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+				entries.clear();
+				while(!ended && channel.read(entries, position + entries.position()) >= 0){
+					entries.flip();
+					while(entries.remaining() >= ENTRY_SIZE){
+						if(!addScannedEntry(entries, scanned, crc)){
+							// a segment is mapped whole, so the log normally ends in an entry of zeros
+							damaged = !isZero(entries);
+							ended = true;
+							break;
+						}
+						position += ENTRY_SIZE;
+						scanned++;
+					}
+					entries.compact();
+				}
+				if(position < channel.size()){
+					if(damaged){
+						System.out.println("Ledger segment " + segmentFile(number).getPath() + " ends with a damaged entry, cut off after "
+								+ position / ENTRY_SIZE + " entries");
+					}
+					channel.truncate(position);
+					ended = true;
+				} else if(position < (long) SEGMENT_SIZE){
+					ended = true;
+				}
+			}
+		}
+		for(; segmentFile(number).exists(); number++){
+			System.out.println("Deleting ledger segment " + segmentFile(number).getPath() + ", it comes after the end of the log");
+			Files.delete(segmentFile(number).toPath());
+		}
+		nextEntry.set(scanned);
+		return scanned - firstEntry;
+	}
+
+	/**
+	 * @param entries the scanned entries, positioned at the next one
+	 * @param position of the next one in the log
+	 * @return false if it isn't a whole entry, the end of the log
+	 */
+	private boolean addScannedEntry(ByteBuffer entries, long position, CRC32 crc){
+		int start = entries.position();
+		byte type = entries.get(start + 4);
+		long timeMillis = entries.getLong(start + TIME_OFFSET);
+		if(timeMillis <= 0 || (type != DELETED && (type < 1 || type > TYPES.length))){
+			// never written
+			return false;
+		}
+		crc.reset();
+		crc.update(entries.array(), entries.arrayOffset() + start, CRC_OFFSET);
+		if(entries.getInt(start + CRC_OFFSET) != (int) crc.getValue()){
+			// written only in part
+			return false;
+		}
+		int accountId = entries.getInt(start);
+		if(type == DELETED){
+			entriesById.remove(accountId);
+		} else {
+			Entries accountEntries = entriesById.get(accountId);
+			if(accountEntries == null){
+				accountEntries = new Entries(this);
+				entriesById.put(accountId, accountEntries);
+			}
+			accountEntries.added(position, timeMillis);
+		}
+		openedTimeMillis = Math.max(openedTimeMillis, timeMillis);
+		entries.position(start + ENTRY_SIZE);
+		return true;
+	}
+
+	private static boolean isZero(ByteBuffer entries){
+		for(int i = entries.position(); i < entries.position() + ENTRY_SIZE; i++){
+			if(entries.get(i) != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes where the entries of every account are, next to a temporary file that then replaces the
+	 * index file. Called when no entries are put any more
+	 * @param entryCount entries in the log
+	 */
+	private void writeIndex(long entryCount) throws IOException {
+		File indexFile = new File(ledgerFolder, INDEX_FILE_NAME);
+		File tempFile = new File(ledgerFolder, INDEX_FILE_NAME + AccountFileStorage.TEMP_FILE_SUFFIX);
+		long newestTimeMillis = openedTimeMillis;
+		for(Entries entries : entriesById.values()){
+			newestTimeMillis = Math.max(newestTimeMillis, entries.newestTimeMillis);
+		}
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(entryCount);
+			out.writeLong(newestTimeMillis);
+			out.writeInt(entriesById.size());
+			for(Map.Entry<Integer, Entries> account : entriesById.entrySet()){
+				Entries entries = account.getValue();
+				int checkpointCount = (int) ((entries.count - 1) / CHECKPOINT_INTERVAL);
+				out.writeInt(account.getKey());
+				out.writeLong(entries.count);
+				out.writeLong(entries.newest);
+				out.writeInt(checkpointCount);
+				for(int i = 0; i < checkpointCount; i++){
+					out.writeLong(entries.checkpoints[i]);
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		// else a crash could lose the rename, and the next start would read an older index
+		AccountFileStorage.syncFolder(ledgerFolder);
+	}
+
+	/**
+	 * Reads the index file written when the ledger was last closed, if the log still has every entry it covers
+	 * @return number of entries the index covers, 0 if there is no index
+	 */
+	private long readIndex(){
+		File indexFile = new File(ledgerFolder, INDEX_FILE_NAME);
+		if(!indexFile.exists()){
+			return 0;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))){
+			if(in.readInt() != INDEX_VERSION){
+				return 0;
+			}
+			long indexedEntries = in.readLong();
+			// the segment with the last entry the index covers must have all of it
+			if(indexedEntries > 0 && segmentFile((indexedEntries - 1) / ENTRIES_PER_SEGMENT).length()
+					< ((indexedEntries - 1) % ENTRIES_PER_SEGMENT + 1) * ENTRY_SIZE){
+				System.out.println("The ledger index covers entries the log doesn't have, the whole log is read");
+				return 0;
+			}
+			openedTimeMillis = in.readLong();
+			int accountCount = in.readInt();
+			for(int i = 0; i < accountCount; i++){
+				Entries entries = new Entries(this);
+				int accountId = in.readInt();
+				entries.count = in.readLong();
+				entries.newest = in.readLong();
+				int checkpointCount = in.readInt();
+				if(checkpointCount > 0){
+					entries.checkpoints = new long[checkpointCount];
+					for(int j = 0; j < checkpointCount; j++){
+						entries.checkpoints[j] = in.readLong();
+					}
+				}
+				entriesById.put(accountId, entries);
+			}
+			return indexedEntries;
+		} catch (IOException e) {
+			e.printStackTrace();
+			entriesById.clear();
+			openedTimeMillis = 0;
+			return 0;
+		}
+	}
+
+	private File segmentFile(long number){
+		return new File(ledgerFolder, String.format("%06d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Opens a segment file, counted in the metrics as an open file until it's closed
+	 */
+	private FileChannel openSegment(long number, StandardOpenOption... options) throws IOException {
+		long openStart = Metrics.start();
+		FileChannel channel = FileChannel.open(segmentFile(number).toPath(), options);
+		Metrics.fileOpened(openStart);
+		return channel;
+	}
+
+	/**
+	 * Where the entries of one account are in the log. Changed while holding the lock of the account,
+	 * readers take it and copy what they need
+	 */
+	static class Entries {
+		final AccountLedger ledger;
+		long count; // entries of the account
+		long newest = -1; // position in the log of the newest entry, -1 if none
+		long[] checkpoints; // position of entry (i + 1) * CHECKPOINT_INTERVAL at i, null until there is one
+		long newestTimeMillis; // time of the newest entry, the next one is never older
+
+		Entries(AccountLedger ledger){
+			this.ledger = ledger;
+			this.newestTimeMillis = ledger.openedTimeMillis;
+		}
+
+		/**
+		 * @param position in the log of a new entry of the account
+		 * @param timeMillis of the entry
+		 */
+		void added(long position, long timeMillis){
+			if(count > 0 && count % CHECKPOINT_INTERVAL == 0){
+				int index = (int) (count / CHECKPOINT_INTERVAL) - 1;
+				if(checkpoints == null || index == checkpoints.length){
+					// positions already in it never change, a reader can go on with the old array
+					checkpoints = checkpoints == null ? new long[4] : Arrays.copyOf(checkpoints, Math.max(4, checkpoints.length * 2));
+				}
+				checkpoints[index] = position;
+			}
+			newest = position;
+			newestTimeMillis = timeMillis;
+			count++;
+		}
+	}
+
+	/**
+	 * The slot and the buffers a thread puts its entries with, so an append allocates nothing
+	 */
+	private static class Appender {
+		final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE); // the entry is made here, then copied to the segment
+		final CRC32 crc = new CRC32();
+		int slot = (int) Thread.currentThread().getId() & (SLOTS - 1); // tried first the next time
+	}
+
+	/**
+	 * Mapped segments, one after the other from the segment number first
+	 */
+	private static class Segments {
+		final long first;
+		final MappedByteBuffer[] buffers;
+
+		Segments(long first, MappedByteBuffer[] buffers){
+			this.first = first;
+			this.buffers = buffers;
+		}
+	}
+}
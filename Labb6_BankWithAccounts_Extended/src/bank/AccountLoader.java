@@ -0,0 +1,300 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads all account files in a folder at startup.
+ * 
+ * Every file is opened once and only its first line (balance, owner, account name) is read, which
+ * gives a light Account (a stub). The transaction history is read later, the first time it's needed.
+ * The files are split into chunks that are read and parsed on a pool of threads, after that the
+ * Account objects are created in folder order. The id of an account is the N of its file name aN.txt,
+ * a file with another name gets a new id.
+ * 
+ * When a snapshot is given, only the files that aren't in it (or changed after it) are opened. The
+ * folder is still listed, to find accounts that were deleted or added after the snapshot.
+ * @author Erik
+ *
+ */
+public class AccountLoader {
+	
+	// number of files each loader task reads and parses
+	private static final int FILES_PER_TASK = 256;
+	// bytes read at a time while looking for the end of the first line
+	private static final int FIRST_LINE_READ_SIZE = 256;
+	
+	private File accountFolder;
+	private int loaderThreads;
+	private AccountIdAllocator ids; // for files that don't have an id in their name
+	
+	/**
+	 * @param accountFolder
+	 * @param loaderThreads
+	 * @param ids gives out ids to files named other than aN.txt, and learns the ids that are in use
+	 */
+	AccountLoader(File accountFolder, int loaderThreads, AccountIdAllocator ids){
+		if(loaderThreads < 1){
+			throw new IllegalArgumentException("Need at least one loader thread, got " + loaderThreads);
+		}
+		this.accountFolder = accountFolder;
+		this.loaderThreads = loaderThreads;
+		this.ids = ids;
+	}
+	
+	/**
+	 * Reads and parses every file in the account folder
+	 * @return the loaded accounts, in the order the files were listed
+	 */
+	public List<Account> loadAccounts(){
+		return loadAccounts(null);
+	}
+	
+	/**
+	 * Loads the accounts of the account folder, taking the ones that are in the snapshot from it
+	 * @param snapshot accounts by file name that don't need their file read, null to read every file
+	 * @return the loaded accounts, in the order the files were listed
+	 */
+	public List<Account> loadAccounts(Map<String, AccountSnapshot.Entry> snapshot){
+		long startTime = System.nanoTime();
+		List<String> accountFiles = listAccountFiles(snapshot);
+		
+		List<Account> loadedAccounts = new ArrayList<Account>(accountFiles.size());
+		ExecutorService loaderPool = Executors.newFixedThreadPool(loaderThreads);
+		try {
+			// fan out: every task reads and parses its own chunk of files
+			List<Future<ParsedAccount[]>> chunks = new ArrayList<Future<ParsedAccount[]>>();
+			for(int start = 0; start < accountFiles.size(); start += FILES_PER_TASK){
+				final List<String> chunk = accountFiles.subList(start, Math.min(start + FILES_PER_TASK, accountFiles.size()));
+				chunks.add(loaderPool.submit(() -> parseChunk(chunk, snapshot)));
+			}
+			List<ParsedAccount[]> parsedChunks = new ArrayList<ParsedAccount[]>(chunks.size());
+			int highestId = 0;
+			for(Future<ParsedAccount[]> chunk : chunks){
+				ParsedAccount[] parsedChunk = chunk.get();
+				parsedChunks.add(parsedChunk);
+				for(ParsedAccount parsed : parsedChunk){
+					if(parsed != null){
+						highestId = Math.max(highestId, parsed.accountId);
+					}
+				}
+			}
+			// the ids in the file names first, so a new id can't be one of them
+			ids.idsUsedUpTo(highestId);
+			for(ParsedAccount[] parsedChunk : parsedChunks){
+				for(ParsedAccount parsed : parsedChunk){
+					if(parsed == null){
+						continue;
+					}
+					int accountId = parsed.accountId > 0 ? parsed.accountId : ids.nextId();
+					Account account;
+					if(parsed.transactionHistory != null){
+						account = new Account(accountId, parsed.file, parsed.owner, parsed.accountName, parsed.balance, parsed.transactionHistory);
+					} else {
+						account = new Account(accountId, parsed.file, parsed.owner, parsed.accountName, parsed.balance);
+					}
+					account.setInterestPeriod(parsed.interestPeriod);
+					account.setShardTransfer(parsed.shardTransfer);
+					account.setLocalTransfer(parsed.localTransfer);
+					loadedAccounts.add(account);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading accounts", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Loading accounts failed", e.getCause());
+		} finally {
+			loaderPool.shutdown();
+		}
+		
+		int readFiles = accountFiles.size();
+		if(snapshot != null){
+			for(String accountFile : accountFiles){
+				if(snapshot.containsKey(accountFile)){
+					readFiles--;
+				}
+			}
+		}
+		printLoadTime(readFiles, loadedAccounts.size(), System.nanoTime() - startTime);
+		return loadedAccounts;
+	}
+	
+	/**
+	 * Lists the regular files of the account folder. Every file is assumed to be an account file,
+	 * except temporary files left over from a save, which are deleted. Names that are in the snapshot
+	 * are known to be account files, so only the other names are checked
+	 * @param snapshot accounts by file name, or null
+	 * @return names of the account files
+	 */
+	private List<String> listAccountFiles(Map<String, AccountSnapshot.Entry> snapshot){
+		String[] fileNames = accountFolder.list();
+		if(fileNames == null){
+			System.out.println("Could not list the account folder " + accountFolder.getPath());
+			return new ArrayList<String>();
+		}
+		List<String> accountFiles = new ArrayList<String>(fileNames.length);
+		for(String fileName : fileNames){
+			if(snapshot != null && snapshot.containsKey(fileName)){
+				accountFiles.add(fileName);
+				continue;
+			}
+			File file = new File(accountFolder, fileName);
+			if(!file.isFile()){
+				continue;
+			}
+			if(fileName.endsWith(AccountFileStorage.TEMP_FILE_SUFFIX)){
+				// half written when the program stopped, the account file itself is still whole
+				if(!file.delete()){
+					System.out.println("Could not delete the temporary file " + file.getPath());
+				}
+				continue;
+			}
+			accountFiles.add(fileName);
+		}
+		return accountFiles;
+	}
+	
+	private ParsedAccount[] parseChunk(List<String> chunk, Map<String, AccountSnapshot.Entry> snapshot){
+		ParsedAccount[] parsedAccounts = new ParsedAccount[chunk.size()];
+		for(int i = 0; i < parsedAccounts.length; i++){
+			File accountFile = new File(accountFolder, chunk.get(i));
+			AccountSnapshot.Entry entry = snapshot != null ? snapshot.get(chunk.get(i)) : null;
+			parsedAccounts[i] = entry != null ? fromSnapshot(accountFile, entry) : parseAccountFile(accountFile.toPath());
+		}
+		return parsedAccounts;
+	}
+	
+	private static ParsedAccount fromSnapshot(File accountFile, AccountSnapshot.Entry entry){
+		ParsedAccount parsed = new ParsedAccount();
+		parsed.file = accountFile;
+		parsed.accountId = entry.accountId;
+		parsed.balance = entry.balance;
+		parsed.owner = entry.owner;
+		parsed.accountName = entry.accountName;
+		parsed.transactionHistory = entry.transactionHistory;
+		parsed.interestPeriod = entry.interestPeriod;
+		parsed.shardTransfer = entry.shardTransfer;
+		parsed.localTransfer = entry.localTransfer;
+		return parsed;
+	}
+	
+	/**
+	 * Reads the first line of one account file and parses it
+	 * @param accountFile
+	 * @return the parsed values, or null if the file couldn't be read or isn't an account file
+	 */
+	private ParsedAccount parseAccountFile(Path accountFile){
+		try {
+			// the first line contains balance, ownerName, accountName and, if interest was ever paid, the month it was last paid for,
+			// the last transfer with another shard if there was one, and the last transfer inside the storage
+			String[] accountValues = readFirstLine(accountFile).split(",");
+			if(accountValues.length < 3){
+				System.out.println("Skipping '" + accountFile + "', it doesn't start with balance, owner and account name");
+				return null;
+			}
+			ParsedAccount parsed = new ParsedAccount();
+			parsed.file = accountFile.toFile();
+			parsed.accountId = AccountIdAllocator.idFromFileName(accountFile.getFileName().toString());
+			parsed.balance = Money.parseCents(accountValues[0]);
+			parsed.owner = accountValues[1];
+			parsed.accountName = accountValues[2];
+			if(accountValues.length > 3 && !accountValues[3].isEmpty()){
+				parsed.interestPeriod = InterestJob.parsePeriod(accountValues[3]);
+			}
+			if(accountValues.length > 4 && !accountValues[4].trim().isEmpty()){
+				parsed.shardTransfer = Long.parseLong(accountValues[4].trim());
+			}
+			if(accountValues.length > 5){
+				parsed.localTransfer = Long.parseLong(accountValues[5].trim());
+			}
+			return parsed;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			System.out.println("Skipping '" + accountFile + "', it contains a value that isn't a number: " + e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads from the start of a file until the first line break, the file is closed right after
+	 * @param file
+	 * @return the first line, without the line break
+	 * @throws IOException
+	 */
+	private static String readFirstLine(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(FIRST_LINE_READ_SIZE);
+		long openStart = Metrics.start();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		Metrics.fileOpened(openStart);
+		try {
+			int searchFrom = 0;
+			while(channel.read(buffer) > 0){
+				for(int i = searchFrom; i < buffer.position(); i++){
+					byte b = buffer.get(i);
+					if(b == '\n' || b == '\r'){
+						return decode(buffer, i);
+					}
+				}
+				searchFrom = buffer.position();
+				if(!buffer.hasRemaining()){
+					// a long line, make room for more
+					ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+					buffer.flip();
+					bigger.put(buffer);
+					buffer = bigger;
+				}
+			}
+		} finally {
+			Metrics.closeFile(channel);
+		}
+		// the whole file is one line
+		return decode(buffer, buffer.position());
+	}
+	
+	private static String decode(ByteBuffer buffer, int length){
+		// same charset as the FileWriter the account was saved with
+		return new String(buffer.array(), 0, length, Charset.defaultCharset());
+	}
+	
+	private void printLoadTime(int numberOfFiles, int numberOfAccounts, long elapsedNanos){
+		double elapsedSeconds = elapsedNanos / 1_000_000_000.0;
+		double filesPerSecond = elapsedSeconds > 0 ? numberOfFiles / elapsedSeconds : 0;
+		System.out.println(String.format(Locale.US, 
+							"Loaded %d accounts in %.1f ms, read %d account files (%.0f files/second, %d loader threads)", 
+							numberOfAccounts,
+							elapsedNanos / 1_000_000.0,
+							numberOfFiles,
+							filesPerSecond,
+							loaderThreads));
+	}
+	
+	/**
+	 * Values parsed from an account file, before it's turned into an Account
+	 */
+	private static class ParsedAccount {
+		File file;
+		int accountId; // from the file name, -1 if it doesn't have one
+		String owner;
+		String accountName;
+		long balance; // in cents
+		long[] transactionHistory; // only known for accounts from a snapshot, null if it's read later
+		int interestPeriod; // the last month interest was paid for, 0 if never
+		long shardTransfer; // the last transfer with another shard that changed it, 0 if none
+		long localTransfer; // the last transfer inside the storage that changed it, 0 if none
+	}
+}
@@ -1,320 +1,1138 @@
-package bank;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-
-public class AccountManager {
-	
-	/*
-	 * manage / create / edit / delete Accounts
-	 * 
-	 * methods like getAllAccounts, and getAccount(int id)
-	 * 
-	 */
-	
-	private File accountFolder;
-	private Account[] accounts;
-	private Account currentAccount; // the account we're dealing with right now
-	
-	
-	
-	AccountManager(File accountFolder){
-		this.accountFolder = accountFolder;
-		
-		setupFolder();
-		loadExistingAccounts();
-	}
-	
-	public Account getCurrentAccount(){
-		return currentAccount;
-	}
-	
-	
-	/**
-	 * Returns all the accounts
-	 * @return array with all accounts
-	 */
-	public Account[] getAllAccounts(){
-		return accounts;
-	}
-	
-	/**
-	 * Deposit an amount to the current account
-	 * @param amountToDeposit
-	 * @return
-	 */
-	public boolean deposit(double amountToDeposit){
-		if(amountToDeposit >= 0){
-			double oldBalance = currentAccount.getBalance();
-			currentAccount.setBalance(oldBalance + amountToDeposit);
-			System.out.println("Deposit OK. Current balance is " + currentAccount.getFormattedBalance());
-			return true;
-		} else {
-			System.out.println("You tried to deposit a negative value.");
-			return false;
-		}
-	}
-	
-	/**
-	 * Tries to withdraw an amount from the current account
-	 * @param amountToWithdraw
-	 * @return false if withdraw failed, else true
-	 */
-	public boolean withdraw(double amountToWithdraw){
-		double currentBalance = currentAccount.getBalance();
-		if(currentBalance >= amountToWithdraw){
-			currentAccount.setBalance(currentBalance - amountToWithdraw); 
-			System.out.println("Withdraw OK. Current balance is " + currentAccount.getFormattedBalance());
-			return true;
-		} else {
-			System.out.println("Sorry, you don't have that kind of money.");
-			return false;
-		}
-	}
-	
-	/**
-	 * Does this account manager have an active account?
-	 * @return false if currentAccount == null, else true.
-	 */
-	private boolean currentAccountIsSet(){
-		return currentAccount != null;
-	}
-	
-	
-	/**
-	 * Creates account from provided account info
-	 * @param startBalance balance that new account should have
-	 * @param accountOwnerName
-	 * @param accountName
-	 */
-	public void createNewAccount(double startBalance, String accountOwnerName, String accountName){
-		// the name of the file should be aN where N is the same number as account id
-		String fileName = "a" + (Account.ID_COUNTER + 1);
-		File accountFile = new File(accountFolder.getPath() + "//" + fileName + ".txt");
-		
-		Account newAccount = new Account(accountFile, accountOwnerName, accountName, startBalance);
-		addToAccountArray(newAccount);
-		// set this account as the current
-		setCurrentAccount(newAccount);
-		
-	}
-	
-	/**
-	 * Updates the list of accounts to include a newly created account
-	 * @param accountToAdd
-	 */
-	private void addToAccountArray(Account accountToAdd){
-		Account[] updatedAccountArray = new Account[accounts.length + 1];
-		// copy every one of the previous ones
-		for(int i = 0; i < accounts.length; i++){
-			updatedAccountArray[i] = accounts[i];
-		}
-		// there is empty one slot at the end, left in the new array
-		updatedAccountArray[updatedAccountArray.length -1] = accountToAdd;
-		
-		// Replace old with new
-		accounts = updatedAccountArray;
-	}
-	
-	/**
-	 * Removes an Account from the account array.
-	 * @param accountToRemove
-	 */
-	private void removeFromAccountArray(Account accountToRemove){
-		Account[] updatedAccountArray = new Account[accounts.length - 1];
-		// add every one from the old list, except the one we're supposed to remove
-		int newIndex = 0;
-		for(int i = 0; i < accounts.length; i++){
-			Account ac = accounts[i];
-			// most should be copied
-			if(!ac.equals(accountToRemove)){
-				updatedAccountArray[newIndex] = ac;
-				newIndex++;
-			} else {
-				// skip the account. no increase in newIndex this time
-				continue;
-			}
-		}
-		// replace old with new
-		accounts = updatedAccountArray;
-	}
-	
-	/**
-	 * Makes sure the account folder exists, else creates it
-	 */
-	private void setupFolder() {
-		
-		if(!accountFolder.exists()){
-			System.out.println("The provided account folder didn't exist. Trying to create it..");
-			boolean wasCreated = accountFolder.mkdirs();
-			if(wasCreated){
-				System.out.println("Account folder was created!");
-			} else {
-				System.out.println("Something whent wrong. Folder not created. Program abort!");
-				System.exit(0);
-			}
-		}
-	}
-	
-	/**
-	 * Loads (creates) all the accounts in the specified folder, saves them in array
-	 */
-	private void loadExistingAccounts() {
-		File[] filesInFolder = accountFolder.listFiles();
-		
-		// how many of the files are actual files (not directories)
-		// we assume every file is a 
-		int numberOfAccounts = 0;
-		for(File file : filesInFolder){
-			if(file.isFile()){
-				numberOfAccounts++;
-			}
-		}
-		
-		accounts = new Account[numberOfAccounts];
-		// now that the know the size of the array we can populate it
-		int index = 0;
-		for(File accountFile : filesInFolder){
-			if(accountFile.isFile()){
-				accounts[index] = createAccount(accountFile);
-				index++;
-			}
-		}	
-		
-	}
-	
-	/**
-	 * Takes an existing file for a account and creates an Account from it
-	 * @param accountFile file containing account info
-	 * @return an Account object
-	 */
-	private Account createAccount(File accountFile){
-		// Read the basic information from the file first.
-		// the first line of the file contains balance, ownerName, accountName
-		// separated by a comma
-		String firstLineOfFile = getFirstLineOfAccountFile(accountFile);
-		String[] accountValues  = firstLineOfFile.split(",");
-		double balance = Double.valueOf(accountValues[0]);
-		String owerName = accountValues[1];
-		String accountName = accountValues[2];
-		
-		return new Account(accountFile, owerName, accountName, balance); 
-	}
-	
-	/**
-	 *  Reads first line from accountFile - containing balance, ownerName, accountName
-	 * @param accountFile
-	 * @return first line of text from file
-	 */
-	private String getFirstLineOfAccountFile(File accountFile){
-		String firstLine = "";
-		try {
-			FileReader reader = new FileReader(accountFile);
-			BufferedReader bufferedReader = new BufferedReader(reader);
-			firstLine = bufferedReader.readLine();
-			bufferedReader.close();
-			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		return firstLine;	
-	}
-	
-	/**
-	 * Returns account with matching account name, or null if no match
-	 * @param accountName
-	 * @return account with matching account name, or null if no match
-	 */
-	public Account getAccountByAccountName(String accountName){
-		for(Account a : accounts){
-			if(a.getAccountName().equalsIgnoreCase(accountName)){
-				return a;
-			}
-		}
-		// if no match is found: return null
-		return null;
-	}
-	
-	/**
-	 * Changes the current account - also saves changes to the previously active account
-	 * @param newCurrentAccount
-	 */
-	public void setCurrentAccount(Account newCurrentAccount){
-		// before we switch account, we want to save the changes made to the old one
-		// TODO: see why first account is not saved
-		System.out.println("Setting current account to account : " + newCurrentAccount.getAccountID());
-		
-		if(currentAccountIsSet()){
-			saveChangesToCurrentAccount();			
-		} else {
-			System.out.println("No current account is set, so we won't save any changes there this time.");
-		}
-		
-		currentAccount = newCurrentAccount;
-		System.out.println("Current account is: " + currentAccount);
-	}
-	
-	/**
-	 * 
-	 * @param accountToDelete
-	 */
-	public void deleteAccount(Account accountToDelete){
-		// close resources, then delete the actual file
-		accountToDelete.closeResources();
-		boolean deleted = accountToDelete.getAccountFile().delete();
-		System.out.println("Physical file deleted : " + deleted);
-		// destroy all references:
-		// remove from accounts array
-		removeFromAccountArray(accountToDelete);
-		if(currentAccountIsSet()){
-			if(currentAccount.equals(accountToDelete)){
-				// remove from currentAccount
-				currentAccount = null;
-			}
-		}
-	}
-	
-	/**
-	 * Saves changes to latest current account, closes all open resources
-	 */
-	public void closeAccountManager(){
-		if(currentAccountIsSet()){
-			saveChangesToCurrentAccount();
-		}
-		closeAllAccountResources();
-	}
-	
-	/**
-	 * Saves the changes of the current account - is run each time setCurrentAccount() is used.
-	 */
-	private void saveChangesToCurrentAccount(){
-		//TODO: figure out why all changes saves to the last file only
-		System.out.println("Saving changes to account: " + currentAccount.getAccountID());
-		// TODO: see if setupWriter fits better here.. see effect of also closing the resources here
-		// Figure out if it's the setup or the closing that solves the problem
-		currentAccount.setupWriter();
-		currentAccount.saveBalanceOwnerAndAccName();
-		currentAccount.saveTransactionsHistory();
-		currentAccount.closeResources();
-	}
-	
-	/**
-	 * Go through all accounts and close readers/writers - should be done as late as possible (on bank exit?)
-	 */
-	private void closeAllAccountResources(){
-		for(Account acc : accounts){
-//			acc.saveBalanceOwnerAndAccName();
-//			acc.saveTransactionsHistory();
-			System.out.println("Closing account: " + acc.getAccountID());
-			acc.closeResources();
-		}
-	}
-	
-	
-}
+package bank;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class AccountManager implements AccountService {
+	
+	/*
+	 * manage / create / edit / delete Accounts
+	 * 
+	 * methods like getAllAccounts, and getAccount(int id)
+	 * 
+	 */
+	
+	// number of transfers in a batch that are done under one set of locks
+	private static final int TRANSFERS_PER_LOCK_GROUP = 64;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 5000;
+	public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 5 * 60 * 1000;
+	
+	private File accountFolder;
+	private AccountStorage storage; // where the accounts are saved between runs
+	private AccountStore accounts;
+	private Account currentAccount; // the account we're dealing with right now
+	private GroupCommitter committer; // makes changes durable in the background, null if they're only saved when the current account changes
+	private Set<Account> changedAccounts = ConcurrentHashMap.newKeySet(); // changed since the last saveAllAccounts()
+	private ScheduledExecutorService checkpoints; // runs saveAllAccounts() and snapshots now and then, null if not started
+	
+	// lookup indexes, kept up to date every time an account is added or removed.
+	// The name and owner indexes (and the account store) are only used while holding the lock of this
+	// account manager, the id index can be read without it so deposit/withdraw by id never wait for it
+	private NameIndex accountsByName;
+	private NameIndex accountsByOwner;
+	private AccountIdIndex accountsById;
+	private AccountLedger ledger; // every change of every balance
+	private AccountIdAllocator ids; // ids of new accounts
+	private BankTotals totals; // sums kept up to date on every change
+	private volatile InterestJob interestJob; // the job paying interest right now, null if none
+	private Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>(); // registered in Metrics, removed when closed so they don't keep the accounts alive
+	
+	
+	
+	AccountManager(File accountFolder){
+		this(accountFolder, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param accountFolder folder with one file per account
+	 * @param loaderThreads number of threads that read and parse the account files at startup
+	 */
+	AccountManager(File accountFolder, int loaderThreads){
+		this(accountFolder, new AccountFileStorage(accountFolder, loaderThreads));
+	}
+	
+	/**
+	 * @param accountFolder folder where the accounts are kept
+	 * @param storage decides how the accounts are saved in the account folder
+	 */
+	AccountManager(File accountFolder, AccountStorage storage){
+		this(accountFolder, storage, null, null, null);
+	}
+	
+	/**
+	 * Every deposit, withdraw and transfer is made durable by a GroupCommitter, many changes with one sync
+	 * @param accountFolder folder where the accounts are kept
+	 * @param storage decides how the accounts are saved in the account folder
+	 * @param commitBatchSize the largest number of changes that are synced together
+	 * @param commitIntervalMillis the longest time a change waits before it's synced
+	 */
+	AccountManager(File accountFolder, AccountStorage storage, int commitBatchSize, long commitIntervalMillis){
+		this(accountFolder, storage, null, null, new GroupCommitter(storage, commitBatchSize, commitIntervalMillis));
+	}
+	
+	/**
+	 * Also used for the shards of a ShardedAccountManager, which share the ids and the totals so the ids
+	 * are unique and the totals are those of the whole bank
+	 * @param accountFolder folder where the accounts are kept
+	 * @param storage decides how the accounts are saved in the account folder
+	 * @param ids hands out the ids of new accounts, null for ids of this account folder
+	 * @param totals the sums the accounts are counted in, null for sums of these accounts only
+	 * @param committer makes the changes durable, null if they're only saved at the checkpoints
+	 */
+	AccountManager(File accountFolder, AccountStorage storage, AccountIdAllocator ids, BankTotals totals, GroupCommitter committer){
+		this.accountFolder = accountFolder;
+		this.storage = storage;
+		this.committer = committer;
+		this.ledger = new AccountLedger(new File(accountFolder, AccountLedger.FOLDER_NAME));
+		if(committer != null){
+			committer.setLedger(ledger);
+		}
+		
+		setupFolder();
+		this.ids = ids != null ? ids : new AccountIdAllocator(accountFolder);
+		this.totals = totals != null ? totals : new BankTotals(BankTotals.DEFAULT_LOW_BALANCE, this::copyOfAllAccounts);
+		loadExistingAccounts();
+		gauges.put("accounts", () -> accounts.size());
+		gauges.put("accounts.loaded", this::getLoadedAccountCount);
+		gauges.put("accounts.low.balance", this.totals::getLowBalanceCount);
+		gauges.put("balance.total", this.totals::getTotalBalance);
+		gauges.forEach(Metrics::registerGauge);
+	}
+	
+	public Account getCurrentAccount(){
+		return currentAccount;
+	}
+	
+	
+	/**
+	 * Returns all the accounts. Their balances change while they're read, use openBalanceSnapshot() for
+	 * balances that belong together
+	 * @return read only view of all accounts (not a copy, so it changes when accounts are created or deleted)
+	 */
+	public List<Account> getAllAccounts(){
+		return accounts.asList();
+	}
+	
+	/**
+	 * @return a copy of the list of all accounts, that doesn't change when accounts are created or deleted
+	 */
+	List<Account> copyOfAllAccounts(){
+		synchronized(this){
+			return new ArrayList<Account>(accounts.asList());
+		}
+	}
+	
+	/**
+	 * @return the total balance, number of accounts and balance of every owner, kept up to date on every change
+	 */
+	public BankTotals getTotals(){
+		return totals;
+	}
+	
+	/**
+	 * Opens a snapshot of all balances, for a report that mustn't see half of a change while the accounts
+	 * go on changing. Cheap to open, nothing is copied, see BalanceVersions. Close it when done
+	 * @return the balances of all accounts at this instant
+	 */
+	public BalanceSnapshot openBalanceSnapshot(){
+		return totals.getVersions().openSnapshot();
+	}
+	
+	/**
+	 * @param places how many accounts, at most BankTotals.TOP_PLACES
+	 * @return the accounts with the biggest balances, biggest first
+	 */
+	public List<Account> getTopBalances(int places){
+		return totals.getTopBalances(places);
+	}
+	
+	/**
+	 * Counts the totals again from all accounts and prints where they differ from the ones kept up to date
+	 * @return true if they are the same
+	 */
+	public boolean reconcileTotals(){
+		long start = System.nanoTime();
+		List<String> differences = totals.reconcile(copyOfAllAccounts());
+		for(String difference : differences){
+			System.out.println("Totals differ: " + difference);
+		}
+		System.out.println(String.format("Reconciled the totals in %.1f ms, %d differences", (System.nanoTime() - start) / 1e6, differences.size()));
+		return differences.isEmpty();
+	}
+	
+	/**
+	 * @return number of accounts the storage has in memory, the rest are read when they're used
+	 */
+	long getLoadedAccountCount(){
+		return storage.getLoadedAccountCount(accounts.size());
+	}
+	
+	/**
+	 * @return the ledger with the full history of every account
+	 */
+	public AccountLedger getLedger(){
+		return ledger;
+	}
+	
+	@Override
+	public AccountLedger getLedger(Account account){
+		return ledger;
+	}
+	
+	/**
+	 * @return the group committer, for its statistics. null if changes aren't group committed
+	 */
+	public GroupCommitter getGroupCommitter(){
+		return committer;
+	}
+	
+	/**
+	 * Deposit an amount to the current account
+	 * @param amountToDeposit
+	 * @return
+	 */
+	public boolean deposit(double amountToDeposit){
+		if(deposit(currentAccount.getAccountID(), Money.toCents(amountToDeposit), true)){
+			System.out.println("Deposit OK. Current balance is " + currentAccount.getFormattedBalance());
+			return true;
+		} else {
+			System.out.println("You tried to deposit a negative value.");
+			return false;
+		}
+	}
+	
+	/**
+	 * Tries to withdraw an amount from the current account
+	 * @param amountToWithdraw
+	 * @return false if withdraw failed, else true
+	 */
+	public boolean withdraw(double amountToWithdraw){
+		if(withdraw(currentAccount.getAccountID(), Money.toCents(amountToWithdraw), true)){
+			System.out.println("Withdraw OK. Current balance is " + currentAccount.getFormattedBalance());
+			return true;
+		} else {
+			System.out.println("Sorry, you don't have that kind of money.");
+			return false;
+		}
+	}
+	
+	/**
+	 * Deposit an amount to an account. Safe to call from many threads at once, only the account
+	 * itself is locked. Doesn't print anything
+	 * @param accountId
+	 * @param amountToDeposit in cents
+	 * @return false if the amount is negative or there is no account with that id, else true
+	 */
+	public boolean deposit(int accountId, long amountToDeposit){
+		return deposit(accountId, amountToDeposit, false);
+	}
+	
+	/**
+	 * Deposit an amount to an account, like deposit(accountId, amountToDeposit)
+	 * @param accountId
+	 * @param amountToDeposit in cents
+	 * @param waitUntilDurable true to return only when the deposit is on disk, false to let it be saved in the background
+	 * @return false if the amount is negative or there is no account with that id, else true
+	 */
+	public boolean deposit(int accountId, long amountToDeposit, boolean waitUntilDurable){
+		long start = Metrics.start();
+		boolean deposited = depositToAccount(accountId, amountToDeposit, waitUntilDurable);
+		if(!deposited){
+			Metrics.DEPOSITS_REFUSED.increment();
+		}
+		Metrics.DEPOSIT.record(start);
+		return deposited;
+	}
+	
+	private boolean depositToAccount(int accountId, long amountToDeposit, boolean waitUntilDurable){
+		Account account = accountsById.get(accountId);
+		if(account == null || amountToDeposit < 0){
+			return false;
+		}
+		storage.accountUsed(account);
+		synchronized(account){
+			account.credit(amountToDeposit);
+			ledger.append(account, LedgerEntry.Type.DEPOSIT, amountToDeposit);
+			// tell the storage while still holding the lock, so it sees the changes in the same order as they were made
+			storage.balanceChanged(account, amountToDeposit);
+		}
+		commit(account, waitUntilDurable);
+		return true;
+	}
+	
+	/**
+	 * Tries to withdraw an amount from an account. Safe to call from many threads at once, only the
+	 * account itself is locked. Doesn't print anything
+	 * @param accountId
+	 * @param amountToWithdraw in cents
+	 * @return false if the amount is negative, the balance is too small or there is no account with that id, else true
+	 */
+	public boolean withdraw(int accountId, long amountToWithdraw){
+		return withdraw(accountId, amountToWithdraw, false);
+	}
+	
+	/**
+	 * Tries to withdraw an amount from an account, like withdraw(accountId, amountToWithdraw)
+	 * @param accountId
+	 * @param amountToWithdraw in cents
+	 * @param waitUntilDurable true to return only when the withdraw is on disk, false to let it be saved in the background
+	 * @return false if the amount is negative, the balance is too small or there is no account with that id, else true
+	 */
+	public boolean withdraw(int accountId, long amountToWithdraw, boolean waitUntilDurable){
+		long start = Metrics.start();
+		boolean withdrawn = withdrawFromAccount(accountId, amountToWithdraw, waitUntilDurable);
+		if(!withdrawn){
+			Metrics.WITHDRAWS_REFUSED.increment();
+		}
+		Metrics.WITHDRAW.record(start);
+		return withdrawn;
+	}
+	
+	private boolean withdrawFromAccount(int accountId, long amountToWithdraw, boolean waitUntilDurable){
+		Account account = accountsById.get(accountId);
+		if(account == null || amountToWithdraw < 0){
+			return false;
+		}
+		storage.accountUsed(account);
+		synchronized(account){
+			if(!account.debit(amountToWithdraw)){
+				return false;
+			}
+			ledger.append(account, LedgerEntry.Type.WITHDRAW, -amountToWithdraw);
+			storage.balanceChanged(account, -amountToWithdraw);
+		}
+		commit(account, waitUntilDurable);
+		return true;
+	}
+	
+	/**
+	 * Moves an amount from one account to another. Both balances and histories change together:
+	 * no other thread sees one account changed without the other.
+	 * Both accounts are locked in order of account id, so two transfers going opposite ways
+	 * between the same accounts can't deadlock. Doesn't print anything
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @return false if an account doesn't exist, it's the same account, the amount is negative 
+	 * or the balance of the from account is too small, else true
+	 */
+	public boolean transfer(int fromAccountId, int toAccountId, long amount){
+		return transfer(fromAccountId, toAccountId, amount, false);
+	}
+	
+	/**
+	 * Moves an amount from one account to another, like transfer(fromAccountId, toAccountId, amount)
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @param waitUntilDurable true to return only when the transfer is on disk, false to let it be saved in the background
+	 * @return false if the transfer was refused, else true
+	 */
+	public boolean transfer(int fromAccountId, int toAccountId, long amount, boolean waitUntilDurable){
+		Account from = accountsById.get(fromAccountId);
+		Account to = accountsById.get(toAccountId);
+		if(from == null || to == null || from == to || amount < 0){
+			return false;
+		}
+		storage.accountUsed(from);
+		storage.accountUsed(to);
+		Account first = fromAccountId < toAccountId ? from : to;
+		Account second = first == from ? to : from;
+		boolean transferred;
+		synchronized(first){
+			synchronized(second){
+				transferred = applyTransfer(from, to, amount);
+			}
+		}
+		if(transferred){
+			commit(from, to, waitUntilDurable);
+		}
+		return transferred;
+	}
+	
+	/**
+	 * Does many transfers in one call. The arrays are matched up by index, and the transfers are
+	 * done in that order, so a transfer can use money that an earlier one in the batch brought in.
+	 * 
+	 * The batch is split into groups of transfers. All accounts of a group are locked once (in order
+	 * of account id) and all its transfers are done under those locks, instead of taking two locks
+	 * per transfer. Accounts that show up in many transfers (hot accounts) are locked once per group.
+	 * The changes are saved in the background. Doesn't print anything
+	 * @param fromAccountIds
+	 * @param toAccountIds
+	 * @param amounts in cents
+	 * @return for each transfer, true if it was done, false if it was refused (see transfer())
+	 */
+	public boolean[] transferBatch(int[] fromAccountIds, int[] toAccountIds, long[] amounts){
+		if(fromAccountIds.length != toAccountIds.length || fromAccountIds.length != amounts.length){
+			throw new IllegalArgumentException("Need as many to accounts and amounts as from accounts");
+		}
+		boolean[] results = new boolean[fromAccountIds.length];
+		for(int groupStart = 0; groupStart < results.length; groupStart += TRANSFERS_PER_LOCK_GROUP){
+			int groupEnd = Math.min(groupStart + TRANSFERS_PER_LOCK_GROUP, results.length);
+			transferGroup(fromAccountIds, toAccountIds, amounts, groupStart, groupEnd, results);
+		}
+		return results;
+	}
+	
+	private void transferGroup(int[] fromAccountIds, int[] toAccountIds, long[] amounts, int groupStart, int groupEnd, boolean[] results){
+		Account[] from = new Account[groupEnd - groupStart];
+		Account[] to = new Account[from.length];
+		Map<Integer, Account> accountsToLock = new HashMap<Integer, Account>();
+		for(int i = 0; i < from.length; i++){
+			from[i] = accountsById.get(fromAccountIds[groupStart + i]);
+			to[i] = accountsById.get(toAccountIds[groupStart + i]);
+			if(from[i] != null && to[i] != null && from[i] != to[i] && amounts[groupStart + i] >= 0){
+				accountsToLock.put(from[i].getAccountID(), from[i]);
+				accountsToLock.put(to[i].getAccountID(), to[i]);
+			} else {
+				// refused, same rules as transfer()
+				from[i] = null;
+			}
+		}
+		Account[] lockOrder = accountsToLock.values().toArray(new Account[accountsToLock.size()]);
+		Arrays.sort(lockOrder, (a, b) -> Integer.compare(a.getAccountID(), b.getAccountID()));
+		for(Account account : lockOrder){
+			storage.accountUsed(account);
+		}
+		lockAllAndRun(lockOrder, 0, () -> {
+			for(int i = 0; i < from.length; i++){
+				if(from[i] != null){
+					results[groupStart + i] = applyTransfer(from[i], to[i], amounts[groupStart + i]);
+				}
+			}
+		});
+		for(Account account : lockOrder){
+			commit(account, false);
+		}
+	}
+	
+	/**
+	 * Locks the accounts one after the other (lockOrder[next] and onwards), then runs the work
+	 * while holding all the locks
+	 */
+	private static void lockAllAndRun(Account[] lockOrder, int next, Runnable work){
+		if(next == lockOrder.length){
+			work.run();
+			return;
+		}
+		synchronized(lockOrder[next]){
+			lockAllAndRun(lockOrder, next + 1, work);
+		}
+	}
+	
+	/**
+	 * Does one transfer. The caller must hold the locks of both accounts
+	 */
+	private boolean applyTransfer(Account from, Account to, long amount){
+		if(!moveMoney(from, to, amount)){
+			return false;
+		}
+		ledger.append(from, LedgerEntry.Type.TRANSFER_OUT, -amount);
+		ledger.append(to, LedgerEntry.Type.TRANSFER_IN, amount);
+		storage.transferred(from, to, amount);
+		return true;
+	}
+	
+	/**
+	 * Moves the money of a transfer as one change of the balances, so a BalanceSnapshot sees both
+	 * accounts changed or none. The caller holds the locks of both accounts
+	 * @param from
+	 * @param to
+	 * @param amount in cents
+	 * @return false if the balance of the from account is too small
+	 */
+	boolean moveMoney(Account from, Account to, long amount){
+		// read before the change gets a version, snapshots opened meanwhile wait for the change
+		from.loadTransactionHistory();
+		to.loadTransactionHistory();
+		return totals.getVersions().atOnce(() -> {
+			if(!from.debit(amount)){
+				return false;
+			}
+			to.credit(amount);
+			return true;
+		});
+	}
+	
+	/**
+	 * Tells the storage an account is about to be changed by a transfer with an account of another
+	 * account manager (another shard)
+	 * @param account an account of this account manager
+	 */
+	void accountUsed(Account account){
+		storage.accountUsed(account);
+	}
+	
+	/**
+	 * Saves the half of a transfer to an account of another account manager, after moveMoney(). The
+	 * caller holds the locks of both accounts, and commits both when it has let go of them
+	 * @param from an account of this account manager
+	 * @param amount in cents
+	 * @param transferNumber the number of the transfer in the ShardTransferLog, saved with the balance
+	 */
+	void transferredOut(Account from, long amount, long transferNumber){
+		from.setShardTransfer(transferNumber);
+		ledger.append(from, LedgerEntry.Type.TRANSFER_OUT, -amount);
+		storage.shardTransferred(from, -amount);
+	}
+	
+	/**
+	 * Saves the half of a transfer from an account of another account manager, see transferredOut()
+	 * @param to an account of this account manager
+	 * @param amount in cents
+	 * @param transferNumber the number of the transfer in the ShardTransferLog, saved with the balance
+	 */
+	void transferredIn(Account to, long amount, long transferNumber){
+		to.setShardTransfer(transferNumber);
+		ledger.append(to, LedgerEntry.Type.TRANSFER_IN, amount);
+		storage.shardTransferred(to, amount);
+	}
+	
+	/**
+	 * Makes the half of a transfer with another account manager again, if the account was saved without it
+	 * before the program stopped. Used when the accounts are opened, see ShardTransferLog
+	 * @param accountId an account of this account manager
+	 * @param amount in cents, negative for the half that takes the money. The balance may go below zero,
+	 * the money already reached the other account
+	 * @param transferNumber the number of the transfer in the ShardTransferLog
+	 * @return true if the half was made, false if the account had it already or is deleted
+	 */
+	boolean finishShardTransfer(int accountId, long amount, long transferNumber){
+		Account account = accountsById.get(accountId);
+		if(account == null){
+			return false;
+		}
+		storage.accountUsed(account);
+		synchronized(account){
+			if(account.getShardTransfer() >= transferNumber){
+				return false;
+			}
+			account.credit(amount);
+			if(amount < 0){
+				transferredOut(account, -amount, transferNumber);
+			} else {
+				transferredIn(account, amount, transferNumber);
+			}
+		}
+		markChanged(account);
+		return true;
+	}
+	
+	/**
+	 * Makes the changes of an account durable: queued with the group committer, or saved right away
+	 * if there is none and the caller waits. Must not be called while holding the lock of an account
+	 * @throws java.util.concurrent.CompletionException if waiting and the changes couldn't be saved
+	 */
+	void commit(Account account, boolean waitUntilDurable){
+		markChanged(account);
+		if(committer != null){
+			CompletableFuture<Void> durable = committer.commit(account);
+			if(waitUntilDurable){
+				durable.join();
+			}
+		} else if(waitUntilDurable){
+			ledger.flush();
+			storage.flush(Collections.singletonList(account));
+		}
+	}
+	
+	/**
+	 * @param accountId
+	 * @return completes when the changes made to the account so far are on disk. Right away if there is no such account
+	 */
+	public CompletableFuture<Void> whenDurable(int accountId){
+		Account account = accountsById.get(accountId);
+		if(account == null){
+			return CompletableFuture.completedFuture(null);
+		}
+		if(committer != null){
+			markChanged(account);
+			return committer.commit(account);
+		}
+		return CompletableFuture.runAsync(() -> commit(account, true));
+	}
+	
+	private void commit(Account from, Account to, boolean waitUntilDurable){
+		markChanged(from);
+		markChanged(to);
+		if(committer != null){
+			CompletableFuture<Void> fromDurable = committer.commit(from);
+			CompletableFuture<Void> toDurable = committer.commit(to);
+			if(waitUntilDurable){
+				fromDurable.join();
+				toDurable.join();
+			}
+		} else if(waitUntilDurable){
+			ledger.flush();
+			storage.flush(Arrays.asList(from, to));
+		}
+	}
+	
+	/**
+	 * Remembers that the account has to be saved by the next saveAllAccounts
+	 * @param account
+	 */
+	void markChanged(Account account){
+		// contains() doesn't lock, so a hot account doesn't make every change wait here
+		if(!changedAccounts.contains(account)){
+			changedAccounts.add(account);
+		}
+	}
+	
+	/**
+	 * Saves every account that has changes that aren't saved yet. Only accounts changed since the last
+	 * call are looked at, so this takes time in proportion to the number of changed accounts, not to
+	 * the number of accounts. The storage may save them in parallel
+	 * @return number of accounts saved
+	 * @throws UncheckedIOException if some of them couldn't be saved, they're saved again next time
+	 */
+	public int saveAllAccounts(){
+		List<Account> accountsToSave = new ArrayList<Account>();
+		for(Iterator<Account> changed = changedAccounts.iterator(); changed.hasNext();){
+			Account account = changed.next();
+			// removed before saving, so a change made while saving puts it back for the next time
+			changed.remove();
+			// skip accounts that were saved some other way since, and deleted accounts
+			if(account.isDirty() && account.getStoreSlot() >= 0){
+				accountsToSave.add(account);
+			}
+		}
+		if(!accountsToSave.isEmpty()){
+			try {
+				storage.flush(accountsToSave);
+			} catch (UncheckedIOException e) {
+				// the accounts that failed are still dirty, saved again next time
+				for(Account account : accountsToSave){
+					if(account.isDirty()){
+						markChanged(account);
+					}
+				}
+				throw e;
+			}
+		}
+		ledger.flush();
+		return accountsToSave.size();
+	}
+	
+	/**
+	 * Saves the accounts right away, and returns when they're on disk
+	 * @param accountsToSave
+	 */
+	void saveAccounts(Collection<Account> accountsToSave){
+		ledger.flush();
+		storage.flush(accountsToSave);
+	}
+	
+	/**
+	 * Adds a month of interest to an account, unless it was paid for that month already. The interest is
+	 * a transaction like a deposit, and the storage saves the month with the new balance. An account
+	 * without money gets no transaction, but the month is saved all the same
+	 * @param account
+	 * @param period the month, see InterestJob.periodOf
+	 * @param monthlyRate interest for the month, 0.005 for half a percent
+	 * @return the interest in cents, or -1 if the account was paid for the month already or is deleted
+	 */
+	long payInterest(Account account, int period, BigDecimal monthlyRate){
+		long interest;
+		synchronized(account){
+			if(account.getInterestPeriod() >= period || accountsById.get(account.getAccountID()) != account){
+				return -1;
+			}
+			interest = InterestJob.interestOn(account.getBalance(), monthlyRate);
+			account.setInterestPeriod(period);
+			if(interest > 0){
+				account.credit(interest);
+				ledger.append(account, LedgerEntry.Type.INTEREST, interest);
+			}
+			storage.interestPaid(account, interest);
+		}
+		markChanged(account);
+		return interest;
+	}
+	
+	/**
+	 * Pays a month of interest to all accounts, see InterestJob. Deposits and withdraws can be made while
+	 * it runs. If it was stopped or crashed before, it continues where it was
+	 * @param month
+	 * @param annualRatePercent interest per year in percent, a twelfth of it is paid
+	 * @return number of accounts that were paid
+	 */
+	public long payMonthlyInterest(YearMonth month, BigDecimal annualRatePercent){
+		InterestJob job = new InterestJob(this, accountFolder, month, annualRatePercent, Runtime.getRuntime().availableProcessors());
+		synchronized(this){
+			if(interestJob != null){
+				throw new IllegalStateException("Interest is being paid already");
+			}
+			interestJob = job;
+		}
+		try {
+			return job.run(copyOfAllAccounts());
+		} finally {
+			interestJob = null;
+		}
+	}
+	
+	/**
+	 * Starts saving the changed accounts in the background (a checkpoint), every intervalMillis
+	 * milliseconds, until the account manager is closed
+	 * @param intervalMillis
+	 */
+	public synchronized void startCheckpoints(long intervalMillis){
+		runInBackground(this::saveAllAccounts, intervalMillis);
+	}
+	
+	/**
+	 * Starts letting the storage take a snapshot of all accounts in the background, every intervalMillis
+	 * milliseconds, until the account manager is closed. Deposits and withdraws don't wait for it
+	 * @param intervalMillis
+	 */
+	public synchronized void startSnapshots(long intervalMillis){
+		runInBackground(() -> {
+			// a copy, accounts can be created and deleted while the snapshot is taken
+			storage.snapshot(copyOfAllAccounts());
+		}, intervalMillis);
+	}
+	
+	private void runInBackground(Runnable task, long intervalMillis){
+		if(checkpoints == null){
+			checkpoints = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread checkpointThread = new Thread(runnable, "checkpoint");
+				checkpointThread.setDaemon(true);
+				return checkpointThread;
+			});
+		}
+		checkpoints.scheduleWithFixedDelay(() -> {
+			try {
+				task.run();
+			} catch (RuntimeException e){
+				// keep it going
+				e.printStackTrace();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Does this account manager have an active account?
+	 * @return false if currentAccount == null, else true.
+	 */
+	private boolean currentAccountIsSet(){
+		return currentAccount != null;
+	}
+	
+	
+	/**
+	 * Creates account from provided account info
+	 * @param startBalance balance that new account should have
+	 * @param accountOwnerName
+	 * @param accountName
+	 */
+	public void createNewAccount(double startBalance, String accountOwnerName, String accountName){
+		Account newAccount = openAccount(ids.nextId(), Money.toCents(startBalance), accountOwnerName, accountName, new long[0], 0);
+		System.out.println("Accountfile of account nr " + newAccount.getAccountID() + " is :"  + newAccount.getAccountFile().getPath());
+		synchronized(this){
+			accounts.add(newAccount);
+			addToIndexes(newAccount);
+			// set this account as the current
+			setCurrentAccount(newAccount);
+		}
+	}
+	
+	/**
+	 * Creates many accounts in one go. The arrays are matched up by index, so the first account
+	 * gets startBalances[0], ownerNames[0] and accountNames[0] and so on.
+	 * Unlike createNewAccount() this doesn't change the current account.
+	 * @param startBalances balances in cents that the new accounts should have
+	 * @param accountOwnerNames
+	 * @param accountNames
+	 * @return the created accounts
+	 */
+	public Account[] createNewAccounts(long[] startBalances, String[] accountOwnerNames, String[] accountNames){
+		int[] accountIds = new int[startBalances.length];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = ids.nextId();
+		}
+		return createNewAccounts(accountIds, startBalances, accountOwnerNames, accountNames);
+	}
+	
+	/**
+	 * Creates many accounts with ids that were handed out already, like createNewAccounts(startBalances, ...).
+	 * A ShardedAccountManager takes the id first, as it decides which shard the account belongs in
+	 * @param accountIds
+	 * @param startBalances balances in cents that the new accounts should have
+	 * @param accountOwnerNames
+	 * @param accountNames
+	 * @return the created accounts
+	 */
+	Account[] createNewAccounts(int[] accountIds, long[] startBalances, String[] accountOwnerNames, String[] accountNames){
+		if(startBalances.length != accountIds.length || startBalances.length != accountOwnerNames.length || startBalances.length != accountNames.length){
+			throw new IllegalArgumentException("Need as many ids, start balances, owner names and account names");
+		}
+		Account[] newAccounts = new Account[startBalances.length];
+		for(int i = 0; i < newAccounts.length; i++){
+			newAccounts[i] = openAccount(accountIds[i], startBalances[i], accountOwnerNames[i], accountNames[i], new long[0], 0);
+		}
+		synchronized(this){
+			// grows the store once, instead of once per account
+			accounts.addAll(newAccounts);
+			for(Account newAccount : newAccounts){
+				addToIndexes(newAccount);
+			}
+		}
+		return newAccounts;
+	}
+	
+	/**
+	 * Makes a new account, and tells the ledger and the storage about it. Nothing else can find the
+	 * account yet, so this is done without the lock of the account manager and threads creating
+	 * accounts don't wait for each other's files
+	 * @param accountId a new id from the id allocator
+	 * @param startBalance in cents
+	 * @param owner
+	 * @param accountName
+	 * @param transactionHistory latest transactions in cents, newest first
+	 * @param interestPeriod the last month interest was paid for, 0 if never
+	 * @return the new account, not in the account store yet
+	 */
+	private Account openAccount(int accountId, long startBalance, String owner, String accountName, long[] transactionHistory, int interestPeriod){
+		// the name of the file is aN where N is the same number as account id
+		File accountFile = new File(accountFolder, "a" + accountId + ".txt");
+		Account newAccount = new Account(accountId, accountFile, owner, accountName, startBalance, transactionHistory);
+		newAccount.setInterestPeriod(interestPeriod);
+		ledger.append(newAccount, LedgerEntry.Type.OPENING, startBalance);
+		// stored before it can be found, so no other thread can change it before the storage knows about it
+		storage.accountCreated(newAccount);
+		return newAccount;
+	}
+	
+	/**
+	 * Writes all accounts as account files (aN.txt) to a folder, whatever storage this account manager uses
+	 * @param exportFolder
+	 */
+	public void exportAccounts(File exportFolder){
+		AccountFileStorage.exportAccounts(getAllAccounts(), exportFolder);
+	}
+	
+	/**
+	 * Adds the accounts in a folder of account files (aN.txt) to this account manager, as new accounts
+	 * @param importFolder
+	 * @return the imported accounts
+	 */
+	public List<Account> importAccounts(File importFolder){
+		List<Account> loadedAccounts = new AccountLoader(importFolder, Runtime.getRuntime().availableProcessors(), ids).loadAccounts();
+		int[] accountIds = new int[loadedAccounts.size()];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = ids.nextId();
+		}
+		return importAccounts(accountIds, loadedAccounts);
+	}
+	
+	/**
+	 * Adds loaded accounts to this account manager, as new accounts with ids that were handed out already
+	 * @param accountIds the new id of each account
+	 * @param loadedAccounts accounts loaded from another folder
+	 * @return the imported accounts
+	 */
+	List<Account> importAccounts(int[] accountIds, List<Account> loadedAccounts){
+		Account[] importedAccounts = new Account[loadedAccounts.size()];
+		for(int i = 0; i < importedAccounts.length; i++){
+			// from now on the account belongs in our own folder, with an id of our own
+			Account loadedAccount = loadedAccounts.get(i);
+			importedAccounts[i] = openAccount(accountIds[i], loadedAccount.getBalance(), loadedAccount.getOwner(), loadedAccount.getAccountName(),
+					loadedAccount.getLatestTransactions(), loadedAccount.getInterestPeriod());
+		}
+		synchronized(this){
+			accounts.addAll(importedAccounts);
+			for(Account importedAccount : importedAccounts){
+				addToIndexes(importedAccount);
+			}
+		}
+		return Arrays.asList(importedAccounts);
+	}
+	
+	/**
+	 * Adds an account to the name, owner and id indexes, and to the totals
+	 * @param accountToAdd
+	 */
+	private void addToIndexes(Account accountToAdd){
+		accountsByName.add(accountToAdd.getAccountName(), accountToAdd);
+		accountsByOwner.add(accountToAdd.getOwner(), accountToAdd);
+		totals.accountAdded(accountToAdd);
+		accountsById.put(accountToAdd);
+	}
+	
+	/**
+	 * Removes an account from the name, owner and id indexes, and from the totals
+	 * @param accountToRemove
+	 */
+	private void removeFromIndexes(Account accountToRemove){
+		accountsByName.remove(accountToRemove.getAccountName(), accountToRemove);
+		accountsByOwner.remove(accountToRemove.getOwner(), accountToRemove);
+		accountsById.remove(accountToRemove.getAccountID());
+		totals.accountRemoved(accountToRemove);
+	}
+	
+	/**
+	 * Makes sure the account folder exists, else creates it
+	 */
+	private void setupFolder() {
+		
+		if(!accountFolder.exists()){
+			System.out.println("The provided account folder didn't exist. Trying to create it..");
+			boolean wasCreated = accountFolder.mkdirs();
+			if(wasCreated){
+				System.out.println("Account folder was created!");
+			} else {
+				System.out.println("Something whent wrong. Folder not created. Program abort!");
+				System.exit(0);
+			}
+		}
+	}
+	
+	/**
+	 * Loads (creates) all the accounts from the storage, saves them in the account store
+	 */
+	private void loadExistingAccounts() {
+		List<Account> loadedAccounts = storage.loadAccounts(ids);
+		int numberOfAccounts = loadedAccounts.size();
+		
+		accounts = new AccountStore(numberOfAccounts);
+		// size the indexes up front so they don't have to rehash while loading
+		accountsByName = new NameIndex(numberOfAccounts);
+		accountsByOwner = new NameIndex(numberOfAccounts);
+		accountsById = new AccountIdIndex(numberOfAccounts);
+		int highestId = 0;
+		for(Account loadedAccount : loadedAccounts){
+			accounts.add(loadedAccount);
+			addToIndexes(loadedAccount);
+			highestId = Math.max(highestId, loadedAccount.getAccountID());
+		}
+		// the storage may be from before the ids were kept, new accounts must not get one of these
+		ids.idsUsedUpTo(highestId);
+	}
+	
+	/**
+	 * Returns account with matching account name, or null if no match
+	 * @param accountName
+	 * @return account with matching account name, or null if no match
+	 */
+	public Account getAccountByAccountName(String accountName){
+		long start = Metrics.start();
+		List<Account> matches;
+		synchronized(this){
+			matches = accountsByName.get(accountName);
+		}
+		recordLookup(start, matches == null);
+		if(matches == null){
+			// if no match is found: return null
+			return null;
+		}
+		// several accounts can share a name, the oldest one wins
+		return matches.get(0);
+	}
+	
+	/**
+	 * Returns all accounts with matching account name (ignoring case)
+	 * @param accountName
+	 * @return array with 0 or more accounts
+	 */
+	public Account[] getAccountsByAccountName(String accountName){
+		long start = Metrics.start();
+		Account[] found;
+		synchronized(this){
+			found = toArray(accountsByName.get(accountName));
+		}
+		recordLookup(start, found.length == 0);
+		return found;
+	}
+	
+	/**
+	 * Returns all accounts owned by the owner with matching name (ignoring case)
+	 * @param ownerName
+	 * @return array with 0 or more accounts
+	 */
+	public Account[] getAccountsByOwnerName(String ownerName){
+		long start = Metrics.start();
+		Account[] found;
+		synchronized(this){
+			found = toArray(accountsByOwner.get(ownerName));
+		}
+		recordLookup(start, found.length == 0);
+		return found;
+	}
+	
+	/**
+	 * Searches the account names: exact matches first, then names that start with the text, then names
+	 * with a typo or two. Ignores case
+	 * @param text
+	 * @return the results, read a page at a time
+	 */
+	public SearchResults searchAccountNames(String text){
+		return accountsByName.search(text, this);
+	}
+	
+	/**
+	 * Searches the owner names, like searchAccountNames()
+	 * @param text
+	 * @return the results, read a page at a time
+	 */
+	public SearchResults searchOwnerNames(String text){
+		return accountsByOwner.search(text, this);
+	}
+	
+	/**
+	 * Returns account with matching account id, or null if no match
+	 * @param accountID
+	 * @return account with matching account id, or null if no match
+	 */
+	public Account getAccountByAccountID(int accountID){
+		long start = Metrics.start();
+		Account account = accountsById.get(accountID);
+		recordLookup(start, account == null);
+		return account;
+	}
+	
+	private static void recordLookup(long start, boolean miss){
+		Metrics.LOOKUP.record(start);
+		if(miss){
+			Metrics.LOOKUP_MISSES.increment();
+		}
+	}
+	
+	private static Account[] toArray(List<Account> accountList){
+		if(accountList == null){
+			return new Account[0];
+		}
+		return accountList.toArray(new Account[accountList.size()]);
+	}
+	
+	/**
+	 * Changes the current account - also saves changes to the previously active account
+	 * @param newCurrentAccount
+	 */
+	public void setCurrentAccount(Account newCurrentAccount){
+		// before we switch account, we want to save the changes made to the old one
+		// TODO: see why first account is not saved
+		System.out.println("Setting current account to account : " + newCurrentAccount.getAccountID());
+		
+		if(currentAccountIsSet()){
+			saveChangesToCurrentAccount();			
+		} else {
+			System.out.println("No current account is set, so we won't save any changes there this time.");
+		}
+		
+		currentAccount = newCurrentAccount;
+		storage.accountUsed(currentAccount);
+		System.out.println("Current account is: " + currentAccount);
+	}
+	
+	/**
+	 * Deletes an account, from memory and from the storage
+	 * @param accountToDelete
+	 */
+	public synchronized void deleteAccount(Account accountToDelete){
+		// destroy all references:
+		// remove from account store
+		accounts.remove(accountToDelete);
+		removeFromIndexes(accountToDelete);
+		storage.accountDeleted(accountToDelete);
+		ledger.accountDeleted(accountToDelete);
+		if(currentAccountIsSet()){
+			if(currentAccount.equals(accountToDelete)){
+				// remove from currentAccount
+				currentAccount = null;
+			}
+		}
+	}
+	
+	/**
+	 * Saves changes to all changed accounts, closes all open resources
+	 */
+	public void closeAccountManager(){
+		InterestJob runningJob = interestJob;
+		if(runningJob != null){
+			// it continues from its progress file the next time
+			runningJob.stop();
+		}
+		synchronized(this){
+			if(checkpoints != null){
+				checkpoints.shutdown();
+				try {
+					// let a running checkpoint finish before the storage is closed
+					checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if(currentAccountIsSet()){
+			saveChangesToCurrentAccount();
+		}
+		if(committer != null){
+			// flush what is still queued before the storage is closed
+			committer.close();
+			committer.printStatistics();
+		}
+		int savedAccounts = saveAllAccounts();
+		System.out.println("Saved " + savedAccounts + " changed accounts");
+		storage.close(getAllAccounts());
+		ledger.close();
+		gauges.forEach(Metrics::unregisterGauge);
+	}
+	
+	/**
+	 * Prints the newest transactions of the current account, read from the end of its ledger
+	 * @param count the largest number of transactions to print
+	 */
+	public void printLatestTransactions(int count){
+		System.out.println("Your latest transactions were: ");
+		for(LedgerEntry entry : ledger.tail(currentAccount, count)){
+			System.out.println(entry);
+		}
+	}
+	
+	/**
+	 * Saves the changes of the current account and forgets it. Used by a ShardedAccountManager when the
+	 * current account moves to another shard
+	 */
+	void clearCurrentAccount(){
+		if(currentAccountIsSet()){
+			saveChangesToCurrentAccount();
+		}
+		currentAccount = null;
+	}
+	
+	/**
+	 * Saves the changes of the current account - is run each time setCurrentAccount() is used.
+	 */
+	void saveChangesToCurrentAccount(){
+		System.out.println("Saving changes to account: " + currentAccount.getAccountID());
+		try {
+			storage.saveAccount(currentAccount);
+		} catch (UncheckedIOException e) {
+			// still dirty, saved again with the other changed accounts
+			e.printStackTrace();
+			markChanged(currentAccount);
+		}
+	}
+	
+	
+}
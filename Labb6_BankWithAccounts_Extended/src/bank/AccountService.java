@@ -0,0 +1,236 @@
+package bank;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What the bank (the menu, the server and the batches) can do with its accounts. AccountManager keeps
+ * all accounts in one folder, ShardedAccountManager spreads them over several AccountManagers.
+ *
+ * Money is in cents, except in the methods for the current account that take what the user typed.
+ * @author Erik
+ *
+ */
+public interface AccountService {
+
+	/**
+	 * @return the account the menu is working with, null if none is selected
+	 */
+	Account getCurrentAccount();
+
+	/**
+	 * Makes an account the current account, and saves the changes made to the one before
+	 * @param newCurrentAccount
+	 */
+	void setCurrentAccount(Account newCurrentAccount);
+
+	/**
+	 * Deposits to the current account and prints the result
+	 * @param amountToDeposit
+	 * @return false if the amount is negative, else true
+	 */
+	boolean deposit(double amountToDeposit);
+
+	/**
+	 * Withdraws from the current account and prints the result
+	 * @param amountToWithdraw
+	 * @return false if the balance is too small or the amount is negative, else true
+	 */
+	boolean withdraw(double amountToWithdraw);
+
+	/**
+	 * Deposits to an account, saved in the background
+	 * @param accountId
+	 * @param amountToDeposit in cents
+	 * @return false if the amount is negative or there is no account with that id, else true
+	 */
+	boolean deposit(int accountId, long amountToDeposit);
+
+	/**
+	 * @param accountId
+	 * @param amountToDeposit in cents
+	 * @param waitUntilDurable true to return only when the deposit is on disk
+	 * @return false if the amount is negative or there is no account with that id, else true
+	 */
+	boolean deposit(int accountId, long amountToDeposit, boolean waitUntilDurable);
+
+	/**
+	 * Withdraws from an account, saved in the background
+	 * @param accountId
+	 * @param amountToWithdraw in cents
+	 * @return false if the amount is negative, the balance is too small or there is no account with that id, else true
+	 */
+	boolean withdraw(int accountId, long amountToWithdraw);
+
+	/**
+	 * @param accountId
+	 * @param amountToWithdraw in cents
+	 * @param waitUntilDurable true to return only when the withdraw is on disk
+	 * @return false if the amount is negative, the balance is too small or there is no account with that id, else true
+	 */
+	boolean withdraw(int accountId, long amountToWithdraw, boolean waitUntilDurable);
+
+	/**
+	 * Moves money between two accounts. No other thread sees one account changed without the other
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @return false if an account doesn't exist, it's the same account, the amount is negative
+	 * or the balance of the from account is too small, else true
+	 */
+	boolean transfer(int fromAccountId, int toAccountId, long amount);
+
+	/**
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @param waitUntilDurable true to return only when the transfer is on disk
+	 * @return false if the transfer was refused, else true
+	 */
+	boolean transfer(int fromAccountId, int toAccountId, long amount, boolean waitUntilDurable);
+
+	/**
+	 * @param accountId
+	 * @return completes when the changes made to the account so far are on disk, without waiting in this thread
+	 */
+	CompletableFuture<Void> whenDurable(int accountId);
+
+	/**
+	 * Saves every account that has changes that aren't saved yet
+	 * @return number of accounts saved
+	 */
+	int saveAllAccounts();
+
+	/**
+	 * Creates an account and makes it the current account
+	 * @param startBalance
+	 * @param accountOwnerName
+	 * @param accountName
+	 */
+	void createNewAccount(double startBalance, String accountOwnerName, String accountName);
+
+	/**
+	 * Creates many accounts, matched up by index. Doesn't change the current account
+	 * @param startBalances in cents
+	 * @param accountOwnerNames
+	 * @param accountNames
+	 * @return the created accounts
+	 */
+	Account[] createNewAccounts(long[] startBalances, String[] accountOwnerNames, String[] accountNames);
+
+	/**
+	 * Deletes an account, from memory and from the storage
+	 * @param accountToDelete
+	 */
+	void deleteAccount(Account accountToDelete);
+
+	/**
+	 * @return all accounts, read only
+	 */
+	List<Account> getAllAccounts();
+
+	/**
+	 * @param accountID
+	 * @return the account, or null if there is none with that id
+	 */
+	Account getAccountByAccountID(int accountID);
+
+	/**
+	 * @param accountName
+	 * @return the oldest account with that name (ignoring case), or null if there is none
+	 */
+	Account getAccountByAccountName(String accountName);
+
+	/**
+	 * @param accountName
+	 * @return all accounts with that name (ignoring case)
+	 */
+	Account[] getAccountsByAccountName(String accountName);
+
+	/**
+	 * @param ownerName
+	 * @return all accounts of the owner (ignoring case)
+	 */
+	Account[] getAccountsByOwnerName(String ownerName);
+
+	/**
+	 * Finds an account by id if the text is a number, else by account name
+	 * @param accountIdOrName
+	 * @return the account, or null if no match
+	 */
+	default Account getAccountByIdOrName(String accountIdOrName){
+		if(!accountIdOrName.isEmpty() && accountIdOrName.length() < 10 && accountIdOrName.chars().allMatch(Character::isDigit)){
+			return getAccountByAccountID(Integer.parseInt(accountIdOrName));
+		}
+		return getAccountByAccountName(accountIdOrName);
+	}
+
+	/**
+	 * Searches the account names: names that start with the text first, then names with a typo or two
+	 * @param text
+	 * @return the results, read a page at a time
+	 */
+	SearchResults searchAccountNames(String text);
+
+	/**
+	 * Searches the owner names, like searchAccountNames()
+	 * @param text
+	 * @return the results, read a page at a time
+	 */
+	SearchResults searchOwnerNames(String text);
+
+	/**
+	 * @param account
+	 * @return the ledger with the full history of the account
+	 */
+	AccountLedger getLedger(Account account);
+
+	/**
+	 * Prints the newest transactions of the current account
+	 * @param count the largest number of transactions to print
+	 */
+	void printLatestTransactions(int count);
+
+	/**
+	 * @return the total balance, number of accounts and balance of every owner of the whole bank
+	 */
+	BankTotals getTotals();
+
+	/**
+	 * @return the balances of all accounts at this instant, that don't change while writes go on. Close it when done
+	 */
+	BalanceSnapshot openBalanceSnapshot();
+
+	/**
+	 * @param places how many accounts, at most BankTotals.TOP_PLACES
+	 * @return the accounts with the biggest balances, biggest first
+	 */
+	List<Account> getTopBalances(int places);
+
+	/**
+	 * Starts saving the changed accounts in the background every intervalMillis milliseconds
+	 * @param intervalMillis
+	 */
+	void startCheckpoints(long intervalMillis);
+
+	/**
+	 * Starts taking snapshots of all accounts in the background every intervalMillis milliseconds
+	 * @param intervalMillis
+	 */
+	void startSnapshots(long intervalMillis);
+
+	/**
+	 * Pays a month of interest to all accounts, continuing where a stopped run was
+	 * @param month
+	 * @param annualRatePercent interest per year in percent
+	 * @return number of accounts that were paid
+	 */
+	long payMonthlyInterest(YearMonth month, BigDecimal annualRatePercent);
+
+	/**
+	 * Saves all changes and closes everything, the accounts can't be used after this
+	 */
+	void closeAccountManager();
+}
@@ -0,0 +1,427 @@
+package bank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of all accounts of an AccountFileStorage in one binary file, so a restart reads one
+ * file instead of opening every account file.
+ *
+ * Before an account file is written, its name is appended to a change log. Taking a snapshot first
+ * starts a new change log (the checkpoint), then copies the accounts one at a time while holding the
+ * lock of each, so deposits and withdraws go on while the snapshot is written. Every account file
+ * written after the checkpoint is named in the new change log, so at startup the accounts are taken
+ * from the snapshot except the ones named in a newer change log, which are read from their files.
+ * Accounts with unsaved changes when they were copied are marked in the snapshot and read from their
+ * files too, the snapshot never holds a change that didn't reach the account file.
+ *
+ * The files are kept in the folder "snapshot" of the account folder: accounts.snapshot, and the change
+ * logs changes-N.log, where N is the generation of the log. The snapshot starts with a header
+ * (magic, version, generation of the checkpoint, time, number of accounts, CRC32 of the rest), followed
+ * by one record per account.
+ * @author Erik
+ *
+ */
+public class AccountSnapshot {
+
+	public static final String FOLDER_NAME = "snapshot";
+	private static final String SNAPSHOT_FILE_NAME = "accounts.snapshot";
+	private static final String LOG_PREFIX = "changes-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final int MAGIC = 0x42414e4b; // "BANK"
+	private static final int VERSION = 5; // 1 had ids that changed on every start, 2 had no interest period, 3 no shard transfer, 4 no local transfer
+	private static final int HEADER_SIZE = 36;
+	private static final int CHECKSUM_POSITION = 28;
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	// what a record holds, after the account id and the file name
+	private static final byte STUB = 0; // owner, account name and balance, the history is in the account file
+	private static final byte WITH_HISTORY = 1; // the same, followed by the latest transactions
+	private static final byte READ_FILE = 2; // had unsaved changes, nothing more is kept
+
+	private File folder;
+	private File snapshotFile;
+	private long generation; // of the change log that is written to now
+	private FileChannel changeLog; // opened when the first change of the generation is logged
+	private Object writeLock = new Object(); // held while a snapshot is written, one at a time
+
+	/**
+	 * @param accountFolder folder of the account files, the snapshot is kept in a folder inside it
+	 */
+	AccountSnapshot(File accountFolder){
+		this.folder = new File(accountFolder, FOLDER_NAME);
+		this.snapshotFile = new File(folder, SNAPSHOT_FILE_NAME);
+		// start after the newest change log, a log that may end in half a line is never appended to
+		long newestLog = -1;
+		for(long logGeneration : listLogGenerations()){
+			newestLog = Math.max(newestLog, logGeneration);
+		}
+		this.generation = newestLog + 1;
+	}
+
+	/**
+	 * Reads the snapshot, and the change logs written after its checkpoint
+	 * @return the accounts that are the same in the snapshot as in their account files, by file name.
+	 * null if there is no snapshot or it can't be used
+	 */
+	public Map<String, Entry> read(){
+		if(!snapshotFile.exists()){
+			return null;
+		}
+		long startTime = System.nanoTime();
+		Map<String, Entry> entries;
+		long checkpoint;
+		try(FileInputStream fileIn = new FileInputStream(snapshotFile)){
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while(header.hasRemaining() && fileIn.getChannel().read(header) > 0){
+				// read the whole header
+			}
+			header.flip();
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION){
+				System.out.println("Ignoring " + snapshotFile.getPath() + ", it isn't a snapshot of this version");
+				return null;
+			}
+			checkpoint = header.getLong();
+			header.getLong(); // when it was taken
+			int count = header.getInt();
+			long checksum = header.getLong();
+			// the rest of the file is read through the checksum, in big blocks
+			CRC32 crc = new CRC32();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new CheckedInputStream(fileIn, crc), STREAM_BUFFER_SIZE));
+			entries = new HashMap<String, Entry>(Math.max(16, count * 4 / 3 + 1));
+			for(int i = 0; i < count; i++){
+				Entry entry = readEntry(in);
+				if(entry != null){
+					entries.put(entry.fileName, entry);
+				}
+			}
+			if(in.read() != -1 || crc.getValue() != checksum){
+				System.out.println("Ignoring " + snapshotFile.getPath() + ", it's damaged");
+				return null;
+			}
+		} catch (IOException e) {
+			// also a snapshot that ends too early
+			System.out.println("Ignoring " + snapshotFile.getPath() + ", it can't be read: " + e);
+			return null;
+		}
+		int snapshotAccounts = entries.size();
+		int changedAccounts = 0;
+		for(long logGeneration : listLogGenerations()){
+			if(logGeneration >= checkpoint){
+				changedAccounts += readChangeLog(logGeneration, entries);
+			}
+		}
+		System.out.println(String.format(Locale.US, "Read a snapshot of %d accounts in %.1f ms, %d of them changed after it",
+				snapshotAccounts, (System.nanoTime() - startTime) / 1_000_000.0, changedAccounts));
+		return entries;
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		int accountId = in.readInt();
+		String fileName = in.readUTF();
+		byte kind = in.readByte();
+		if(kind == READ_FILE){
+			return null;
+		}
+		Entry entry = new Entry();
+		entry.fileName = fileName;
+		entry.accountId = accountId;
+		entry.owner = in.readUTF();
+		entry.accountName = in.readUTF();
+		entry.balance = in.readLong();
+		entry.interestPeriod = in.readInt();
+		entry.shardTransfer = in.readLong();
+		entry.localTransfer = in.readLong();
+		if(kind == WITH_HISTORY){
+			entry.transactionHistory = new long[in.readUnsignedByte()];
+			for(int i = 0; i < entry.transactionHistory.length; i++){
+				entry.transactionHistory[i] = in.readLong();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the accounts named in a change log from the entries, their files are newer than the snapshot
+	 * @param logGeneration
+	 * @param entries
+	 * @return number of entries removed
+	 */
+	private int readChangeLog(long logGeneration, Map<String, Entry> entries){
+		int removed = 0;
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(logFile(logGeneration)), StandardCharsets.UTF_8))){
+			String fileName;
+			while((fileName = in.readLine()) != null){
+				// a half written last line doesn't match any account file
+				if(entries.remove(fileName) != null){
+					removed++;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return removed;
+	}
+
+	/**
+	 * Appends the file names of the accounts to the change log and syncs it, before their account files
+	 * are written. A snapshot may start before the files are written, so every account is checked again
+	 * with logChange while holding its lock
+	 * @param accounts
+	 * @return the generation of the log they were written to
+	 * @throws UncheckedIOException if they couldn't be logged, their files must not be written then
+	 */
+	public synchronized long logChanges(Collection<Account> accounts){
+		StringBuilder lines = new StringBuilder(accounts.size() * 16);
+		for(Account account : accounts){
+			lines.append(account.getAccountFile().getName()).append('\n');
+		}
+		append(lines.toString());
+		return generation;
+	}
+	
+	/**
+	 * Makes sure the file name of the account is in the change log, right before its account file is
+	 * written. Called while holding the lock of the account, so it can't be copied by a snapshot between
+	 * this and the write
+	 * @param account
+	 * @param loggedGeneration the generation it was logged in by logChanges, or -1 if it wasn't
+	 */
+	public synchronized void logChange(Account account, long loggedGeneration){
+		if(loggedGeneration != generation){
+			append(account.getAccountFile().getName() + "\n");
+		}
+	}
+	
+	/**
+	 * @throws UncheckedIOException if the lines couldn't be written and synced. The account files must
+	 * not be written then, a restart would take their accounts from the snapshot
+	 */
+	private void append(String lines){
+		try {
+			if(changeLog == null){
+				changeLog = openLog(generation);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+			while(buffer.hasRemaining()){
+				changeLog.write(buffer);
+			}
+			changeLog.force(false);
+		} catch (IOException e) {
+			// the log may end in half a line now, so the next lines go to a new one
+			if(changeLog != null){
+				Metrics.closeFile(changeLog);
+				changeLog = null;
+			}
+			generation++;
+			throw new UncheckedIOException("Could not write to the change log of the snapshot", e);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the accounts and replaces the old one with it. The accounts are locked one at
+	 * a time while they are copied, so this can run in the background while the accounts are used
+	 * @param accounts all accounts
+	 * @return true if the snapshot was written
+	 */
+	public boolean write(List<Account> accounts){
+		synchronized(writeLock){
+			long writeStart = Metrics.start();
+			long checkpoint;
+			try {
+				checkpoint = startNewChangeLog();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			File tempFile = new File(folder, SNAPSHOT_FILE_NAME + AccountFileStorage.TEMP_FILE_SUFFIX);
+			try(FileOutputStream fileOut = new FileOutputStream(tempFile)){
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(checkpoint).putLong(System.currentTimeMillis()).putInt(accounts.size()).putLong(0);
+				header.flip();
+				fileOut.getChannel().write(header);
+				CRC32 crc = new CRC32();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc), STREAM_BUFFER_SIZE));
+				for(Account account : accounts){
+					writeEntry(account, out);
+				}
+				out.flush();
+				// the checksum of everything after the header goes into the header
+				ByteBuffer checksum = ByteBuffer.allocate(8);
+				checksum.putLong(crc.getValue()).flip();
+				fileOut.getChannel().write(checksum, CHECKSUM_POSITION);
+				fileOut.getFD().sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			try {
+				Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				// else a crash could keep the deleted logs but bring back the old snapshot, which needs them
+				AccountFileStorage.syncFolder(folder);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			// the changes in the older logs are all in the new snapshot
+			for(long logGeneration : listLogGenerations()){
+				if(logGeneration < checkpoint && !logFile(logGeneration).delete()){
+					System.out.println("Could not delete the change log " + logFile(logGeneration).getPath());
+				}
+			}
+			Metrics.SNAPSHOT.record(writeStart);
+			return true;
+		}
+	}
+
+	private static void writeEntry(Account account, DataOutputStream out) throws IOException {
+		// copy under the lock, so balance and history belong together, but write outside of it
+		String owner;
+		String accountName;
+		long balance;
+		long[] transactionHistory;
+		int interestPeriod;
+		long shardTransfer;
+		long localTransfer;
+		boolean dirty;
+		synchronized(account){
+			dirty = account.isDirty();
+			owner = account.getOwner();
+			accountName = account.getAccountName();
+			balance = account.getBalance();
+			interestPeriod = account.getInterestPeriod();
+			shardTransfer = account.getShardTransfer();
+			localTransfer = account.getLocalTransfer();
+			transactionHistory = account.getLoadedTransactions();
+		}
+		out.writeInt(account.getAccountID());
+		out.writeUTF(account.getAccountFile().getName());
+		if(dirty){
+			// the account file is older than the account, so it's named in the new change log once it's saved
+			out.writeByte(READ_FILE);
+			return;
+		}
+		out.writeByte(transactionHistory != null ? WITH_HISTORY : STUB);
+		out.writeUTF(owner);
+		out.writeUTF(accountName);
+		out.writeLong(balance);
+		out.writeInt(interestPeriod);
+		out.writeLong(shardTransfer);
+		out.writeLong(localTransfer);
+		if(transactionHistory != null){
+			out.writeByte(transactionHistory.length);
+			for(long transaction : transactionHistory){
+				out.writeLong(transaction);
+			}
+		}
+	}
+
+	/**
+	 * Closes the change log and starts the next generation. Every account file written from now on
+	 * is named in the new log
+	 * @return the generation of the new log
+	 * @throws IOException
+	 */
+	private synchronized long startNewChangeLog() throws IOException {
+		if(changeLog != null){
+			Metrics.closeFile(changeLog);
+			changeLog = null;
+		}
+		generation++;
+		// created right away, so the newest log is never older than the snapshot
+		changeLog = openLog(generation);
+		return generation;
+	}
+
+	private FileChannel openLog(long logGeneration) throws IOException {
+		if(!folder.exists() && !folder.mkdirs()){
+			throw new IOException("Could not create the snapshot folder " + folder.getPath());
+		}
+		long openStart = Metrics.start();
+		FileChannel log = FileChannel.open(logFile(logGeneration).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		Metrics.fileOpened(openStart);
+		return log;
+	}
+
+	private File logFile(long logGeneration){
+		return new File(folder, LOG_PREFIX + logGeneration + LOG_SUFFIX);
+	}
+
+	private List<Long> listLogGenerations(){
+		List<Long> generations = new ArrayList<Long>();
+		String[] fileNames = folder.list();
+		if(fileNames == null){
+			return generations;
+		}
+		for(String fileName : fileNames){
+			if(fileName.startsWith(LOG_PREFIX) && fileName.endsWith(LOG_SUFFIX)){
+				try {
+					generations.add(Long.parseLong(fileName.substring(LOG_PREFIX.length(), fileName.length() - LOG_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		return generations;
+	}
+
+	/**
+	 * Closes the change log
+	 */
+	public synchronized void close(){
+		if(changeLog != null){
+			Metrics.closeFile(changeLog);
+			changeLog = null;
+		}
+	}
+
+	/**
+	 * Deletes the snapshot of an account folder, the next start reads every account file again
+	 * @param accountFolder
+	 */
+	public static void delete(File accountFolder){
+		File snapshotFile = new File(new File(accountFolder, FOLDER_NAME), SNAPSHOT_FILE_NAME);
+		if(snapshotFile.exists() && !snapshotFile.delete()){
+			System.out.println("Could not delete the snapshot " + snapshotFile.getPath());
+		}
+	}
+
+	/**
+	 * Values of one account in the snapshot
+	 */
+	static class Entry {
+		String fileName;
+		int accountId;
+		String owner;
+		String accountName;
+		long balance; // in cents
+		long[] transactionHistory; // newest first, null if it's read from the account file when needed
+		int interestPeriod; // the last month interest was paid for, 0 if never
+		long shardTransfer; // the last transfer with another shard that changed it, 0 if none
+		long localTransfer; // the last transfer inside the storage that changed it, 0 if none
+	}
+}
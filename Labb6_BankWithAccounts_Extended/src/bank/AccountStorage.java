@@ -0,0 +1,127 @@
+package bank;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where an AccountManager keeps its accounts between runs.
+ * 
+ * The AccountManager tells the storage about every change it makes, and the storage decides
+ * when and how the change reaches the disk.
+ * @author Erik
+ *
+ */
+public interface AccountStorage {
+	
+	/**
+	 * Loads all accounts that were stored earlier. Called once, when the account manager starts
+	 * @param ids hands out ids to accounts that weren't stored with one
+	 * @return the stored accounts
+	 */
+	List<Account> loadAccounts(AccountIdAllocator ids);
+	
+	/**
+	 * Called after a new account was created
+	 * @param account
+	 */
+	void accountCreated(Account account);
+	
+	/**
+	 * Called before the account manager works with an account. Lets a storage that loads
+	 * accounts lazily load the rest of the account
+	 * @param account
+	 */
+	default void accountUsed(Account account){
+		// everything is loaded up front by default
+	}
+	
+	/**
+	 * Called after the balance of an account was changed
+	 * @param account
+	 * @param amount in cents, positive for a deposit, negative for a withdraw
+	 */
+	void balanceChanged(Account account, long amount);
+	
+	/**
+	 * Called after money was moved between two accounts. Both changes should be saved together,
+	 * or not at all. By default they are passed on as two balance changes
+	 * @param from
+	 * @param to
+	 * @param amount in cents
+	 */
+	default void transferred(Account from, Account to, long amount){
+		balanceChanged(from, -amount);
+		balanceChanged(to, amount);
+	}
+	
+	/**
+	 * Called after an account was deleted
+	 * @param account
+	 */
+	void accountDeleted(Account account);
+	
+	/**
+	 * Called while holding the lock of the account, after interest was added to its balance and its
+	 * interest period was moved to the month it was paid for. The balance and the period have to be saved
+	 * together, so interest is never paid twice for a month after a crash. By default it's a balance
+	 * change, for storages that save the whole account (and with it the period) every time
+	 * @param account
+	 * @param amount the interest in cents, 0 if the account had no money and only the period changed
+	 */
+	default void interestPaid(Account account, long amount){
+		balanceChanged(account, amount);
+	}
+	
+	/**
+	 * Called while holding the lock of the account, after it got its half of a transfer with an account of
+	 * another shard, and its shard transfer number was moved to that transfer. The balance and the number
+	 * have to be saved together, so a half is never lost or made twice after a crash (see ShardTransferLog).
+	 * By default it's a balance change, for storages that save the whole account every time
+	 * @param account
+	 * @param amount in cents, negative for the half that takes the money
+	 */
+	default void shardTransferred(Account account, long amount){
+		balanceChanged(account, amount);
+	}
+	
+	/**
+	 * Makes sure that all changes made to an account so far are saved
+	 * @param account
+	 */
+	void saveAccount(Account account);
+	
+	/**
+	 * Makes sure that all changes made to a group of accounts so far are written and synced to the disk.
+	 * Used by the GroupCommitter, so a storage that can sync many accounts at once should override it.
+	 * By default every account is saved by itself
+	 * @param accounts
+	 */
+	default void flush(Collection<Account> accounts){
+		for(Account account : accounts){
+			saveAccount(account);
+		}
+	}
+	
+	/**
+	 * Writes everything the storage needs for a fast start in a compact form, called now and then from
+	 * the background while the accounts are in use. Nothing is done by default
+	 * @param accounts all accounts of the account manager
+	 */
+	default void snapshot(List<Account> accounts){
+		// a storage that loads quickly doesn't need it
+	}
+	
+	/**
+	 * @param accountCount number of accounts in the account manager
+	 * @return how many of them are fully loaded in memory. By default all of them
+	 */
+	default int getLoadedAccountCount(int accountCount){
+		return accountCount;
+	}
+	
+	/**
+	 * Releases everything the storage has open. Called when the account manager is closed
+	 * @param accounts all accounts of the account manager
+	 */
+	void close(List<Account> accounts);
+}
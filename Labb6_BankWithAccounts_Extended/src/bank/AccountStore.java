@@ -0,0 +1,121 @@
+package bank;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Holds the accounts of an AccountManager in a growable array.
+ * 
+ * Adding is amortized O(1) since the array doubles in size when it's full.
+ * Removing is O(1): the last account is moved into the freed slot, so the array never has holes
+ * and the slot at the end is reused by the next account that is added.
+ * @author Erik
+ *
+ */
+public class AccountStore {
+	
+	private static final int DEFAULT_CAPACITY = 16;
+	
+	private Account[] slots;
+	private int size;
+	// read only view of the accounts, handed out instead of copying the array
+	private final List<Account> view = new AccountView();
+	
+	AccountStore(){
+		this(DEFAULT_CAPACITY);
+	}
+	
+	AccountStore(int initialCapacity){
+		slots = new Account[Math.max(initialCapacity, DEFAULT_CAPACITY)];
+	}
+	
+	/**
+	 * Adds an account to the end of the store
+	 * @param accountToAdd
+	 */
+	public void add(Account accountToAdd){
+		ensureCapacity(size + 1);
+		putInSlot(accountToAdd, size);
+		size++;
+	}
+	
+	/**
+	 * Adds several accounts, growing the array at most once
+	 * @param accountsToAdd
+	 */
+	public void addAll(Account[] accountsToAdd){
+		ensureCapacity(size + accountsToAdd.length);
+		for(Account account : accountsToAdd){
+			putInSlot(account, size);
+			size++;
+		}
+	}
+	
+	/**
+	 * Removes an account by moving the last account into its slot
+	 * @param accountToRemove
+	 * @return false if the account wasn't in this store, else true
+	 */
+	public boolean remove(Account accountToRemove){
+		int slot = accountToRemove.getStoreSlot();
+		if(slot < 0 || slot >= size || slots[slot] != accountToRemove){
+			return false;
+		}
+		int lastSlot = size - 1;
+		if(slot != lastSlot){
+			putInSlot(slots[lastSlot], slot);
+		}
+		// let go of the reference so the account can be garbage collected
+		slots[lastSlot] = null;
+		size--;
+		accountToRemove.setStoreSlot(-1);
+		return true;
+	}
+	
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * Returns a read only view of the accounts. The view is not a copy, so it reflects later changes.
+	 * @return list with all accounts
+	 */
+	public List<Account> asList(){
+		return view;
+	}
+	
+	private void putInSlot(Account account, int slot){
+		slots[slot] = account;
+		account.setStoreSlot(slot);
+	}
+	
+	private void ensureCapacity(int neededCapacity){
+		if(neededCapacity <= slots.length){
+			return;
+		}
+		int newCapacity = slots.length * 2;
+		if(newCapacity < neededCapacity){
+			newCapacity = neededCapacity;
+		}
+		Account[] grownSlots = new Account[newCapacity];
+		System.arraycopy(slots, 0, grownSlots, 0, size);
+		slots = grownSlots;
+	}
+	
+	private class AccountView extends AbstractList<Account> implements RandomAccess {
+
+		@Override
+		public Account get(int index){
+			if(index < 0 || index >= size){
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+			}
+			return slots[index];
+		}
+
+		@Override
+		public int size(){
+			return size;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the operations of an account manager in the background and hands back a CompletableFuture for
+ * each, so a caller can have thousands of operations going without waiting for every one of them.
+ * Nothing is printed, the results are in the futures.
+ *
+ * The operations are run by a few lanes, each one thread. All operations of an account go to the lane
+ * of its id (account id % number of lanes) and a lane runs them in the order they were handed in, so
+ * the operations of one account are done in order. Operations of accounts in different lanes run at
+ * the same time.
+ *
+ * An operation that waits until it's durable doesn't hold up its lane while the change is synced: the
+ * lane goes on with the next operation, and the future completes when the account is on disk.
+ *
+ * At most maxPending operations can be unfinished, durable waits included. A caller that hands in more
+ * waits until an earlier one is done, so a caller that is faster than the disk is slowed down instead
+ * of filling the memory with queued operations. The permit of an operation is given back before its
+ * future completes. Code that runs when a future completes (on a lane, or on the thread that syncs the
+ * changes) never waits for a permit, as that thread may be the one that frees it: when none is free,
+ * the operation it hands in fails with a RejectedExecutionException.
+ * @author Erik
+ *
+ */
+public class AsyncAccountManager {
+
+	public static final int DEFAULT_MAX_PENDING = 4096;
+
+	private AccountService accountManager;
+	private ExecutorService[] lanes;
+	private Semaphore pending; // a permit for every operation that may be unfinished
+	private int maxPending;
+	private AtomicInteger nextCreateLane = new AtomicInteger(); // new accounts have no id yet, they go round the lanes
+	private ThreadLocal<Boolean> completing = ThreadLocal.withInitial(() -> Boolean.FALSE); // true while a future of this completes on the thread
+
+	/**
+	 * One lane per processor and DEFAULT_MAX_PENDING unfinished operations
+	 * @param accountManager
+	 */
+	AsyncAccountManager(AccountService accountManager){
+		this(accountManager, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * @param accountManager does the operations
+	 * @param laneCount number of threads running operations
+	 * @param maxPending the largest number of unfinished operations before callers have to wait
+	 */
+	AsyncAccountManager(AccountService accountManager, int laneCount, int maxPending){
+		if(laneCount < 1 || maxPending < 1){
+			throw new IllegalArgumentException("Need at least one lane and one pending operation, got " + laneCount + " and " + maxPending);
+		}
+		this.accountManager = accountManager;
+		this.maxPending = maxPending;
+		this.pending = new Semaphore(maxPending);
+		this.lanes = new ExecutorService[laneCount];
+		for(int i = 0; i < laneCount; i++){
+			String laneName = "async-lane-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+				Thread laneThread = new Thread(runnable, laneName);
+				laneThread.setDaemon(true);
+				return laneThread;
+			});
+		}
+	}
+
+	/**
+	 * @param accountId
+	 * @param amountToDeposit in cents
+	 * @param waitUntilDurable true to complete only when the deposit is on disk
+	 * @return true if it was deposited, false if the amount is negative or there is no account with that id
+	 */
+	public CompletableFuture<Boolean> deposit(int accountId, long amountToDeposit, boolean waitUntilDurable){
+		return submit(laneOf(accountId), () -> {
+			boolean deposited = accountManager.deposit(accountId, amountToDeposit, false);
+			return durableIf(deposited && waitUntilDurable, accountId, deposited);
+		});
+	}
+
+	/**
+	 * @param accountId
+	 * @param amountToWithdraw in cents
+	 * @param waitUntilDurable true to complete only when the withdraw is on disk
+	 * @return true if it was withdrawn, false if the amount is negative, the balance is too small or there is no account with that id
+	 */
+	public CompletableFuture<Boolean> withdraw(int accountId, long amountToWithdraw, boolean waitUntilDurable){
+		return submit(laneOf(accountId), () -> {
+			boolean withdrawn = accountManager.withdraw(accountId, amountToWithdraw, false);
+			return durableIf(withdrawn && waitUntilDurable, accountId, withdrawn);
+		});
+	}
+
+	/**
+	 * Creates an account. The current account of the account manager doesn't change
+	 * @param startBalance in cents
+	 * @param accountOwnerName
+	 * @param accountName
+	 * @return the new account
+	 */
+	public CompletableFuture<Account> createAccount(long startBalance, String accountOwnerName, String accountName){
+		int lane = Math.floorMod(nextCreateLane.getAndIncrement(), lanes.length);
+		return submit(lane, () -> CompletableFuture.completedFuture(accountManager.createNewAccounts(
+				new long[] { startBalance }, new String[] { accountOwnerName }, new String[] { accountName })[0]));
+	}
+
+	/**
+	 * Deletes an account, after the operations on it that were handed in before
+	 * @param accountId
+	 * @return true if it was deleted, false if there is no account with that id
+	 */
+	public CompletableFuture<Boolean> deleteAccount(int accountId){
+		return submit(laneOf(accountId), () -> {
+			Account account = accountManager.getAccountByAccountID(accountId);
+			if(account != null){
+				accountManager.deleteAccount(account);
+			}
+			return CompletableFuture.completedFuture(account != null);
+		});
+	}
+
+	/**
+	 * Looks up an account after the operations on it that were handed in before, so it sees their changes
+	 * @param accountId
+	 * @return the account, or null if there is none with that id
+	 */
+	public CompletableFuture<Account> getAccountByAccountID(int accountId){
+		return submit(laneOf(accountId), () -> CompletableFuture.completedFuture(accountManager.getAccountByAccountID(accountId)));
+	}
+
+	/**
+	 * Looks up the accounts with a name. Not ordered with the other operations, an account created
+	 * just before may or may not be found
+	 * @param accountName
+	 * @return all accounts with that name (ignoring case)
+	 */
+	public CompletableFuture<Account[]> getAccountsByAccountName(String accountName){
+		return submit(Math.floorMod(accountName.hashCode(), lanes.length),
+				() -> CompletableFuture.completedFuture(accountManager.getAccountsByAccountName(accountName)));
+	}
+
+	/**
+	 * Saves an account, after the operations on it that were handed in before
+	 * @param accountId
+	 * @return completes when the account and those operations are on disk
+	 */
+	public CompletableFuture<Void> save(int accountId){
+		return submit(laneOf(accountId), () -> accountManager.whenDurable(accountId));
+	}
+
+	/**
+	 * Saves all changed accounts, after every operation that was handed in before
+	 * @return number of accounts saved
+	 */
+	public CompletableFuture<Integer> saveAll(){
+		List<CompletableFuture<Void>> lanesDone = new ArrayList<CompletableFuture<Void>>(lanes.length);
+		for(int lane = 0; lane < lanes.length; lane++){
+			lanesDone.add(submit(lane, () -> CompletableFuture.completedFuture(null)));
+		}
+		return CompletableFuture.allOf(lanesDone.toArray(new CompletableFuture<?>[lanesDone.size()]))
+				.thenApplyAsync(done -> accountManager.saveAllAccounts());
+	}
+
+	/**
+	 * @return number of operations that are handed in but not finished
+	 */
+	public int getPendingCount(){
+		return maxPending - pending.availablePermits();
+	}
+
+	/**
+	 * Waits until every operation that was handed in is finished, then stops the lanes. Doesn't close
+	 * the account manager
+	 */
+	public void close(){
+		for(ExecutorService lane : lanes){
+			lane.shutdown();
+		}
+		try {
+			for(ExecutorService lane : lanes){
+				lane.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			// the durable waits can finish after their lane is done
+			if(pending.tryAcquire(maxPending, 1, TimeUnit.MINUTES)){
+				pending.release(maxPending);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int laneOf(int accountId){
+		return Math.floorMod(accountId, lanes.length);
+	}
+
+	private <T> CompletableFuture<T> durableIf(boolean waitUntilDurable, int accountId, T result){
+		if(!waitUntilDurable){
+			return CompletableFuture.completedFuture(result);
+		}
+		return accountManager.whenDurable(accountId).thenApply(durable -> result);
+	}
+
+	/**
+	 * Hands an operation to a lane, after waiting for a permit if too many are unfinished
+	 * @param lane
+	 * @param operation runs in the lane, returns a future that completes when the operation is finished
+	 * @return completes with the result of the operation
+	 */
+	private <T> CompletableFuture<T> submit(int lane, Supplier<CompletableFuture<T>> operation){
+		if(completing.get()){
+			// a lane or the thread that syncs, waiting here could keep the permits from being given back
+			if(!pending.tryAcquire()){
+				return failed(new RejectedExecutionException("More than " + maxPending + " operations are unfinished, an operation handed in when another completes can't wait"));
+			}
+		} else {
+			try {
+				pending.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return failed(e);
+			}
+		}
+		CompletableFuture<T> finished;
+		try {
+			finished = CompletableFuture.supplyAsync(operation, lanes[lane]).thenCompose(done -> done);
+		} catch (RejectedExecutionException e) {
+			// closed
+			pending.release();
+			throw e;
+		}
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		finished.whenComplete((value, error) -> {
+			// before the caller sees it, so what the caller runs then can hand in more operations
+			pending.release();
+			boolean outerCompleting = completing.get();
+			completing.set(Boolean.TRUE);
+			try {
+				if(error != null){
+					result.completeExceptionally(error);
+				} else {
+					result.complete(value);
+				}
+			} finally {
+				completing.set(outerCompleting);
+			}
+		});
+		return result;
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable error){
+		CompletableFuture<T> failed = new CompletableFuture<T>();
+		failed.completeExceptionally(error);
+		return failed;
+	}
+}
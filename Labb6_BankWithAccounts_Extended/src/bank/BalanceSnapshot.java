@@ -0,0 +1,110 @@
+package bank;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The balances of all accounts as they were at one instant, see BalanceVersions. Reading it doesn't
+ * stop anyone from changing the accounts, and no balances are copied when it's opened: the old
+ * balances are kept in the accounts for as long as the snapshot is open. Close it when done, so
+ * they can be dropped.
+ *
+ * An account that was created after the snapshot isn't in it, one that was deleted after it is.
+ * @author Erik
+ *
+ */
+public class BalanceSnapshot implements AutoCloseable {
+
+	private BalanceVersions versions;
+	private long registered; // the version the snapshot is registered with, no newer than version
+	private long version;
+	private volatile boolean closed;
+
+	BalanceSnapshot(BalanceVersions versions, long registered, long version){
+		this.versions = versions;
+		this.registered = registered;
+		this.version = version;
+	}
+
+	/**
+	 * @return the version of the balances, changes with a higher version aren't seen
+	 */
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @param account
+	 * @return true if the account existed when the snapshot was taken
+	 */
+	public boolean contains(Account account){
+		checkOpen();
+		return account.getCreatedVersion() != 0 && account.getCreatedVersion() <= version && account.getDeletedVersion() > version
+				&& BalanceVersions.balanceAt(account, version) != BalanceVersions.NO_BALANCE;
+	}
+
+	/**
+	 * @param account
+	 * @return the balance of the account when the snapshot was taken, in cents
+	 */
+	public long getBalance(Account account){
+		checkOpen();
+		long balance = account.getCreatedVersion() != 0 && account.getCreatedVersion() <= version && account.getDeletedVersion() > version
+				? BalanceVersions.balanceAt(account, version) : BalanceVersions.NO_BALANCE;
+		if(balance == BalanceVersions.NO_BALANCE){
+			throw new IllegalArgumentException("Account " + account.getAccountID() + " is not in the snapshot");
+		}
+		return balance;
+	}
+
+	/**
+	 * Goes through every account in the snapshot, in no particular order
+	 * @param action gets the account and its balance in cents
+	 */
+	public void forEach(ObjLongConsumer<Account> action){
+		checkOpen();
+		for(Account account : versions.getAccounts()){
+			if(account.getCreatedVersion() > version || account.getDeletedVersion() <= version){
+				continue;
+			}
+			long balance = BalanceVersions.balanceAt(account, version);
+			if(balance != BalanceVersions.NO_BALANCE){
+				action.accept(account, balance);
+			}
+		}
+	}
+
+	/**
+	 * @return the sum of all balances in the snapshot, in cents
+	 */
+	public long getTotalBalance(){
+		long[] total = new long[1];
+		forEach((account, balance) -> total[0] += balance);
+		return total[0];
+	}
+
+	/**
+	 * @return number of accounts in the snapshot
+	 */
+	public long getAccountCount(){
+		long[] count = new long[1];
+		forEach((account, balance) -> count[0]++);
+		return count[0];
+	}
+
+	/**
+	 * Lets the old balances the snapshot kept be dropped. The snapshot can't be read after this
+	 */
+	@Override
+	public void close(){
+		if(!closed){
+			closed = true;
+			versions.snapshotClosed(registered);
+		}
+	}
+
+	private void checkOpen(){
+		if(closed){
+			throw new IllegalStateException("The snapshot is closed");
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package bank;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps old balances for as long as a reader may need them, so a BalanceSnapshot sees the balances of
+ * all accounts as they were at one instant while they go on changing (multiversion concurrency control).
+ *
+ * Every change of a balance gets a version from one clock, taken while holding the lock of the account,
+ * and the account remembers the version of its balance. While the change is made, its version is kept in
+ * one of a few slots, so it can be seen as unfinished. A snapshot reads the clock, waits until no slot holds
+ * a version up to that one, and reads for every account the newest balance that isn't newer than it.
+ * A transfer changes both accounts under one version (see atOnce), so a snapshot sees both halves or none.
+ *
+ * The balance an account had before a change is only copied into a Version when an open snapshot may need
+ * it, so without open snapshots a change allocates nothing here. A change drops the old versions of its
+ * account that no open snapshot needs, and accounts left with old versions are remembered and cut when the
+ * oldest snapshot is closed. Deleted accounts are kept for the snapshots that were opened before the delete,
+ * and dropped when those are closed.
+ *
+ * Writers never wait for readers or for each other, only a snapshot waits for the changes it must see.
+ * A change must not read files while it has a version, or the snapshots wait for the disk.
+ * @author Erik
+ *
+ */
+public class BalanceVersions {
+
+	public static final long NO_BALANCE = Long.MIN_VALUE; // see balanceAt
+
+	private static final long TAKING_VERSION = -1; // in a slot while its change takes a version from the clock
+	private static final int SLOT_STRIDE = 8; // longs between two slots, so they're on different cache lines
+	private static final int SLOTS = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+
+	private AtomicLong clock = new AtomicLong(); // the latest version handed out
+	private AtomicLongArray unfinished = new AtomicLongArray(SLOTS * SLOT_STRIDE); // versions of changes being made, 0 in a free slot
+	private ThreadLocal<OpenChange> openChanges = ThreadLocal.withInitial(OpenChange::new);
+	private Set<Account> accounts = ConcurrentHashMap.newKeySet(); // every account a snapshot may see, deleted ones too
+	private Queue<Account> deletedAccounts = new ConcurrentLinkedQueue<Account>(); // kept until no snapshot can see them
+	private Set<Account> oldVersions = ConcurrentHashMap.newKeySet(); // accounts keeping versions of old balances
+	private TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>(); // number of open snapshots by registered version
+	private volatile long oldestSnapshot = Long.MAX_VALUE; // the lowest registered version of an open snapshot
+
+	/**
+	 * Called with the lock of the account held, when it's added to the bank
+	 * @param account
+	 * @param balance in cents
+	 */
+	void accountAdded(Account account, long balance){
+		OpenChange open = openChanges.get();
+		long version = begin(open);
+		account.setNewestVersion(null);
+		account.setBalanceVersion(version);
+		account.setCreatedVersion(version);
+		// before the change is finished, so every snapshot that should see it finds it
+		accounts.add(account);
+		end(open);
+	}
+
+	/**
+	 * Called with the lock of the account held, when it's removed from the bank
+	 * @param account
+	 */
+	void accountRemoved(Account account){
+		OpenChange open = openChanges.get();
+		account.setDeletedVersion(begin(open));
+		end(open);
+		deletedAccounts.add(account);
+		dropDeletedAccounts();
+	}
+
+	/**
+	 * Called with the lock of the account held, right before its balance changes. Takes the version of
+	 * the change, and keeps the old balance if a snapshot may need it
+	 * @param account
+	 * @param oldBalance in cents
+	 */
+	void balanceChanging(Account account, long oldBalance){
+		OpenChange open = openChanges.get();
+		long version = begin(open);
+		long oldVersion = account.getBalanceVersion();
+		if(oldVersion == version){
+			// changed twice in the same change, only the last balance is kept
+			return;
+		}
+		// read after the version was taken: a snapshot registered after this sees the new balance
+		long oldest = oldestSnapshot;
+		Version older = account.getNewestVersion();
+		if(oldest < version){
+			older = new Version(oldVersion, oldBalance, older);
+			cut(older, oldest);
+			if(!oldVersions.contains(account)){
+				oldVersions.add(account);
+			}
+		} else {
+			older = null;
+		}
+		account.setNewestVersion(older);
+		// before the balance is changed, see balanceAt
+		account.setBalanceVersion(version);
+	}
+
+	/**
+	 * Called with the lock of the account held, after its balance changed
+	 * @param account
+	 */
+	void balanceChanged(Account account){
+		OpenChange open = openChanges.get();
+		if(!open.atOnce){
+			end(open);
+		}
+	}
+
+	/**
+	 * Makes all balance changes of a change one version, so a snapshot sees all of them or none.
+	 * The caller must hold the locks of all accounts the change touches, and the change must not read
+	 * any files: snapshots wait for it. Load the transaction histories before
+	 * @param change changes the balances
+	 * @return what the change returned
+	 */
+	boolean atOnce(BooleanSupplier change){
+		OpenChange open = openChanges.get();
+		if(open.atOnce){
+			return change.getAsBoolean();
+		}
+		open.atOnce = true;
+		try {
+			return change.getAsBoolean();
+		} finally {
+			open.atOnce = false;
+			if(open.version != 0){
+				end(open);
+			}
+		}
+	}
+
+	/**
+	 * @return the balances of all accounts as they are right now, until it's closed
+	 */
+	public BalanceSnapshot openSnapshot(){
+		long registered = clock.get();
+		synchronized(this){
+			openSnapshots.merge(registered, 1, Integer::sum);
+			oldestSnapshot = openSnapshots.firstKey();
+		}
+		// read again after registering: a writer that didn't see the registration took a version before
+		// this, so the snapshot is at least as new as that version and doesn't need the balance it replaced
+		long version = clock.get();
+		waitForChangesUpTo(version);
+		return new BalanceSnapshot(this, registered, version);
+	}
+
+	/**
+	 * Waits until every change with a version up to this one is finished. A change that is still
+	 * taking its version may get one below it, so it's waited for too
+	 * @param version
+	 */
+	private void waitForChangesUpTo(long version){
+		for(int slot = 0; slot < SLOTS; slot++){
+			long unfinishedVersion;
+			while((unfinishedVersion = unfinished.get(slot * SLOT_STRIDE)) != 0 && unfinishedVersion <= version){
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Called by the snapshot when it's closed
+	 * @param registered the version the snapshot registered with
+	 */
+	void snapshotClosed(long registered){
+		long oldestBefore;
+		synchronized(this){
+			oldestBefore = oldestSnapshot;
+			openSnapshots.computeIfPresent(registered, (version, count) -> count == 1 ? null : count - 1);
+			oldestSnapshot = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+		}
+		if(oldestSnapshot == oldestBefore){
+			// an older snapshot still needs everything that is kept
+			return;
+		}
+		dropDeletedAccounts();
+		for(Account account : oldVersions){
+			// with the lock, no change of the account is unfinished
+			synchronized(account){
+				// a snapshot that isn't registered yet reads the clock after this, and sees the balance as it is now
+				long oldestNeeded = Math.min(oldestSnapshot, clock.get());
+				Version newest = account.getNewestVersion();
+				if(account.getBalanceVersion() <= oldestNeeded){
+					account.setNewestVersion(null);
+				} else {
+					cut(newest, oldestNeeded);
+				}
+				if(account.getNewestVersion() == null){
+					oldVersions.remove(account);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return every account a snapshot may see, read only. Accounts created or deleted after the
+	 * snapshot are in it too, and skipped by the snapshot
+	 */
+	Set<Account> getAccounts(){
+		return accounts;
+	}
+
+	/**
+	 * @return number of balances kept for the accounts, the current ones and the old ones, to see that
+	 * old versions are dropped
+	 */
+	public long countVersions(){
+		long count = 0;
+		for(Account account : accounts){
+			count++;
+			for(Version version = account.getNewestVersion(); version != null; version = version.older){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the balance of an account at the version of an open snapshot. Every change up to that version
+	 * is finished, a later change writes its version to the account before it changes the balance, and
+	 * keeps the old balance for the snapshot
+	 * @param account
+	 * @param snapshotVersion
+	 * @return the balance in cents, NO_BALANCE if the account didn't have a balance then
+	 */
+	static long balanceAt(Account account, long snapshotVersion){
+		long current = account.getBalanceVersion();
+		if(current != 0 && current <= snapshotVersion){
+			long balance = account.getBalance();
+			if(account.getBalanceVersion() == current){
+				// not changed while it was read
+				return balance;
+			}
+		}
+		Version version = account.getNewestVersion();
+		while(version != null && version.version > snapshotVersion){
+			version = version.older;
+		}
+		return version != null ? version.balance : NO_BALANCE;
+	}
+
+	/**
+	 * Drops the versions that no snapshot needs: those older than the newest version that the oldest
+	 * snapshot can see
+	 * @param newest the newest old version of an account
+	 * @param oldestNeeded
+	 */
+	private static void cut(Version newest, long oldestNeeded){
+		for(Version version = newest; version != null; version = version.older){
+			if(version.version <= oldestNeeded){
+				version.older = null;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a version for the change the thread makes, unless it has one already (see atOnce). The
+	 * version is put in a free slot before it's taken, so a snapshot that reads the clock after it sees it
+	 * @param open the change of the thread
+	 * @return the version
+	 */
+	private long begin(OpenChange open){
+		if(open.version != 0){
+			return open.version;
+		}
+		int slot = open.slot;
+		while(unfinished.get(slot * SLOT_STRIDE) != 0 || !unfinished.compareAndSet(slot * SLOT_STRIDE, 0, TAKING_VERSION)){
+			// taken by another thread, more threads are changing balances than there are slots
+			slot = (slot + 1) & (SLOTS - 1);
+			if(slot == open.slot){
+				Thread.yield();
+			}
+		}
+		long version = clock.incrementAndGet();
+		unfinished.set(slot * SLOT_STRIDE, version);
+		open.slot = slot;
+		open.version = version;
+		return version;
+	}
+
+	/**
+	 * Finishes the change of the thread, snapshots waiting for it can go on
+	 * @param open
+	 */
+	private void end(OpenChange open){
+		unfinished.set(open.slot * SLOT_STRIDE, 0);
+		open.version = 0;
+	}
+
+	private void dropDeletedAccounts(){
+		long oldest = oldestSnapshot;
+		deletedAccounts.removeIf(account -> {
+			if(account.getDeletedVersion() > oldest){
+				// a snapshot from before the delete is still open
+				return false;
+			}
+			accounts.remove(account);
+			oldVersions.remove(account);
+			return true;
+		});
+	}
+
+	/**
+	 * An old balance of an account, from one version on until the next version
+	 */
+	static class Version {
+		final long version;
+		final long balance; // in cents
+		volatile Version older; // null once no snapshot can need it
+
+		Version(long version, long balance, Version older){
+			this.version = version;
+			this.balance = balance;
+			this.older = older;
+		}
+	}
+
+	/**
+	 * The change the thread is making
+	 */
+	private static class OpenChange {
+		long version; // 0 if none
+		int slot = (int) Thread.currentThread().getId() & (SLOTS - 1); // where its version is kept, tried first the next time
+		boolean atOnce; // in atOnce, the version is kept until the change of all accounts is done
+	}
+}
@@ -1,46 +1,86 @@
-package bank;
-
-import java.io.File;
-
-public class Bank {
-	
-	/*
-	 *   Bank should take care of
-	 *   - showing, creating, deleting accounts
-	 *   - holding accounts
-	 *   - searching / filtering accounts
-	 *   - transferring money to / from accounts
-	 *   
-	 *   - An account file writing class? 
-	 *   
-	 *   - some kind of staring menu (options: search, create, transfer, change) 
-	 * 
-	 */
-	
-	private String bankName; 
-	private BankMenu menu; // object containing methods for all option menus
-	private AccountManager accountManager; // handles existing Accounts + their creation/deletion/modification
-	
-	
-	Bank(String bankName, File accountFolder){
-		this.bankName = bankName;
-		this.accountManager = new AccountManager(accountFolder);
-		this.menu = new BankMenu(accountManager);
-	}
-	
-	public void visitBank(){
-		// welcome message
-		System.out.println("Hello and welcome to " + bankName);
-		
-		// start main menu
-		menu.mainMenu();
-		
-		// if we end up here, user has exited main menu and wants to leave
-		exitBank();
-	}
-	
-	public void exitBank(){
-		System.out.println("Godbye!");
-	}
-
-}
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Scanner;
+
+public class Bank {
+	
+	/*
+	 *   Bank should take care of
+	 *   - showing, creating, deleting accounts
+	 *   - holding accounts
+	 *   - searching / filtering accounts
+	 *   - transferring money to / from accounts
+	 *   
+	 *   - An account file writing class? 
+	 *   
+	 *   - some kind of staring menu (options: search, create, transfer, change) 
+	 * 
+	 */
+	
+	private String bankName; 
+	private BankMenu menu; // object containing methods for all option menus
+	private AccountService accountManager; // handles existing Accounts + their creation/deletion/modification
+	
+	
+	Bank(String bankName, File accountFolder){
+		this(bankName, new AccountManager(accountFolder));
+	}
+	
+	Bank(String bankName, AccountService accountManager){
+		this.bankName = bankName;
+		this.accountManager = accountManager;
+		this.menu = new BankMenu(accountManager);
+	}
+	
+	public void visitBank(){
+		// welcome message
+		System.out.println("Hello and welcome to " + bankName);
+		
+		// start main menu
+		menu.mainMenu();
+		
+		// if we end up here, user has exited main menu and wants to leave
+		exitBank();
+	}
+	
+	/**
+	 * Runs a file of operations without the menu (see BatchProcessor), then saves and closes everything
+	 * @param operationsFile
+	 */
+	public void runBatch(File operationsFile){
+		System.out.println(bankName + " is running the batch " + operationsFile.getPath());
+		new BatchProcessor(accountManager).process(operationsFile);
+		accountManager.closeAccountManager();
+	}
+	
+	/**
+	 * Serves clients over the network (see BankServer) until "quit" is typed, then saves and closes everything
+	 * @param port
+	 */
+	public void runServer(int port){
+		BankServer server = new BankServer(accountManager, port);
+		try {
+			server.start();
+		} catch (IOException e) {
+			System.out.println("Could not start the server on port " + port + ": " + e.getMessage());
+			accountManager.closeAccountManager();
+			return;
+		}
+		System.out.println(bankName + " is open for clients, type quit to close");
+		Scanner console = new Scanner(System.in);
+		while(console.hasNextLine()){
+			if(console.nextLine().trim().equalsIgnoreCase("quit")){
+				break;
+			}
+		}
+		server.stop();
+		accountManager.closeAccountManager();
+	}
+	
+	public void exitBank(){
+		System.out.println("Godbye!");
+	}
+
+}
@@ -1,288 +1,394 @@
-package bank;
-
-import java.util.Locale;
-import java.util.Scanner;
-
-/**
- * Class for showing option menus and starting the appropriate process
- * @author Erik
- *
- */
-
-public class BankMenu {
-	
-	private final double QUIT = 5;
-	
-	private AccountManager accountManager;
-	private Scanner stringScanner = new Scanner(System.in);
-	private Scanner numberScanner = new Scanner(System.in);
-	
-	BankMenu(AccountManager accountManager){
-		this.accountManager = accountManager;
-		stringScanner.useLocale(Locale.US);
-	}
-	
-	/**
-	 * Main menu asking to create account or do something with existing account. Branches out to other methods
-	 */
-	public void mainMenu(){
-		// options to choose from
-		double optionUseExistingAccount = 1;
-		double optionNewAccount = 2;
-		double choice = 0;
-		String mainMessage = "What do you want to do?\n1) Do something with an existing account, 2) Create a new account, or 5) Exit bank";
-		
-		boolean accountSelected = false;
-		do {
-			choice = askForAndGetNextDouble(mainMessage);
-			if(choice == optionUseExistingAccount){
-				// make user select account, or search for an account (and select it for use)
-				accountSelected = selectAccount();
-				if(accountSelected){
-					accountOptions();
-				} else {
-					continue;
-				}
-			} else if (choice == optionNewAccount){
-				createNewAccountOptions();
-			}
-			
-		} while(choice != QUIT);
-		// user wants to quit - make sure everything is ok
-		accountManager.closeAccountManager();
-	}
-	
-	
-	/**
-	 * Options for current account (Transactions, Edit, Delete, Show) 
-	 */
-	private void accountOptions() {
-		// options to choose from
-		double oTransaction = 1;
-		double oEdit = 2;
-		double oDelete = 3;
-		double showDetailedInfo = 4;
-
-		double choice = 0;
-		String accountMessage = 	"What do you want to do?\n"
-								+ "1) Make a transaction\n"
-								+ "2) Edit the account\n"
-								+ "3) Delete the account\n"
-								+ "4) Show detailed info\n"
-								+ "5) Exit to main menu";
-		do {
-			choice = askForAndGetNextDouble(accountMessage);
-			
-			// only follow through if an account was selected
-			if(choice == oTransaction){
-				transaction();
-			} else if (choice == oEdit){
-				// edit();
-			} else if (choice == oDelete){
-				delete();
-				// if account was deleted, this menu is irrelevant so quit it
-				break;
-			} else if (choice == showDetailedInfo){
-				// search();
-			}
-
-		} while(choice != QUIT);
-		
-	}
-	private void delete() {
-		System.out.println("Currently selected account is : " + accountManager.getCurrentAccount());
-		
-		double delete = 1;
-		String message = "Are you sure that you want to delete this account?\n"
-						+ "1) Yes, delete it, 5) Cancel ";
-		double choice  = 0;
-		do {
-			choice  = askForAndGetNextDouble(message);
-			if(choice == delete){
-				accountManager.deleteAccount(accountManager.getCurrentAccount());
-				break;
-			} else if(choice == QUIT){
-				break;
-			} else {
-				continue; // invalid input, ask again
-			}
-			
-		} while (true);
-		
-	}
-
-	/**
-	 * Transaction menu - deposit or withdraw
-	 */
-	
-	public void transaction(){
-		double deposit = 1;
-		double withdraw = 2;
-		double choice = 0;
-		String message = "What kind of transaction? 1) Deposit, 2) Withdraw, 5) Go back to previous menu";
-		do {
-			choice = askForAndGetNextDouble(message);
-			if(choice == deposit){
-				deposit();
-			} else if (choice == withdraw){
-				withdraw();
-			}
-		} while(choice != QUIT);
-	}
-	
-	
-	/**
-	 * Deposit menu
-	 */
-	private void deposit() {
-		String message = "Enter an amount: ";
-		boolean depositOK = false;
-		double amount = 0;
-		do {
-			amount = askForAndGetNextDouble(message);
-			depositOK = accountManager.deposit(amount);
-		} while (depositOK == false);
-		
-	}
-	
-	/**
-	 * Withdraw menu
-	 */
-	private void withdraw() {
-		String message = "Enter an amount: ";
-		boolean depositOK = false;
-		double amount = 0;
-		do {
-			amount = askForAndGetNextDouble(message);
-			depositOK = accountManager.withdraw(amount);
-		} while (depositOK == false);
-		
-	}
-
-	/**
-	 * Menu for selecting account - makes that account the current account in AccountManager
-	 */
-	private boolean selectAccount(){
-		Account[] accounts = accountManager.getAllAccounts();
-		System.out.println("The existing " + accounts.length + " accounts are: ");
-		for(Account account : accounts){
-			System.out.println(account);
-		}
-		// options 
-		String oSearch = "search";
-				
-		String message = "Which account do you want to work with? To choose: \n"
-						+ "Enter the account name of one of the existing accounts above,\n"
-						+ "Or enter 'search' to search for account or account info,\n"
-						+ "Or enter 5 to go back to the previous menu: ";
-		String choice ="";
-		do {
-			choice = askForAndGetNextString(message);
-			Account choosenAccount = accountManager.getAccountByAccountName(choice);
-			if(choosenAccount != null){
-				// we don't know what option we made before
-				accountManager.setCurrentAccount(choosenAccount);
-				// account was chosen, return true
-				return true;
-			} else {
-				try{
-					if(Double.parseDouble(choice) == QUIT){ // Throws exception if it cannot be parsed as double
-						// user don't want to select an account. no account selected return false
-						return false;
-					} else if(choice.equalsIgnoreCase(oSearch)){
-						// user wants to search for account ( then do something )
-						search();
-					}else {
-						// user just failed to enter a valid account - try again
-						System.out.println("No account with that name was found.");
-						continue;
-					}
-				} catch(NumberFormatException ex ){
-					// ignore. We know that the exception is not important
-					System.out.println("Unimportant NumberFormatException..");
-				}
-			}
-		} while(true);
-		
-	}
-
-	//TODO: make this a boolean to see if an account was eventually chosen.
-	private void search() {
-		// options
-		double byOwnerName = 1;
-		double byAccountName = 2;
-		double byAccountId = 3;
-		
-		String message = "Search by 1) Owner name, 2) Account name, 3) Account id (or enter 5 to exit) ";
-		double choice = 0;
-		do {
-			choice = askForAndGetNextDouble(message);
-			if(choice == byOwnerName){
-				//TODO: methods for search (in AccountManager)
-				// that return an array with 0 or more Accounts in it? 
-			} else if(choice == byAccountName){
-				
-			}  else if(choice == byAccountId){
-				
-			}
-		} while(choice != QUIT);
-		
-	}
-
-	/**
-	 * Menu for account creation
-	 */
-	public void createNewAccountOptions(){
-		
-		String message = "Enter the name of the account owner: ";
-		String accountOwnerName = askForAndGetNextString(message);
-
-		message = "Enter a name for the account :";
-		String accountName = askForAndGetNextString(message);
-
-		// just use one constructor. if user enters no balance, just send 0
-
-		// create it now? Or enter balance first?
-		message = "Do you want to 1) Enter the starting amount of money first, 2) Create (empty) account now :";
-		double choice  = askForAndGetNextDouble(message);
-
-
-		if(choice == 1){
-			message = "How much should this account have to start with?";
-			double startBalance = askForAndGetNextDouble(message);
-			// use account manager to create the new Account
-			accountManager.createNewAccount(startBalance, accountOwnerName, accountName);
-			// let user choose what to do with this account
-			accountOptions();
-
-		} else {
-			// use account manager to create the new Account - with zero as startBalance
-			accountManager.createNewAccount(0, accountOwnerName, accountName);
-			// let user choose what to do with this account
-			accountOptions();
-		}
-	}
-	
-	public double askForAndGetNextDouble(String askMessage){
-		
-		while(true){
-			System.out.println(askMessage);
-			// if user input can be read as a double
-			if(numberScanner.hasNextDouble()){
-				return numberScanner.nextDouble();
-			} else {
-				// input can not be read as as double. 
-				// blame the user. remove the input and try again
-				System.out.println("That's not a valid input!");
-				numberScanner.nextLine();
-				continue; 
-				
-			}
-		}
-	}
-	
-	public String askForAndGetNextString(String askMessage){
-		System.out.println(askMessage);
-		return stringScanner.nextLine();
-	}
-}
+package bank;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * Class for showing option menus and starting the appropriate process
+ * @author Erik
+ *
+ */
+
+public class BankMenu {
+	
+	private final double QUIT = 5;
+	private static final int TRANSACTIONS_PER_PAGE = 10;
+	private static final int TOP_BALANCES = 10;
+	private static final int SEARCH_RESULTS_PER_PAGE = 10;
+	
+	private AccountService accountManager;
+	private Scanner stringScanner = new Scanner(System.in);
+	private Scanner numberScanner = new Scanner(System.in);
+	
+	BankMenu(AccountService accountManager){
+		this.accountManager = accountManager;
+		stringScanner.useLocale(Locale.US);
+	}
+	
+	/**
+	 * Main menu asking to create account or do something with existing account. Branches out to other methods
+	 */
+	public void mainMenu(){
+		// options to choose from
+		double optionUseExistingAccount = 1;
+		double optionNewAccount = 2;
+		double optionShowTotals = 3;
+		double choice = 0;
+		String mainMessage = "What do you want to do?\n1) Do something with an existing account, 2) Create a new account, 3) Show the bank totals, or 5) Exit bank";
+		
+		boolean accountSelected = false;
+		do {
+			choice = askForAndGetNextDouble(mainMessage);
+			if(choice == optionUseExistingAccount){
+				// make user select account, or search for an account (and select it for use)
+				accountSelected = selectAccount();
+				if(accountSelected){
+					accountOptions();
+				} else {
+					continue;
+				}
+			} else if (choice == optionNewAccount){
+				createNewAccountOptions();
+			} else if (choice == optionShowTotals){
+				showTotals();
+			}
+			
+		} while(choice != QUIT);
+		// user wants to quit - make sure everything is ok
+		accountManager.closeAccountManager();
+	}
+	
+	
+	/**
+	 * Shows the total balance of the bank and the accounts with the biggest balances
+	 */
+	private void showTotals() {
+		System.out.println(accountManager.getTotals());
+		System.out.println("The " + TOP_BALANCES + " biggest balances are: ");
+		for(Account account : accountManager.getTopBalances(TOP_BALANCES)){
+			System.out.println(account);
+		}
+	}
+	
+	/**
+	 * Options for current account (Transactions, Edit, Delete, Show) 
+	 */
+	private void accountOptions() {
+		// options to choose from
+		double oTransaction = 1;
+		double oEdit = 2;
+		double oDelete = 3;
+		double showDetailedInfo = 4;
+
+		double choice = 0;
+		String accountMessage = 	"What do you want to do?\n"
+								+ "1) Make a transaction\n"
+								+ "2) Edit the account\n"
+								+ "3) Delete the account\n"
+								+ "4) Show detailed info\n"
+								+ "5) Exit to main menu";
+		do {
+			choice = askForAndGetNextDouble(accountMessage);
+			
+			// only follow through if an account was selected
+			if(choice == oTransaction){
+				transaction();
+			} else if (choice == oEdit){
+				// edit();
+			} else if (choice == oDelete){
+				delete();
+				// if account was deleted, this menu is irrelevant so quit it
+				break;
+			} else if (choice == showDetailedInfo){
+				showDetailedInfo();
+			}
+
+		} while(choice != QUIT);
+		
+	}
+	/**
+	 * Shows the current account and its latest transactions, then lets the user page back through
+	 * the older ones
+	 */
+	private void showDetailedInfo() {
+		Account account = accountManager.getCurrentAccount();
+		System.out.println(account);
+		accountManager.printLatestTransactions(TRANSACTIONS_PER_PAGE);
+		AccountLedger ledger = accountManager.getLedger(account);
+		long olderThan = ledger.getEntryCount(account) - TRANSACTIONS_PER_PAGE;
+		String message = "1) Show older transactions, 5) Go back to previous menu";
+		while(olderThan > 0 && askForAndGetNextDouble(message) != QUIT){
+			long first = Math.max(0, olderThan - TRANSACTIONS_PER_PAGE);
+			List<LedgerEntry> page = ledger.readPage(account, first, (int) (olderThan - first));
+			for(int i = page.size() - 1; i >= 0; i--){
+				System.out.println(page.get(i));
+			}
+			olderThan = first;
+		}
+	}
+	
+	private void delete() {
+		System.out.println("Currently selected account is : " + accountManager.getCurrentAccount());
+		
+		double delete = 1;
+		String message = "Are you sure that you want to delete this account?\n"
+						+ "1) Yes, delete it, 5) Cancel ";
+		double choice  = 0;
+		do {
+			choice  = askForAndGetNextDouble(message);
+			if(choice == delete){
+				accountManager.deleteAccount(accountManager.getCurrentAccount());
+				break;
+			} else if(choice == QUIT){
+				break;
+			} else {
+				continue; // invalid input, ask again
+			}
+			
+		} while (true);
+		
+	}
+
+	/**
+	 * Transaction menu - deposit, withdraw or transfer
+	 */
+	
+	public void transaction(){
+		double deposit = 1;
+		double withdraw = 2;
+		double transfer = 3;
+		double choice = 0;
+		String message = "What kind of transaction? 1) Deposit, 2) Withdraw, 3) Transfer to another account, 5) Go back to previous menu";
+		do {
+			choice = askForAndGetNextDouble(message);
+			if(choice == deposit){
+				deposit();
+			} else if (choice == withdraw){
+				withdraw();
+			} else if (choice == transfer){
+				transfer();
+			}
+		} while(choice != QUIT);
+	}
+	
+	
+	/**
+	 * Deposit menu
+	 */
+	private void deposit() {
+		String message = "Enter an amount: ";
+		boolean depositOK = false;
+		double amount = 0;
+		do {
+			amount = askForAndGetNextDouble(message);
+			depositOK = accountManager.deposit(amount);
+		} while (depositOK == false);
+		
+	}
+	
+	/**
+	 * Withdraw menu
+	 */
+	private void withdraw() {
+		String message = "Enter an amount: ";
+		boolean depositOK = false;
+		double amount = 0;
+		do {
+			amount = askForAndGetNextDouble(message);
+			depositOK = accountManager.withdraw(amount);
+		} while (depositOK == false);
+		
+	}
+
+	/**
+	 * Transfer menu - moves money from the current account to another account
+	 */
+	private void transfer() {
+		String accountName = askForAndGetNextString("Enter the account name of the account to transfer to: ");
+		Account toAccount = accountManager.getAccountByAccountName(accountName);
+		if(toAccount == null){
+			System.out.println("No account with that name was found.");
+			return;
+		}
+		double amount = askForAndGetNextDouble("Enter an amount: ");
+		Account fromAccount = accountManager.getCurrentAccount();
+		if(accountManager.transfer(fromAccount.getAccountID(), toAccount.getAccountID(), Money.toCents(amount), true)){
+			System.out.println("Transfer OK. Current balance is " + fromAccount.getFormattedBalance());
+		} else {
+			System.out.println("Transfer failed. You can't transfer a negative amount, more than the balance, or to the same account.");
+		}
+	}
+
+	/**
+	 * Menu for selecting account - makes that account the current account in AccountManager
+	 */
+	private boolean selectAccount(){
+		List<Account> accounts = accountManager.getAllAccounts();
+		System.out.println("The existing " + accounts.size() + " accounts are: ");
+		for(Account account : accounts){
+			System.out.println(account);
+		}
+		// options 
+		String oSearch = "search";
+				
+		String message = "Which account do you want to work with? To choose: \n"
+						+ "Enter the account name of one of the existing accounts above,\n"
+						+ "Or enter 'search' to search for account or account info,\n"
+						+ "Or enter 5 to go back to the previous menu: ";
+		String choice ="";
+		do {
+			choice = askForAndGetNextString(message);
+			Account choosenAccount = accountManager.getAccountByAccountName(choice);
+			if(choosenAccount != null){
+				// we don't know what option we made before
+				accountManager.setCurrentAccount(choosenAccount);
+				// account was chosen, return true
+				return true;
+			} else {
+				try{
+					if(Double.parseDouble(choice) == QUIT){ // Throws exception if it cannot be parsed as double
+						// user don't want to select an account. no account selected return false
+						return false;
+					} else if(choice.equalsIgnoreCase(oSearch)){
+						// user wants to search for account ( then do something )
+						search();
+					}else {
+						// user just failed to enter a valid account - try again
+						System.out.println("No account with that name was found.");
+						continue;
+					}
+				} catch(NumberFormatException ex ){
+					// ignore. We know that the exception is not important
+					System.out.println("Unimportant NumberFormatException..");
+				}
+			}
+		} while(true);
+		
+	}
+
+	//TODO: make this a boolean to see if an account was eventually chosen.
+	private void search() {
+		// options
+		double byOwnerName = 1;
+		double byAccountName = 2;
+		double byAccountId = 3;
+		
+		String message = "Search by 1) Owner name, 2) Account name, 3) Account id (or enter 5 to exit) ";
+		double choice = 0;
+		do {
+			choice = askForAndGetNextDouble(message);
+			if(choice == byOwnerName){
+				String ownerName = askForAndGetNextString("Enter the name of the owner, or the start of it: ");
+				printSearchResults(accountManager.searchOwnerNames(ownerName));
+			} else if(choice == byAccountName){
+				String accountName = askForAndGetNextString("Enter the name of the account, or the start of it: ");
+				printSearchResults(accountManager.searchAccountNames(accountName));
+			}  else if(choice == byAccountId){
+				int accountId = (int) askForAndGetNextDouble("Enter the account id: ");
+				Account account = accountManager.getAccountByAccountID(accountId);
+				if(account != null){
+					printSearchResult(new Account[] { account });
+				} else {
+					printSearchResult(new Account[0]);
+				}
+			}
+		} while(choice != QUIT);
+		
+	}
+
+	/**
+	 * Prints the accounts found by a search a page at a time, best matches first
+	 * @param results
+	 */
+	private void printSearchResults(SearchResults results){
+		Account[] page = results.nextPage(SEARCH_RESULTS_PER_PAGE);
+		if(page.length == 0){
+			System.out.println("No matching accounts were found.");
+			return;
+		}
+		System.out.println("Matching accounts, best matches first: ");
+		while(true){
+			for(Account account : page){
+				System.out.println(account);
+			}
+			if(page.length < SEARCH_RESULTS_PER_PAGE || results.isDone()
+					|| askForAndGetNextDouble("1) Show more matches, 5) Stop") == QUIT){
+				return;
+			}
+			page = results.nextPage(SEARCH_RESULTS_PER_PAGE);
+		}
+	}
+
+	/**
+	 * Prints the accounts found by a search, or a message if none were found
+	 * @param foundAccounts
+	 */
+	private void printSearchResult(Account[] foundAccounts){
+		if(foundAccounts.length == 0){
+			System.out.println("No matching accounts were found.");
+			return;
+		}
+		System.out.println("Found " + foundAccounts.length + " matching accounts: ");
+		for(Account account : foundAccounts){
+			System.out.println(account);
+		}
+	}
+
+	/**
+	 * Menu for account creation
+	 */
+	public void createNewAccountOptions(){
+		
+		String message = "Enter the name of the account owner: ";
+		String accountOwnerName = askForAndGetNextString(message);
+
+		message = "Enter a name for the account :";
+		String accountName = askForAndGetNextString(message);
+
+		// just use one constructor. if user enters no balance, just send 0
+
+		// create it now? Or enter balance first?
+		message = "Do you want to 1) Enter the starting amount of money first, 2) Create (empty) account now :";
+		double choice  = askForAndGetNextDouble(message);
+
+
+		if(choice == 1){
+			message = "How much should this account have to start with?";
+			double startBalance = askForAndGetNextDouble(message);
+			// use account manager to create the new Account
+			accountManager.createNewAccount(startBalance, accountOwnerName, accountName);
+			// let user choose what to do with this account
+			accountOptions();
+
+		} else {
+			// use account manager to create the new Account - with zero as startBalance
+			accountManager.createNewAccount(0, accountOwnerName, accountName);
+			// let user choose what to do with this account
+			accountOptions();
+		}
+	}
+	
+	public double askForAndGetNextDouble(String askMessage){
+		
+		while(true){
+			System.out.println(askMessage);
+			// if user input can be read as a double
+			if(numberScanner.hasNextDouble()){
+				return numberScanner.nextDouble();
+			} else {
+				// input can not be read as as double. 
+				// blame the user. remove the input and try again
+				System.out.println("That's not a valid input!");
+				numberScanner.nextLine();
+				continue; 
+				
+			}
+		}
+	}
+	
+	public String askForAndGetNextString(String askMessage){
+		System.out.println(askMessage);
+		return stringScanner.nextLine();
+	}
+}
@@ -0,0 +1,137 @@
+package bank;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets many clients use the same account manager at once over a simple line protocol (see BankSession).
+ * Only listens on the local machine.
+ *
+ * Every connection gets a thread of its own. The threads are given a small stack, so tens of thousands
+ * of them fit, which keeps the sessions as plain blocking code.
+ * @author Erik
+ *
+ */
+public class BankServer {
+
+	public static final int DEFAULT_PORT = 4711;
+	private static final long SESSION_STACK_SIZE = 64 * 1024; // bytes, a session never goes deep
+	private static final int ACCEPT_BACKLOG = 4096; // connections waiting to be accepted
+
+	private AccountService accountManager;
+	private int port;
+	private ServerSocket serverSocket;
+	private Thread acceptor;
+	private Set<BankSession> sessions = ConcurrentHashMap.newKeySet(); // open sessions, closed when the server stops
+	private AtomicLong acceptedConnections = new AtomicLong();
+	private AtomicInteger peakSessions = new AtomicInteger();
+
+	/**
+	 * @param accountManager
+	 * @param port port to listen on, 0 to let the system pick a free one
+	 */
+	BankServer(AccountService accountManager, int port){
+		this.accountManager = accountManager;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening, connections are accepted in the background
+	 * @throws IOException if the port can't be used
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), ACCEPT_BACKLOG);
+		port = serverSocket.getLocalPort();
+		acceptor = new Thread(this::acceptConnections, "bank-server");
+		acceptor.start();
+		System.out.println("Bank server listening on " + serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort(){
+		return port;
+	}
+
+	/**
+	 * Waits until the server is stopped
+	 * @throws InterruptedException
+	 */
+	public void awaitStop() throws InterruptedException {
+		acceptor.join();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open sessions
+	 */
+	public void stop(){
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for(BankSession session : sessions){
+			session.close();
+		}
+		try {
+			acceptor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Bank server stopped after " + acceptedConnections.get() + " connections, at most "
+							+ peakSessions.get() + " at the same time");
+	}
+
+	/**
+	 * @return number of sessions that are open right now
+	 */
+	public int getOpenSessions(){
+		return sessions.size();
+	}
+
+	private void acceptConnections(){
+		while(!serverSocket.isClosed()){
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				// the server socket was closed by stop()
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			acceptedConnections.incrementAndGet();
+			BankSession session = new BankSession(accountManager, socket, this);
+			sessions.add(session);
+			peakSessions.accumulateAndGet(sessions.size(), Math::max);
+			try {
+				new Thread(null, session, "session-" + acceptedConnections.get(), SESSION_STACK_SIZE).start();
+			} catch (OutOfMemoryError e) {
+				// the system won't give us more threads, turn this connection away but keep the others
+				System.out.println("Can't start a thread for another session, closing the connection: " + e.getMessage());
+				session.close();
+				sessionClosed(session);
+			}
+		}
+	}
+
+	/**
+	 * Called by a session when it's over
+	 * @param session
+	 */
+	void sessionClosed(BankSession session){
+		sessions.remove(session);
+	}
+}
@@ -0,0 +1,245 @@
+package bank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * One client connection of the BankServer. The client sends one command per line and gets one
+ * answer per command, starting with OK or ERR:
+ *
+ * SELECT account                      makes an account (id or account name) the selected account of this session
+ * BALANCE                             balance of the selected account
+ * DEPOSIT amount                      deposit to the selected account
+ * WITHDRAW amount                     withdraw from the selected account
+ * CREATE startBalance,owner,name      creates an account and selects it
+ * DELETE                              deletes the selected account
+ * SEARCH OWNER|NAME|ID text           "OK n", followed by n lines "id,owner,account name,balance"
+ * TOTALS [owner]                      "OK total balance,accounts,low balance accounts" of the bank, or "OK balance" of an owner
+ * TOP n                               "OK n", followed by the n accounts with the biggest balances, like SEARCH
+ * QUIT                                closes the connection
+ *
+ * The selected account belongs to the session, so clients don't change each other's current account.
+ * Deposits and withdraws are answered when they are saved to disk.
+ * @author Erik
+ *
+ */
+public class BankSession implements Runnable {
+
+	private static final int BUFFER_SIZE = 512; // small buffers, there can be very many sessions
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private AccountService accountManager;
+	private Socket socket;
+	private BankServer server;
+	private Account selectedAccount; // null until the client selects an account
+
+	BankSession(AccountService accountManager, Socket socket, BankServer server){
+		this.accountManager = accountManager;
+		this.socket = socket;
+		this.server = server;
+	}
+
+	@Override
+	public void run(){
+		try(InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE)){
+			ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(64);
+			String line;
+			while((line = readLine(in, lineBuffer)) != null){
+				String answer;
+				try {
+					answer = handle(line.trim());
+				} catch (NumberFormatException | ArithmeticException e) {
+					answer = "ERR not an amount";
+				} catch (RuntimeException e) {
+					// a broken command must not take the server down
+					answer = "ERR " + e.getMessage();
+				}
+				if(answer == null){
+					break;
+				}
+				out.write(answer.getBytes(StandardCharsets.UTF_8));
+				out.write('\n');
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the client went away, nothing more to do for it
+		} finally {
+			close();
+			server.sessionClosed(this);
+		}
+	}
+
+	/**
+	 * Closes the connection, the session thread ends soon after
+	 */
+	void close(){
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the line without the line break, or null if the connection was closed
+	 */
+	private static String readLine(InputStream in, ByteArrayOutputStream lineBuffer) throws IOException {
+		lineBuffer.reset();
+		int next;
+		while((next = in.read()) != -1){
+			if(next == '\n'){
+				return new String(lineBuffer.toByteArray(), StandardCharsets.UTF_8);
+			}
+			if(lineBuffer.size() >= MAX_LINE_LENGTH){
+				throw new IOException("Line too long");
+			}
+			lineBuffer.write(next);
+		}
+		return lineBuffer.size() > 0 ? new String(lineBuffer.toByteArray(), StandardCharsets.UTF_8) : null;
+	}
+
+	/**
+	 * @param line a command
+	 * @return the answer to the client, null to close the connection
+	 */
+	private String handle(String line){
+		String[] commandAndArgument = line.split(" ", 2);
+		String command = commandAndArgument[0].toUpperCase(Locale.ROOT);
+		String argument = commandAndArgument.length > 1 ? commandAndArgument[1].trim() : "";
+		switch(command){
+		case "SELECT":
+			return select(argument);
+		case "BALANCE":
+			return selectedAccount == null ? "ERR no account selected" : "OK " + selectedAccount.getFormattedBalance();
+		case "DEPOSIT":
+			return deposit(argument);
+		case "WITHDRAW":
+			return withdraw(argument);
+		case "CREATE":
+			return create(argument);
+		case "DELETE":
+			return delete();
+		case "SEARCH":
+			return search(argument);
+		case "TOTALS":
+			return totals(argument);
+		case "TOP":
+			return top(argument);
+		case "QUIT":
+			return null;
+		default:
+			return "ERR unknown command " + command;
+		}
+	}
+
+	private String select(String accountIdOrName){
+		Account account = accountManager.getAccountByIdOrName(accountIdOrName);
+		if(account == null){
+			return "ERR no such account";
+		}
+		selectedAccount = account;
+		return "OK " + describe(account);
+	}
+
+	private String deposit(String amount){
+		if(selectedAccount == null){
+			return "ERR no account selected";
+		}
+		if(!accountManager.deposit(selectedAccount.getAccountID(), Money.parseCents(amount), true)){
+			return "ERR can't deposit a negative amount, or the account was deleted";
+		}
+		return "OK " + selectedAccount.getFormattedBalance();
+	}
+
+	private String withdraw(String amount){
+		if(selectedAccount == null){
+			return "ERR no account selected";
+		}
+		if(!accountManager.withdraw(selectedAccount.getAccountID(), Money.parseCents(amount), true)){
+			return "ERR balance too small, negative amount, or the account was deleted";
+		}
+		return "OK " + selectedAccount.getFormattedBalance();
+	}
+
+	private String create(String argument){
+		String[] fields = argument.split(",", -1);
+		if(fields.length != 3 || fields[1].trim().isEmpty() || fields[2].trim().isEmpty()){
+			return "ERR expected CREATE startBalance,owner,name";
+		}
+		long startBalance = Money.parseCents(fields[0].trim());
+		if(startBalance < 0){
+			return "ERR negative start balance";
+		}
+		Account[] created = accountManager.createNewAccounts(new long[] { startBalance }, new String[] { fields[1].trim() }, new String[] { fields[2].trim() });
+		selectedAccount = created[0];
+		return "OK " + describe(selectedAccount);
+	}
+
+	private String delete(){
+		if(selectedAccount == null){
+			return "ERR no account selected";
+		}
+		accountManager.deleteAccount(selectedAccount);
+		selectedAccount = null;
+		return "OK";
+	}
+
+	private String search(String argument){
+		String[] byAndText = argument.split(" ", 2);
+		String text = byAndText.length > 1 ? byAndText[1].trim() : "";
+		Account[] found;
+		switch(byAndText[0].toUpperCase(Locale.ROOT)){
+		case "OWNER":
+			found = accountManager.getAccountsByOwnerName(text);
+			break;
+		case "NAME":
+			found = accountManager.getAccountsByAccountName(text);
+			break;
+		case "ID":
+			if(!text.matches("[0-9]{1,9}")){
+				return "ERR expected an account id";
+			}
+			Account account = accountManager.getAccountByAccountID(Integer.parseInt(text));
+			found = account == null ? new Account[0] : new Account[] { account };
+			break;
+		default:
+			return "ERR expected SEARCH OWNER|NAME|ID text";
+		}
+		return list(found);
+	}
+
+	private String totals(String owner){
+		BankTotals totals = accountManager.getTotals();
+		if(!owner.isEmpty()){
+			return "OK " + Money.format(totals.getOwnerBalance(owner));
+		}
+		return "OK " + Money.format(totals.getTotalBalance()) + "," + totals.getAccountCount() + "," + totals.getLowBalanceCount();
+	}
+	
+	private String top(String places){
+		if(!places.matches("[0-9]{1,3}") || Integer.parseInt(places) > BankTotals.TOP_PLACES){
+			return "ERR expected TOP n, with n at most " + BankTotals.TOP_PLACES;
+		}
+		return list(accountManager.getTopBalances(Integer.parseInt(places)).toArray(new Account[0]));
+	}
+	
+	private static String list(Account[] accounts){
+		StringBuilder answer = new StringBuilder("OK ").append(accounts.length);
+		for(Account account : accounts){
+			answer.append('\n').append(describe(account));
+		}
+		return answer.toString();
+	}
+	
+	private static String describe(Account account){
+		return account.getAccountID() + "," + account.getOwner() + "," + account.getAccountName() + "," + account.getFormattedBalance();
+	}
+}
@@ -0,0 +1,251 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Bank-wide sums that are kept up to date on every balance change, so reading them doesn't have to
+ * look at every account: the total balance, the number of accounts, the number of accounts with a low
+ * balance, the balance of every owner, and the accounts with the biggest balances (see TopBalances).
+ *
+ * Every account in the account manager points to the OwnerTotal of its owner, and Account.setBalance
+ * passes the change on to it while holding the lock of the account. The sums are LongAdders, so
+ * threads changing different accounts don't fight over one counter. A balance change doesn't allocate
+ * anything here, unless a snapshot is open and BalanceVersions has to keep the old balance for it.
+ *
+ * reconcile() counts everything again from the accounts with parallel streams, to check the sums.
+ * The old balances that snapshots read are kept by BalanceVersions, which is told about every change here.
+ * @author Erik
+ *
+ */
+public class BankTotals {
+
+	public static final long DEFAULT_LOW_BALANCE = 100_00; // in cents
+	public static final int TOP_PLACES = 100; // places that can be asked for
+	private static final int TOP_CAPACITY = 4 * TOP_PLACES; // accounts kept in the top list, so it seldom has to be rebuilt
+
+	private long lowBalance; // in cents, accounts below it are counted as low
+	private LongAdder totalBalance = new LongAdder();
+	private LongAdder accountCount = new LongAdder();
+	private LongAdder lowBalanceCount = new LongAdder();
+	private ConcurrentMap<String, OwnerTotal> owners = new ConcurrentHashMap<String, OwnerTotal>();
+	private TopBalances topBalances = new TopBalances(TOP_CAPACITY);
+	private Supplier<List<Account>> allAccounts; // for a rebuild of the top list
+	private BalanceVersions versions = new BalanceVersions(); // old balances for the snapshots
+
+	/**
+	 * @param lowBalance in cents, accounts with less are counted as low
+	 * @param allAccounts gives a copy of all accounts, used when the top list has to be rebuilt
+	 */
+	BankTotals(long lowBalance, Supplier<List<Account>> allAccounts){
+		this.lowBalance = lowBalance;
+		this.allAccounts = allAccounts;
+	}
+
+	/**
+	 * Counts an account and its balance, from now on its changes are counted too
+	 * @param account
+	 */
+	public void accountAdded(Account account){
+		String owner = NameIndex.key(account.getOwner());
+		OwnerTotal ownerTotal = owners.compute(owner, (key, existing) -> {
+			OwnerTotal total = existing != null ? existing : new OwnerTotal(this);
+			total.accounts++;
+			return total;
+		});
+		synchronized(account){
+			long balance = account.getBalance();
+			account.setOwnerTotal(ownerTotal);
+			ownerTotal.add(balance);
+			totalBalance.add(balance);
+			accountCount.increment();
+			if(balance < lowBalance){
+				lowBalanceCount.increment();
+			}
+			topBalances.update(account, balance);
+			versions.accountAdded(account, balance);
+		}
+	}
+
+	/**
+	 * Stops counting an account
+	 * @param account
+	 */
+	public void accountRemoved(Account account){
+		OwnerTotal ownerTotal;
+		synchronized(account){
+			ownerTotal = account.getOwnerTotal();
+			if(ownerTotal == null){
+				return;
+			}
+			long balance = account.getBalance();
+			account.setOwnerTotal(null);
+			ownerTotal.add(-balance);
+			totalBalance.add(-balance);
+			accountCount.decrement();
+			if(balance < lowBalance){
+				lowBalanceCount.decrement();
+			}
+			topBalances.remove(account);
+			versions.accountRemoved(account);
+		}
+		// forget owners without accounts, the sum of the last one is 0 by now
+		owners.computeIfPresent(NameIndex.key(account.getOwner()), (key, total) -> --total.accounts == 0 ? null : total);
+	}
+
+	/**
+	 * Called by the account, while holding its lock, right before its balance changes
+	 * @param account
+	 * @param oldBalance in cents
+	 */
+	void balanceChanging(Account account, long oldBalance){
+		versions.balanceChanging(account, oldBalance);
+	}
+
+	/**
+	 * Called by the account, while holding its lock, after its balance changed
+	 * @param account
+	 * @param oldBalance in cents
+	 * @param newBalance in cents
+	 */
+	void balanceChanged(Account account, long oldBalance, long newBalance){
+		totalBalance.add(newBalance - oldBalance);
+		if(oldBalance < lowBalance != newBalance < lowBalance){
+			if(newBalance < lowBalance){
+				lowBalanceCount.increment();
+			} else {
+				lowBalanceCount.decrement();
+			}
+		}
+		topBalances.update(account, newBalance);
+		versions.balanceChanged(account);
+	}
+
+	/**
+	 * @return the versions of the balances of the accounts counted here, for snapshots and for changes
+	 * of several accounts at once
+	 */
+	public BalanceVersions getVersions(){
+		return versions;
+	}
+
+	/**
+	 * @return the sum of all balances, in cents
+	 */
+	public long getTotalBalance(){
+		return totalBalance.sum();
+	}
+
+	public long getAccountCount(){
+		return accountCount.sum();
+	}
+
+	/**
+	 * @return number of accounts with less than the low balance
+	 */
+	public long getLowBalanceCount(){
+		return lowBalanceCount.sum();
+	}
+
+	/**
+	 * @return the balance that counts as low, in cents
+	 */
+	public long getLowBalance(){
+		return lowBalance;
+	}
+
+	/**
+	 * @param owner name of the owner, case doesn't matter
+	 * @return the sum of the balances of all accounts of the owner, in cents. 0 if there are none
+	 */
+	public long getOwnerBalance(String owner){
+		OwnerTotal ownerTotal = owners.get(NameIndex.key(owner));
+		return ownerTotal != null ? ownerTotal.get() : 0;
+	}
+
+	/**
+	 * @param places number of places, at most TOP_PLACES
+	 * @return the accounts with the biggest balances, biggest first
+	 */
+	public List<Account> getTopBalances(int places){
+		if(places > TOP_PLACES){
+			throw new IllegalArgumentException("At most " + TOP_PLACES + " places are kept, asked for " + places);
+		}
+		List<Account> top = topBalances.top(places);
+		if(top == null){
+			// too many of the biggest accounts got smaller
+			topBalances.rebuild(allAccounts.get());
+			top = topBalances.top(places);
+		}
+		return top != null ? top : TopBalances.biggest(allAccounts.get(), places);
+	}
+
+	/**
+	 * Counts everything again from the accounts, in parallel, and compares it to the sums. Balances that
+	 * change while this runs can show up as differences, so run it when the bank is quiet, or run it again
+	 * @param accounts all accounts
+	 * @return the differences found, empty if the sums are right
+	 */
+	public List<String> reconcile(Collection<Account> accounts){
+		List<String> differences = new ArrayList<String>();
+		long countedTotal = accounts.parallelStream().mapToLong(Account::getBalance).sum();
+		long countedLow = accounts.parallelStream().filter(account -> account.getBalance() < lowBalance).count();
+		Map<String, Long> countedOwners = accounts.parallelStream().collect(Collectors.groupingByConcurrent(
+				account -> NameIndex.key(account.getOwner()), Collectors.summingLong(Account::getBalance)));
+		compare(differences, "total balance", getTotalBalance(), countedTotal);
+		compare(differences, "accounts", getAccountCount(), accounts.size());
+		compare(differences, "low balance accounts", getLowBalanceCount(), countedLow);
+		compare(differences, "owners", owners.size(), countedOwners.size());
+		for(Map.Entry<String, Long> owner : countedOwners.entrySet()){
+			compare(differences, "balance of owner " + owner.getKey(), getOwnerBalance(owner.getKey()), owner.getValue());
+		}
+		List<Account> top = getTopBalances(TOP_PLACES);
+		List<Account> countedTop = TopBalances.biggest(accounts, TOP_PLACES);
+		for(int place = 0; place < Math.max(top.size(), countedTop.size()); place++){
+			// accounts with the same balance can be in either order
+			long balance = place < top.size() ? top.get(place).getBalance() : -1;
+			long countedBalance = place < countedTop.size() ? countedTop.get(place).getBalance() : -1;
+			compare(differences, "balance at top place " + (place + 1), balance, countedBalance);
+		}
+		return differences;
+	}
+
+	private static void compare(List<String> differences, String what, long kept, long counted){
+		if(kept != counted){
+			differences.add(what + " is " + kept + ", but counted " + counted);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "Total balance " + Money.format(getTotalBalance()) + " in " + getAccountCount() + " accounts, "
+				+ getLowBalanceCount() + " of them with less than " + Money.format(lowBalance);
+	}
+
+	/**
+	 * The sum of the balances of one owner. The number of accounts is only changed inside a compute of the
+	 * owner map, the sum by the accounts themselves
+	 */
+	static class OwnerTotal extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+
+		final BankTotals totals;
+		int accounts;
+
+		OwnerTotal(BankTotals totals){
+			this.totals = totals;
+		}
+
+		void add(long amount){
+			addAndGet(amount);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package bank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a file of operations against an account manager, without the menu. One operation per line:
+ *
+ * create,startBalance,owner,accountName
+ * deposit,account,amount
+ * withdraw,account,amount
+ * delete,account
+ *
+ * where account is an account id if it's a number, else an account name. Amounts are in kronor with
+ * at most two decimals. Empty lines and lines starting with # are skipped.
+ *
+ * The lines go through three stages, each in its own thread: parse, validate and apply. Stages hand
+ * over chunks of operations through small bounded queues, so only a few chunks are in memory at a time
+ * however big the file is. A stage that is ahead waits for the next one.
+ * Lines that can't be done are reported with their line number, the rest of the file still runs.
+ * @author Erik
+ *
+ */
+public class BatchProcessor {
+
+	private static final int OPERATIONS_PER_CHUNK = 1024;
+	private static final int CHUNKS_BETWEEN_STAGES = 16;
+	// put last in a queue, tells the next stage there is nothing more
+	private static final List<Operation> END = Collections.emptyList();
+
+	private AccountService accountManager;
+	private long lines; // lines with an operation
+	private long applied;
+	private long rejected;
+
+	BatchProcessor(AccountService accountManager){
+		this.accountManager = accountManager;
+	}
+
+	/**
+	 * Runs all operations of a file, in file order, and prints a summary
+	 * @param operationsFile
+	 */
+	public void process(File operationsFile){
+		long startTime = System.nanoTime();
+		BlockingQueue<List<Operation>> parsed = new ArrayBlockingQueue<List<Operation>>(CHUNKS_BETWEEN_STAGES);
+		BlockingQueue<List<Operation>> validated = new ArrayBlockingQueue<List<Operation>>(CHUNKS_BETWEEN_STAGES);
+		Thread parser = new Thread(() -> parse(operationsFile, parsed), "batch-parser");
+		Thread validator = new Thread(() -> validate(parsed, validated), "batch-validator");
+		// daemons, so a failing apply stage can't leave the program hanging on them
+		parser.setDaemon(true);
+		validator.setDaemon(true);
+		parser.start();
+		validator.start();
+		try {
+			apply(validated);
+			parser.join();
+			validator.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			parser.interrupt();
+			validator.interrupt();
+		}
+		printSummary(operationsFile, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Stage 1: reads the file and splits the lines into operations
+	 */
+	private void parse(File operationsFile, BlockingQueue<List<Operation>> parsed){
+		try {
+			try(BufferedReader reader = new BufferedReader(new FileReader(operationsFile))){
+				List<Operation> chunk = new ArrayList<Operation>(OPERATIONS_PER_CHUNK);
+				String line;
+				long lineNumber = 0;
+				while((line = reader.readLine()) != null){
+					lineNumber++;
+					String trimmed = line.trim();
+					if(trimmed.isEmpty() || trimmed.startsWith("#")){
+						continue;
+					}
+					chunk.add(parseLine(lineNumber, trimmed));
+					if(chunk.size() == OPERATIONS_PER_CHUNK){
+						parsed.put(chunk);
+						chunk = new ArrayList<Operation>(OPERATIONS_PER_CHUNK);
+					}
+				}
+				if(!chunk.isEmpty()){
+					parsed.put(chunk);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not read the batch file " + operationsFile.getPath() + ": " + e.getMessage());
+			} finally {
+				parsed.put(END);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Operation parseLine(long lineNumber, String line){
+		Operation operation = new Operation(lineNumber, line);
+		String[] fields = line.split(",", -1);
+		String type = fields[0].trim().toLowerCase(Locale.ROOT);
+		try {
+			if(type.equals("create") && fields.length == 4){
+				operation.type = OperationType.CREATE;
+				operation.amount = Money.parseCents(fields[1].trim());
+				operation.owner = fields[2].trim();
+				operation.accountName = fields[3].trim();
+			} else if((type.equals("deposit") || type.equals("withdraw")) && fields.length == 3){
+				operation.type = type.equals("deposit") ? OperationType.DEPOSIT : OperationType.WITHDRAW;
+				operation.setAccount(fields[1].trim());
+				operation.amount = Money.parseCents(fields[2].trim());
+			} else if(type.equals("delete") && fields.length == 2){
+				operation.type = OperationType.DELETE;
+				operation.setAccount(fields[1].trim());
+			} else {
+				operation.rejection = "unknown operation or wrong number of fields";
+			}
+		} catch (NumberFormatException | ArithmeticException e) {
+			operation.rejection = "not an amount";
+		}
+		return operation;
+	}
+
+	/**
+	 * Stage 2: checks everything that doesn't depend on the accounts, with the same rules as the account manager
+	 */
+	private void validate(BlockingQueue<List<Operation>> parsed, BlockingQueue<List<Operation>> validated){
+		try {
+			List<Operation> chunk;
+			while((chunk = parsed.take()) != END){
+				for(Operation operation : chunk){
+					if(operation.rejection == null){
+						operation.rejection = validationError(operation);
+					}
+				}
+				validated.put(chunk);
+			}
+			validated.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String validationError(Operation operation){
+		switch(operation.type){
+		case CREATE:
+			if(operation.amount < 0){
+				return "negative start balance";
+			}
+			if(operation.owner.isEmpty() || operation.accountName.isEmpty()){
+				return "owner and account name can't be empty";
+			}
+			return null;
+		case DEPOSIT:
+		case WITHDRAW:
+			if(operation.amount < 0){
+				return "negative amount";
+			}
+			return operation.accountKey.isEmpty() ? "no account given" : null;
+		case DELETE:
+			return operation.accountKey.isEmpty() ? "no account given" : null;
+		default:
+			return "unknown operation";
+		}
+	}
+
+	/**
+	 * Stage 3: does the operations against the account manager, in file order. Checks that need
+	 * the accounts (does it exist, is the balance big enough) are made here
+	 */
+	private void apply(BlockingQueue<List<Operation>> validated) throws InterruptedException {
+		List<Operation> chunk;
+		while((chunk = validated.take()) != END){
+			int next = 0;
+			while(next < chunk.size()){
+				int end = next;
+				while(end < chunk.size() && isValidCreate(chunk.get(end))){
+					end++;
+				}
+				if(end > next){
+					// accounts created one after the other are created with one call
+					createAccounts(chunk.subList(next, end));
+				} else {
+					Operation operation = chunk.get(next);
+					if(operation.rejection == null){
+						operation.rejection = applyToAccount(operation);
+					}
+					end = next + 1;
+				}
+				for(Operation operation : chunk.subList(next, end)){
+					report(operation);
+				}
+				next = end;
+			}
+		}
+	}
+
+	private static boolean isValidCreate(Operation operation){
+		return operation.rejection == null && operation.type == OperationType.CREATE;
+	}
+
+	private void report(Operation operation){
+		lines++;
+		if(operation.rejection == null){
+			applied++;
+		} else {
+			rejected++;
+			System.out.println("Line " + operation.lineNumber + " rejected (" + operation.rejection + "): " + operation.line);
+		}
+	}
+
+	/**
+	 * Creates accounts with one call. Creating can't fail once validated
+	 */
+	private void createAccounts(List<Operation> creates){
+		long[] startBalances = new long[creates.size()];
+		String[] owners = new String[creates.size()];
+		String[] accountNames = new String[creates.size()];
+		for(int i = 0; i < startBalances.length; i++){
+			startBalances[i] = creates.get(i).amount;
+			owners[i] = creates.get(i).owner;
+			accountNames[i] = creates.get(i).accountName;
+		}
+		accountManager.createNewAccounts(startBalances, owners, accountNames);
+	}
+
+	/**
+	 * @return why the operation was rejected, or null if it was done
+	 */
+	private String applyToAccount(Operation operation){
+		Account account = operation.accountId >= 0
+				? accountManager.getAccountByAccountID(operation.accountId)
+				: accountManager.getAccountByAccountName(operation.accountKey);
+		if(account == null){
+			return "no such account";
+		}
+		switch(operation.type){
+		case DEPOSIT:
+			return accountManager.deposit(account.getAccountID(), operation.amount) ? null : "deposit refused";
+		case WITHDRAW:
+			return accountManager.withdraw(account.getAccountID(), operation.amount) ? null : "balance too small";
+		case DELETE:
+			accountManager.deleteAccount(account);
+			return null;
+		default:
+			return "unknown operation";
+		}
+	}
+
+	private void printSummary(File operationsFile, long elapsedNanos){
+		double elapsedSeconds = elapsedNanos / 1e9;
+		System.out.println(String.format(Locale.US,
+				"Batch %s: %d operations in %.1f ms (%.0f operations/second), %d applied, %d rejected",
+				operationsFile.getPath(),
+				lines,
+				elapsedNanos / 1e6,
+				elapsedSeconds > 0 ? lines / elapsedSeconds : 0,
+				applied,
+				rejected));
+	}
+
+	private enum OperationType { CREATE, DEPOSIT, WITHDRAW, DELETE }
+
+	/**
+	 * One line of the file, filled in by the stages
+	 */
+	private static class Operation {
+		final long lineNumber;
+		final String line;
+		OperationType type;
+		String accountKey = ""; // as written in the file
+		int accountId = -1; // -1 if the account is given by name
+		long amount; // in cents
+		String owner;
+		String accountName;
+		String rejection; // why the line was rejected, null while it's fine
+
+		Operation(long lineNumber, String line){
+			this.lineNumber = lineNumber;
+			this.line = line;
+		}
+
+		void setAccount(String accountKey){
+			this.accountKey = accountKey;
+			if(!accountKey.isEmpty() && accountKey.length() < 10 && accountKey.chars().allMatch(Character::isDigit)){
+				accountId = Integer.parseInt(accountKey);
+			}
+		}
+	}
+}
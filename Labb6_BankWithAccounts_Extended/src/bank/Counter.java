@@ -0,0 +1,54 @@
+package bank;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A number that many threads can add to without waiting for each other. Used for counting things
+ * (only while the metrics are on) and for gauges that go up and down (always counted, see Metrics)
+ * @author Erik
+ *
+ */
+public class Counter {
+
+	private final String name;
+	private final boolean alwaysCounted;
+	private final LongAdder value = new LongAdder();
+
+	/**
+	 * @param name
+	 * @param alwaysCounted true for a gauge that has to be right whenever the metrics are turned on,
+	 * false for a counter that only counts while they are on
+	 */
+	Counter(String name, boolean alwaysCounted){
+		this.name = name;
+		this.alwaysCounted = alwaysCounted;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public void increment(){
+		add(1);
+	}
+
+	public void decrement(){
+		add(-1);
+	}
+
+	public void add(long amount){
+		if(alwaysCounted || Metrics.isEnabled()){
+			value.add(amount);
+		}
+	}
+
+	public long get(){
+		return value.sum();
+	}
+
+	void reset(){
+		if(!alwaysCounted){
+			value.reset();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package bank;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Saves and loads as custom JFR events, bank.Save and bank.AccountLoad, so they show up in a flight
+ * recording next to the garbage collections and the file I/O of the JVM. They are recorded like the
+ * rest of the metrics, so only while the metrics are on, and JFR keeps them only while a recording
+ * with them enabled runs (they are enabled by default).
+ *
+ * The API for custom events is in OpenJDK 8u262 and later. Metrics only loads this class after it
+ * found jdk.jfr.Event, so the bank still runs on an older Java 8, only without these events. Compiling
+ * it needs a JDK that has the API.
+ * @author Erik
+ *
+ */
+public class FlightRecorderEvents implements Metrics.EventListener {
+
+	FlightRecorderEvents(){
+	}
+
+	@Override
+	public void eventHappened(LatencyHistogram histogram, int accountId, long nanos){
+		BankEvent event = histogram == Metrics.ACCOUNT_LOAD ? new AccountLoadEvent() : new SaveEvent();
+		if(event.shouldCommit()){
+			event.accountId = accountId;
+			event.took = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * The fields of both events. The time is measured by the bank before the event is made, so it's
+	 * a field and not the duration of the event
+	 */
+	abstract static class BankEvent extends Event {
+
+		@Label("Account Id")
+		@Description("The account, -1 if it was for many accounts")
+		int accountId;
+
+		@Label("Took")
+		@Timespan(Timespan.NANOSECONDS)
+		long took;
+	}
+
+	@Name("bank.Save")
+	@Label("Save")
+	@Category("Bank")
+	@Description("An account, or a batch of accounts, written by the storage")
+	static class SaveEvent extends BankEvent {
+	}
+
+	@Name("bank.AccountLoad")
+	@Label("Account Load")
+	@Category("Bank")
+	@Description("An account read from its file")
+	static class AccountLoadEvent extends BankEvent {
+	}
+}
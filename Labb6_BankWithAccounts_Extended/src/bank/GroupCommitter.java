@@ -0,0 +1,292 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Makes changed accounts durable in groups. Every change queues a commit, and a background thread
+ * (the flusher) takes the queued commits and flushes them to the storage with one write and sync
+ * for the whole group, after syncing the ledger entries of the changes. A group is flushed when it
+ * has maxBatchSize commits, or when the oldest commit in it has waited flushIntervalMillis,
+ * whichever comes first.
+ * 
+ * An account has at most one commit waiting in the queue. More changes to the account join that
+ * commit, so a hot account is written once per flush and the queue never grows beyond the number of accounts.
+ *
+ * A caller can ignore the future returned by commit (fire and forget), or wait for it to know
+ * the change is on disk. Never wait while holding the lock of an account, the flusher may need that lock.
+ * 
+ * A flush that fails, for any reason, completes the futures of its group exceptionally. If the
+ * flusher thread dies, every commit waiting for it and every commit made after it fails too.
+ * @author Erik
+ *
+ */
+public class GroupCommitter {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+	private static final Commit STOP = new Commit(null); // queued by close(), the flusher stops when it gets here
+
+	private final AccountStorage storage;
+	private volatile AccountLedger ledger; // synced in every flush, null if there is none
+	private final int maxBatchSize;
+	private final long flushIntervalNanos;
+	private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+	private final ConcurrentHashMap<Account, Commit> pending = new ConcurrentHashMap<Account, Commit>(); // queued commits, not yet taken by a flush
+	private final Thread flusher;
+	private volatile boolean closed = false;
+	private volatile Throwable failure; // what killed the flusher thread, nothing is flushed after it
+
+	// statistics
+	private final long startTime = System.nanoTime();
+	private final AtomicLong fsyncs = new AtomicLong();
+	private final LongAdder changes = new LongAdder();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * Starts the flusher thread
+	 * @param storage where the accounts are flushed to
+	 * @param maxBatchSize the largest number of commits flushed together
+	 * @param flushIntervalMillis the longest time a commit waits for more commits to join its group
+	 */
+	GroupCommitter(AccountStorage storage, int maxBatchSize, long flushIntervalMillis){
+		if(maxBatchSize < 1 || flushIntervalMillis < 0){
+			throw new IllegalArgumentException("The batch size must be at least 1 and the flush interval can't be negative");
+		}
+		this.storage = storage;
+		this.maxBatchSize = maxBatchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.flusher = new Thread(this::flushUntilClosed, "group-commit-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Queues a commit of the changes made to an account so far
+	 * @param account
+	 * @return completes when the changes are durable. Completes exceptionally if the flush failed
+	 */
+	public CompletableFuture<Void> commit(Account account){
+		changes.increment();
+		Commit commit = pending.get(account);
+		if(commit != null){
+			// joins the queued commit, it isn't written yet so this change will be written with it
+			return commit.done;
+		}
+		Commit newCommit = new Commit(account);
+		commit = pending.putIfAbsent(account, newCommit);
+		if(commit != null){
+			return commit.done;
+		}
+		queue.add(newCommit);
+		// if close() has already taken what was left in the queue, or the flusher died, nobody will flush this commit
+		if((closed || failure != null) && queue.remove(newCommit)){
+			pending.remove(account, newCommit);
+			Throwable cause = failure;
+			newCommit.done.completeExceptionally(cause != null ? cause : new IllegalStateException("The group committer is closed"));
+		}
+		return newCommit.done;
+	}
+
+	/**
+	 * @param ledger synced in every flush before the storage, so no change is reported durable before its ledger entry is
+	 */
+	void setLedger(AccountLedger ledger){
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Flushes everything that is queued and stops the flusher thread
+	 */
+	public void close(){
+		closed = true;
+		// not interrupted, an interrupt in the middle of a write would close the file channels of the storage
+		queue.add(STOP);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// commits queued after the stop marker
+		List<Commit> rest = new ArrayList<Commit>();
+		queue.drainTo(rest);
+		while(!rest.isEmpty()){
+			List<Commit> batch = rest.subList(0, Math.min(maxBatchSize, rest.size()));
+			flush(new ArrayList<Commit>(batch));
+			batch.clear();
+		}
+	}
+
+	private void flushUntilClosed(){
+		List<Commit> batch = new ArrayList<Commit>(maxBatchSize);
+		boolean stopping = false;
+		try {
+			while(!stopping){
+				try {
+					collectBatch(batch);
+				} catch (InterruptedException e) {
+					failAll(new IllegalStateException("The group committer was interrupted"));
+					return;
+				}
+				// everything queued before the stop marker is flushed before stopping
+				stopping = batch.remove(STOP);
+				if(!batch.isEmpty()){
+					flush(batch);
+					batch.clear();
+				}
+			}
+		} catch (Throwable e) {
+			// flush() has failed the batch already, the rest would wait forever
+			failAll(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Fails every queued commit, after the flusher has stopped for good
+	 * @param cause
+	 */
+	private void failAll(Throwable cause){
+		failure = cause;
+		List<Commit> rest = new ArrayList<Commit>();
+		queue.drainTo(rest);
+		for(Commit commit : rest){
+			if(commit != STOP){
+				pending.remove(commit.account, commit);
+				commit.done.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the first commit, then for more until the batch is full or the first commit has waited long enough
+	 */
+	private void collectBatch(List<Commit> batch) throws InterruptedException {
+		Commit first = queue.take();
+		batch.add(first);
+		long deadline = first.queuedAt + flushIntervalNanos;
+		while(batch.size() < maxBatchSize){
+			// take whatever is already queued without waiting
+			queue.drainTo(batch, maxBatchSize - batch.size());
+			long remaining = deadline - System.nanoTime();
+			if(batch.size() >= maxBatchSize || remaining <= 0){
+				return;
+			}
+			Commit next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if(next == null){
+				return;
+			}
+			batch.add(next);
+		}
+	}
+
+	private void flush(List<Commit> batch){
+		List<Account> accounts = new ArrayList<Account>(batch.size());
+		for(Commit commit : batch){
+			// changes made from now on need a new commit, this one may already have written the account
+			pending.remove(commit.account, commit);
+			accounts.add(commit.account);
+		}
+		try {
+			AccountLedger changesLedger = ledger;
+			if(changesLedger != null){
+				changesLedger.flush();
+			}
+			storage.flush(accounts);
+		} catch (Throwable e){
+			e.printStackTrace();
+			for(Commit commit : batch){
+				commit.done.completeExceptionally(e);
+			}
+			if(e instanceof Error){
+				throw (Error) e;
+			}
+			return;
+		}
+		fsyncs.incrementAndGet();
+		long now = System.nanoTime();
+		for(Commit commit : batch){
+			long latency = now - commit.queuedAt;
+			totalLatencyNanos.addAndGet(latency);
+			long max = maxLatencyNanos.get();
+			while(latency > max && !maxLatencyNanos.compareAndSet(max, latency)){
+				max = maxLatencyNanos.get();
+			}
+			commit.done.complete(null);
+		}
+		commits.addAndGet(batch.size());
+	}
+
+	/**
+	 * @return number of flushes (write and sync of a batch) so far
+	 */
+	public long getFsyncCount(){
+		return fsyncs.get();
+	}
+
+	/**
+	 * @return average number of flushes per second since the group committer was started
+	 */
+	public double getFsyncsPerSecond(){
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return seconds > 0 ? fsyncs.get() / seconds : 0;
+	}
+
+	/**
+	 * @return number of changes committed so far, durable or not
+	 */
+	public long getChangeCount(){
+		return changes.sum();
+	}
+
+	/**
+	 * @return number of commits that are durable. Each is one or more changes to one account
+	 */
+	public long getCommitCount(){
+		return commits.get();
+	}
+
+	/**
+	 * @return average time from commit to durable, in microseconds. Counted from the first change in the commit
+	 */
+	public double getAverageCommitLatencyMicros(){
+		long count = commits.get();
+		return count > 0 ? totalLatencyNanos.get() / 1000.0 / count : 0;
+	}
+
+	/**
+	 * @return longest time from commit to durable, in microseconds
+	 */
+	public double getMaxCommitLatencyMicros(){
+		return maxLatencyNanos.get() / 1000.0;
+	}
+
+	public void printStatistics(){
+		System.out.println(String.format(Locale.US, "Group commit: %d changes, %d commits in %d fsyncs (%.1f fsyncs/second), commit latency %.1f us average, %.1f us max",
+				getChangeCount(),
+				getCommitCount(),
+				getFsyncCount(),
+				getFsyncsPerSecond(),
+				getAverageCommitLatencyMicros(),
+				getMaxCommitLatencyMicros()));
+	}
+
+	private static class Commit {
+		final Account account;
+		final long queuedAt = System.nanoTime();
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Commit(Account account){
+			this.account = account;
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package bank;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pays a month of interest to every account, while the bank is open.
+ *
+ * The accounts are split into chunks by account id (IDS_PER_CHUNK ids each) and the chunks are paid
+ * in parallel by a fork/join pool. Every payment takes only the lock of its account, like a deposit,
+ * so deposits and withdraws go on while the job runs. The interest is a transaction of its own, and is
+ * written to the ledger as INTEREST.
+ *
+ * Every account knows the last month it was paid interest for, and the storage saves that month
+ * together with the balance, so an account is never paid twice for a month. The progress of the job
+ * is kept in the file "interest/yyyy-MM.progress" in the account folder: the highest account id that
+ * is paid for the month (accounts opened after the job started wait for the next month), the rate, and
+ * the chunks that are paid and saved. A job that was stopped or crashed continues with the chunks that
+ * aren't done, when it's run again for the same month.
+ * @author Erik
+ *
+ */
+public class InterestJob {
+
+	public static final String FOLDER_NAME = "interest";
+	public static final BigDecimal DEFAULT_ANNUAL_RATE_PERCENT = new BigDecimal("7.93");
+	private static final int IDS_PER_CHUNK = 1024; // accounts paid and saved together
+	private static final long CHECKPOINT_INTERVAL_MILLIS = 1000; // longest time between writes of the progress file
+
+	private AccountManager accountManager;
+	private File progressFile;
+	private YearMonth month;
+	private int period;
+	private BigDecimal monthlyRate; // 0.005 for half a percent a month
+	private int threads;
+
+	// progress, saved in the progress file
+	private int lastAccountId;
+	private BitSet doneChunks = new BitSet();
+	private boolean finished;
+	private long lastCheckpointMillis;
+
+	private LongAdder paidAccounts = new LongAdder();
+	private LongAdder skippedAccounts = new LongAdder(); // paid for the month already, or deleted
+	private LongAdder paidInterest = new LongAdder(); // in cents
+	private volatile boolean stopped;
+	private CountDownLatch done = new CountDownLatch(1);
+	private double accountsPerSecond;
+
+	/**
+	 * @param accountManager
+	 * @param accountFolder the progress is kept in the folder "interest" inside this folder
+	 * @param month the month interest is paid for
+	 * @param annualRatePercent interest per year in percent, a twelfth of it is paid. Ignored if the job was
+	 * started for the month before, the rate it was started with is used
+	 * @param threads number of threads that pay interest
+	 */
+	InterestJob(AccountManager accountManager, File accountFolder, YearMonth month, BigDecimal annualRatePercent, int threads){
+		this.accountManager = accountManager;
+		this.progressFile = new File(new File(accountFolder, FOLDER_NAME), month + ".progress");
+		this.month = month;
+		this.period = periodOf(month);
+		this.monthlyRate = annualRatePercent.divide(BigDecimal.valueOf(1200), MathContext.DECIMAL64);
+		this.threads = threads;
+	}
+
+	/**
+	 * Pays interest to every account that hasn't been paid for the month, and prints how long it took
+	 * @param accounts all accounts
+	 * @return number of accounts that were paid by this run
+	 */
+	public long run(Collection<Account> accounts){
+		try {
+			if(!readProgress(accounts)){
+				return 0;
+			}
+			long start = System.nanoTime();
+			List<Account[]> chunks = new ArrayList<Account[]>();
+			List<Integer> chunkNumbers = new ArrayList<Integer>();
+			splitIntoChunks(accounts, chunks, chunkNumbers);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new PayChunks(chunks, chunkNumbers, 0, chunks.size()));
+			} finally {
+				pool.shutdown();
+			}
+			long elapsedNanos = System.nanoTime() - start;
+			long accountsDone = paidAccounts.sum() + skippedAccounts.sum();
+			accountsPerSecond = accountsDone / Math.max(elapsedNanos / 1e9, 1e-9);
+			synchronized(this){
+				finished = !stopped;
+				writeProgress();
+			}
+			System.out.println(String.format("Paid %s of interest for %s to %d accounts (%d were paid already) in %.1f ms, %.0f accounts/second%s",
+					Money.format(paidInterest.sum()), month, paidAccounts.sum(), skippedAccounts.sum(), elapsedNanos / 1e6,
+					accountsPerSecond, finished ? "" : ". Stopped, the rest is paid when the job is run again"));
+			return paidAccounts.sum();
+		} finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Stops paying after the chunks that are being paid now, and waits for the job to save its progress
+	 */
+	public void stop(){
+		stopped = true;
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return accounts paid or looked at per second by the last run
+	 */
+	public double getAccountsPerSecond(){
+		return accountsPerSecond;
+	}
+
+	/**
+	 * @return the interest paid by the last run, in cents
+	 */
+	public long getPaidInterest(){
+		return paidInterest.sum();
+	}
+
+	/**
+	 * Groups the accounts that are paid for the month by chunk, leaving out the chunks that are done
+	 */
+	private void splitIntoChunks(Collection<Account> accounts, List<Account[]> chunks, List<Integer> chunkNumbers){
+		List<List<Account>> byChunk = new ArrayList<List<Account>>();
+		for(Account account : accounts){
+			if(account.getAccountID() > lastAccountId){
+				// opened after the job was started
+				continue;
+			}
+			int chunk = account.getAccountID() / IDS_PER_CHUNK;
+			if(doneChunks.get(chunk)){
+				continue;
+			}
+			while(byChunk.size() <= chunk){
+				byChunk.add(null);
+			}
+			if(byChunk.get(chunk) == null){
+				byChunk.set(chunk, new ArrayList<Account>());
+			}
+			byChunk.get(chunk).add(account);
+		}
+		for(int chunk = 0; chunk < byChunk.size(); chunk++){
+			if(byChunk.get(chunk) != null){
+				chunks.add(byChunk.get(chunk).toArray(new Account[0]));
+				chunkNumbers.add(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Pays every account in a chunk, saves them, and marks the chunk as done
+	 */
+	private void payChunk(Account[] chunk, int chunkNumber){
+		if(stopped){
+			return;
+		}
+		List<Account> paid = new ArrayList<Account>(chunk.length);
+		for(Account account : chunk){
+			long interest = accountManager.payInterest(account, period, monthlyRate);
+			if(interest < 0){
+				skippedAccounts.increment();
+			} else {
+				paidAccounts.increment();
+				paidInterest.add(interest);
+				paid.add(account);
+			}
+		}
+		if(!paid.isEmpty()){
+			// on disk before the chunk is marked as done
+			accountManager.saveAccounts(paid);
+		}
+		chunkDone(chunkNumber);
+	}
+
+	private synchronized void chunkDone(int chunkNumber){
+		doneChunks.set(chunkNumber);
+		long now = System.currentTimeMillis();
+		if(now - lastCheckpointMillis >= CHECKPOINT_INTERVAL_MILLIS){
+			writeProgress();
+			lastCheckpointMillis = now;
+		}
+	}
+
+	/**
+	 * Reads the progress of an earlier run for the month, or starts a new one
+	 * @param accounts all accounts, the highest id among them is the last one paid if the job is new
+	 * @return false if interest for the month is paid already
+	 */
+	private synchronized boolean readProgress(Collection<Account> accounts){
+		if(!progressFile.exists()){
+			for(Account account : accounts){
+				lastAccountId = Math.max(lastAccountId, account.getAccountID());
+			}
+			writeProgress();
+			return true;
+		}
+		Properties progress = new Properties();
+		try(InputStream in = new FileInputStream(progressFile)){
+			progress.load(in);
+			lastAccountId = Integer.parseInt(progress.getProperty("lastAccountId"));
+			BigDecimal startedWithRate = new BigDecimal(progress.getProperty("monthlyRate"));
+			if(startedWithRate.compareTo(monthlyRate) != 0){
+				System.out.println("Interest for " + month + " was started with a monthly rate of " + startedWithRate + ", continuing with it");
+				monthlyRate = startedWithRate;
+			}
+			for(String chunk : progress.getProperty("doneChunks", "").split(",")){
+				if(!chunk.isEmpty()){
+					doneChunks.set(Integer.parseInt(chunk));
+				}
+			}
+			finished = Boolean.parseBoolean(progress.getProperty("finished"));
+		} catch (IOException | RuntimeException e) {
+			// written with a rename, so this is not a half written file
+			throw new IllegalStateException("Could not read the interest progress from " + progressFile.getPath(), e);
+		}
+		if(finished){
+			System.out.println("Interest for " + month + " is paid already");
+			return false;
+		}
+		System.out.println("Continuing to pay interest for " + month + ", " + doneChunks.cardinality() + " chunks of accounts are done");
+		return true;
+	}
+
+	/**
+	 * Writes the progress to a temporary file, syncs it and renames it to the progress file
+	 */
+	private void writeProgress(){
+		Properties progress = new Properties();
+		progress.setProperty("month", month.toString());
+		progress.setProperty("monthlyRate", monthlyRate.toPlainString());
+		progress.setProperty("lastAccountId", Integer.toString(lastAccountId));
+		StringBuilder chunks = new StringBuilder();
+		for(int chunk = doneChunks.nextSetBit(0); chunk >= 0; chunk = doneChunks.nextSetBit(chunk + 1)){
+			chunks.append(chunks.length() > 0 ? "," : "").append(chunk);
+		}
+		progress.setProperty("doneChunks", chunks.toString());
+		progress.setProperty("finished", Boolean.toString(finished));
+		File folder = progressFile.getParentFile();
+		if(!folder.exists() && !folder.mkdirs()){
+			throw new IllegalStateException("Could not create the folder " + folder.getPath());
+		}
+		File tempFile = new File(progressFile.getPath() + AccountFileStorage.TEMP_FILE_SUFFIX);
+		try {
+			try(FileOutputStream out = new FileOutputStream(tempFile)){
+				progress.store(out, "Interest paid for " + month);
+				out.getFD().sync();
+			}
+			Files.move(tempFile.toPath(), progressFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// the accounts know what they were paid, a lost progress file only means more work next time
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param balance in cents
+	 * @param monthlyRate
+	 * @return the interest in cents, rounded to the nearest cent. 0 for an empty account
+	 */
+	static long interestOn(long balance, BigDecimal monthlyRate){
+		if(balance <= 0){
+			return 0;
+		}
+		return BigDecimal.valueOf(balance).multiply(monthlyRate).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+	}
+
+	/**
+	 * @param month
+	 * @return the month as a number that grows by one every month, never 0
+	 */
+	public static int periodOf(YearMonth month){
+		return month.getYear() * 12 + month.getMonthValue() - 1;
+	}
+
+	/**
+	 * @param period a month as a number, see periodOf
+	 * @return the month as text, like "2016-05"
+	 */
+	static String formatPeriod(int period){
+		return YearMonth.of(period / 12, period % 12 + 1).toString();
+	}
+
+	/**
+	 * @param text a month like "2016-05"
+	 * @return the month as a number, see periodOf
+	 * @throws NumberFormatException if the text isn't a month
+	 */
+	static int parsePeriod(String text){
+		String[] yearAndMonth = text.trim().split("-");
+		if(yearAndMonth.length != 2){
+			throw new NumberFormatException("Not a month: " + text);
+		}
+		int monthValue = Integer.parseInt(yearAndMonth[1]);
+		if(monthValue < 1 || monthValue > 12){
+			throw new NumberFormatException("Not a month: " + text);
+		}
+		return periodOf(YearMonth.of(Integer.parseInt(yearAndMonth[0]), monthValue));
+	}
+
+	/**
+	 * Splits the chunks in halves until there is one chunk left to pay
+	 */
+	private class PayChunks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Account[]> chunks;
+		private final List<Integer> chunkNumbers;
+		private final int from;
+		private final int to;
+
+		PayChunks(List<Account[]> chunks, List<Integer> chunkNumbers, int from, int to){
+			this.chunks = chunks;
+			this.chunkNumbers = chunkNumbers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if(to - from <= 1){
+				if(to > from){
+					payChunk(chunks.get(from), chunkNumbers.get(from));
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new PayChunks(chunks, chunkNumbers, from, middle), new PayChunks(chunks, chunkNumbers, middle, to));
+		}
+	}
+}
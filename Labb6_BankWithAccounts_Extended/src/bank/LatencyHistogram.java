@@ -0,0 +1,111 @@
+package bank;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long an operation takes. The latencies are counted in buckets that double in size
+ * (bucket i holds latencies below 2^i nanoseconds), so recording is a few additions and the
+ * percentiles are exact to within a factor of two.
+ *
+ * Nothing is recorded while the metrics are turned off (see Metrics).
+ * @author Erik
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final String name;
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	LatencyHistogram(String name){
+		this.name = name;
+		for(int i = 0; i < BUCKETS; i++){
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Records the time since startNanos
+	 * @param startNanos from Metrics.start(), nothing is recorded if it is 0 (metrics were off)
+	 */
+	public void record(long startNanos){
+		if(startNanos != 0){
+			recordNanos(System.nanoTime() - startNanos);
+		}
+	}
+
+	void recordNanos(long nanos){
+		buckets[BUCKETS - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		long max = maxNanos.get();
+		while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+			max = maxNanos.get();
+		}
+	}
+
+	public long getCount(){
+		return count.sum();
+	}
+
+	public double getMeanMicros(){
+		long n = count.sum();
+		return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+	}
+
+	public double getMaxMicros(){
+		return maxNanos.get() / 1000.0;
+	}
+
+	/**
+	 * @param fraction for example 0.99 for the 99th percentile
+	 * @return the latency that this fraction of the operations were faster than, in microseconds
+	 * (the upper end of its bucket)
+	 */
+	public double getPercentileMicros(double fraction){
+		long n = count.sum();
+		if(n == 0){
+			return 0;
+		}
+		long wanted = (long) Math.ceil(n * fraction);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += buckets[i].sum();
+			if(seen >= wanted){
+				// never more than the slowest one seen
+				return Math.min((1L << i) / 1000.0, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	void reset(){
+		for(LongAdder bucket : buckets){
+			bucket.reset();
+		}
+		count.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+
+	@Override
+	public String toString(){
+		return String.format(Locale.US, "%s count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+				name,
+				getCount(),
+				getMeanMicros(),
+				getPercentileMicros(0.50),
+				getPercentileMicros(0.99),
+				getMaxMicros());
+	}
+}
@@ -0,0 +1,74 @@
+package bank;
+
+import java.time.Instant;
+
+/**
+ * One entry in the ledger of an account: a change of the balance, when it was made and what the
+ * balance was afterwards
+ * @author Erik
+ *
+ */
+public class LedgerEntry {
+
+	public enum Type {
+		OPENING, // the start balance of a new account
+		DEPOSIT,
+		WITHDRAW,
+		TRANSFER_IN,
+		TRANSFER_OUT,
+		INTEREST // interest for a month, paid by the InterestJob
+	}
+
+	private final long number;
+	private final long timeMillis;
+	private final Type type;
+	private final long amount;
+	private final long balanceAfter;
+
+	/**
+	 * @param number the position of the entry in the ledger, the first entry of an account is number 0
+	 * @param timeMillis
+	 * @param type
+	 * @param amount in cents, negative if money left the account
+	 * @param balanceAfter in cents
+	 */
+	LedgerEntry(long number, long timeMillis, Type type, long amount, long balanceAfter){
+		this.number = number;
+		this.timeMillis = timeMillis;
+		this.type = type;
+		this.amount = amount;
+		this.balanceAfter = balanceAfter;
+	}
+
+	public long getNumber(){
+		return number;
+	}
+
+	public long getTimeMillis(){
+		return timeMillis;
+	}
+
+	public Type getType(){
+		return type;
+	}
+
+	/**
+	 * @return the amount in cents, negative if money left the account
+	 */
+	public long getAmount(){
+		return amount;
+	}
+
+	/**
+	 * @return the balance in cents after this entry
+	 */
+	public long getBalanceAfter(){
+		return balanceAfter;
+	}
+
+	@Override
+	public String toString(){
+		return Instant.ofEpochMilli(timeMillis) + " " + type + " " + (amount > 0 ? "+" : "") + Money.format(amount)
+				+ ", balance " + Money.format(balanceAfter);
+	}
+}
@@ -1,17 +1,98 @@
-package bank;
-
-import java.io.File;
-
-public class Main {
-
-	public static void main(String[] args) {
-		
-		
-		File accountFolder = new File("accounts\\");
-		Bank bankSEB = new Bank("SEB", accountFolder);
-		bankSEB.visitBank();
-		
-
-	}
-
-}
+package bank;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.function.Function;
+
+public class Main {
+
+	public static void main(String[] args) {
+		
+		
+		File accountFolder = new File("accounts\\");
+		Function<File, AccountStorage> storages = null; // makes the storage of a folder
+		int shardCount = 1;
+		int commitBatchSize = GroupCommitter.DEFAULT_MAX_BATCH_SIZE;
+		long commitIntervalMillis = GroupCommitter.DEFAULT_FLUSH_INTERVAL_MILLIS;
+		long checkpointIntervalMillis = AccountManager.DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+		long snapshotIntervalMillis = AccountManager.DEFAULT_SNAPSHOT_INTERVAL_MILLIS;
+		File batchFile = null;
+		int serverPort = -1;
+		File metricsFile = null;
+		YearMonth interestMonth = null;
+		BigDecimal interestRatePercent = InterestJob.DEFAULT_ANNUAL_RATE_PERCENT;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--journal")){
+				// keep the accounts in an append-only journal instead of one file per account
+				storages = AccountJournal::new;
+			} else if(args[i].equals("--table")){
+				// keep the accounts as fixed-width records in a memory-mapped file
+				storages = MappedAccountTable::new;
+			} else if(args[i].equals("--shards") && i + 1 < args.length){
+				// spread the accounts over this many shards, each with its own folder and writer thread
+				shardCount = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("--commit-batch") && i + 1 < args.length){
+				// the largest number of changes that are synced to disk together
+				commitBatchSize = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("--commit-interval") && i + 1 < args.length){
+				// the longest time in milliseconds a change waits before it's synced to disk
+				commitIntervalMillis = Long.parseLong(args[++i]);
+			} else if(args[i].equals("--checkpoint-interval") && i + 1 < args.length){
+				// milliseconds between saves of all changed accounts
+				checkpointIntervalMillis = Long.parseLong(args[++i]);
+			} else if(args[i].equals("--snapshot-interval") && i + 1 < args.length){
+				// milliseconds between snapshots of all accounts, for a fast start the next time
+				snapshotIntervalMillis = Long.parseLong(args[++i]);
+			} else if(args[i].equals("--batch") && i + 1 < args.length){
+				// run the operations in this file instead of showing the menu
+				batchFile = new File(args[++i]);
+			} else if(args[i].equals("--server")){
+				// serve clients on a local port instead of showing the menu
+				serverPort = i + 1 < args.length && !args[i + 1].startsWith("--") ? Integer.parseInt(args[++i]) : BankServer.DEFAULT_PORT;
+			} else if(args[i].equals("--metrics") && i + 1 < args.length){
+				// measure the bank while it runs and write the metrics to this file at the end
+				metricsFile = new File(args[++i]);
+				Metrics.enable();
+			} else if(args[i].equals("--pay-interest") && i + 1 < args.length){
+				// pay interest for this month (like 2016-05) in the background, while the bank is open
+				interestMonth = YearMonth.parse(args[++i]);
+			} else if(args[i].equals("--interest-rate") && i + 1 < args.length){
+				// interest per year in percent
+				interestRatePercent = new BigDecimal(args[++i]);
+			}
+		}
+		if(storages == null){
+			storages = folder -> new AccountFileStorage(folder, Runtime.getRuntime().availableProcessors());
+		}
+		AccountService accountManager;
+		if(shardCount > 1){
+			accountManager = new ShardedAccountManager(accountFolder, shardCount, storages, commitBatchSize, commitIntervalMillis);
+		} else {
+			accountManager = new AccountManager(accountFolder, storages.apply(accountFolder), commitBatchSize, commitIntervalMillis);
+		}
+		accountManager.startCheckpoints(checkpointIntervalMillis);
+		accountManager.startSnapshots(snapshotIntervalMillis);
+		if(interestMonth != null){
+			final YearMonth month = interestMonth;
+			final BigDecimal ratePercent = interestRatePercent;
+			Thread interestThread = new Thread(() -> accountManager.payMonthlyInterest(month, ratePercent), "interest");
+			interestThread.setDaemon(true);
+			interestThread.start();
+		}
+		Bank bankSEB = new Bank("SEB", accountManager);
+		if(batchFile != null){
+			bankSEB.runBatch(batchFile);
+		} else if(serverPort >= 0){
+			bankSEB.runServer(serverPort);
+		} else {
+			bankSEB.visitBank();
+		}
+		if(metricsFile != null){
+			Metrics.dump(metricsFile);
+		}
+		
+
+	}
+
+}
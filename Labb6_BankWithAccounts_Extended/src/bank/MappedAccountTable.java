@@ -0,0 +1,528 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage that keeps the accounts as fixed-width binary records in a memory-mapped file.
+ * 
+ * accounts.tbl holds one 128 byte record per account: id, balance (cents), where the owner and account name
+ * are found in the string area, and a ring with the latest 10 transactions. The record is full, so the
+ * last month interest was paid for is kept in the flags, above the bits that are used as flags, and the
+ * last transfer with another shard above the bits of the ring head and count. Owner and account names
+ * are appended (UTF-8) to the string area in names.str. Changing a balance is a write straight into
+ * the mapped record, and loading is reading fixed offsets, so nothing is parsed.
+ * 
+ * The records of the two accounts of a transfer may reach the disk in any order, so a transfer is first
+ * synced to a transfer log in the table folder (see ShardTransferLog). Its number is kept in the records
+ * of both accounts, above the 40 bits used by the offsets of the names, and a start makes the halves
+ * again that were logged but never reached the disk. The log is emptied when the storage is closed, and
+ * by a flush once it holds AccountFileStorage.TRANSFERS_BEFORE_TRIM transfers, after forcing every chunk.
+ * 
+ * Slots of deleted accounts are reused by new accounts. Names of deleted accounts stay in the
+ * string area, it's never compacted.
+ * @author Erik
+ *
+ */
+public class MappedAccountTable implements AccountStorage {
+	
+	private static final int MAGIC = 0x42414E4B; // "BANK"
+	private static final int VERSION = 2; // 2: balance and transactions in cents (long) instead of double
+	
+	// the first record-sized block of the file is the header, records follow
+	private static final int RECORD_SIZE = 128;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_SLOT_COUNT = 8;
+	
+	// record layout
+	private static final int FLAGS = 0;
+	private static final int ID = 4;
+	private static final int BALANCE = 8;
+	private static final int OWNER_OFFSET = 16;
+	private static final int NAME_OFFSET = 24;
+	private static final int OWNER_LENGTH = 32;
+	private static final int NAME_LENGTH = 36;
+	private static final int HISTORY_HEAD = 40; // index of the newest transaction in the ring
+	private static final int HISTORY_COUNT = 44;
+	private static final int HISTORY = 48;
+	private static final int HISTORY_SIZE = 10;
+	
+	private static final int FLAG_IN_USE = 1;
+	private static final int INTEREST_PERIOD_SHIFT = 8; // flags above this bit hold the interest period
+	private static final int HISTORY_MASK = 0xFF; // the bits of the ring head and count, the bits above them hold the shard transfer
+	private static final int SHARD_TRANSFER_SHIFT = 8;
+	private static final int SHARD_TRANSFER_HIGH_SHIFT = 24; // the high bits are above the ring head, the low bits above the count
+	private static final long STRING_OFFSET_MASK = (1L << 40) - 1; // the bits of a name offset, the bits above them hold the local transfer
+	private static final int LOCAL_TRANSFER_SHIFT = 40;
+	private static final int LOCAL_TRANSFER_HIGH_SHIFT = 24; // the high bits are above the account name offset, the low bits above the owner offset
+	
+	// the file is mapped in chunks, so it can grow without remapping what's already mapped
+	private static final int CHUNK_SIZE = 64 * 1024 * RECORD_SIZE;
+	
+	private File accountFolder;
+	private File tableFolder;
+	
+	private FileChannel tableChannel;
+	private FileChannel stringChannel;
+	// new strings are collected here and written to the string area in larger pieces
+	private ByteBuffer stringWriteBuffer = ByteBuffer.allocate(64 * 1024);
+	private long stringAreaEnd; // size of the string area, including what's still in the write buffer
+	private List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	private int slotCount; // slots in use or freed, the table never shrinks
+	private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private Map<Account, Integer> slots = new IdentityHashMap<Account, Integer>();
+	private ShardTransferLog transferLog; // transfers between accounts of the table, opened when they're loaded
+	
+	/**
+	 * @param accountFolder the table is kept in the folder "table" inside this folder
+	 */
+	MappedAccountTable(File accountFolder){
+		this.accountFolder = accountFolder;
+		this.tableFolder = new File(accountFolder, "table");
+	}
+
+	@Override
+	public synchronized List<Account> loadAccounts(AccountIdAllocator ids){
+		if(!tableFolder.exists() && !tableFolder.mkdirs()){
+			throw new IllegalStateException("Could not create table folder " + tableFolder.getPath());
+		}
+		long startTime = System.nanoTime();
+		List<Account> loadedAccounts = new ArrayList<Account>();
+		try {
+			long openStart = Metrics.start();
+			tableChannel = FileChannel.open(new File(tableFolder, "accounts.tbl").toPath(), 
+								StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Metrics.fileOpened(openStart);
+			openStart = Metrics.start();
+			stringChannel = FileChannel.open(new File(tableFolder, "names.str").toPath(), 
+								StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Metrics.fileOpened(openStart);
+			boolean newTable = tableChannel.size() == 0;
+			mapChunk();
+			ByteBuffer header = chunks.get(0);
+			if(newTable){
+				header.putInt(HEADER_MAGIC, MAGIC);
+				header.putInt(HEADER_VERSION, VERSION);
+				header.putInt(HEADER_SLOT_COUNT, 0);
+			} else if(header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION){
+				throw new IllegalStateException("'" + tableFolder.getPath() + "' doesn't contain an account table this program can read");
+			}
+			slotCount = header.getInt(HEADER_SLOT_COUNT);
+			ensureMapped(slotCount);
+			
+			stringAreaEnd = stringChannel.size();
+			ByteBuffer strings = stringChannel.size() > 0 
+									? stringChannel.map(FileChannel.MapMode.READ_ONLY, 0, stringChannel.size()) 
+									: ByteBuffer.allocate(0);
+			for(int slot = 0; slot < slotCount; slot++){
+				ByteBuffer chunk = chunkOf(slot);
+				int base = offsetOf(slot);
+				if((chunk.getInt(base + FLAGS) & FLAG_IN_USE) == 0){
+					freeSlots.add(slot);
+					continue;
+				}
+				if(!stringsAreComplete(chunk, base, strings.capacity())){
+					// we crashed before the names of this account reached the disk
+					System.out.println("Skipping account table slot " + slot + ", its names were never saved");
+					chunk.putInt(base + FLAGS, 0);
+					freeSlots.add(slot);
+					continue;
+				}
+				Account account = readAccount(chunk, base, strings);
+				slots.put(account, slot);
+				loadedAccounts.add(account);
+			}
+			transferLog = new ShardTransferLog(tableFolder, "transfers.log");
+			finishTransfers(loadedAccounts);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open the account table in " + tableFolder.getPath(), e);
+		}
+		System.out.println("Mapped " + loadedAccounts.size() + " accounts from the account table in " 
+							+ (System.nanoTime() - startTime) / 1_000_000 + " ms");
+		return loadedAccounts;
+	}
+
+	/**
+	 * Makes the halves of the logged transfers that didn't reach the disk before the program stopped,
+	 * forces them and empties the log
+	 * @param loadedAccounts
+	 */
+	private void finishTransfers(List<Account> loadedAccounts){
+		List<ShardTransferLog.Transfer> transfers = transferLog.getTransfers();
+		if(transfers.isEmpty()){
+			return;
+		}
+		Map<Integer, Account> accountsById = new HashMap<Integer, Account>();
+		for(Account account : loadedAccounts){
+			accountsById.put(account.getAccountID(), account);
+		}
+		int finishedHalves = 0;
+		for(ShardTransferLog.Transfer transfer : transfers){
+			Account from = accountsById.get(transfer.fromAccountId);
+			if(AccountFileStorage.finishTransfer(from, -transfer.amount, transfer.number)){
+				writeTransferHalf(from, -transfer.amount);
+				finishedHalves++;
+			}
+			Account to = accountsById.get(transfer.toAccountId);
+			if(AccountFileStorage.finishTransfer(to, transfer.amount, transfer.number)){
+				writeTransferHalf(to, transfer.amount);
+				finishedHalves++;
+			}
+		}
+		for(MappedByteBuffer chunk : chunks){
+			chunk.force();
+		}
+		transferLog.removeUpTo(transferLog.getAddedUpTo());
+		System.out.println("Checked " + transfers.size() + " transfers of the account table, " + finishedHalves 
+							+ " halves of them weren't saved and were made again");
+	}
+
+	@Override
+	public void accountCreated(Account account){
+		// read the account before locking the table, threads holding the lock of an account may be waiting for the table
+		long balance;
+		long[] history;
+		synchronized(account){
+			balance = account.getBalance();
+			history = account.getLatestTransactions();
+		}
+		byte[] ownerBytes = account.getOwner().getBytes(StandardCharsets.UTF_8);
+		byte[] nameBytes = account.getAccountName().getBytes(StandardCharsets.UTF_8);
+		addRecord(account, balance, history, ownerBytes, nameBytes);
+	}
+	
+	private synchronized void addRecord(Account account, long balance, long[] history, byte[] ownerBytes, byte[] nameBytes){
+		int slot;
+		if(!freeSlots.isEmpty()){
+			slot = freeSlots.poll();
+		} else {
+			slot = slotCount;
+			ensureMapped(slot + 1);
+			slotCount++;
+			chunks.get(0).putInt(HEADER_SLOT_COUNT, slotCount);
+		}
+		ByteBuffer chunk = chunkOf(slot);
+		int base = offsetOf(slot);
+		chunk.putInt(base + ID, account.getAccountID());
+		chunk.putLong(base + BALANCE, balance);
+		chunk.putLong(base + OWNER_OFFSET, appendString(ownerBytes));
+		chunk.putInt(base + OWNER_LENGTH, ownerBytes.length);
+		chunk.putLong(base + NAME_OFFSET, appendString(nameBytes));
+		chunk.putInt(base + NAME_LENGTH, nameBytes.length);
+		
+		// the history is newest first, so push it oldest first
+		chunk.putInt(base + HISTORY_HEAD, HISTORY_SIZE - 1);
+		chunk.putInt(base + HISTORY_COUNT, 0);
+		for(int i = history.length - 1; i >= 0; i--){
+			pushTransaction(chunk, base, history[i]);
+		}
+		putShardTransfer(chunk, base, account.getShardTransfer());
+		putLocalTransfer(chunk, base, account.getLocalTransfer());
+		// mark the slot as used last, so a half written record is never seen as an account
+		chunk.putInt(base + FLAGS, FLAG_IN_USE | account.getInterestPeriod() << INTEREST_PERIOD_SHIFT);
+		slots.put(account, slot);
+	}
+
+	@Override
+	public synchronized void balanceChanged(Account account, long amount){
+		Integer slot = slots.get(account);
+		if(slot == null){
+			return;
+		}
+		ByteBuffer chunk = chunkOf(slot);
+		int base = offsetOf(slot);
+		chunk.putLong(base + BALANCE, account.getBalance());
+		pushTransaction(chunk, base, amount);
+	}
+
+	/**
+	 * The period is written in the same record as the balance, they reach the disk with the same force
+	 */
+	@Override
+	public synchronized void interestPaid(Account account, long amount){
+		Integer slot = slots.get(account);
+		if(slot == null){
+			return;
+		}
+		chunkOf(slot).putInt(offsetOf(slot) + FLAGS, FLAG_IN_USE | account.getInterestPeriod() << INTEREST_PERIOD_SHIFT);
+		if(amount != 0){
+			balanceChanged(account, amount);
+		}
+	}
+
+	/**
+	 * The number is written in the same record as the balance, they reach the disk with the same force
+	 */
+	@Override
+	public synchronized void shardTransferred(Account account, long amount){
+		Integer slot = slots.get(account);
+		if(slot == null){
+			return;
+		}
+		putShardTransfer(chunkOf(slot), offsetOf(slot), account.getShardTransfer());
+		balanceChanged(account, amount);
+	}
+
+	/**
+	 * Called while holding the locks of both accounts. The transfer is synced to the transfer log before
+	 * the records are changed, as the OS may write a changed record to the disk at any time
+	 * @throws UncheckedIOException if the transfer log couldn't be written, the balances are changed in memory already
+	 */
+	@Override
+	public void transferred(Account from, Account to, long amount){
+		long number = transferLog.add(from.getAccountID(), to.getAccountID(), amount);
+		from.setLocalTransfer(number);
+		to.setLocalTransfer(number);
+		synchronized(this){
+			writeTransferHalf(from, -amount);
+			writeTransferHalf(to, amount);
+			transferLog.applied(number);
+		}
+	}
+	
+	/**
+	 * Writes the balance and the local transfer number into the record, they reach the disk together
+	 */
+	private void writeTransferHalf(Account account, long amount){
+		Integer slot = slots.get(account);
+		if(slot == null){
+			return;
+		}
+		putLocalTransfer(chunkOf(slot), offsetOf(slot), account.getLocalTransfer());
+		balanceChanged(account, amount);
+	}
+
+	@Override
+	public synchronized void accountDeleted(Account account){
+		Integer slot = slots.remove(account);
+		if(slot == null){
+			return;
+		}
+		ByteBuffer chunk = chunkOf(slot);
+		int base = offsetOf(slot);
+		chunk.putInt(base + FLAGS, 0);
+		chunk.putInt(base + ID, 0);
+		freeSlots.add(slot);
+	}
+
+	/**
+	 * The record is already up to date in memory, saving forces its chunk to the disk
+	 */
+	@Override
+	public synchronized void saveAccount(Account account){
+		long start = Metrics.start();
+		Integer slot = slots.get(account);
+		if(slot != null){
+			chunkOf(slot).force();
+			// the header may have changed as well (slot count)
+			chunks.get(0).force();
+		}
+		forceStrings();
+		Metrics.recordEvent(Metrics.SAVE, account.getAccountID(), start);
+	}
+
+	/**
+	 * Forces every chunk that holds one of the accounts once, however many of the accounts it holds
+	 */
+	@Override
+	public synchronized void flush(Collection<Account> accounts){
+		long start = Metrics.start();
+		Set<MappedByteBuffer> changedChunks = Collections.newSetFromMap(new IdentityHashMap<MappedByteBuffer, Boolean>());
+		// the header may have changed as well (slot count)
+		changedChunks.add(chunks.get(0));
+		for(Account account : accounts){
+			Integer slot = slots.get(account);
+			if(slot != null){
+				changedChunks.add(chunkOf(slot));
+			}
+		}
+		for(MappedByteBuffer chunk : changedChunks){
+			chunk.force();
+		}
+		forceStrings();
+		if(transferLog.getTransferCount() >= AccountFileStorage.TRANSFERS_BEFORE_TRIM){
+			// all transfers made so far are in the records, once every chunk is forced the log isn't needed
+			long transfersUpTo = transferLog.getAppliedUpTo();
+			for(MappedByteBuffer chunk : chunks){
+				chunk.force();
+			}
+			transferLog.removeUpTo(transfersUpTo);
+		}
+		Metrics.recordEvent(Metrics.SAVE, -1, start);
+	}
+
+	@Override
+	public synchronized void close(List<Account> accounts){
+		if(tableChannel == null){
+			return;
+		}
+		for(MappedByteBuffer chunk : chunks){
+			chunk.force();
+		}
+		forceStrings();
+		try {
+			transferLog.removeUpTo(transferLog.getAppliedUpTo());
+		} finally {
+			transferLog.close();
+		}
+		Metrics.closeFile(tableChannel);
+		Metrics.closeFile(stringChannel);
+		tableChannel = null;
+	}
+	
+	private Account readAccount(ByteBuffer chunk, int base, ByteBuffer strings){
+		String owner = readString(strings, chunk.getLong(base + OWNER_OFFSET) & STRING_OFFSET_MASK, chunk.getInt(base + OWNER_LENGTH));
+		String accountName = readString(strings, chunk.getLong(base + NAME_OFFSET) & STRING_OFFSET_MASK, chunk.getInt(base + NAME_LENGTH));
+		
+		// walk the ring from the newest transaction and backwards
+		int head = chunk.getInt(base + HISTORY_HEAD) & HISTORY_MASK;
+		int count = chunk.getInt(base + HISTORY_COUNT) & HISTORY_MASK;
+		long[] history = new long[count];
+		for(int i = 0; i < count; i++){
+			int ringIndex = (head - i + HISTORY_SIZE) % HISTORY_SIZE;
+			history[i] = chunk.getLong(base + HISTORY + ringIndex * 8);
+		}
+		int accountId = chunk.getInt(base + ID);
+		File accountFile = new File(accountFolder, "a" + accountId + ".txt");
+		Account account = new Account(accountId, accountFile, owner, accountName, chunk.getLong(base + BALANCE), history);
+		account.setInterestPeriod(chunk.getInt(base + FLAGS) >>> INTEREST_PERIOD_SHIFT);
+		account.setShardTransfer((long) (chunk.getInt(base + HISTORY_HEAD) >>> SHARD_TRANSFER_SHIFT) << SHARD_TRANSFER_HIGH_SHIFT
+				| chunk.getInt(base + HISTORY_COUNT) >>> SHARD_TRANSFER_SHIFT);
+		account.setLocalTransfer(chunk.getLong(base + NAME_OFFSET) >>> LOCAL_TRANSFER_SHIFT << LOCAL_TRANSFER_HIGH_SHIFT
+				| chunk.getLong(base + OWNER_OFFSET) >>> LOCAL_TRANSFER_SHIFT);
+		return account;
+	}
+	
+	private static boolean stringsAreComplete(ByteBuffer chunk, int base, long stringAreaSize){
+		return (chunk.getLong(base + OWNER_OFFSET) & STRING_OFFSET_MASK) + chunk.getInt(base + OWNER_LENGTH) <= stringAreaSize
+				&& (chunk.getLong(base + NAME_OFFSET) & STRING_OFFSET_MASK) + chunk.getInt(base + NAME_LENGTH) <= stringAreaSize;
+	}
+	
+	private static void pushTransaction(ByteBuffer chunk, int base, long amount){
+		int headBits = chunk.getInt(base + HISTORY_HEAD);
+		int head = ((headBits & HISTORY_MASK) + 1) % HISTORY_SIZE;
+		chunk.putLong(base + HISTORY + head * 8, amount);
+		chunk.putInt(base + HISTORY_HEAD, headBits & ~HISTORY_MASK | head);
+		int countBits = chunk.getInt(base + HISTORY_COUNT);
+		if((countBits & HISTORY_MASK) < HISTORY_SIZE){
+			chunk.putInt(base + HISTORY_COUNT, countBits + 1);
+		}
+	}
+	
+	/**
+	 * Keeps 48 bits of the number, 24 above the ring head and 24 above the count
+	 */
+	private static void putShardTransfer(ByteBuffer chunk, int base, long shardTransfer){
+		int head = chunk.getInt(base + HISTORY_HEAD) & HISTORY_MASK;
+		int count = chunk.getInt(base + HISTORY_COUNT) & HISTORY_MASK;
+		chunk.putInt(base + HISTORY_HEAD, (int) (shardTransfer >>> SHARD_TRANSFER_HIGH_SHIFT) << SHARD_TRANSFER_SHIFT | head);
+		chunk.putInt(base + HISTORY_COUNT, (int) shardTransfer << SHARD_TRANSFER_SHIFT | count);
+	}
+	
+	/**
+	 * Keeps 48 bits of the number, 24 above the owner offset and 24 above the account name offset
+	 */
+	private static void putLocalTransfer(ByteBuffer chunk, int base, long localTransfer){
+		long ownerOffset = chunk.getLong(base + OWNER_OFFSET) & STRING_OFFSET_MASK;
+		long nameOffset = chunk.getLong(base + NAME_OFFSET) & STRING_OFFSET_MASK;
+		chunk.putLong(base + OWNER_OFFSET, localTransfer << LOCAL_TRANSFER_SHIFT | ownerOffset);
+		chunk.putLong(base + NAME_OFFSET, localTransfer >>> LOCAL_TRANSFER_HIGH_SHIFT << LOCAL_TRANSFER_SHIFT | nameOffset);
+	}
+	
+	private static String readString(ByteBuffer strings, long offset, int length){
+		byte[] bytes = new byte[length];
+		ByteBuffer view = strings.duplicate();
+		view.position((int) offset);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Appends bytes to the end of the string area
+	 * @return offset of the bytes in the string area
+	 */
+	private long appendString(byte[] bytes){
+		if(bytes.length > stringWriteBuffer.remaining()){
+			flushStrings();
+			if(bytes.length > stringWriteBuffer.capacity()){
+				stringWriteBuffer = ByteBuffer.allocate(bytes.length);
+			}
+		}
+		long offset = stringAreaEnd;
+		stringWriteBuffer.put(bytes);
+		stringAreaEnd += bytes.length;
+		return offset;
+	}
+	
+	/**
+	 * Writes the collected strings to the end of the string area
+	 */
+	private void flushStrings(){
+		stringWriteBuffer.flip();
+		try {
+			long position = stringChannel.size();
+			while(stringWriteBuffer.hasRemaining()){
+				position += stringChannel.write(stringWriteBuffer, position);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write to the string area", e);
+		} finally {
+			stringWriteBuffer.clear();
+		}
+	}
+	
+	private void forceStrings(){
+		flushStrings();
+		try {
+			stringChannel.force(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Maps more chunks until the given number of slots fit in the mapped part of the file
+	 * @param neededSlots
+	 */
+	private void ensureMapped(int neededSlots){
+		long neededBytes = (long) (neededSlots + 1) * RECORD_SIZE;
+		try {
+			while((long) chunks.size() * CHUNK_SIZE < neededBytes){
+				mapChunk();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not grow the account table", e);
+		}
+	}
+	
+	private void mapChunk() throws IOException {
+		// mapping past the end of the file makes the file grow
+		long position = (long) chunks.size() * CHUNK_SIZE;
+		chunks.add(tableChannel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE));
+	}
+	
+	private MappedByteBuffer chunkOf(int slot){
+		long position = (long) (slot + 1) * RECORD_SIZE;
+		return chunks.get((int) (position / CHUNK_SIZE));
+	}
+	
+	private static int offsetOf(int slot){
+		long position = (long) (slot + 1) * RECORD_SIZE;
+		return (int) (position % CHUNK_SIZE);
+	}
+}
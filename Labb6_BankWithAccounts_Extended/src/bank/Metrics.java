@@ -0,0 +1,273 @@
+package bank;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges for the bank, readable from the program itself and
+ * dumpable to a file.
+ *
+ * The metrics are off until enable() is called. While they are off, timing an operation costs one
+ * check of a flag:
+ *
+ *     long start = Metrics.start();
+ *     ...
+ *     Metrics.DEPOSIT.record(start);
+ *
+ * Saves and loads are also kept as events (what, which account, how long) in a ring of the latest
+ * EVENT_RING_SIZE, which is written with the dump. On a JVM with the JFR event API they are custom JFR
+ * events too (see FlightRecorderEvents).
+ * @author Erik
+ *
+ */
+public final class Metrics {
+
+	private static final int EVENT_RING_SIZE = 1024;
+
+	private static volatile boolean enabled = false;
+
+	public static final LatencyHistogram DEPOSIT = new LatencyHistogram("deposit");
+	public static final LatencyHistogram WITHDRAW = new LatencyHistogram("withdraw");
+	public static final LatencyHistogram LOOKUP = new LatencyHistogram("lookup");
+	public static final LatencyHistogram ACCOUNT_LOAD = new LatencyHistogram("account.load");
+	public static final LatencyHistogram SAVE = new LatencyHistogram("save");
+	public static final LatencyHistogram FILE_OPEN = new LatencyHistogram("file.open");
+	public static final LatencyHistogram FILE_CLOSE = new LatencyHistogram("file.close");
+	public static final LatencyHistogram SNAPSHOT = new LatencyHistogram("snapshot");
+
+	public static final Counter DEPOSITS_REFUSED = new Counter("deposit.refused", false);
+	public static final Counter WITHDRAWS_REFUSED = new Counter("withdraw.refused", false);
+	public static final Counter LOOKUP_MISSES = new Counter("lookup.miss", false);
+	// files opened by the bank and not closed yet
+	public static final Counter OPEN_FILES = new Counter("files.open", true);
+
+	private static final List<LatencyHistogram> HISTOGRAMS = Arrays.asList(DEPOSIT, WITHDRAW, LOOKUP, ACCOUNT_LOAD, SAVE, FILE_OPEN, FILE_CLOSE, SNAPSHOT);
+	private static final List<Counter> COUNTERS = Arrays.asList(DEPOSITS_REFUSED, WITHDRAWS_REFUSED, LOOKUP_MISSES, OPEN_FILES);
+	private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<String, LongSupplier>();
+
+	private static final AtomicReferenceArray<Event> EVENTS = new AtomicReferenceArray<Event>(EVENT_RING_SIZE);
+	private static final AtomicLong EVENT_COUNT = new AtomicLong();
+	private static final EventListener FLIGHT_RECORDER = flightRecorderEvents(); // null if the JVM has no JFR event API
+
+	static {
+		registerGauge("heap.used.bytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+		OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+		if(system instanceof com.sun.management.UnixOperatingSystemMXBean){
+			// everything the process has open, sockets included
+			com.sun.management.UnixOperatingSystemMXBean unixSystem = (com.sun.management.UnixOperatingSystemMXBean) system;
+			registerGauge("process.open.file.descriptors", unixSystem::getOpenFileDescriptorCount);
+		}
+	}
+
+	private Metrics(){
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	public static void enable(){
+		enabled = true;
+	}
+
+	public static void disable(){
+		enabled = false;
+	}
+
+	/**
+	 * @return the time to pass to LatencyHistogram.record, or 0 if the metrics are off
+	 */
+	public static long start(){
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Adds a gauge, a value that is read when the metrics are read. Replaces a gauge with the same name
+	 * @param name
+	 * @param gauge
+	 */
+	public static void registerGauge(String name, LongSupplier gauge){
+		GAUGES.put(name, gauge);
+	}
+
+	/**
+	 * Removes a gauge, unless it was replaced by another gauge with the same name
+	 * @param name
+	 * @param gauge the gauge that was registered
+	 */
+	public static void unregisterGauge(String name, LongSupplier gauge){
+		GAUGES.remove(name, gauge);
+	}
+
+	/**
+	 * @param name
+	 * @return the current value of a gauge, or -1 if there is no gauge with that name
+	 */
+	public static long getGauge(String name){
+		LongSupplier gauge = GAUGES.get(name);
+		return gauge == null ? -1 : gauge.getAsLong();
+	}
+
+	public static List<LatencyHistogram> getHistograms(){
+		return HISTOGRAMS;
+	}
+
+	public static List<Counter> getCounters(){
+		return COUNTERS;
+	}
+
+	/**
+	 * Records a save or load as an event, and its time in the histogram
+	 * @param histogram SAVE or ACCOUNT_LOAD
+	 * @param accountId the account, or -1 if it was for many accounts
+	 * @param startNanos from start(), nothing is recorded if it is 0
+	 */
+	public static void recordEvent(LatencyHistogram histogram, int accountId, long startNanos){
+		if(startNanos == 0){
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		histogram.recordNanos(nanos);
+		long number = EVENT_COUNT.getAndIncrement();
+		EVENTS.set((int) (number % EVENT_RING_SIZE), new Event(histogram.getName(), accountId, nanos, System.currentTimeMillis()));
+		if(FLIGHT_RECORDER != null){
+			FLIGHT_RECORDER.eventHappened(histogram, accountId, nanos);
+		}
+	}
+
+	/**
+	 * FlightRecorderEvents is only loaded if the JVM has jdk.jfr.Event, else loading it would fail
+	 * @return the JFR events, or null if this JVM doesn't have them (Java 8 before 8u262)
+	 */
+	private static EventListener flightRecorderEvents(){
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (EventListener) Class.forName("bank.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Called right after the bank opened a file
+	 * @param openStart from start() before the file was opened
+	 */
+	public static void fileOpened(long openStart){
+		OPEN_FILES.increment();
+		FILE_OPEN.record(openStart);
+	}
+
+	/**
+	 * Closes a file opened after fileOpened was called, and times the close. An error while closing is
+	 * printed, not thrown: everything that mattered was written (and synced) before
+	 * @param file may be null if it was never opened
+	 */
+	public static void closeFile(Closeable file){
+		if(file == null){
+			return;
+		}
+		long start = start();
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		OPEN_FILES.decrement();
+		FILE_CLOSE.record(start);
+	}
+
+	/**
+	 * Clears all counters, histograms and events. Gauges and files.open are left as they are
+	 */
+	public static void reset(){
+		for(LatencyHistogram histogram : HISTOGRAMS){
+			histogram.reset();
+		}
+		for(Counter counter : COUNTERS){
+			counter.reset();
+		}
+		for(int i = 0; i < EVENT_RING_SIZE; i++){
+			EVENTS.set(i, null);
+		}
+		EVENT_COUNT.set(0);
+	}
+
+	/**
+	 * @return all metrics as text, one per line
+	 */
+	public static String report(){
+		StringBuilder report = new StringBuilder();
+		report.append("# bank metrics at ").append(Instant.now()).append(enabled ? "" : " (metrics are off)").append('\n');
+		for(Counter counter : COUNTERS){
+			report.append("counter ").append(counter.getName()).append(' ').append(counter.get()).append('\n');
+		}
+		for(Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()){
+			report.append("gauge ").append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+		}
+		for(LatencyHistogram histogram : HISTOGRAMS){
+			report.append("histogram ").append(histogram).append('\n');
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Writes the report and the latest events to a file
+	 * @param file
+	 */
+	public static void dump(File file){
+		try(PrintWriter out = new PrintWriter(file, "UTF-8")){
+			out.print(report());
+			long eventCount = EVENT_COUNT.get();
+			for(long number = Math.max(0, eventCount - EVENT_RING_SIZE); number < eventCount; number++){
+				Event event = EVENTS.get((int) (number % EVENT_RING_SIZE));
+				if(event != null){
+					out.println(event);
+				}
+			}
+			System.out.println("Metrics written to " + file.getPath());
+		} catch (FileNotFoundException | UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Told about every save and load that is recorded
+	 */
+	interface EventListener {
+		void eventHappened(LatencyHistogram histogram, int accountId, long nanos);
+	}
+
+	private static class Event {
+		final String type;
+		final int accountId;
+		final long nanos;
+		final long timeMillis;
+
+		Event(String type, int accountId, long nanos, long timeMillis){
+			this.type = type;
+			this.accountId = accountId;
+			this.nanos = nanos;
+			this.timeMillis = timeMillis;
+		}
+
+		@Override
+		public String toString(){
+			return String.format(Locale.US, "event %s at=%s account=%d took=%.1fus", type, Instant.ofEpochMilli(timeMillis), accountId, nanos / 1000.0);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package bank;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts of money are kept as a whole number of cents (long), so adding and subtracting
+ * never drifts the way doubles do. These methods convert to and from the text and the doubles
+ * used by the menus and the account files.
+ * @author Erik
+ *
+ */
+public final class Money {
+	
+	public static final int CENTS_PER_UNIT = 100;
+	
+	private Money(){
+		// only static methods
+	}
+	
+	/**
+	 * @param amount amount as typed in, like 12.5
+	 * @return the amount in cents, rounded to the nearest cent
+	 */
+	public static long toCents(double amount){
+		return Math.round(amount * CENTS_PER_UNIT);
+	}
+	
+	/**
+	 * @param cents
+	 * @return the amount as a double, like 12.5 for 1250 cents. Only for showing or calculating, not for keeping
+	 */
+	public static double toUnits(long cents){
+		return (double) cents / CENTS_PER_UNIT;
+	}
+	
+	/**
+	 * Reads an amount written as text, like "12.50", "12.5" or "1.0E7" (older account files)
+	 * @param amount
+	 * @return the amount in cents, rounded to the nearest cent
+	 * @throws NumberFormatException if the text isn't a number
+	 */
+	public static long parseCents(String amount){
+		return new BigDecimal(amount.trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+	}
+	
+	/**
+	 * @param cents
+	 * @return the amount as text with two decimals, like "12.50". Can be read back with parseCents()
+	 */
+	public static String format(long cents){
+		return BigDecimal.valueOf(cents, 2).toPlainString();
+	}
+}
@@ -0,0 +1,470 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds accounts by a name (the account name or the owner name), ignoring case:
+ * - exactly, with a hash map
+ * - by the start of the name (prefix), with a sorted map
+ * - with typos, with an index of the trigrams (three letters in a row) of every name. A name that is
+ *   at most a few typos away from what was typed shares most of its trigrams, so only names that share
+ *   enough trigrams are compared letter by letter (Levenshtein distance)
+ *
+ * The sorted names and the trigrams are only built for the first search, so loading the accounts isn't
+ * slowed down by them when no one searches. After that they are kept up to date like the hash map.
+ * Every name knows where it is in the list of names of each of its trigrams, so removing a name takes
+ * as long as it has trigrams, however many names share them. The number of a removed name is given
+ * to the next name added.
+ *
+ * Not thread safe, the account manager only uses it while holding its own lock.
+ * @author Erik
+ *
+ */
+public class NameIndex {
+
+	// the largest number of names a search with typos looks at, the names most alike the text are looked
+	// at first. Keeps a search fast when the text shares a trigram or two with a large part of the names
+	private static final int MAX_NAMES_TO_COMPARE = 1000;
+	// when the rarest trigrams of the text are found in more names than this, the rest aren't counted.
+	// Then a name with a typo in all the counted trigrams can be missed, but the search stays fast
+	private static final int MAX_NAMES_TO_COUNT = 20000;
+	private static final char NAME_BOUNDARY = '\u0000'; // put around names, so the first and last letters are in trigrams too
+
+	private Map<String, Name> names; // by lower case name
+	// the search index, null until the first search:
+	private TreeMap<String, Name> sortedNames; // the same names, sorted
+	private Map<Long, IntList> namesByTrigram; // number of every name with the trigram
+	private List<Name> namesByNumber; // null where a name was removed
+	private IntList freeNumbers; // numbers of removed names, used again before namesByNumber grows
+	private int[] sharedTrigrams = new int[16]; // by name number, used while searching with typos
+
+	/**
+	 * @param expectedNames number of names the index is sized for up front
+	 */
+	NameIndex(int expectedNames){
+		names = new HashMap<String, Name>(Math.max(16, expectedNames * 4 / 3 + 1));
+	}
+
+	/**
+	 * Names are matched ignoring case, so the index is keyed on the lower case name
+	 * @param name
+	 * @return the key of the name in the index
+	 */
+	static String key(String name){
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	public void add(String name, Account account){
+		String key = key(name);
+		Name indexed = names.get(key);
+		if(indexed == null){
+			indexed = new Name(key);
+			names.put(key, indexed);
+			if(sortedNames != null){
+				addToSearchIndex(indexed);
+			}
+		}
+		indexed.accounts.add(account);
+	}
+
+	public void remove(String name, Account account){
+		String key = key(name);
+		Name indexed = names.get(key);
+		if(indexed == null){
+			return;
+		}
+		indexed.accounts.remove(account);
+		if(indexed.accounts.isEmpty()){
+			names.remove(key);
+			if(sortedNames != null){
+				removeFromSearchIndex(indexed);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the sorted names and the trigrams, unless they're built already
+	 */
+	private void buildSearchIndex(){
+		if(sortedNames != null){
+			return;
+		}
+		sortedNames = new TreeMap<String, Name>();
+		namesByTrigram = new HashMap<Long, IntList>();
+		namesByNumber = new ArrayList<Name>(names.size());
+		freeNumbers = new IntList();
+		for(Name name : names.values()){
+			addToSearchIndex(name);
+		}
+	}
+
+	private void addToSearchIndex(Name name){
+		if(freeNumbers.size() > 0){
+			name.number = freeNumbers.removeLast();
+			namesByNumber.set(name.number, name);
+		} else {
+			name.number = namesByNumber.size();
+			namesByNumber.add(name);
+		}
+		sortedNames.put(name.key, name);
+		long[] nameTrigrams = trigrams(name.key);
+		name.positions = new int[nameTrigrams.length];
+		for(int t = 0; t < nameTrigrams.length; t++){
+			IntList numbers = namesByTrigram.get(nameTrigrams[t]);
+			if(numbers == null){
+				numbers = new IntList();
+				namesByTrigram.put(nameTrigrams[t], numbers);
+			}
+			name.positions[t] = numbers.size();
+			numbers.add(name.number);
+		}
+	}
+
+	private void removeFromSearchIndex(Name name){
+		sortedNames.remove(name.key);
+		long[] nameTrigrams = trigrams(name.key);
+		for(int t = 0; t < nameTrigrams.length; t++){
+			IntList numbers = namesByTrigram.get(nameTrigrams[t]);
+			int moved = numbers.removeAt(name.positions[t]);
+			if(moved >= 0){
+				// the last name of the list took the place of the removed one
+				Name movedName = namesByNumber.get(moved);
+				long[] movedTrigrams = trigrams(movedName.key);
+				for(int m = 0; m < movedTrigrams.length; m++){
+					if(movedTrigrams[m] == nameTrigrams[t]){
+						movedName.positions[m] = name.positions[t];
+					}
+				}
+			}
+			if(numbers.size() == 0){
+				namesByTrigram.remove(nameTrigrams[t]);
+			}
+		}
+		namesByNumber.set(name.number, null);
+		freeNumbers.add(name.number);
+		name.positions = null;
+	}
+
+	/**
+	 * @param name
+	 * @return the accounts with exactly this name (ignoring case), oldest first. null if there are none
+	 */
+	public List<Account> get(String name){
+		Name indexed = names.get(key(name));
+		return indexed == null ? null : indexed.accounts;
+	}
+
+	/**
+	 * Starts a search. The accounts are ranked: an exact match first, then names that start with the
+	 * text (alphabetically), then names that are one or two typos away (the most alike first). They are found
+	 * page by page, see SearchResults
+	 * @param text
+	 * @param lock lock to hold while reading the index
+	 * @return the results, read with nextPage()
+	 */
+	public SearchResults search(String text, Object lock){
+		return new SearchResults(this, key(text), lock);
+	}
+
+	/**
+	 * @param prefix a lower case prefix
+	 * @param after the last name of the previous page, null to start from the beginning
+	 * @return the first name after the given one that starts with the prefix, or null if there is none
+	 */
+	Map.Entry<String, Name> nextWithPrefix(String prefix, String after){
+		buildSearchIndex();
+		Map.Entry<String, Name> next = after == null ? sortedNames.ceilingEntry(prefix) : sortedNames.higherEntry(after);
+		if(next == null || !next.getKey().startsWith(prefix)){
+			return null;
+		}
+		return next;
+	}
+
+	/**
+	 * Starts looking for the names that are at most maxDistance typos (letters added, removed or
+	 * changed) away from the text. Every name that shares a trigram with the text is counted here,
+	 * the names are only compared letter by letter as the matches are asked for
+	 * @param text lower case
+	 * @param maxDistance
+	 * @return the matches, read with next()
+	 */
+	FuzzyMatches fuzzyMatches(String text, int maxDistance){
+		buildSearchIndex();
+		long[] textTrigrams = trigrams(text);
+		// every typo changes at most three trigrams, so a match shares all but 3 * maxDistance of them,
+		// and has at least one of any 3 * maxDistance + 1 of them. Only the rarest ones are counted
+		int neededTrigrams = textTrigrams.length - 3 * maxDistance;
+		int countedTrigrams = maxDistance == 0 ? 0 : Math.min(textTrigrams.length, 3 * maxDistance + 1);
+		sortByNumberOfNames(textTrigrams);
+		if(sharedTrigrams.length < namesByNumber.size()){
+			sharedTrigrams = new int[Math.max(namesByNumber.size(), sharedTrigrams.length * 2)];
+		}
+		IntList counted = new IntList();
+		int namesCounted = 0;
+		for(int t = 0; t < countedTrigrams; t++){
+			IntList numbers = namesByTrigram.get(textTrigrams[t]);
+			if(t > 0 && numbers != null && namesCounted + numbers.size() > MAX_NAMES_TO_COUNT){
+				countedTrigrams = t;
+				break;
+			}
+			namesCounted += numbers == null ? 0 : numbers.size();
+			for(int i = 0; numbers != null && i < numbers.size(); i++){
+				int number = numbers.get(i);
+				if(sharedTrigrams[number]++ == 0){
+					counted.add(number);
+				}
+			}
+		}
+		// group the names by the number of counted trigrams they share, and get the counts ready for the next search
+		IntList[] namesBySharedTrigrams = new IntList[countedTrigrams + 1];
+		for(int i = 0; i < counted.size(); i++){
+			int number = counted.get(i);
+			int shared = sharedTrigrams[number];
+			if(namesBySharedTrigrams[shared] == null){
+				namesBySharedTrigrams[shared] = new IntList();
+			}
+			namesBySharedTrigrams[shared].add(number);
+			sharedTrigrams[number] = 0;
+		}
+		long[] uncountedTrigrams = Arrays.copyOfRange(textTrigrams, countedTrigrams, textTrigrams.length);
+		return new FuzzyMatches(text, maxDistance, namesBySharedTrigrams, uncountedTrigrams, neededTrigrams);
+	}
+
+	/**
+	 * Sorts trigrams by the number of names that have them, fewest first
+	 */
+	private void sortByNumberOfNames(long[] trigrams){
+		for(int i = 1; i < trigrams.length; i++){
+			// insertion sort, there are only as many trigrams as letters in the text
+			for(int j = i; j > 0 && numberOfNames(trigrams[j]) < numberOfNames(trigrams[j - 1]); j--){
+				long swap = trigrams[j];
+				trigrams[j] = trigrams[j - 1];
+				trigrams[j - 1] = swap;
+			}
+		}
+	}
+
+	private int numberOfNames(long trigram){
+		IntList numbers = namesByTrigram.get(trigram);
+		return numbers == null ? 0 : numbers.size();
+	}
+
+	/**
+	 * @param text
+	 * @return the number of typos allowed when searching for the text, more for longer texts
+	 */
+	static int allowedTypos(String text){
+		if(text.length() < 3){
+			return 0;
+		}
+		return text.length() <= 5 ? 1 : 2;
+	}
+
+	/**
+	 * @return the distinct trigrams of a name, with a boundary before and after it
+	 */
+	private static long[] trigrams(String key){
+		String bounded = NAME_BOUNDARY + key + NAME_BOUNDARY;
+		long[] trigrams = new long[bounded.length() - 2];
+		int distinct = 0;
+		for(int i = 0; i + 3 <= bounded.length(); i++){
+			// three chars of 16 bits in one long
+			long trigram = ((long) bounded.charAt(i) << 32) | ((long) bounded.charAt(i + 1) << 16) | bounded.charAt(i + 2);
+			boolean seen = false;
+			for(int j = 0; j < distinct && !seen; j++){
+				seen = trigrams[j] == trigram;
+			}
+			if(!seen){
+				trigrams[distinct++] = trigram;
+			}
+		}
+		return Arrays.copyOf(trigrams, distinct);
+	}
+
+	/**
+	 * @return true if the name (with a boundary before and after it) has the trigram
+	 */
+	private static boolean hasTrigram(String key, long trigram){
+		for(int i = -1; i + 1 < key.length() + 1; i++){
+			if(charAt(key, i) == (char) (trigram >>> 32) && charAt(key, i + 1) == (char) (trigram >>> 16) && charAt(key, i + 2) == (char) trigram){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static char charAt(String key, int index){
+		return index < 0 || index >= key.length() ? NAME_BOUNDARY : key.charAt(index);
+	}
+
+	/**
+	 * Levenshtein distance, stops early when it's clear that it's more than maxDistance
+	 * @return the distance, or maxDistance + 1 if it's more than maxDistance
+	 */
+	static int distance(String first, String second, int maxDistance){
+		if(Math.abs(first.length() - second.length()) > maxDistance){
+			return maxDistance + 1;
+		}
+		int[] previous = new int[second.length() + 1];
+		int[] current = new int[second.length() + 1];
+		for(int j = 0; j <= second.length(); j++){
+			previous[j] = j;
+		}
+		for(int i = 1; i <= first.length(); i++){
+			current[0] = i;
+			int rowMinimum = current[0];
+			for(int j = 1; j <= second.length(); j++){
+				int change = first.charAt(i - 1) == second.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + change);
+				rowMinimum = Math.min(rowMinimum, current[j]);
+			}
+			if(rowMinimum > maxDistance){
+				return maxDistance + 1;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return Math.min(previous[second.length()], maxDistance + 1);
+	}
+
+	/**
+	 * A name in the index and the accounts that have it
+	 */
+	static class Name {
+		final String key;
+		int number; // position in namesByNumber
+		int[] positions; // where the number is in the list of names of each trigram, in the order trigrams() returns them
+		final List<Account> accounts = new ArrayList<Account>(1); // most names only belong to one account
+
+		Name(String key){
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The names found by a search with typos, best first: the names that share the most trigrams with
+	 * the text come first, and of those the closest ones. Only the names sharing the same number of
+	 * trigrams as the next match are compared letter by letter, so the first page is cheap even if a
+	 * large part of the names share a trigram or two with the text
+	 */
+	class FuzzyMatches {
+		private final String text;
+		private final int maxDistance;
+		private final IntList[] namesBySharedTrigrams; // by the number of shared trigrams that were counted
+		private final long[] uncountedTrigrams; // the common trigrams of the text, checked name by name
+		private final int neededTrigrams; // trigrams a name must share with the text, counted or not, to be a match
+		private int nextShared; // the group of names to compare next
+		private int compared; // names looked at so far
+		private List<Name> matches = new ArrayList<Name>(); // the matches of the latest group compared
+		private int nextMatch;
+
+		FuzzyMatches(String text, int maxDistance, IntList[] namesBySharedTrigrams, long[] uncountedTrigrams, int neededTrigrams){
+			this.text = text;
+			this.maxDistance = maxDistance;
+			this.namesBySharedTrigrams = namesBySharedTrigrams;
+			this.uncountedTrigrams = uncountedTrigrams;
+			this.neededTrigrams = neededTrigrams;
+			this.nextShared = namesBySharedTrigrams.length - 1;
+		}
+
+		/**
+		 * @return the next match, or null if there are no more
+		 */
+		Name next(){
+			while(nextMatch >= matches.size()){
+				// a name can share all the uncounted trigrams as well
+				if(nextShared < 1 || nextShared + uncountedTrigrams.length < neededTrigrams || compared >= MAX_NAMES_TO_COMPARE){
+					return null;
+				}
+				compareGroup(namesBySharedTrigrams[nextShared--]);
+			}
+			return matches.get(nextMatch++);
+		}
+
+		private void compareGroup(IntList numbers){
+			List<List<Name>> byDistance = new ArrayList<List<Name>>();
+			for(int distance = 0; distance <= maxDistance; distance++){
+				byDistance.add(new ArrayList<Name>());
+			}
+			int countedShared = nextShared + 1;
+			for(int i = 0; numbers != null && i < numbers.size() && compared < MAX_NAMES_TO_COMPARE; i++){
+				Name candidate = namesByNumber.get(numbers.get(i));
+				if(candidate == null){
+					// removed since the search started. If the number was given to another name since,
+					// that name is only a match if it's close enough like any other
+					continue;
+				}
+				compared++;
+				if(Math.abs(candidate.key.length() - text.length()) > maxDistance){
+					continue;
+				}
+				int shared = countedShared;
+				for(long trigram : uncountedTrigrams){
+					if(hasTrigram(candidate.key, trigram)){
+						shared++;
+					}
+				}
+				if(shared < neededTrigrams){
+					continue;
+				}
+				int distance = distance(text, candidate.key, maxDistance);
+				if(distance <= maxDistance){
+					byDistance.get(distance).add(candidate);
+				}
+			}
+			matches = new ArrayList<Name>();
+			for(List<Name> sameDistance : byDistance){
+				sameDistance.sort((first, second) -> first.key.compareTo(second.key));
+				matches.addAll(sameDistance);
+			}
+			nextMatch = 0;
+		}
+	}
+
+	/**
+	 * A growing list of ints, without boxing every int
+	 */
+	private static class IntList {
+		private int[] values = new int[4];
+		private int size;
+
+		void add(int value){
+			if(size == values.length){
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Removes the value at an index, the last value takes its place
+		 * @return the value that was moved to the index, -1 if the removed value was the last one
+		 */
+		int removeAt(int index){
+			int last = values[--size];
+			if(index == size){
+				return -1;
+			}
+			values[index] = last;
+			return last;
+		}
+
+		int removeLast(){
+			return values[--size];
+		}
+
+		int get(int index){
+			return values[index];
+		}
+
+		int size(){
+			return size;
+		}
+	}
+}
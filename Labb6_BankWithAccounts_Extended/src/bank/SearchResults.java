@@ -0,0 +1,189 @@
+package bank;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of a search in a NameIndex, found a page at a time. Names that start with the text are
+ * read from the sorted index as the pages are asked for, so a search that matches half of the accounts
+ * only costs as much as the pages that are read. The search with typos is only done when those run out.
+ *
+ * A search of a ShardedAccountManager reads the index of every shard, see combine(). The names that
+ * start with the text are merged in name order, accounts of the same name in different shards end up
+ * together. The names with typos are taken from the shards in turn.
+ *
+ * Every index is read while holding the lock of its account manager, accounts created or deleted
+ * between two pages may or may not show up.
+ * @author Erik
+ *
+ */
+public class SearchResults {
+
+	private String text; // lower case
+	private Source[] sources;
+	private int nextFuzzySource; // the typo matches are taken from the sources in turn
+	private Deque<Account> pending = new ArrayDeque<Account>(); // accounts of a name that didn't fit on the previous page
+
+	SearchResults(NameIndex index, String text, Object lock){
+		this(text, new Source[] { new Source(index, lock) });
+	}
+
+	private SearchResults(String text, Source[] sources){
+		this.text = text;
+		this.sources = sources;
+	}
+
+	/**
+	 * Makes one search of searches for the same text in different indexes. None of them may have been
+	 * read yet
+	 * @param searches
+	 * @return the results of all of them
+	 */
+	static SearchResults combine(List<SearchResults> searches){
+		List<Source> sources = new ArrayList<Source>();
+		for(SearchResults search : searches){
+			for(Source source : search.sources){
+				sources.add(source);
+			}
+		}
+		return new SearchResults(searches.get(0).text, sources.toArray(new Source[sources.size()]));
+	}
+
+	/**
+	 * @param maxAccounts the largest number of accounts to return
+	 * @return the next accounts, best match first. Fewer than maxAccounts (or none) when the results run out
+	 */
+	public synchronized Account[] nextPage(int maxAccounts){
+		List<Account> page = new ArrayList<Account>(Math.min(maxAccounts, 64));
+		while(page.size() < maxAccounts){
+			if(!pending.isEmpty()){
+				page.add(pending.poll());
+				continue;
+			}
+			List<Account> next = nextMatch();
+			if(next == null){
+				break;
+			}
+			pending.addAll(next);
+		}
+		return page.toArray(new Account[page.size()]);
+	}
+
+	/**
+	 * @return true if there are no more results
+	 */
+	public synchronized boolean isDone(){
+		for(Source source : sources){
+			if(!source.fuzzyMatchesDone){
+				return false;
+			}
+		}
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @return the accounts of the next name, null when the results run out
+	 */
+	private List<Account> nextMatch(){
+		List<Account> match = nextPrefixMatch();
+		return match != null ? match : nextFuzzyMatch();
+	}
+
+	private List<Account> nextPrefixMatch(){
+		String first = null;
+		for(Source source : sources){
+			source.readPrefixMatch(text);
+			if(source.prefixMatch != null && (first == null || source.prefixMatch.compareTo(first) < 0)){
+				first = source.prefixMatch;
+			}
+		}
+		if(first == null){
+			return null;
+		}
+		List<Account> accounts = new ArrayList<Account>();
+		for(Source source : sources){
+			if(first.equals(source.prefixMatch)){
+				accounts.addAll(source.prefixMatchAccounts);
+				source.prefixMatch = null;
+				source.prefixMatchAccounts = null;
+			}
+		}
+		return accounts;
+	}
+
+	private List<Account> nextFuzzyMatch(){
+		for(int tried = 0; tried < sources.length; tried++){
+			Source source = sources[nextFuzzySource];
+			nextFuzzySource = (nextFuzzySource + 1) % sources.length;
+			List<Account> match = source.nextFuzzyMatch(text);
+			if(match != null){
+				return match;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * One index that is searched, and how far the search in it has come
+	 */
+	private static class Source {
+		final NameIndex index;
+		final Object lock;
+		String lastPrefixMatch; // name of the latest prefix match read, null before the first one
+		String prefixMatch; // a prefix match that is read but not returned yet, null if there is none
+		List<Account> prefixMatchAccounts;
+		boolean prefixMatchesDone;
+		NameIndex.FuzzyMatches fuzzyMatches; // null until the prefix matches are done
+		boolean fuzzyMatchesDone;
+
+		Source(NameIndex index, Object lock){
+			this.index = index;
+			this.lock = lock;
+		}
+
+		/**
+		 * Reads the next name that starts with the text, unless the one read before isn't returned yet
+		 */
+		void readPrefixMatch(String text){
+			if(prefixMatch != null || prefixMatchesDone){
+				return;
+			}
+			synchronized(lock){
+				Map.Entry<String, NameIndex.Name> next = index.nextWithPrefix(text, lastPrefixMatch);
+				if(next == null){
+					prefixMatchesDone = true;
+					return;
+				}
+				lastPrefixMatch = next.getKey();
+				prefixMatch = next.getKey();
+				prefixMatchAccounts = new ArrayList<Account>(next.getValue().accounts);
+			}
+		}
+
+		/**
+		 * @return the accounts of the next name with typos, null when there are no more
+		 */
+		List<Account> nextFuzzyMatch(String text){
+			if(fuzzyMatchesDone){
+				return null;
+			}
+			synchronized(lock){
+				if(fuzzyMatches == null){
+					fuzzyMatches = index.fuzzyMatches(text, NameIndex.allowedTypos(text));
+				}
+				NameIndex.Name match;
+				while((match = fuzzyMatches.next()) != null){
+					// the names that start with the text were returned already
+					if(!match.key.startsWith(text) && !match.accounts.isEmpty()){
+						return new ArrayList<Account>(match.accounts);
+					}
+				}
+			}
+			fuzzyMatchesDone = true;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Makes a transfer between accounts of two shards all or nothing, also after a crash.
+ *
+ * Before the balances of such a transfer are changed, the transfer gets a number and is written to
+ * "transfers.log" in the root folder, and the log is synced. Each account keeps the number of the last
+ * transfer with another shard that changed it, and its storage saves the number together with the
+ * balance. The numbers only grow, so after a crash an account with a smaller number than a transfer in
+ * the log never had its half of that transfer saved. ShardedAccountManager makes those halves again
+ * when it opens the shards.
+ *
+ * The log is synced by a thread of its own (the flusher), in groups like GroupCommitter: the transfers
+ * written while it syncs are synced together by the next sync, so the writers of all shards that wait at
+ * the same time share one sync instead of syncing one after the other.
+ *
+ * A transfer is dropped from the log once all accounts were saved after it was made. The log starts with
+ * the next number, so the numbers go on growing after it's emptied. A record is [number][from id][to id]
+ * [amount][crc32], so a record that was only half written when the program crashed is cut off.
+ *
+ * A write or sync that fails throws an UncheckedIOException, and the log refuses every transfer after it,
+ * like AccountJournal.
+ *
+ * AccountFileStorage and MappedAccountTable save the two accounts of a transfer inside one shard
+ * separately as well, so they keep a log of their own for those transfers, and the accounts keep the
+ * number of the last one in their local transfer number.
+ * @author Erik
+ *
+ */
+public class ShardTransferLog {
+
+	private static final String FILE_NAME = "transfers.log";
+	private static final int MAGIC = 0x42414e4b; // "BANK"
+	private static final int HEADER_SIZE = 4 + 8; // magic, next number
+	private static final int RECORD_SIZE = 8 + 4 + 4 + 8 + 4;
+
+	private File logFile;
+	private FileChannel channel;
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+	private long nextNumber; // numbers below it were handed out
+	private ArrayDeque<Transfer> transfers = new ArrayDeque<Transfer>(); // the transfers in the log, oldest first
+	private TreeSet<Long> unapplied = new TreeSet<Long>(); // numbers handed out of transfers that aren't made yet
+	private long written; // records written since the log was opened
+	private IOException failure; // the write or sync that failed, the log can't be used after it
+	private Object syncLock = new Object(); // held while syncing, outside the lock of the log
+	private long synced; // records that are on disk, changed while holding syncLock and the lock of the log
+	private long syncs; // number of syncs, for the statistics
+	private boolean closing; // the flusher stops when everything written is synced
+	private Thread flusher;
+
+	/**
+	 * Reads the transfers in the log, or creates an empty log
+	 * @param rootFolder
+	 */
+	ShardTransferLog(File rootFolder){
+		this(rootFolder, FILE_NAME);
+	}
+
+	/**
+	 * Reads the transfers in a log with another name, or creates it empty
+	 * @param folder an existing folder
+	 * @param fileName
+	 */
+	ShardTransferLog(File folder, String fileName){
+		this.logFile = new File(folder, fileName);
+		try {
+			if(!logFile.exists()){
+				nextNumber = 1;
+				rewrite();
+			} else {
+				openChannel();
+				read();
+			}
+		} catch (IOException e) {
+			// transfers can't be made all or nothing without it
+			throw new IllegalStateException("Could not open the transfer log " + logFile.getPath(), e);
+		}
+		flusher = new Thread(this::syncUntilClosed, "transfer-log-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private void read() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while(header.hasRemaining() && channel.read(header, header.position()) > 0){
+			// read the whole header
+		}
+		header.flip();
+		if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC){
+			// written with a rename, so this is not a half written file
+			throw new IOException("Not a transfer log");
+		}
+		nextNumber = header.getLong();
+		long position = HEADER_SIZE;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		CRC32 crc = new CRC32();
+		while(true){
+			record.clear();
+			while(record.hasRemaining() && channel.read(record, position + record.position()) > 0){
+				// read the whole record
+			}
+			if(record.hasRemaining()){
+				break;
+			}
+			crc.reset();
+			crc.update(record.array(), 0, RECORD_SIZE - 4);
+			record.flip();
+			if(record.getInt(RECORD_SIZE - 4) != (int) crc.getValue()){
+				break;
+			}
+			Transfer transfer = new Transfer(record.getLong(), record.getInt(), record.getInt(), record.getLong());
+			transfers.add(transfer);
+			nextNumber = Math.max(nextNumber, transfer.number + 1);
+			position += RECORD_SIZE;
+		}
+		if(channel.size() > position){
+			System.out.println("The transfer log " + logFile.getPath() + " is damaged after " + transfers.size() + " transfers, the rest of it is ignored");
+			channel.truncate(position);
+		}
+	}
+
+	/**
+	 * @return the transfers in the log, oldest first. Some of them may only be half made
+	 */
+	synchronized List<Transfer> getTransfers(){
+		return new ArrayList<Transfer>(transfers);
+	}
+
+	/**
+	 * Writes a transfer to the log and returns when the flusher has synced it. Called while holding the
+	 * locks of both accounts, before their balances are changed, so the numbers of an account grow in the
+	 * order its transfers are made
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @return the number of the transfer, call applied() with it when both halves are made
+	 */
+	long add(int fromAccountId, int toAccountId, long amount){
+		long number;
+		long target;
+		synchronized(this){
+			checkNotBroken();
+			number = nextNumber;
+			long position = HEADER_SIZE + (long) transfers.size() * RECORD_SIZE;
+			recordBuffer.clear();
+			recordBuffer.putLong(number).putInt(fromAccountId).putInt(toAccountId).putLong(amount);
+			CRC32 crc = new CRC32();
+			crc.update(recordBuffer.array(), 0, RECORD_SIZE - 4);
+			recordBuffer.putInt((int) crc.getValue());
+			recordBuffer.flip();
+			try {
+				while(recordBuffer.hasRemaining()){
+					channel.write(recordBuffer, position + recordBuffer.position());
+				}
+			} catch (IOException e) {
+				try {
+					channel.truncate(position);
+				} catch (IOException truncateFailure) {
+					// the crc cuts it off when the log is read
+				}
+				throw broken("Could not write to the transfer log", e);
+			}
+			nextNumber++;
+			transfers.add(new Transfer(number, fromAccountId, toAccountId, amount));
+			unapplied.add(number);
+			written++;
+			target = written;
+			notifyAll();
+			waitUntilSynced(target);
+		}
+		return number;
+	}
+
+	/**
+	 * Waits for the flusher, holding the lock of the log
+	 */
+	private void waitUntilSynced(long target){
+		boolean interrupted = false;
+		while(synced < target){
+			checkNotBroken();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// the transfer is written, the caller can't stop before it's on disk
+				interrupted = true;
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The flusher: syncs everything written so far with one sync, and wakes the writers waiting for it
+	 */
+	private void syncUntilClosed(){
+		while(true){
+			synchronized(this){
+				while(synced == written && !closing && failure == null){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						broken("The transfer log flusher was interrupted", new InterruptedIOException());
+						return;
+					}
+				}
+				if(failure != null || synced == written){
+					return;
+				}
+			}
+			// not while holding the lock of the log, so writers can add to the next group meanwhile
+			synchronized(syncLock){
+				long target;
+				FileChannel syncedChannel;
+				synchronized(this){
+					if(channel == null){
+						// closed
+						return;
+					}
+					target = written;
+					syncedChannel = channel;
+				}
+				try {
+					syncedChannel.force(false);
+				} catch (IOException e) {
+					broken("Could not sync the transfer log", e);
+					return;
+				}
+				synchronized(this){
+					synced = Math.max(synced, target);
+					syncs++;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of syncs of the log so far, less than the number of transfers when they are synced in groups
+	 */
+	synchronized long getSyncCount(){
+		return syncs;
+	}
+
+	/**
+	 * Both halves of the transfer are made, and its accounts will be saved by the next saveAllAccounts
+	 * @param number
+	 */
+	synchronized void applied(long number){
+		unapplied.remove(number);
+	}
+
+	/**
+	 * @return the number up to which all transfers are made. The accounts of these transfers are saved by
+	 * a saveAllAccounts that starts after this was called
+	 */
+	synchronized long getAppliedUpTo(){
+		return unapplied.isEmpty() ? nextNumber - 1 : unapplied.first() - 1;
+	}
+
+	/**
+	 * @return the number of the last transfer written to the log, made or not
+	 */
+	synchronized long getAddedUpTo(){
+		return nextNumber - 1;
+	}
+
+	/**
+	 * @return number of transfers in the log
+	 */
+	synchronized int getTransferCount(){
+		return transfers.size();
+	}
+
+	/**
+	 * Drops the transfers up to a number from the log, once all their accounts were saved
+	 * @param number
+	 */
+	void removeUpTo(long number){
+		// syncs wait, they use the channel that is replaced
+		synchronized(syncLock){
+			synchronized(this){
+				if(transfers.isEmpty() || transfers.peekFirst().number > number){
+					return;
+				}
+				checkNotBroken();
+				while(!transfers.isEmpty() && transfers.peekFirst().number <= number){
+					transfers.pollFirst();
+				}
+				try {
+					rewrite();
+				} catch (IOException e) {
+					throw broken("Could not write the transfer log", e);
+				}
+				// the new log was synced before it replaced the old one
+				synced = written;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the log again with the transfers that are left, to a temporary file that is synced and
+	 * renamed to the log
+	 */
+	private void rewrite() throws IOException {
+		File tempFile = new File(logFile.getPath() + AccountFileStorage.TEMP_FILE_SUFFIX);
+		ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE + transfers.size() * RECORD_SIZE);
+		content.putInt(MAGIC).putLong(nextNumber);
+		CRC32 crc = new CRC32();
+		for(Transfer transfer : transfers){
+			int start = content.position();
+			content.putLong(transfer.number).putInt(transfer.fromAccountId).putInt(transfer.toAccountId).putLong(transfer.amount);
+			crc.reset();
+			crc.update(content.array(), start, RECORD_SIZE - 4);
+			content.putInt((int) crc.getValue());
+		}
+		content.flip();
+		try(FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			while(content.hasRemaining()){
+				tempChannel.write(content);
+			}
+			tempChannel.force(false);
+		}
+		Metrics.closeFile(channel);
+		channel = null;
+		Files.move(tempFile.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		AccountFileStorage.syncFolder(logFile.getAbsoluteFile().getParentFile());
+		openChannel();
+	}
+
+	private void openChannel() throws IOException {
+		long openStart = Metrics.start();
+		channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Metrics.fileOpened(openStart);
+	}
+
+	private void checkNotBroken(){
+		if(failure != null){
+			throw new UncheckedIOException("The transfer log can't be written after an earlier failure", failure);
+		}
+		if(channel == null){
+			throw new IllegalStateException("The transfer log is closed");
+		}
+	}
+
+	/**
+	 * Refuses all transfers from now on, also those waiting for a sync
+	 * @return the exception to throw
+	 */
+	private synchronized UncheckedIOException broken(String message, IOException cause){
+		if(failure == null){
+			failure = cause;
+		}
+		notifyAll();
+		return new UncheckedIOException(message, cause);
+	}
+
+	/**
+	 * Closes the log. The transfers in it stay, they're dropped when all accounts were saved after the next start
+	 */
+	void close(){
+		synchronized(this){
+			closing = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized(syncLock){
+			synchronized(this){
+				if(channel == null){
+					return;
+				}
+				try {
+					channel.force(false);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				Metrics.closeFile(channel);
+				channel = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * One transfer in the log
+	 */
+	static class Transfer {
+		final long number;
+		final int fromAccountId;
+		final int toAccountId;
+		final long amount; // in cents
+
+		Transfer(long number, int fromAccountId, int toAccountId, long amount){
+			this.number = number;
+			this.fromAccountId = fromAccountId;
+			this.toAccountId = toAccountId;
+			this.amount = amount;
+		}
+	}
+}
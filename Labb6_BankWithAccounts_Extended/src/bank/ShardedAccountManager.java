@@ -0,0 +1,672 @@
+package bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Spreads the accounts over several AccountManagers (shards), each with a folder, a storage and a
+ * ledger of its own, so changes of accounts in different shards never wait for the same lock, file
+ * or sync. The bank uses it like one AccountManager.
+ *
+ * An account belongs in shard (account id % number of shards). The ids come from one AccountIdAllocator
+ * in the root folder, shared by all shards, so the ids are unique and new accounts go round the shards
+ * in turn. The shards count their accounts in one BankTotals, so the totals are those of the whole bank.
+ *
+ * Every shard has one writer thread that makes its deposits, withdraws, transfers, new accounts and
+ * deletes. The caller waits for the writer, and then for the change to be durable if it asked for that,
+ * so the writer can go on with the next change while the sync is done. Other threads change accounts of
+ * a shard too: a transfer with another shard is made by the writer of the shard of the from account, and
+ * monthly interest is paid on the thread of the caller. Like in AccountManager, an account is only
+ * changed while holding its lock. Lookups, searches and the totals are read from the shards right away.
+ *
+ * A transfer between accounts in two shards is made by the writer of the shard of the from account. It
+ * locks both accounts (in order of account id, like AccountManager.transfer) and changes both balances
+ * before it lets go, so no other thread sees one account changed without the other. Each shard saves its
+ * half of the transfer by itself, so the transfer is first written to the ShardTransferLog in the root
+ * folder and synced: if the program stops when only one half was saved, the other half is made again
+ * when the root folder is opened. The writer waits for that sync while it holds the locks of both accounts,
+ * but the log is synced in groups, so writers of different shards that wait at the same time share one sync.
+ *
+ * The number of shards is saved in the root folder. A root folder is always opened with the number of
+ * shards it was created with, as the accounts can't move between shards.
+ * @author Erik
+ *
+ */
+public class ShardedAccountManager implements AccountService {
+
+	private static final String SHARD_COUNT_FILE_NAME = "shards.txt";
+	private static final String SHARD_FOLDER_PREFIX = "shard-";
+
+	private File rootFolder;
+	private AccountManager[] shards;
+	private ExecutorService[] writers; // one thread per shard, makes every change of the shard
+	private AccountIdAllocator ids; // shared by all shards
+	private BankTotals totals; // shared by all shards
+	private ShardTransferLog transferLog; // the transfers between shards that may only be half saved
+	private ScheduledExecutorService checkpoints; // saves all shards now and then, null until started
+	private volatile int currentShard = -1; // the shard of the current account, -1 if none is set
+
+	/**
+	 * Changes are only saved at the checkpoints and when the current account changes
+	 * @param rootFolder folder with a folder for every shard
+	 * @param shardCount number of shards, if the root folder is new
+	 * @param storages makes the storage of a shard, given its folder
+	 */
+	ShardedAccountManager(File rootFolder, int shardCount, Function<File, AccountStorage> storages){
+		this(rootFolder, shardCount, storages, 0, 0);
+	}
+
+	/**
+	 * Every change is made durable by the GroupCommitter of its shard
+	 * @param rootFolder folder with a folder for every shard
+	 * @param shardCount number of shards, if the root folder is new
+	 * @param storages makes the storage of a shard, given its folder
+	 * @param commitBatchSize the largest number of changes that are synced together, 0 for no group commits
+	 * @param commitIntervalMillis the longest time a change waits before it's synced
+	 */
+	ShardedAccountManager(File rootFolder, int shardCount, Function<File, AccountStorage> storages, int commitBatchSize, long commitIntervalMillis){
+		if(shardCount < 1){
+			throw new IllegalArgumentException("Need at least one shard, got " + shardCount);
+		}
+		this.rootFolder = rootFolder;
+		if(!rootFolder.exists() && !rootFolder.mkdirs()){
+			throw new IllegalStateException("Could not create the folder " + rootFolder.getPath());
+		}
+		shardCount = readShardCount(shardCount);
+		this.ids = new AccountIdAllocator(rootFolder);
+		this.totals = new BankTotals(BankTotals.DEFAULT_LOW_BALANCE, this::copyOfAllAccounts);
+		this.transferLog = new ShardTransferLog(rootFolder);
+		this.shards = new AccountManager[shardCount];
+		this.writers = new ExecutorService[shardCount];
+		for(int i = 0; i < shardCount; i++){
+			File shardFolder = new File(rootFolder, SHARD_FOLDER_PREFIX + i);
+			AccountStorage storage = storages.apply(shardFolder);
+			GroupCommitter committer = commitBatchSize > 0 ? new GroupCommitter(storage, commitBatchSize, commitIntervalMillis) : null;
+			shards[i] = new AccountManager(shardFolder, storage, ids, totals, committer);
+			String writerName = "shard-" + i + "-writer";
+			writers[i] = Executors.newSingleThreadExecutor(runnable -> {
+				Thread writerThread = new Thread(runnable, writerName);
+				writerThread.setDaemon(true);
+				return writerThread;
+			});
+		}
+		// every shard registered the gauges of its own accounts, these are of all of them
+		Metrics.registerGauge("accounts", totals::getAccountCount);
+		Metrics.registerGauge("accounts.loaded", () -> {
+			long loaded = 0;
+			for(AccountManager shard : shards){
+				loaded += shard.getLoadedAccountCount();
+			}
+			return loaded;
+		});
+		finishTransfers();
+		System.out.println("Opened " + shardCount + " shards with " + totals.getAccountCount() + " accounts");
+	}
+
+	/**
+	 * Makes the halves of transfers between shards that weren't saved before the program stopped, then
+	 * saves all accounts so the transfer log can be emptied
+	 */
+	private void finishTransfers(){
+		List<ShardTransferLog.Transfer> transfers = transferLog.getTransfers();
+		if(transfers.isEmpty()){
+			return;
+		}
+		int finishedHalves = 0;
+		for(ShardTransferLog.Transfer transfer : transfers){
+			if(shards[shardOf(transfer.fromAccountId)].finishShardTransfer(transfer.fromAccountId, -transfer.amount, transfer.number)){
+				finishedHalves++;
+			}
+			if(shards[shardOf(transfer.toAccountId)].finishShardTransfer(transfer.toAccountId, transfer.amount, transfer.number)){
+				finishedHalves++;
+			}
+		}
+		saveAllAccounts();
+		System.out.println("Checked " + transfers.size() + " transfers between shards, " + finishedHalves + " halves of them weren't saved and were made again");
+	}
+
+	/**
+	 * Reads the number of shards of the root folder, or saves it if the folder is new
+	 * @param shardCount the number of shards asked for
+	 * @return the number of shards the folder has
+	 */
+	private int readShardCount(int shardCount){
+		File countFile = new File(rootFolder, SHARD_COUNT_FILE_NAME);
+		try {
+			if(!countFile.exists()){
+				Files.write(countFile.toPath(), Collections.singletonList(Integer.toString(shardCount)), StandardCharsets.UTF_8);
+				return shardCount;
+			}
+			int savedCount = Integer.parseInt(Files.readAllLines(countFile.toPath(), StandardCharsets.UTF_8).get(0).trim());
+			if(savedCount != shardCount){
+				System.out.println("The accounts in " + rootFolder.getPath() + " are in " + savedCount + " shards, not " + shardCount + ". Using " + savedCount);
+			}
+			return savedCount;
+		} catch (IOException | RuntimeException e) {
+			// opening with another number of shards would put accounts in the wrong shard
+			throw new IllegalStateException("Could not read or save the number of shards in " + countFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount(){
+		return shards.length;
+	}
+
+	private int shardOf(int accountId){
+		// ids are never negative, but an unknown one must find no account rather than no shard
+		return Math.floorMod(accountId, shards.length);
+	}
+
+	/**
+	 * Runs a change on the writer of a shard and waits for it
+	 * @param shard
+	 * @param change
+	 * @return what the change returned
+	 */
+	private <T> T write(int shard, Supplier<T> change){
+		try {
+			return CompletableFuture.supplyAsync(change, writers[shard]).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public Account getCurrentAccount(){
+		int shard = currentShard;
+		return shard < 0 ? null : shards[shard].getCurrentAccount();
+	}
+
+	public synchronized void setCurrentAccount(Account newCurrentAccount){
+		int shard = shardOf(newCurrentAccount.getAccountID());
+		if(currentShard >= 0 && currentShard != shard){
+			// saves the changes of the current account in the other shard
+			shards[currentShard].clearCurrentAccount();
+		}
+		shards[shard].setCurrentAccount(newCurrentAccount);
+		currentShard = shard;
+	}
+
+	public boolean deposit(double amountToDeposit){
+		Account currentAccount = getCurrentAccount();
+		if(deposit(currentAccount.getAccountID(), Money.toCents(amountToDeposit), true)){
+			System.out.println("Deposit OK. Current balance is " + currentAccount.getFormattedBalance());
+			return true;
+		} else {
+			System.out.println("You tried to deposit a negative value.");
+			return false;
+		}
+	}
+
+	public boolean withdraw(double amountToWithdraw){
+		Account currentAccount = getCurrentAccount();
+		if(withdraw(currentAccount.getAccountID(), Money.toCents(amountToWithdraw), true)){
+			System.out.println("Withdraw OK. Current balance is " + currentAccount.getFormattedBalance());
+			return true;
+		} else {
+			System.out.println("Sorry, you don't have that kind of money.");
+			return false;
+		}
+	}
+
+	public boolean deposit(int accountId, long amountToDeposit){
+		return deposit(accountId, amountToDeposit, false);
+	}
+
+	public boolean deposit(int accountId, long amountToDeposit, boolean waitUntilDurable){
+		AccountManager shard = shards[shardOf(accountId)];
+		// the writer doesn't wait for the sync, so it can go on with the next change
+		boolean deposited = write(shardOf(accountId), () -> shard.deposit(accountId, amountToDeposit, false));
+		if(deposited && waitUntilDurable){
+			waitUntilDurable(shard, accountId);
+		}
+		return deposited;
+	}
+
+	public boolean withdraw(int accountId, long amountToWithdraw){
+		return withdraw(accountId, amountToWithdraw, false);
+	}
+
+	public boolean withdraw(int accountId, long amountToWithdraw, boolean waitUntilDurable){
+		AccountManager shard = shards[shardOf(accountId)];
+		boolean withdrawn = write(shardOf(accountId), () -> shard.withdraw(accountId, amountToWithdraw, false));
+		if(withdrawn && waitUntilDurable){
+			waitUntilDurable(shard, accountId);
+		}
+		return withdrawn;
+	}
+
+	public boolean transfer(int fromAccountId, int toAccountId, long amount){
+		return transfer(fromAccountId, toAccountId, amount, false);
+	}
+
+	/**
+	 * Moves an amount from one account to another. Between two shards the change is atomic, also after
+	 * a crash, see the class comment
+	 * @param fromAccountId
+	 * @param toAccountId
+	 * @param amount in cents
+	 * @param waitUntilDurable true to return only when both halves are on disk
+	 * @return false if the transfer was refused, else true
+	 */
+	public boolean transfer(int fromAccountId, int toAccountId, long amount, boolean waitUntilDurable){
+		AccountManager fromShard = shards[shardOf(fromAccountId)];
+		AccountManager toShard = shards[shardOf(toAccountId)];
+		if(fromShard == toShard){
+			boolean transferred = write(shardOf(fromAccountId), () -> fromShard.transfer(fromAccountId, toAccountId, amount, false));
+			if(transferred && waitUntilDurable){
+				waitUntilDurable(fromShard, fromAccountId);
+				waitUntilDurable(fromShard, toAccountId);
+			}
+			return transferred;
+		}
+		Account from = fromShard.getAccountByAccountID(fromAccountId);
+		Account to = toShard.getAccountByAccountID(toAccountId);
+		if(from == null || to == null || amount < 0){
+			return false;
+		}
+		fromShard.accountUsed(from);
+		toShard.accountUsed(to);
+		Account first = fromAccountId < toAccountId ? from : to;
+		Account second = first == from ? to : from;
+		boolean transferred = write(shardOf(fromAccountId), () -> {
+			long transferNumber;
+			synchronized(first){
+				synchronized(second){
+					if(from.getBalance() < amount){
+						return false;
+					}
+					// on disk before either half can be saved
+					transferNumber = transferLog.add(fromAccountId, toAccountId, amount);
+					// the shards share the totals, so this is one change of the balances in both shards.
+					// The balance can't have changed since it was checked, the lock is held
+					fromShard.moveMoney(from, to, amount);
+					fromShard.transferredOut(from, amount, transferNumber);
+					toShard.transferredIn(to, amount, transferNumber);
+				}
+			}
+			// marked before the transfer counts as made, so a saveAllAccounts that may drop it from the log saves both
+			fromShard.markChanged(from);
+			toShard.markChanged(to);
+			transferLog.applied(transferNumber);
+			return true;
+		});
+		if(transferred){
+			fromShard.commit(from, waitUntilDurable);
+			toShard.commit(to, waitUntilDurable);
+		}
+		return transferred;
+	}
+
+	private static void waitUntilDurable(AccountManager shard, int accountId){
+		Account account = shard.getAccountByAccountID(accountId);
+		if(account != null){
+			shard.commit(account, true);
+		}
+	}
+
+	public CompletableFuture<Void> whenDurable(int accountId){
+		return shards[shardOf(accountId)].whenDurable(accountId);
+	}
+
+	/**
+	 * Saves the changed accounts of every shard, a shard that fails doesn't stop the others. When all are
+	 * saved, the transfers between shards made before are dropped from the transfer log
+	 * @return number of accounts saved
+	 * @throws UncheckedIOException if some accounts couldn't be saved, they're saved again next time
+	 */
+	public int saveAllAccounts(){
+		// the accounts of these transfers are marked as changed, so the shards save them now
+		long transfersUpTo = transferLog.getAppliedUpTo();
+		int savedAccounts = 0;
+		UncheckedIOException failure = null;
+		for(AccountManager shard : shards){
+			try {
+				savedAccounts += shard.saveAllAccounts();
+			} catch (UncheckedIOException e) {
+				if(failure == null){
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if(failure != null){
+			throw failure;
+		}
+		transferLog.removeUpTo(transfersUpTo);
+		return savedAccounts;
+	}
+
+	public void createNewAccount(double startBalance, String accountOwnerName, String accountName){
+		int accountId = ids.nextId();
+		int shard = shardOf(accountId);
+		Account newAccount = write(shard, () -> shards[shard].createNewAccounts(new int[] { accountId }, new long[] { Money.toCents(startBalance) },
+				new String[] { accountOwnerName }, new String[] { accountName }))[0];
+		System.out.println("Accountfile of account nr " + newAccount.getAccountID() + " is :"  + newAccount.getAccountFile().getPath());
+		setCurrentAccount(newAccount);
+	}
+
+	/**
+	 * Creates many accounts in one go, every shard creates its part of them at the same time.
+	 * Doesn't change the current account
+	 * @param startBalances balances in cents that the new accounts should have
+	 * @param accountOwnerNames
+	 * @param accountNames
+	 * @return the created accounts, in the same order
+	 */
+	public Account[] createNewAccounts(long[] startBalances, String[] accountOwnerNames, String[] accountNames){
+		if(startBalances.length != accountOwnerNames.length || startBalances.length != accountNames.length){
+			throw new IllegalArgumentException("Need as many start balances as owner names and account names");
+		}
+		int[] accountIds = new int[startBalances.length];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = ids.nextId();
+		}
+		int[][] indexesByShard = indexesByShard(accountIds);
+		List<CompletableFuture<Account[]>> created = new ArrayList<CompletableFuture<Account[]>>();
+		for(int shard = 0; shard < shards.length; shard++){
+			int[] indexes = indexesByShard[shard];
+			int[] shardIds = new int[indexes.length];
+			long[] shardBalances = new long[indexes.length];
+			String[] shardOwners = new String[indexes.length];
+			String[] shardNames = new String[indexes.length];
+			for(int i = 0; i < indexes.length; i++){
+				shardIds[i] = accountIds[indexes[i]];
+				shardBalances[i] = startBalances[indexes[i]];
+				shardOwners[i] = accountOwnerNames[indexes[i]];
+				shardNames[i] = accountNames[indexes[i]];
+			}
+			AccountManager shardManager = shards[shard];
+			created.add(CompletableFuture.supplyAsync(() -> shardManager.createNewAccounts(shardIds, shardBalances, shardOwners, shardNames), writers[shard]));
+		}
+		Account[] newAccounts = new Account[startBalances.length];
+		for(int shard = 0; shard < shards.length; shard++){
+			Account[] shardAccounts = created.get(shard).join();
+			for(int i = 0; i < shardAccounts.length; i++){
+				newAccounts[indexesByShard[shard][i]] = shardAccounts[i];
+			}
+		}
+		return newAccounts;
+	}
+
+	/**
+	 * @param accountIds
+	 * @return for every shard, the indexes of the ids that belong in it
+	 */
+	private int[][] indexesByShard(int[] accountIds){
+		int[] counts = new int[shards.length];
+		for(int accountId : accountIds){
+			counts[shardOf(accountId)]++;
+		}
+		int[][] indexes = new int[shards.length][];
+		for(int shard = 0; shard < shards.length; shard++){
+			indexes[shard] = new int[counts[shard]];
+			counts[shard] = 0;
+		}
+		for(int i = 0; i < accountIds.length; i++){
+			int shard = shardOf(accountIds[i]);
+			indexes[shard][counts[shard]++] = i;
+		}
+		return indexes;
+	}
+
+	/**
+	 * Adds the accounts in a folder of account files (aN.txt) as new accounts, every shard adds its
+	 * part of them at the same time
+	 * @param importFolder
+	 * @return the imported accounts
+	 */
+	public List<Account> importAccounts(File importFolder){
+		List<Account> loadedAccounts = new AccountLoader(importFolder, Runtime.getRuntime().availableProcessors(), ids).loadAccounts();
+		int[] accountIds = new int[loadedAccounts.size()];
+		for(int i = 0; i < accountIds.length; i++){
+			accountIds[i] = ids.nextId();
+		}
+		int[][] indexesByShard = indexesByShard(accountIds);
+		List<CompletableFuture<List<Account>>> imported = new ArrayList<CompletableFuture<List<Account>>>();
+		for(int shard = 0; shard < shards.length; shard++){
+			int[] indexes = indexesByShard[shard];
+			int[] shardIds = new int[indexes.length];
+			List<Account> shardAccounts = new ArrayList<Account>(indexes.length);
+			for(int i = 0; i < indexes.length; i++){
+				shardIds[i] = accountIds[indexes[i]];
+				shardAccounts.add(loadedAccounts.get(indexes[i]));
+			}
+			AccountManager shardManager = shards[shard];
+			imported.add(CompletableFuture.supplyAsync(() -> shardManager.importAccounts(shardIds, shardAccounts), writers[shard]));
+		}
+		List<Account> importedAccounts = new ArrayList<Account>(loadedAccounts.size());
+		for(CompletableFuture<List<Account>> shardAccounts : imported){
+			importedAccounts.addAll(shardAccounts.join());
+		}
+		return importedAccounts;
+	}
+
+	/**
+	 * Writes all accounts as account files (aN.txt) to a folder, whatever storage the shards use
+	 * @param exportFolder
+	 */
+	public void exportAccounts(File exportFolder){
+		AccountFileStorage.exportAccounts(copyOfAllAccounts(), exportFolder);
+	}
+
+	public void deleteAccount(Account accountToDelete){
+		int shard = shardOf(accountToDelete.getAccountID());
+		write(shard, () -> {
+			shards[shard].deleteAccount(accountToDelete);
+			return null;
+		});
+	}
+
+	/**
+	 * @return a copy of the list of all accounts, shard by shard. Read only, and it doesn't change when
+	 * accounts are created or deleted
+	 */
+	public List<Account> getAllAccounts(){
+		return Collections.unmodifiableList(copyOfAllAccounts());
+	}
+
+	private List<Account> copyOfAllAccounts(){
+		List<Account> allAccounts = new ArrayList<Account>((int) Math.max(16, totals.getAccountCount() + 64));
+		for(AccountManager shard : shards){
+			allAccounts.addAll(shard.copyOfAllAccounts());
+		}
+		return allAccounts;
+	}
+
+	public Account getAccountByAccountID(int accountID){
+		if(accountID < 0){
+			return null;
+		}
+		return shards[shardOf(accountID)].getAccountByAccountID(accountID);
+	}
+
+	public Account getAccountByAccountName(String accountName){
+		Account oldest = null;
+		for(AccountManager shard : shards){
+			Account match = shard.getAccountByAccountName(accountName);
+			if(match != null && (oldest == null || match.getAccountID() < oldest.getAccountID())){
+				oldest = match;
+			}
+		}
+		return oldest;
+	}
+
+	public Account[] getAccountsByAccountName(String accountName){
+		List<Account> matches = new ArrayList<Account>();
+		for(AccountManager shard : shards){
+			matches.addAll(Arrays.asList(shard.getAccountsByAccountName(accountName)));
+		}
+		return oldestFirst(matches);
+	}
+
+	public Account[] getAccountsByOwnerName(String ownerName){
+		List<Account> matches = new ArrayList<Account>();
+		for(AccountManager shard : shards){
+			matches.addAll(Arrays.asList(shard.getAccountsByOwnerName(ownerName)));
+		}
+		return oldestFirst(matches);
+	}
+
+	private static Account[] oldestFirst(List<Account> accounts){
+		// the ids go round the shards, so in id order is the order they were created in
+		accounts.sort(Comparator.comparingInt(Account::getAccountID));
+		return accounts.toArray(new Account[accounts.size()]);
+	}
+
+	public SearchResults searchAccountNames(String text){
+		List<SearchResults> searches = new ArrayList<SearchResults>(shards.length);
+		for(AccountManager shard : shards){
+			searches.add(shard.searchAccountNames(text));
+		}
+		return SearchResults.combine(searches);
+	}
+
+	public SearchResults searchOwnerNames(String text){
+		List<SearchResults> searches = new ArrayList<SearchResults>(shards.length);
+		for(AccountManager shard : shards){
+			searches.add(shard.searchOwnerNames(text));
+		}
+		return SearchResults.combine(searches);
+	}
+
+	public AccountLedger getLedger(Account account){
+		return shards[shardOf(account.getAccountID())].getLedger();
+	}
+
+	public void printLatestTransactions(int count){
+		shards[currentShard].printLatestTransactions(count);
+	}
+
+	public BankTotals getTotals(){
+		return totals;
+	}
+
+	public BalanceSnapshot openBalanceSnapshot(){
+		// the shards share the versions with the totals, so this is one instant in all of them
+		return totals.getVersions().openSnapshot();
+	}
+
+	public List<Account> getTopBalances(int places){
+		return totals.getTopBalances(places);
+	}
+
+	/**
+	 * Counts the totals again from the accounts of all shards and prints where they differ
+	 * @return true if they are the same
+	 */
+	public boolean reconcileTotals(){
+		long start = System.nanoTime();
+		List<String> differences = totals.reconcile(copyOfAllAccounts());
+		for(String difference : differences){
+			System.out.println("Totals differ: " + difference);
+		}
+		System.out.println(String.format("Reconciled the totals in %.1f ms, %d differences", (System.nanoTime() - start) / 1e6, differences.size()));
+		return differences.isEmpty();
+	}
+
+	/**
+	 * Saves the changed accounts of all shards every intervalMillis milliseconds, until the shards are
+	 * closed. One checkpoint saves all shards, so it can also empty the transfer log
+	 * @param intervalMillis
+	 */
+	public synchronized void startCheckpoints(long intervalMillis){
+		if(checkpoints == null){
+			checkpoints = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread checkpointThread = new Thread(runnable, "checkpoint");
+				checkpointThread.setDaemon(true);
+				return checkpointThread;
+			});
+		}
+		checkpoints.scheduleWithFixedDelay(() -> {
+			try {
+				saveAllAccounts();
+			} catch (RuntimeException e){
+				// keep it going
+				e.printStackTrace();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void startSnapshots(long intervalMillis){
+		for(AccountManager shard : shards){
+			shard.startSnapshots(intervalMillis);
+		}
+	}
+
+	/**
+	 * Pays a month of interest to the accounts of one shard after the other, every shard keeps its own
+	 * progress. See AccountManager.payMonthlyInterest
+	 * @param month
+	 * @param annualRatePercent interest per year in percent
+	 * @return number of accounts that were paid
+	 */
+	public long payMonthlyInterest(YearMonth month, BigDecimal annualRatePercent){
+		long paidAccounts = 0;
+		for(AccountManager shard : shards){
+			paidAccounts += shard.payMonthlyInterest(month, annualRatePercent);
+		}
+		return paidAccounts;
+	}
+
+	/**
+	 * Lets the writers finish the changes they have, then closes every shard
+	 */
+	public void closeAccountManager(){
+		synchronized(this){
+			if(checkpoints != null){
+				checkpoints.shutdown();
+				try {
+					// let a running checkpoint finish before the shards are closed
+					checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		for(ExecutorService writer : writers){
+			writer.shutdown();
+		}
+		for(ExecutorService writer : writers){
+			try {
+				writer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			// empties the transfer log, so the next start has nothing to check
+			saveAllAccounts();
+		} catch (UncheckedIOException e) {
+			e.printStackTrace();
+		}
+		for(AccountManager shard : shards){
+			shard.closeAccountManager();
+		}
+		transferLog.close();
+	}
+}
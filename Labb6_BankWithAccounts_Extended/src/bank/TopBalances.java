@@ -0,0 +1,238 @@
+package bank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The accounts with the biggest balances, kept sorted as the balances change.
+ *
+ * Only the top `capacity` accounts are kept, in an array sorted by balance, and every account that
+ * isn't in it has a balance no bigger than the floor. A change of an account below the floor only
+ * costs a look at the account and a compare. When an account in the list drops below the floor,
+ * accounts outside of it might be bigger, so the list can't answer for places past that account any
+ * more. It's rebuilt from all accounts the next time it's asked for them, which is rare as long as the
+ * capacity is well above the number of places that are asked for.
+ *
+ * The entries of the array are made once and reused: a changed account moves its own entry to its new
+ * place, and an account that comes into a full list takes the entry of the one it pushes out. Every
+ * account knows its entry, so a balance change never allocates anything.
+ *
+ * Changes of one account must not run at the same time, the account manager calls this while holding
+ * the lock of the account. Changes of different accounts wait for each other only if they are above
+ * the floor, and then only while an entry is moved.
+ * @author Erik
+ *
+ */
+public class TopBalances {
+
+	// biggest balance first, the account id breaks ties so no two entries are equal
+	private static final Comparator<Entry> BIGGEST_FIRST = (a, b) -> a.balance != b.balance
+			? Long.compare(b.balance, a.balance) : Integer.compare(a.account.getAccountID(), b.account.getAccountID());
+
+	private final Entry[] entries; // sorted, biggest first. The first size are used, the rest are spare. Also the lock of the changes
+	private int size;
+	private volatile long floor = Long.MIN_VALUE; // no account outside the list has more. Only goes down in a rebuild
+
+	/**
+	 * @param capacity the largest number of accounts kept
+	 */
+	TopBalances(int capacity){
+		entries = new Entry[capacity];
+		for(int place = 0; place < capacity; place++){
+			entries[place] = new Entry(null, 0);
+			entries[place].place = place;
+		}
+	}
+
+	/**
+	 * Called when an account is added, and after its balance changed
+	 * @param account
+	 * @param balance the new balance in cents
+	 */
+	public void update(Account account, long balance){
+		if(account.getTopEntry() == null && balance <= floor){
+			// not in the list, and still not big enough for it. Only this account's changes put it in the list
+			return;
+		}
+		synchronized(entries){
+			Entry entry = account.getTopEntry(); // it may have been pushed out since it was looked at
+			if(entry != null){
+				entry.balance = balance;
+				moveToPlace(entry);
+				return;
+			}
+			if(balance <= floor){
+				return;
+			}
+			if(size < entries.length){
+				entry = entries[size++];
+			} else {
+				entry = entries[size - 1];
+				if(balance < entry.balance || balance == entry.balance && account.getAccountID() > entry.account.getAccountID()){
+					// the list is full of bigger accounts
+					floor = Math.max(floor, balance);
+					return;
+				}
+				// push out the smallest one and take its entry
+				floor = Math.max(floor, entry.balance);
+				entry.account.setTopEntry(null);
+			}
+			entry.account = account;
+			entry.balance = balance;
+			account.setTopEntry(entry);
+			moveToPlace(entry);
+		}
+	}
+
+	/**
+	 * Called when an account is removed
+	 * @param account
+	 */
+	public void remove(Account account){
+		synchronized(entries){
+			Entry entry = account.getTopEntry();
+			if(entry == null){
+				return;
+			}
+			account.setTopEntry(null);
+			// move it to the end of the used entries, where it becomes a spare
+			for(int place = entry.place; place < size - 1; place++){
+				putInPlace(entries[place + 1], place);
+			}
+			size--;
+			putInPlace(entry, size);
+			entry.account = null;
+		}
+	}
+
+	/**
+	 * Moves an entry whose balance changed up or down to where it belongs, one place at a time. A balance
+	 * seldom changes by much, so it seldom moves far
+	 * @param entry
+	 */
+	private void moveToPlace(Entry entry){
+		int place = entry.place;
+		while(place > 0 && BIGGEST_FIRST.compare(entry, entries[place - 1]) < 0){
+			putInPlace(entries[place - 1], place);
+			place--;
+		}
+		while(place < size - 1 && BIGGEST_FIRST.compare(entry, entries[place + 1]) > 0){
+			putInPlace(entries[place + 1], place);
+			place++;
+		}
+		putInPlace(entry, place);
+	}
+
+	private void putInPlace(Entry entry, int place){
+		entries[place] = entry;
+		entry.place = place;
+	}
+
+	/**
+	 * @param count number of places, at most the capacity
+	 * @return the accounts in the first count places, biggest balance first. null if the list can't tell
+	 * for sure any more and has to be rebuilt
+	 */
+	public synchronized List<Account> top(int count){
+		List<Account> top = new ArrayList<Account>(Math.min(count, entries.length));
+		synchronized(entries){
+			long lowestAllowed = floor;
+			for(int place = 0; place < size && top.size() < count; place++){
+				if(entries[place].balance < lowestAllowed){
+					// an account outside the list may have more than this one
+					return null;
+				}
+				top.add(entries[place].account);
+			}
+			if(top.size() < count && lowestAllowed != Long.MIN_VALUE){
+				// accounts were dropped from the list, the rest of the places are outside it
+				return null;
+			}
+		}
+		return top;
+	}
+
+	/**
+	 * Fills the list again from all accounts, without stopping the changes. While it runs every changed
+	 * account goes into the list, so an account that isn't among the biggest when they are looked for
+	 * only stays outside if it isn't changed, and then the smallest of the biggest is a safe floor
+	 * @param accounts all accounts
+	 */
+	public synchronized void rebuild(Collection<Account> accounts){
+		synchronized(entries){
+			floor = Long.MIN_VALUE;
+		}
+		List<Entry> biggest = biggestEntries(accounts, entries.length);
+		for(Entry found : biggest){
+			synchronized(found.account){
+				if(found.account.getOwnerTotal() != null){
+					// still counted, not deleted. The balance now, it may have changed since it was looked at
+					update(found.account, found.account.getBalance());
+				}
+			}
+		}
+		if(biggest.size() == entries.length){
+			synchronized(entries){
+				floor = Math.max(floor, biggest.get(biggest.size() - 1).balance);
+			}
+		}
+	}
+
+	/**
+	 * Finds the accounts with the biggest balances in parallel
+	 * @param accounts
+	 * @param count
+	 * @return at most count accounts, biggest balance first
+	 */
+	static List<Account> biggest(Collection<Account> accounts, int count){
+		List<Account> biggest = new ArrayList<Account>(count);
+		for(Entry entry : biggestEntries(accounts, count)){
+			biggest.add(entry.account);
+		}
+		return biggest;
+	}
+
+	/**
+	 * Every thread keeps a small heap of the biggest balances it has seen, the heaps are merged at the end.
+	 * Each balance is read once, so the order can't change while they are compared
+	 */
+	private static List<Entry> biggestEntries(Collection<Account> accounts, int count){
+		PriorityQueue<Entry> smallestOnTop = accounts.parallelStream().map(account -> new Entry(account, account.getBalance())).collect(
+				() -> new PriorityQueue<Entry>(count + 1, BIGGEST_FIRST.reversed()),
+				(heap, entry) -> {
+					heap.add(entry);
+					if(heap.size() > count){
+						heap.poll();
+					}
+				},
+				(heap, other) -> {
+					for(Entry entry : other){
+						heap.add(entry);
+						if(heap.size() > count){
+							heap.poll();
+						}
+					}
+				});
+		List<Entry> biggest = new ArrayList<Entry>(smallestOnTop);
+		biggest.sort(BIGGEST_FIRST);
+		return biggest;
+	}
+
+	/**
+	 * An account and its balance when it was put in the list or last changed. In the list the entry
+	 * changes account when an account is pushed out, so it's only read while holding the lock of the list
+	 */
+	static class Entry {
+		Account account; // null for a spare entry
+		long balance;
+		int place; // index in the array of the list
+
+		Entry(Account account, long balance){
+			this.account = account;
+			this.balance = balance;
+		}
+	}
+}